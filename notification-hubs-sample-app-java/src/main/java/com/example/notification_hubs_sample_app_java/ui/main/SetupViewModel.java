@@ -5,6 +5,7 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import com.microsoft.windowsazure.messaging.notificationhubs.NotificationHub;
+import com.microsoft.windowsazure.messaging.notificationhubs.TagDiff;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -71,15 +72,22 @@ public class SetupViewModel extends ViewModel {
             throw new IllegalArgumentException();
         }
 
-        if (NotificationHub.addTag(tag)) {
-            mTags.postValue(iterableToList(NotificationHub.getTags()));
-        }
+        applyTagDiff(NotificationHub.editTags().add(tag).apply());
     }
 
     public void removeTag(String tag) {
-        if (NotificationHub.removeTag(tag)) {
-            mTags.postValue(iterableToList(NotificationHub.getTags()));
+        applyTagDiff(NotificationHub.editTags().remove(tag).apply());
+    }
+
+    private void applyTagDiff(TagDiff diff) {
+        if (diff.isEmpty()) {
+            return;
         }
+
+        List<String> tags = new ArrayList<String>(mTags.getValue());
+        tags.removeAll(diff.getRemoved());
+        tags.addAll(diff.getAdded());
+        mTags.setValue(tags);
     }
 
     public String getUnknownText() {
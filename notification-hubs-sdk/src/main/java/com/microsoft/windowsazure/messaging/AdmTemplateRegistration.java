@@ -20,8 +20,8 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents ADM template registration
@@ -53,14 +53,14 @@ public class AdmTemplateRegistration extends TemplateRegistration {
 	}
 
 	@Override
-	protected void appendCustomPayload(Document doc, Element templateRegistrationDescription) {
-		appendNodeWithValue(doc, templateRegistrationDescription, ADM_HANDLE_NODE, getPNSHandle());
-		super.appendCustomPayload(doc,templateRegistrationDescription);
+	void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+		writer.writeNodeWithValue(ADM_HANDLE_NODE, getPNSHandle());
+		super.writeCustomPayload(writer);
 	}
 
 	@Override
-	protected void loadCustomXmlData(Element payloadNode) {
-		setPNSHandle(getNodeValue(payloadNode, ADM_HANDLE_NODE));
-		super.loadCustomXmlData(payloadNode);
+	protected void loadCustomXmlData(Map<String, String> payloadValues) {
+		setPNSHandle(payloadValues.get(ADM_HANDLE_NODE));
+		super.loadCustomXmlData(payloadValues);
 	}	
 }
@@ -20,8 +20,9 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.io.IOException;
+import java.util.Map;
+
 import static com.microsoft.windowsazure.messaging.Utils.isNullOrWhiteSpace;
 
 /**
@@ -131,13 +132,13 @@ public class BaiduNativeRegistration extends Registration {
 	}
 
 	@Override
-	protected void appendCustomPayload(Document doc, Element registrationDescription) {
-		appendNodeWithValue(doc, registrationDescription, BAIDU_USER_ID, getUserId());
-		appendNodeWithValue(doc, registrationDescription, BAIDU_CHANNEL_ID, getChannelId());
+	void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+		writer.writeNodeWithValue(BAIDU_USER_ID, getUserId());
+		writer.writeNodeWithValue(BAIDU_CHANNEL_ID, getChannelId());
 	}
 
 	@Override
-	protected void loadCustomXmlData(Element payloadNode) {
+	protected void loadCustomXmlData(Map<String, String> payloadValues) {
 		setName(DEFAULT_REGISTRATION_NAME);
 	}
 }
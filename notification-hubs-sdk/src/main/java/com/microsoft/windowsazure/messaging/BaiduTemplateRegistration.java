@@ -20,10 +20,11 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
+import java.io.IOException;
+import java.util.Map;
+
 import static com.microsoft.windowsazure.messaging.Utils.isNullOrWhiteSpace;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 /**
  * Represents BAIDU template registration
@@ -132,15 +133,15 @@ public class BaiduTemplateRegistration extends TemplateRegistration {
 	}
 
 	@Override
-	protected void appendCustomPayload(Document doc, Element templateRegistrationDescription) {
-		appendNodeWithValue(doc, templateRegistrationDescription, BAIDU_USER_ID, getUserId());
-		appendNodeWithValue(doc, templateRegistrationDescription, BAIDU_CHANNEL_ID, getChannelId());
-		super.appendCustomPayload(doc,templateRegistrationDescription);
+	void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+		writer.writeNodeWithValue(BAIDU_USER_ID, getUserId());
+		writer.writeNodeWithValue(BAIDU_CHANNEL_ID, getChannelId());
+		super.writeCustomPayload(writer);
 	}
 
 	@Override
-	protected void loadCustomXmlData(Element payloadNode) {
-		setPNSHandle(getNodeValue(payloadNode, BAIDU_HANDLE_NODE));
-		super.loadCustomXmlData(payloadNode);
+	protected void loadCustomXmlData(Map<String, String> payloadValues) {
+		setPNSHandle(payloadValues.get(BAIDU_HANDLE_NODE));
+		super.loadCustomXmlData(payloadValues);
 	}	
 }
\ No newline at end of file
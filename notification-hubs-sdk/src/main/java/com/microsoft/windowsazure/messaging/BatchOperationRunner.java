@@ -0,0 +1,103 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a batch of independent operations with a bounded number of concurrent operations, on
+ * threads owned by the batch. The batch doesn't share the async executor, so it can't be starved
+ * by operations waiting on locks held by its caller.
+ */
+class BatchOperationRunner {
+
+	/**
+	 * Maximum number of operations running at the same time
+	 */
+	private final int mParallelism;
+
+	/**
+	 * Prefix of the names of the batch threads
+	 */
+	private final String mThreadNamePrefix;
+
+	/**
+	 * Creates a new BatchOperationRunner
+	 * @param parallelism	Maximum number of operations running at the same time
+	 * @param threadNamePrefix	Prefix of the names of the batch threads
+	 */
+	BatchOperationRunner(int parallelism, String threadNamePrefix) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism");
+		}
+
+		mParallelism = parallelism;
+		mThreadNamePrefix = threadNamePrefix;
+	}
+
+	/**
+	 * Runs every operation and waits for all of them to complete
+	 * @param operations	The operations to run, keyed by an identifier of each operation
+	 * @return The completed operations, keyed and ordered like the operations
+	 * @throws InterruptedException	If the calling thread is interrupted; operations that didn't complete are cancelled
+	 */
+	<K, V> Map<K, Future<V>> runAll(Map<K, ? extends Callable<V>> operations) throws InterruptedException {
+		Map<K, Future<V>> results = new LinkedHashMap<K, Future<V>>();
+		if (operations.isEmpty()) {
+			return results;
+		}
+
+		List<K> keys = new ArrayList<K>(operations.keySet());
+		List<Callable<V>> tasks = new ArrayList<Callable<V>>(operations.size());
+		for (K key : keys) {
+			tasks.add(operations.get(key));
+		}
+
+		int threads = Math.min(mParallelism, tasks.size());
+		ExecutorService executor = new ThreadPoolExecutor(
+				threads,
+				threads,
+				0,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new RegistrationTaskRunner.NamedThreadFactory(mThreadNamePrefix));
+
+		try {
+			List<Future<V>> futures = executor.invokeAll(tasks);
+			for (int i = 0; i < keys.size(); i++) {
+				results.put(keys.get(i), futures.get(i));
+			}
+
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -22,31 +22,25 @@ package com.microsoft.windowsazure.messaging;
 
 import static com.microsoft.windowsazure.messaging.Utils.isNullOrWhiteSpace;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap.SimpleEntry;
-import java.util.Calendar;
-import java.util.Locale;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.TimeZone;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.zip.GZIPInputStream;
 
 import android.os.Build;
-import android.util.Base64;
 
 /**
  * The connection with a Notification Hub server
@@ -68,11 +62,6 @@ class Connection {
 	 */
 	private static final String AUTHORIZATION_HEADER = "Authorization";
 
-	/**
-	 * UTC timezone
-	 */
-	private static final String UTC_TIME_ZONE = "UTC";
-
 	/**
 	 * UTF-8 encoding
 	 */
@@ -83,11 +72,6 @@ class Connection {
 	 */
 	private static final String ENDPOINT_KEY = "Endpoint";
 
-	/**
-	 * Authentication token expiration minutes
-	 */
-	private static final int EXPIRE_MINUTES = 5;
-
 	/**
 	 * SDK Version
 	 */
@@ -103,17 +87,110 @@ class Connection {
 	 */
 	private static final String API_VERSION = "2014-09";
 
+	/**
+	 * Size of the buffer each thread reads response bodies into
+	 */
+	static final int INITIAL_RESPONSE_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Largest response buffer kept for the next request, so that one unusually large
+	 * response does not pin memory for the life of the process
+	 */
+	static final int MAX_RETAINED_RESPONSE_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * The buffer each thread reads response bodies into
+	 */
+	private static final ThreadLocal<byte[]> sResponseBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[INITIAL_RESPONSE_BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Reads a whole response body as a UTF-8 string
+	 */
+	private static final ResponseReader<String> CONTENT_READER = new ResponseReader<String>() {
+		@Override
+		public String read(HttpURLConnection conn, InputStream body) throws IOException {
+			return readContent(body);
+		}
+	};
+
+	/**
+	 * Writes a request content body
+	 */
+	interface ContentWriter {
+		/**
+		 * Writes the content to the request stream
+		 * @param out	The request stream
+		 * @throws IOException
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Reads a successful response
+	 */
+	interface ResponseReader<T> {
+		/**
+		 * Reads the result from the response. Whatever the reader leaves unread is discarded
+		 * once it returns.
+		 * @param conn	The HttpURLConnection the response belongs to
+		 * @param body	The response content body, already decompressed, and empty if there is none
+		 * @return	The result
+		 * @throws Exception
+		 */
+		T read(HttpURLConnection conn, InputStream body) throws Exception;
+	}
+
 	/**
 	 * Connection data retrieved from connection string
 	 */
 	private Map<String, String> mConnectionData;
 
+	/**
+	 * Transport used to open and release HTTP connections
+	 */
+	private HttpTransport mTransport;
+
+	/**
+	 * Decides which request bodies are compressed, and counts their bytes
+	 */
+	private final RequestCompression mCompression;
+
 	/**
 	 * Creates a new connection object
 	 * @param connectionString	The connection string 
 	 */
 	public Connection(String connectionString) {
+		this(connectionString, KeepAliveHttpTransport.getDefault());
+	}
+
+	/**
+	 * Creates a new connection object
+	 * @param connectionString	The connection string
+	 * @param transport	The transport used to open and release HTTP connections
+	 */
+	public Connection(String connectionString, HttpTransport transport) {
+		this(connectionString, transport, RequestCompression.getDefault());
+	}
+
+	/**
+	 * Creates a new connection object
+	 * @param connectionString	The connection string
+	 * @param transport	The transport used to open and release HTTP connections
+	 * @param compression	Decides which request bodies are compressed
+	 */
+	Connection(String connectionString, HttpTransport transport, RequestCompression compression) {
+		if (transport == null) {
+			throw new IllegalArgumentException("transport");
+		}
+
 		mConnectionData = ConnectionStringParser.parse(connectionString);
+		mTransport = transport;
+		mCompression = compression;
 	}
 
 	/**
@@ -142,6 +219,56 @@ class Connection {
 	 * @throws Exception MalformedUrlException, IOException, ProtocolException
 	 */
 	public String executeRequest(String resource, String content, String contentType, String method, String targetHeaderName, SimpleEntry<String, String>... extraHeaders) throws Exception {
+		ResponseReader<String> reader = targetHeaderName == null ? CONTENT_READER : new HeaderReader(targetHeaderName);
+		return execute(resource, toContentWriter(content), contentType, method, reader, extraHeaders);
+	}
+
+	/**
+	 * Executes a request to the Notification Hub server, streaming the content body to the request
+	 * @param resource	The resource to access
+	 * @param content	Writes the request content body
+	 * @param contentType	The request content type
+	 * @param method	The request method
+	 * @param extraHeaders	Extra headers to include in the request
+	 * @return	The response content body
+	 * @throws Exception
+	 */
+	public String executeRequest(String resource, ContentWriter content, String contentType, String method, SimpleEntry<String, String>... extraHeaders) throws Exception {
+		return execute(resource, content, contentType, method, CONTENT_READER, extraHeaders);
+	}
+
+	/**
+	 * Executes a request to the Notification Hub server, handing a successful response body to a
+	 * reader as it arrives instead of buffering it into a string
+	 * @param resource	The resource to access
+	 * @param content	Writes the request content body, or null to send no body
+	 * @param contentType	The request content type
+	 * @param method	The request method
+	 * @param reader	Reads the result from a successful response
+	 * @param extraHeaders	Extra headers to include in the request
+	 * @return	The result read
+	 * @throws Exception
+	 */
+	public <T> T executeRequest(String resource, ContentWriter content, String contentType, String method, ResponseReader<T> reader, SimpleEntry<String, String>... extraHeaders) throws Exception {
+		if (reader == null) {
+			throw new IllegalArgumentException("reader");
+		}
+
+		return execute(resource, content, contentType, method, reader, extraHeaders);
+	}
+
+	/**
+	 * Executes a request to the Notification Hub server
+	 * @param resource	The resource to access
+	 * @param content	Writes the request content body, or null to send no body
+	 * @param contentType	The request content type
+	 * @param method	The request method
+	 * @param reader	Reads the result from a successful response
+	 * @param extraHeaders	Extra headers to include in the request
+	 * @return	The result read
+	 * @throws Exception MalformedUrlException, IOException, ProtocolException
+	 */
+	private <T> T execute(String resource, ContentWriter content, String contentType, String method, ResponseReader<T> reader, SimpleEntry<String, String>... extraHeaders) throws Exception {
 		URI endpointURI = URI.create(mConnectionData.get(ENDPOINT_KEY));
 		String scheme = endpointURI.getScheme();
 
@@ -156,18 +283,43 @@ class Connection {
 		url = AddApiVersionToUrl(url);
 
 		URL wrappedUrl = new URL(url);
-		HttpURLConnection conn = (HttpURLConnection) wrappedUrl.openConnection();
-		conn.setRequestMethod(method);
+		HttpURLConnection conn = mTransport.openConnection(wrappedUrl);
+		try {
+			conn.setRequestMethod(method);
 
-		conn.setRequestProperty("Content-Type", contentType);
+			conn.setRequestProperty("Content-Type", contentType);
 
-		if (extraHeaders != null) {
-			for (SimpleEntry<String, String> header : extraHeaders) {
-				conn.setRequestProperty(header.getKey(), header.getValue());
+			if (extraHeaders != null) {
+				for (SimpleEntry<String, String> header : extraHeaders) {
+					conn.setRequestProperty(header.getKey(), header.getValue());
+				}
 			}
+		} catch (Exception e) {
+			mTransport.releaseConnection(conn, false);
+			throw e;
+		}
+
+		return executeRequest(conn, content, reader);
+	}
+
+	/**
+	 * Wraps a content string in a ContentWriter which encodes it as UTF-8
+	 * @param content	The content string
+	 * @return	The ContentWriter, or null if there is no content to send
+	 */
+	private static ContentWriter toContentWriter(final String content) {
+		if (isNullOrWhiteSpace(content)) {
+			return null;
 		}
 
-		return executeRequest(conn, targetHeaderName, content);
+		return new ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, UTF8_ENCODING));
+				writer.write(content);
+				writer.flush();
+			}
+		};
 	}
 
 	/**
@@ -192,58 +344,69 @@ class Connection {
 	/**
 	 * Executes a web request
 	 * @param conn	The HttpURLConnection to execute
-	 * @param targetHeaderName The header name when we need to get value from it in instead of content
-	 * @return	The content string or header value
+	 * @param postContent	Writes the request content body, or null to send no body
+	 * @param reader	Reads the result from a successful response
+	 * @return	The result read
 	 * @throws Exception InvalidKeyException, IOException, UnsupportedEncodingException,
 	 * NotificationHubException, NotificationHubUnauthorizedException, RegistrationGoneException,
 	 * NotificationHubException
 	 */
-	private String executeRequest(HttpURLConnection conn, String targetHeaderName, String postContent) throws Exception{
-		addAuthorizationHeader(conn);
-
+	private <T> T executeRequest(HttpURLConnection conn, ContentWriter postContent, ResponseReader<T> reader) throws Exception{
 		int status;
-		String content;
-		String headerValue = null;
-		boolean noHeaderButExpected=false;
+		T result = null;
+		String errorContent = null;
+		boolean reusable = false;
 
 		try {
+			addAuthorizationHeader(conn);
 			conn.setRequestProperty("User-Agent", getUserAgent());
 
-			if (Utils.isNullOrWhiteSpace(postContent)) {
+			// Asking for gzip explicitly turns off HttpURLConnection's transparent decompression,
+			// so getResponseContent decompresses the response itself.
+			conn.setRequestProperty("Accept-Encoding", RequestCompression.GZIP_ENCODING);
+
+			if (postContent == null) {
 				conn.connect();
+			} else if (mCompression.isEnabled()) {
+				writeCompressibleContent(conn, postContent);
 			} else {
 				conn.setDoOutput(true);
 
-				OutputStream os = conn.getOutputStream();
-				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, UTF8_ENCODING));
-				writer.write(postContent);
-				writer.flush();
-				writer.close();
-				os.close();
+				CountingOutputStream os = new CountingOutputStream(conn.getOutputStream());
+				try {
+					postContent.writeTo(os);
+				} finally {
+					os.close();
+				}
+				mCompression.record(os.getCount(), os.getCount());
 			}
 
-			status = conn.getResponseCode();		
-			content = getResponseContent(conn);
-			
-			if(targetHeaderName != null) {
-				if (conn.getHeaderField(targetHeaderName) == null) {
-					noHeaderButExpected = true;					
-				} else{
-					headerValue = conn.getHeaderField(targetHeaderName);
+			status = conn.getResponseCode();
+			InputStream responseStream = getResponseStream(conn);
+			try {
+				if (status >= 200 && status < 300) {
+					result = reader.read(conn, responseStream);
+				} else {
+					errorContent = readErrorContent(responseStream);
+				}
+
+				discardContent(responseStream);
+			} finally {
+				try {
+					responseStream.close();
+				} catch (IOException e) {
+					// nothing left to release
 				}
 			}
 
+			// The response stream has been fully read and closed, so the socket can be kept alive
+			reusable = true;
 		} finally {
-			if (conn != null) {
-				conn.disconnect();
-			}
+			mTransport.releaseConnection(conn, reusable);
 		}
 
 		if (status >= 200 && status < 300) {
-			if(noHeaderButExpected){
-				throw new NotificationHubException("The '"+targetHeaderName + "' header does not present in collection", status);
-			}
-			return targetHeaderName==null?content:headerValue;
+			return result;
 		} else if (status == 404) {
 			throw new NotificationHubResourceNotFoundException();
 		} else if (status == 401) {
@@ -251,16 +414,45 @@ class Connection {
 		} else if (status == 410) {
 			throw new RegistrationGoneException();
 		} else {
-			throw new NotificationHubException(content, status);
+			throw new NotificationHubException(errorContent, status);
+		}
+	}
+
+	/**
+	 * Writes a request content body, compressing it with gzip if it is large enough. The body has
+	 * to be buffered to learn its size before any header is sent.
+	 * @param conn	The HttpURLConnection to write to
+	 * @param postContent	Writes the request content body
+	 */
+	private void writeCompressibleContent(HttpURLConnection conn, ContentWriter postContent) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		postContent.writeTo(buffer);
+		byte[] body = buffer.toByteArray();
+		int rawBytes = body.length;
+
+		if (mCompression.shouldCompress(rawBytes)) {
+			body = RequestCompression.gzip(body, 0, rawBytes);
+			conn.setRequestProperty("Content-Encoding", RequestCompression.GZIP_ENCODING);
+		}
+
+		conn.setDoOutput(true);
+		conn.setFixedLengthStreamingMode(body.length);
+		OutputStream os = conn.getOutputStream();
+		try {
+			os.write(body);
+		} finally {
+			os.close();
 		}
+		mCompression.record(rawBytes, body.length);
 	}
 
 	/**
-	 * Reads the content from a HttpURLConnection response to a string
+	 * Opens the content of a HttpURLConnection response, decompressing it if needed
 	 * @param conn	The HttpURLConnection to read
-	 * @return	The content string
+	 * @return	The content stream, which is empty if the response has no content
+	 * @throws IOException
 	 */
-	private String getResponseContent(HttpURLConnection conn) {
+	private static InputStream getResponseStream(HttpURLConnection conn) throws IOException {
 		InputStream responseStream;
 		try {
 			responseStream = conn.getInputStream();
@@ -268,28 +460,70 @@ class Connection {
 			responseStream = conn.getErrorStream();
 		}
 		if (responseStream == null) {
-			return null;
+			return new ByteArrayInputStream(new byte[0]);
 		}
-		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(responseStream));
 
-			StringBuilder sb = new StringBuilder();
-			String content = reader.readLine();
-			if (content == null) {
-				return null;
+		if (RequestCompression.GZIP_ENCODING.equalsIgnoreCase(conn.getContentEncoding())) {
+			try {
+				return new GZIPInputStream(responseStream);
+			} catch (EOFException e) {
+				// A gzip encoded response with no content has no gzip header either
+				return responseStream;
 			}
-			while (content != null) {
-				sb.append(content);
-				sb.append('\n');
-				content = reader.readLine();
+		}
+		return responseStream;
+	}
+
+	/**
+	 * Reads a response content body to a string. The bytes are gathered in a buffer kept by
+	 * the calling thread and decoded as UTF-8 once, at the end.
+	 * @param body	The content stream
+	 * @return	The content string, or null if there is no content
+	 * @throws IOException
+	 */
+	static String readContent(InputStream body) throws IOException {
+		byte[] buffer = sResponseBuffers.get();
+		int count = 0;
+		for (int read; (read = body.read(buffer, count, buffer.length - count)) != -1; ) {
+			count += read;
+			if (count == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
 			}
+		}
+
+		if (buffer.length <= MAX_RETAINED_RESPONSE_BUFFER_SIZE) {
+			sResponseBuffers.set(buffer);
+		}
+
+		return count == 0 ? null : new String(buffer, 0, count, UTF8_ENCODING);
+	}
 
-			return sb.toString();
-		} catch (Exception ex) {
+	/**
+	 * Reads the content of an error response, which is only used to describe the error
+	 * @param body	The content stream
+	 * @return	The content string, or null if there is none or it could not be read
+	 */
+	private static String readErrorContent(InputStream body) {
+		try {
+			return readContent(body);
+		} catch (IOException e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Reads a response content body to the end without keeping it, which allows the
+	 * connection to be kept alive
+	 * @param body	The content stream
+	 * @throws IOException
+	 */
+	private static void discardContent(InputStream body) throws IOException {
+		byte[] buffer = sResponseBuffers.get();
+		while (body.read(buffer, 0, buffer.length) != -1) {
+			// nothing to keep
+		}
+	}
+
 	/**
 	 * Adds the Authorization header to a request
 	 * @param conn	The HttpURLConnection to modify
@@ -301,7 +535,7 @@ class Connection {
 	}
 
 	/**
-	 * Generates an AuthToken
+	 * Generates an AuthToken, reusing a cached one while it is not about to expire
 	 * @param url	The target URL
 	 * @return	An AuthToken
 	 * @throws java.security.InvalidKeyException
@@ -318,54 +552,63 @@ class Connection {
 			throw new AssertionError("SharedAccessKey");
 		}
 
-		try {
-			url = URLEncoder.encode(url, UTF8_ENCODING).toLowerCase(Locale.ENGLISH);
-		} catch (UnsupportedEncodingException e) {
-			// this shouldn't happen because of the fixed encoding
-		}
-
-		// Set expiration in seconds
-		Calendar expireDate = Calendar.getInstance(TimeZone.getTimeZone(UTC_TIME_ZONE));
-		expireDate.add(Calendar.MINUTE, EXPIRE_MINUTES);
+		return SasTokenProvider.getDefault().getToken(url, keyName, key);
+	}
 
-		long expires = expireDate.getTimeInMillis() / 1000;
+	/**
+	 * Generates the User-Agent
+	 */
+	private String getUserAgent() {
+		String userAgent = String.format("NOTIFICATIONHUBS/%s (api-origin=%s; os=%s; os_version=%s;)", 
+				SDK_VERSION, PnsSpecificRegistrationFactory.getInstance().getAPIOrigin(), "Android", Build.VERSION.RELEASE);
 
-		String toSign = url + '\n' + expires;
+		return userAgent;
+	}
 
-		// sign
+	/**
+	 * Reads the value of a response header, leaving the content body unread
+	 */
+	private static class HeaderReader implements ResponseReader<String> {
+		private final String mHeaderName;
 
-		byte[] bytesToSign = toSign.getBytes();
-		Mac mac = null;
-		try {
-			mac = Mac.getInstance("HmacSHA256");
-		} catch (NoSuchAlgorithmException e) {
-			// This shouldn't happen because of the fixed algorithm
+		HeaderReader(String headerName) {
+			mHeaderName = headerName;
 		}
 
-		SecretKeySpec secret = new SecretKeySpec(key.getBytes(), mac.getAlgorithm());
-		mac.init(secret);
-		byte[] signedHash = mac.doFinal(bytesToSign);
-		String base64Signature = Base64.encodeToString(signedHash, Base64.DEFAULT);
-		base64Signature = base64Signature.trim();
-		try {
-			base64Signature = URLEncoder.encode(base64Signature, UTF8_ENCODING);
-		} catch (UnsupportedEncodingException e) {
-			// this shouldn't happen because of the fixed encoding
+		@Override
+		public String read(HttpURLConnection conn, InputStream body) throws Exception {
+			String value = conn.getHeaderField(mHeaderName);
+			if (value == null) {
+				throw new NotificationHubException("The '" + mHeaderName + "' header does not present in collection", conn.getResponseCode());
+			}
+			return value;
 		}
-
-		// construct authorization string
-		String token = "SharedAccessSignature sr=" + url + "&sig=" + base64Signature + "&se=" + expires + "&skn=" + keyName;
-
-		return token;
 	}
 
 	/**
-	 * Generates the User-Agent
+	 * Counts the bytes written through it
 	 */
-	private String getUserAgent() {
-		String userAgent = String.format("NOTIFICATIONHUBS/%s (api-origin=%s; os=%s; os_version=%s;)", 
-				SDK_VERSION, PnsSpecificRegistrationFactory.getInstance().getAPIOrigin(), "Android", Build.VERSION.RELEASE);
+	private static class CountingOutputStream extends FilterOutputStream {
+		private int mCount;
 
-		return userAgent;
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			mCount += len;
+		}
+
+		int getCount() {
+			return mCount;
+		}
 	}
 }
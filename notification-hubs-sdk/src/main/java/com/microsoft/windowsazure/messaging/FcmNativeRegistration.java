@@ -20,8 +20,8 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents FCM native registration
@@ -56,13 +56,13 @@ public class FcmNativeRegistration extends Registration {
     }
 
     @Override
-    protected void appendCustomPayload(Document doc, Element registrationDescription) {
-        appendNodeWithValue(doc, registrationDescription, FCM_HANDLE_NODE, getPNSHandle());
+    void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+        writer.writeNodeWithValue(FCM_HANDLE_NODE, getPNSHandle());
     }
 
     @Override
-    protected void loadCustomXmlData(Element payloadNode) {
-        setPNSHandle(getNodeValue(payloadNode, FCM_HANDLE_NODE));
+    protected void loadCustomXmlData(Map<String, String> payloadValues) {
+        setPNSHandle(payloadValues.get(FCM_HANDLE_NODE));
         setName(DEFAULT_REGISTRATION_NAME);
     }
 }
@@ -20,8 +20,8 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents GCM template registration
@@ -56,14 +56,14 @@ public class GcmTemplateRegistration extends TemplateRegistration {
 	}
 
 	@Override
-	protected void appendCustomPayload(Document doc, Element templateRegistrationDescription) {
-		appendNodeWithValue(doc, templateRegistrationDescription, GCM_HANDLE_NODE, getPNSHandle());
-		super.appendCustomPayload(doc,templateRegistrationDescription);
+	void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+		writer.writeNodeWithValue(GCM_HANDLE_NODE, getPNSHandle());
+		super.writeCustomPayload(writer);
 	}
 
 	@Override
-	protected void loadCustomXmlData(Element payloadNode) {
-		setPNSHandle(getNodeValue(payloadNode, GCM_HANDLE_NODE));
-		super.loadCustomXmlData(payloadNode);
+	protected void loadCustomXmlData(Map<String, String> payloadValues) {
+		setPNSHandle(payloadValues.get(GCM_HANDLE_NODE));
+		super.loadCustomXmlData(payloadValues);
 	}	
 }
@@ -0,0 +1,49 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases the HTTP connections used to talk to a Notification Hub server
+ */
+public interface HttpTransport {
+
+	/**
+	 * Opens a connection to the specified URL. Every connection returned by this method must be
+	 * handed back through {@link #releaseConnection(HttpURLConnection, boolean)} once its response
+	 * has been consumed.
+	 * @param url	The URL to connect to
+	 * @return	A connection which has not been connected yet
+	 * @throws IOException if the connection cannot be opened
+	 */
+	HttpURLConnection openConnection(URL url) throws IOException;
+
+	/**
+	 * Returns a connection to the transport
+	 * @param conn	The connection previously returned by {@link #openConnection(URL)}
+	 * @param reusable	True if the response was fully read and its stream closed, so that the
+	 *                  underlying socket can be kept alive for the next request to the same host
+	 */
+	void releaseConnection(HttpURLConnection conn, boolean reusable);
+}
@@ -0,0 +1,245 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.text.ParseException;
+
+/**
+ * Formats and parses the UTC ISO-8601 timestamps used for Installation and Registration
+ * expirations, without SimpleDateFormat. The calendar arithmetic is done by hand, so the methods
+ * are safe to call from any thread and don't allocate anything beyond the formatted string.
+ *
+ * Used by both the legacy {@link NotificationHub} client and the Installation based client.
+ */
+public final class Iso8601DateFormat {
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000;
+	private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+	/**
+	 * Length of a formatted timestamp, yyyy-MM-ddTHH:mm+0000
+	 */
+	private static final int FORMATTED_LENGTH = 21;
+
+	private Iso8601DateFormat() {
+	}
+
+	/**
+	 * Formats a point in time as yyyy-MM-ddTHH:mm+0000 in UTC, the layout Installation expirations
+	 * have always been sent in
+	 * @param millis	The time in milliseconds since the epoch, between years 0 and 9999
+	 * @return The formatted timestamp
+	 */
+	public static String format(long millis) {
+		long days = floorDiv(millis, MILLIS_PER_DAY);
+		int minuteOfDay = (int) ((millis - days * MILLIS_PER_DAY) / MILLIS_PER_MINUTE);
+
+		// Converts days since the epoch to a proleptic Gregorian date, counting in 400 year eras
+		// that start on March 1st so that leap days fall at the end of each year.
+		long shifted = days + 719468;
+		long era = floorDiv(shifted, 146097);
+		int dayOfEra = (int) (shifted - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		if (year < 0 || year > 9999) {
+			throw new IllegalArgumentException("millis");
+		}
+
+		char[] formatted = new char[FORMATTED_LENGTH];
+		writeDigits(formatted, 0, (int) year, 4);
+		formatted[4] = '-';
+		writeDigits(formatted, 5, month, 2);
+		formatted[7] = '-';
+		writeDigits(formatted, 8, day, 2);
+		formatted[10] = 'T';
+		writeDigits(formatted, 11, minuteOfDay / 60, 2);
+		formatted[13] = ':';
+		writeDigits(formatted, 14, minuteOfDay % 60, 2);
+		formatted[16] = '+';
+		formatted[17] = '0';
+		formatted[18] = '0';
+		formatted[19] = '0';
+		formatted[20] = '0';
+		return new String(formatted);
+	}
+
+	/**
+	 * Parses an ISO-8601 timestamp in the yyyy-MM-ddTHH:mm[:ss[.fraction]][zone] layout, where
+	 * the zone is Z, +HH:mm, +HHmm or missing, in which case the time is taken to be UTC. Fractions
+	 * of a second beyond milliseconds are ignored.
+	 * @param value	The timestamp to parse
+	 * @return The time in milliseconds since the epoch
+	 * @throws ParseException If the value is not a valid timestamp in that layout
+	 */
+	public static long parse(String value) throws ParseException {
+		if (value == null) {
+			throw new ParseException("null", 0);
+		}
+
+		int length = value.length();
+		int year = readDigits(value, 0, 4);
+		expect(value, 4, '-');
+		int month = readDigits(value, 5, 2);
+		expect(value, 7, '-');
+		int day = readDigits(value, 8, 2);
+		expect(value, 10, 'T');
+		int hour = readDigits(value, 11, 2);
+		expect(value, 13, ':');
+		int minute = readDigits(value, 14, 2);
+
+		int position = 16;
+		int second = 0;
+		int millis = 0;
+		if (position < length && value.charAt(position) == ':') {
+			second = readDigits(value, position + 1, 2);
+			position += 3;
+
+			if (position < length && value.charAt(position) == '.') {
+				int start = ++position;
+				while (position < length && isDigit(value.charAt(position))) {
+					if (position - start < 3) {
+						millis = millis * 10 + (value.charAt(position) - '0');
+					}
+					position++;
+				}
+				if (position == start) {
+					throw new ParseException(value, position);
+				}
+				for (int digits = position - start; digits < 3; digits++) {
+					millis *= 10;
+				}
+			}
+		}
+
+		int offsetMinutes = 0;
+		if (position < length) {
+			char zone = value.charAt(position);
+			if (zone == 'Z' && position + 1 == length) {
+				position++;
+			} else if (zone == '+' || zone == '-') {
+				int offsetHours = readDigits(value, position + 1, 2);
+				position += 3;
+				if (position < length && value.charAt(position) == ':') {
+					position++;
+				}
+				int offsetMinutesOfHour = readDigits(value, position, 2);
+				if (offsetHours > 23 || offsetMinutesOfHour > 59) {
+					throw new ParseException(value, position);
+				}
+				offsetMinutes = offsetHours * 60 + offsetMinutesOfHour;
+				position += 2;
+				if (zone == '-') {
+					offsetMinutes = -offsetMinutes;
+				}
+			}
+		}
+		if (position != length) {
+			throw new ParseException(value, position);
+		}
+
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+			throw new ParseException(value, 5);
+		}
+		if (hour > 23 || minute > 59 || second > 59) {
+			throw new ParseException(value, 11);
+		}
+
+		return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+				+ ((hour * 60L + minute - offsetMinutes) * 60 + second) * 1000
+				+ millis;
+	}
+
+	/**
+	 * Converts a proleptic Gregorian date to days since the epoch, the inverse of the arithmetic
+	 * in {@link #format(long)}
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int shiftedYear = month <= 2 ? year - 1 : year;
+		int era = (shiftedYear >= 0 ? shiftedYear : shiftedYear - 399) / 400;
+		int yearOfEra = shiftedYear - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+			case 2:
+				boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+				return leap ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	private static int readDigits(String value, int position, int count) throws ParseException {
+		if (position + count > value.length()) {
+			throw new ParseException(value, value.length());
+		}
+
+		int result = 0;
+		for (int i = position; i < position + count; i++) {
+			char c = value.charAt(i);
+			if (!isDigit(c)) {
+				throw new ParseException(value, i);
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	private static void expect(String value, int position, char expected) throws ParseException {
+		if (position >= value.length() || value.charAt(position) != expected) {
+			throw new ParseException(value, position);
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static void writeDigits(char[] target, int position, int value, int count) {
+		for (int i = position + count - 1; i >= position; i--) {
+			target[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	/**
+	 * Math.floorDiv is only available from API level 24
+	 */
+	private static long floorDiv(long dividend, long divisor) {
+		long quotient = dividend / divisor;
+		if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+			quotient--;
+		}
+		return quotient;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP transport which lets connections be kept alive between requests, so consecutive requests to
+ * the same Notification Hub endpoint can reuse the TCP and TLS session instead of performing a new
+ * handshake.
+ *
+ * This class does not pool sockets itself. Whether a socket is reused is up to the platform
+ * keep-alive cache, which takes it back once a response stream has been fully read and closed;
+ * this class only makes sure {@link HttpURLConnection#disconnect()} is never called on a reusable
+ * connection. On top of that it limits the number of concurrent connections per host, and forgets
+ * the limit of hosts which have been idle for longer than the configured idle timeout.
+ */
+public class KeepAliveHttpTransport implements HttpTransport {
+
+	/**
+	 * Default maximum number of concurrent connections per host
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+	/**
+	 * Default number of milliseconds a host can stay idle before its connection limit is forgotten
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5L * 60L * 1000L;
+
+	/**
+	 * Shared instance used by every Connection which is not given a transport
+	 */
+	private static KeepAliveHttpTransport sDefault;
+
+	/**
+	 * Maximum number of concurrent connections per host
+	 */
+	private final int mMaxConnectionsPerHost;
+
+	/**
+	 * Number of milliseconds a host can stay idle before its connection limit is forgotten
+	 */
+	private final long mIdleTimeoutMillis;
+
+	/**
+	 * Connection limits, keyed by host and port
+	 */
+	private final Map<String, HostLimit> mHostLimits = new HashMap<String, HostLimit>();
+
+	/**
+	 * The limit each open connection counts against. The URL of a connection changes when it
+	 * follows a redirect, so the limit can't be found again from it.
+	 */
+	private final Map<HttpURLConnection, HostLimit> mConnectionLimits = new IdentityHashMap<HttpURLConnection, HostLimit>();
+
+	/**
+	 * Creates a new transport with the default connection limit and idle timeout
+	 */
+	public KeepAliveHttpTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Creates a new transport
+	 * @param maxConnectionsPerHost	The maximum number of concurrent connections to a single host
+	 * @param idleTimeoutMillis	The number of milliseconds a host can stay idle before its connection limit is forgotten
+	 */
+	public KeepAliveHttpTransport(int maxConnectionsPerHost, long idleTimeoutMillis) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerHost");
+		}
+
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("idleTimeoutMillis");
+		}
+
+		mMaxConnectionsPerHost = maxConnectionsPerHost;
+		mIdleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Gets the transport shared by every Connection which is not given a transport explicitly
+	 * @return The shared transport
+	 */
+	public static synchronized KeepAliveHttpTransport getDefault() {
+		if (sDefault == null) {
+			sDefault = new KeepAliveHttpTransport();
+		}
+
+		return sDefault;
+	}
+
+	@Override
+	public HttpURLConnection openConnection(URL url) throws IOException {
+		HostLimit limit = acquireLimit(url);
+
+		try {
+			limit.mPermits.acquire();
+		} catch (InterruptedException e) {
+			releaseLimit(limit);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+		}
+
+		HttpURLConnection conn;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+		} catch (IOException e) {
+			limit.mPermits.release();
+			releaseLimit(limit);
+			throw e;
+		}
+
+		synchronized (mHostLimits) {
+			mConnectionLimits.put(conn, limit);
+		}
+
+		return conn;
+	}
+
+	@Override
+	public void releaseConnection(HttpURLConnection conn, boolean reusable) {
+		if (!reusable) {
+			conn.disconnect();
+		}
+
+		HostLimit limit;
+		synchronized (mHostLimits) {
+			limit = mConnectionLimits.remove(conn);
+		}
+
+		if (limit != null) {
+			limit.mPermits.release();
+			releaseLimit(limit);
+		}
+	}
+
+	/**
+	 * Gets the number of hosts which currently have a connection limit
+	 * @return Number of tracked hosts
+	 */
+	int getTrackedHostCount() {
+		synchronized (mHostLimits) {
+			return mHostLimits.size();
+		}
+	}
+
+	/**
+	 * Finds or creates the connection limit of the URL host, and forgets the limits of hosts that
+	 * have been idle for too long. No socket is closed here, idle sockets are left to the platform
+	 * keep-alive cache.
+	 * @param url	The URL about to be opened
+	 * @return	The limit of the URL host, with its lease count incremented
+	 */
+	private HostLimit acquireLimit(URL url) {
+		long now = System.currentTimeMillis();
+		String key = getHostKey(url);
+
+		synchronized (mHostLimits) {
+			Iterator<Map.Entry<String, HostLimit>> iterator = mHostLimits.entrySet().iterator();
+			while (iterator.hasNext()) {
+				HostLimit candidate = iterator.next().getValue();
+				if (candidate.mLeases == 0 && now - candidate.mLastUsed > mIdleTimeoutMillis) {
+					iterator.remove();
+				}
+			}
+
+			HostLimit limit = mHostLimits.get(key);
+			if (limit == null) {
+				limit = new HostLimit(mMaxConnectionsPerHost);
+				mHostLimits.put(key, limit);
+			}
+
+			limit.mLeases++;
+			limit.mLastUsed = now;
+			return limit;
+		}
+	}
+
+	/**
+	 * Decrements the lease count of a connection limit
+	 * @param limit	The limit to release
+	 */
+	private void releaseLimit(HostLimit limit) {
+		synchronized (mHostLimits) {
+			limit.mLeases--;
+			limit.mLastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Gets the key identifying the host of an URL
+	 * @param url	The URL
+	 * @return	The host key
+	 */
+	private static String getHostKey(URL url) {
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+	}
+
+	/**
+	 * Limits the concurrent connections to a single host
+	 */
+	private static class HostLimit {
+
+		/**
+		 * Available connection slots
+		 */
+		private final Semaphore mPermits;
+
+		/**
+		 * Number of connections opened and not released yet
+		 */
+		private int mLeases;
+
+		/**
+		 * Last time a connection was opened or released
+		 */
+		private long mLastUsed;
+
+		HostLimit(int maxConnections) {
+			mPermits = new Semaphore(maxConnections, true);
+		}
+	}
+}
@@ -25,22 +25,28 @@ import static com.microsoft.windowsazure.messaging.Utils.*;
 import com.microsoft.windowsazure.messaging.Registration.RegistrationType;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.EntityResolver;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -87,6 +93,16 @@ public class NotificationHub {
 	 * New registration location header name
 	 */
 	private static final String NEW_REGISTRATION_LOCATION_HEADER = "Location";
+
+	/**
+	 * Time before the expiration of a registration during which it is sent again even if unchanged
+	 */
+	private static final long REGISTRATION_REFRESH_WINDOW_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Precondition failed status code, returned when the If-Match ETag doesn't match the registration
+	 */
+	private static final int PRECONDITION_FAILED_STATUS = 412;
 	
 	/**
 	 * The Notification Hub path
@@ -102,8 +118,59 @@ public class NotificationHub {
 	 * SharedPreferences reference used to access local storage
 	 */
 	private SharedPreferences mSharedPreferences;
+
+	/**
+	 * The content, ETag and expiration time of the registrations last accepted by the server
+	 */
+	private RegistrationStateCache mRegistrationStateCache;
+
+	/**
+	 * Transport used to open and release HTTP connections
+	 */
+	private HttpTransport mHttpTransport = KeepAliveHttpTransport.getDefault();
 		
-	private boolean mIsRefreshNeeded = false;
+	private volatile boolean mIsRefreshNeeded = false;
+
+	/**
+	 * Default time after which an asynchronous operation fails with a TimeoutException
+	 */
+	public static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 60 * 1000;
+
+	/**
+	 * Default maximum number of registrations sent at the same time by registerTemplates and unregisterAll
+	 */
+	public static final int DEFAULT_BATCH_PARALLELISM = 4;
+
+	/**
+	 * Maximum number of registrations sent at the same time by registerTemplates and unregisterAll
+	 */
+	private volatile int mBatchParallelism = DEFAULT_BATCH_PARALLELISM;
+
+	/**
+	 * Runs the asynchronous operations
+	 */
+	private final RegistrationTaskRunner mTaskRunner = new RegistrationTaskRunner();
+
+	/**
+	 * Time after which an asynchronous operation fails with a TimeoutException
+	 */
+	private volatile long mAsyncTimeoutMillis = DEFAULT_ASYNC_TIMEOUT_MILLIS;
+
+	/**
+	 * Operations on named registrations hold the read lock, operations rewriting every stored
+	 * registration (refresh, unregisterAll) hold the write lock
+	 */
+	private final ReentrantReadWriteLock mRegistrationsLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Registration ids created ahead of time for new registrations, disabled unless a pool size is set
+	 */
+	private final RegistrationIdPool mRegistrationIdPool = new RegistrationIdPool(new RegistrationIdPool.Source() {
+		@Override
+		public String createRegistrationId() throws Exception {
+			return NotificationHub.this.createRegistrationId(new Connection(mConnectionString, mHttpTransport));
+		}
+	}, RegistrationTaskRunner.getDefaultExecutor());
 
 	/**
 	 * Creates a new NotificationHub client
@@ -124,6 +191,7 @@ public class NotificationHub {
 		}
 
 		mSharedPreferences = sharedPreferences;
+		mRegistrationStateCache = new RegistrationStateCache(sharedPreferences, REGISTRATION_REFRESH_WINDOW_MILLIS);
 
 		verifyStorageVersion();
 	}
@@ -136,11 +204,23 @@ public class NotificationHub {
 	 * @throws Exception exception
 	 */
 	public Registration register(String pnsHandle, String... tags) throws Exception {
+		return registerForPlatform(PnsSpecificRegistrationFactory.getInstance().getRegistrationType(), pnsHandle, tags);
+	}
+
+	/**
+	 * Registers the client for native notifications of a given platform with the specified tags
+	 * @param registrationType	The platform to register for
+	 * @param pnsHandle	PNS specific identifier
+	 * @param tags	Tags to use in the registration
+	 * @return	The created registration
+	 * @throws Exception
+	 */
+	private Registration registerForPlatform(RegistrationType registrationType, String pnsHandle, String... tags) throws Exception {
 		if (isNullOrWhiteSpace(pnsHandle)) {
 			throw new IllegalArgumentException("pnsHandle");
 		}
 		
-		Registration registration = PnsSpecificRegistrationFactory.getInstance().createNativeRegistration(mNotificationHubPath);
+		Registration registration = PnsSpecificRegistrationFactory.getInstance().createNativeRegistrationForPlatform(mNotificationHubPath, registrationType);
 		registration.setPNSHandle(pnsHandle);
 		registration.setName(Registration.DEFAULT_REGISTRATION_NAME);
 		registration.addTags(tags);
@@ -157,6 +237,21 @@ public class NotificationHub {
 	 * @throws Exception exception
 	 */
 	public Registration registerBaidu(String userId, String channelId, String... tags) throws Exception {
+		String pnsHandle = getBaiduPNSHandle(userId, channelId);
+
+		// Changing the registration type to Baidu.
+		PnsSpecificRegistrationFactory.getInstance().setRegistrationType(RegistrationType.baidu);
+
+		return registerForPlatform(RegistrationType.baidu, pnsHandle, tags);
+	}
+
+	/**
+	 * Builds the PNS handle of a Baidu registration
+	 * @param userId Baidu user Id
+	 * @param channelId Baidu channel Id
+	 * @return	The PNS handle
+	 */
+	private static String getBaiduPNSHandle(String userId, String channelId) {
 		if (isNullOrWhiteSpace(userId)) {
 			throw new IllegalArgumentException("userId");
 		}
@@ -164,10 +259,7 @@ public class NotificationHub {
 			throw new IllegalArgumentException("channelId");
 		}
 
-		// Changing the registration type to Baidu.
-		PnsSpecificRegistrationFactory.getInstance().setRegistrationType(RegistrationType.baidu);
-		
-		return this.register(userId + "-" + channelId , tags);
+		return userId + "-" + channelId;
 	}
 	
 	/**
@@ -180,6 +272,20 @@ public class NotificationHub {
 	 * @throws Exception IllegalArgumentException
 	 */
 	public TemplateRegistration registerTemplate(String pnsHandle, String templateName, String template, String... tags) throws Exception {
+		return registerTemplateForPlatform(PnsSpecificRegistrationFactory.getInstance().getRegistrationType(), pnsHandle, templateName, template, tags);
+	}
+
+	/**
+	 * Registers the client for template notifications of a given platform with the specified tags
+	 * @param registrationType	The platform to register for
+	 * @param pnsHandle	PNS specific identifier
+	 * @param templateName	The template name
+	 * @param template	The template body
+	 * @param tags	The tags to use in the registration
+	 * @return	The created registration
+	 * @throws Exception
+	 */
+	private TemplateRegistration registerTemplateForPlatform(RegistrationType registrationType, String pnsHandle, String templateName, String template, String... tags) throws Exception {
 		if (isNullOrWhiteSpace(pnsHandle)) {
 			throw new IllegalArgumentException("pnsHandle");
 		}
@@ -192,7 +298,7 @@ public class NotificationHub {
 			throw new IllegalArgumentException("template");
 		}
 
-		TemplateRegistration registration = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistration(mNotificationHubPath);
+		TemplateRegistration registration = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistrationForPlatform(mNotificationHubPath, registrationType);
 		registration.setPNSHandle(pnsHandle);
 		registration.setName(templateName);
 		registration.setBodyTemplate(template);
@@ -212,13 +318,7 @@ public class NotificationHub {
 	 * @throws Exception IllegalArgumentException,
 	 */
 	public TemplateRegistration registerBaiduTemplate(String userId, String channelId, String templateName, String template, String... tags) throws Exception {
-		if (isNullOrWhiteSpace(userId)) {
-			throw new IllegalArgumentException("userId");
-		}
-		
-		if (isNullOrWhiteSpace(channelId)) {
-			throw new IllegalArgumentException("channelId");
-		}
+		String pnsHandle = getBaiduPNSHandle(userId, channelId);
 		
 		if (isNullOrWhiteSpace(templateName)) {
 			throw new IllegalArgumentException("templateName");
@@ -231,7 +331,48 @@ public class NotificationHub {
 		// Changing the registration type to Baidu.
 		PnsSpecificRegistrationFactory.getInstance().setRegistrationType(RegistrationType.baidu);
 
-		return this.registerTemplate(userId + "-" + channelId, templateName, template, tags);
+		return registerTemplateForPlatform(RegistrationType.baidu, pnsHandle, templateName, template, tags);
+	}
+
+	/**
+	 * Registers the client for template notifications of several templates with the specified tags.
+	 * Templates are registered concurrently, up to the batch parallelism, and the registration ids
+	 * are stored once every template completed.
+	 * @param pnsHandle	PNS specific identifier
+	 * @param templates	The template bodies, keyed by template name
+	 * @param tags	The tags to use in every registration
+	 * @return	The outcome of each template, keyed and ordered like the templates
+	 * @throws Exception IllegalArgumentException, or the failure to refresh the registrations
+	 */
+	public Map<String, TemplateRegistrationResult> registerTemplates(String pnsHandle, Map<String, String> templates, String... tags) throws Exception {
+		if (isNullOrWhiteSpace(pnsHandle)) {
+			throw new IllegalArgumentException("pnsHandle");
+		}
+
+		if (templates == null || templates.isEmpty()) {
+			throw new IllegalArgumentException("templates");
+		}
+
+		RegistrationType registrationType = PnsSpecificRegistrationFactory.getInstance().getRegistrationType();
+		List<TemplateRegistration> registrations = new ArrayList<TemplateRegistration>(templates.size());
+		for (Map.Entry<String, String> template : templates.entrySet()) {
+			if (isNullOrWhiteSpace(template.getKey())) {
+				throw new IllegalArgumentException("templateName");
+			}
+
+			if (isNullOrWhiteSpace(template.getValue())) {
+				throw new IllegalArgumentException("template");
+			}
+
+			TemplateRegistration registration = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistrationForPlatform(mNotificationHubPath, registrationType);
+			registration.setPNSHandle(pnsHandle);
+			registration.setName(template.getKey());
+			registration.setBodyTemplate(template.getValue());
+			registration.addTags(tags);
+			registrations.add(registration);
+		}
+
+		return registerTemplatesInternal(registrationType, pnsHandle, registrations);
 	}
 	
 	/**
@@ -256,26 +397,180 @@ public class NotificationHub {
 	}
 	
 	/**
-	 * Unregisters the client for all notifications
+	 * Unregisters the client for all notifications. Registrations are deleted concurrently, up to
+	 * the batch parallelism; registrations already gone from the server count as deleted.
 	 * @param pnsHandle	PNS specific identifier
-	 * @throws Exception IllegalArgumentException
+	 * @throws Exception IllegalArgumentException, or the first failure among the deletes
 	 */
 	public void unregisterAll(String pnsHandle) throws Exception {
-		refreshRegistrationInformation(pnsHandle);
-		
-		Set<String> keys = mSharedPreferences.getAll().keySet();
-		
-		for (String key : keys) {
-			if (key.startsWith(STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY)) {
-				String registrationName = key.substring((STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY).length());
-				String registrationId = mSharedPreferences.getString(key, "");
-		
-				deleteRegistrationInternal(registrationName, registrationId);
+		mRegistrationsLock.writeLock().lock();
+		try {
+			refreshRegistrationInformation(PnsSpecificRegistrationFactory.getInstance().getRegistrationType(), pnsHandle);
+
+			Map<String, String> registrations = new HashMap<String, String>();
+			Set<String> keys = mSharedPreferences.getAll().keySet();
+
+			for (String key : keys) {
+				if (key.startsWith(STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY)) {
+					String registrationName = key.substring((STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY).length());
+					registrations.put(registrationName, mSharedPreferences.getString(key, ""));
+				}
 			}
+
+			deleteRegistrationsInternal(registrations);
+		} finally {
+			mRegistrationsLock.writeLock().unlock();
 		}
 	}
 	
-	private void refreshRegistrationInformation(String pnsHandle) throws Exception {
+	/**
+	 * Asynchronously registers the client for native notifications with the specified tags
+	 * @param pnsHandle	PNS specific identifier
+	 * @param tags	Tags to use in the registration
+	 * @return	The pending created registration
+	 */
+	public NotificationHubFuture<Registration> registerAsync(final String pnsHandle, final String... tags) {
+		return mTaskRunner.submit(Registration.DEFAULT_REGISTRATION_NAME, mAsyncTimeoutMillis, new Callable<Registration>() {
+			@Override
+			public Registration call() throws Exception {
+				return register(pnsHandle, tags);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously registers the client for native notifications with the specified tags.
+	 * Unlike registerBaidu, the registration type used by the other operations is not changed,
+	 * since they may be running at the same time.
+	 * @param userId Baidu user Id
+	 * @param channelId Baidu channel Id
+	 * @param tags	Tags to use in the registration
+	 * @return	The pending created registration
+	 */
+	public NotificationHubFuture<Registration> registerBaiduAsync(final String userId, final String channelId, final String... tags) {
+		return mTaskRunner.submit(Registration.DEFAULT_REGISTRATION_NAME, mAsyncTimeoutMillis, new Callable<Registration>() {
+			@Override
+			public Registration call() throws Exception {
+				return registerForPlatform(RegistrationType.baidu, getBaiduPNSHandle(userId, channelId), tags);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously registers the client for template notifications with the specified tags
+	 * @param pnsHandle	PNS specific identifier
+	 * @param templateName	The template name
+	 * @param template	The template body
+	 * @param tags	The tags to use in the registration
+	 * @return	The pending created registration
+	 */
+	public NotificationHubFuture<TemplateRegistration> registerTemplateAsync(final String pnsHandle, final String templateName, final String template, final String... tags) {
+		return mTaskRunner.submit(templateName, mAsyncTimeoutMillis, new Callable<TemplateRegistration>() {
+			@Override
+			public TemplateRegistration call() throws Exception {
+				return registerTemplate(pnsHandle, templateName, template, tags);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously registers the client for template notifications with the specified tags.
+	 * Unlike registerBaiduTemplate, the registration type used by the other operations is not
+	 * changed, since they may be running at the same time.
+	 * @param userId The User Id
+	 * @param channelId The channel Id
+	 * @param templateName	The template name
+	 * @param template	The template body
+	 * @param tags	The tags to use in the registration
+	 * @return	The pending created registration
+	 */
+	public NotificationHubFuture<TemplateRegistration> registerBaiduTemplateAsync(final String userId, final String channelId, final String templateName, final String template, final String... tags) {
+		return mTaskRunner.submit(templateName, mAsyncTimeoutMillis, new Callable<TemplateRegistration>() {
+			@Override
+			public TemplateRegistration call() throws Exception {
+				return registerTemplateForPlatform(RegistrationType.baidu, getBaiduPNSHandle(userId, channelId), templateName, template, tags);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously registers the client for template notifications of several templates with the specified tags
+	 * @param pnsHandle	PNS specific identifier
+	 * @param templates	The template bodies, keyed by template name
+	 * @param tags	The tags to use in every registration
+	 * @return	The pending outcome of each template
+	 */
+	public NotificationHubFuture<Map<String, TemplateRegistrationResult>> registerTemplatesAsync(final String pnsHandle, Map<String, String> templates, final String... tags) {
+		final Map<String, String> templatesCopy = templates == null ? null : new LinkedHashMap<String, String>(templates);
+		Collection<String> templateNames = new ArrayList<String>();
+		if (templatesCopy != null) {
+			for (String templateName : templatesCopy.keySet()) {
+				if (templateName != null) {
+					templateNames.add(templateName);
+				}
+			}
+		}
+
+		// Serialized with the other operations on each template, like registerTemplateAsync
+		return mTaskRunner.submitForKeys(templateNames, mAsyncTimeoutMillis, new Callable<Map<String, TemplateRegistrationResult>>() {
+			@Override
+			public Map<String, TemplateRegistrationResult> call() throws Exception {
+				return registerTemplates(pnsHandle, templatesCopy, tags);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously unregisters the client for native notifications
+	 * @return	The pending operation
+	 */
+	public NotificationHubFuture<Void> unregisterAsync() {
+		return mTaskRunner.submit(Registration.DEFAULT_REGISTRATION_NAME, mAsyncTimeoutMillis, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				unregister();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously unregisters the client for template notifications of a specific template
+	 * @param templateName	The template name
+	 * @return	The pending operation
+	 */
+	public NotificationHubFuture<Void> unregisterTemplateAsync(final String templateName) {
+		return mTaskRunner.submit(templateName, mAsyncTimeoutMillis, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				unregisterTemplate(templateName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously unregisters the client for all notifications
+	 * @param pnsHandle	PNS specific identifier
+	 * @return	The pending operation
+	 */
+	public NotificationHubFuture<Void> unregisterAllAsync(final String pnsHandle) {
+		return mTaskRunner.submit(null, mAsyncTimeoutMillis, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				unregisterAll(pnsHandle);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Replaces the stored registration ids with the registrations the server has for a PNS handle
+	 * @param registrationType	The platform of the registrations
+	 * @param pnsHandle	PNS specific identifier
+	 * @throws Exception
+	 */
+	private void refreshRegistrationInformation(RegistrationType registrationType, String pnsHandle) throws Exception {
 		if (isNullOrWhiteSpace(pnsHandle)) {
 			throw new IllegalArgumentException("pnsHandle");
 		}
@@ -292,62 +587,26 @@ public class NotificationHub {
 		editor.commit();
 		
 		// get existing registrations
-		Connection conn = new Connection(mConnectionString);
+		Connection conn = new Connection(mConnectionString, mHttpTransport);
 
-		String filter = PnsSpecificRegistrationFactory.getInstance().getPNSHandleFieldName() + " eq '" + pnsHandle + "'";
+		String filter = PnsSpecificRegistrationFactory.getInstance().getPNSHandleFieldNameForPlatform(registrationType) + " eq '" + pnsHandle + "'";
 
 		String resource = mNotificationHubPath + "/Registrations/?$filter=" + URLEncoder.encode(filter, "UTF-8");
-		String content = null;
-		String response = conn.executeRequest(resource, content, XML_CONTENT_TYPE, "GET");
+		final RegistrationReader reader = new RegistrationReader(mNotificationHubPath, registrationType);
 
-		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		builder.setEntityResolver(new EntityResolver() {
+		//for each registration, parse it as the feed arrives
+		List<Registration> registrations = conn.executeRequest(resource, (Connection.ContentWriter) null, XML_CONTENT_TYPE, "GET", new Connection.ResponseReader<List<Registration>>() {
 			@Override
-			public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
-				return null;
+			public List<Registration> read(HttpURLConnection connection, InputStream body) throws Exception {
+				return reader.readRegistrations(body);
 			}
 		});
-
-		Document doc = builder.parse(new InputSource(new StringReader(response)));
-
-		doc.getDocumentElement().normalize();
-		Element root = doc.getDocumentElement();
-		
-		//for each registration, parse it
-		NodeList entries = root.getElementsByTagName("entry");
-		for (int i = 0; i < entries.getLength(); i++) {
-			Registration registration;
-			Element entry = (Element) entries.item(i);
-			String xml = getXmlString(entry);
-
-			if (PnsSpecificRegistrationFactory.getInstance().isTemplateRegistration(xml)) {
-				registration = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistration(mNotificationHubPath);
-			} else {
-				registration = PnsSpecificRegistrationFactory.getInstance().createNativeRegistration(mNotificationHubPath);
-			}
-			registration.loadXml(xml, mNotificationHubPath);
-
-			if (isNullOrWhiteSpace(registration.getRegistrationId())) {
-				RegistrationType currentPlatform = PnsSpecificRegistrationFactory.getInstance().getRegistrationType();
-
-				if (currentPlatform == RegistrationType.fcmv1
-						|| currentPlatform == RegistrationType.fcm
-						|| currentPlatform == RegistrationType.gcm) {
-					RegistrationType otherPlatformToCheck = currentPlatform == RegistrationType.fcmv1
-							? RegistrationType.fcm
-							: RegistrationType.fcmv1;
-
-					if (PnsSpecificRegistrationFactory.getInstance().isTemplateRegistrationForPlatform(xml, otherPlatformToCheck)) {
-						registration = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistrationForPlatform(mNotificationHubPath, otherPlatformToCheck);
-					} else {
-						registration = PnsSpecificRegistrationFactory.getInstance().createNativeRegistrationForPlatform(mNotificationHubPath, otherPlatformToCheck);
-					}
-					registration.loadXml(xml, mNotificationHubPath);
-				}
-			}
-
+		for (Registration registration : registrations) {
 			storeRegistrationId(registration.getName(), registration.getRegistrationId(), registration.getPNSHandle());
 		}
+
+		// registrations changed by someone else since they were last sent must be sent again
+		mRegistrationStateCache.retainUnchanged(registrations);
 		
 		mIsRefreshNeeded = false;
 	}
@@ -377,6 +636,130 @@ public class NotificationHub {
 		}
 
 		mConnectionString = connectionString;
+		mRegistrationIdPool.clear();
+	}
+
+	/**
+	 * Gets the time after which an asynchronous operation fails with a TimeoutException
+	 * @return The timeout in milliseconds, zero if asynchronous operations never time out
+	 */
+	public long getAsyncTimeoutMillis() {
+		return mAsyncTimeoutMillis;
+	}
+
+	/**
+	 * Sets the time after which an asynchronous operation fails with a TimeoutException. Operations
+	 * blocked on the network may keep running after their future timed out.
+	 * @param timeout	The timeout, zero to disable it
+	 * @param unit	The timeout unit
+	 */
+	public void setAsyncTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout");
+		}
+
+		if (unit == null) {
+			throw new IllegalArgumentException("unit");
+		}
+
+		mAsyncTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Gets the maximum number of registrations sent at the same time by registerTemplates and unregisterAll
+	 * @return The batch parallelism
+	 */
+	public int getBatchParallelism() {
+		return mBatchParallelism;
+	}
+
+	/**
+	 * Sets the maximum number of registrations sent at the same time by registerTemplates and unregisterAll
+	 * @param parallelism	The batch parallelism, at least 1
+	 */
+	public void setBatchParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism");
+		}
+
+		mBatchParallelism = parallelism;
+	}
+
+	/**
+	 * Gets the number of registrations that were not sent because the server already had the same
+	 * content and the registration was not about to expire
+	 * @return The registration cache hit count
+	 */
+	public long getRegistrationCacheHitCount() {
+		return mRegistrationStateCache.getHitCount();
+	}
+
+	/**
+	 * Gets the number of registrations that were sent because they were new, changed or about to expire
+	 * @return The registration cache miss count
+	 */
+	public long getRegistrationCacheMissCount() {
+		return mRegistrationStateCache.getMissCount();
+	}
+
+	/**
+	 * Gets the number of registration ids created ahead of time for new registrations
+	 * @return The pool size, zero if new registrations create their own id
+	 */
+	public int getRegistrationIdPoolSize() {
+		return mRegistrationIdPool.getCapacity();
+	}
+
+	/**
+	 * Sets the number of registration ids created ahead of time for new registrations. A new
+	 * registration then takes one from the pool and is sent with a single request, instead of
+	 * first asking the server for an id. The pool is filled in the background, and refilled when
+	 * it runs low.
+	 * @param size	The pool size, zero to disable the pool
+	 */
+	public void setRegistrationIdPoolSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size");
+		}
+
+		mRegistrationIdPool.setCapacity(size);
+	}
+
+	/**
+	 * Gets the number of new registrations that used a registration id from the pool
+	 * @return The registration id pool hit count
+	 */
+	public long getRegistrationIdPoolHitCount() {
+		return mRegistrationIdPool.getHitCount();
+	}
+
+	/**
+	 * Gets the number of new registrations that found the registration id pool empty and had
+	 * to ask the server for an id
+	 * @return The registration id pool miss count
+	 */
+	public long getRegistrationIdPoolMissCount() {
+		return mRegistrationIdPool.getMissCount();
+	}
+
+	/**
+	 * Gets the transport used to open and release HTTP connections
+	 * @return The HTTP transport
+	 */
+	public HttpTransport getHttpTransport() {
+		return mHttpTransport;
+	}
+
+	/**
+	 * Sets the transport used to open and release HTTP connections
+	 * @param httpTransport	The HTTP transport
+	 */
+	public void setHttpTransport(HttpTransport httpTransport) {
+		if (httpTransport == null) {
+			throw new IllegalArgumentException("httpTransport");
+		}
+
+		mHttpTransport = httpTransport;
 	}
 
 	/**
@@ -398,6 +781,7 @@ public class NotificationHub {
 		}
 
 		mNotificationHubPath = notificationHubPath;
+		mRegistrationIdPool.clear();
 	}
 
 	/**
@@ -407,85 +791,274 @@ public class NotificationHub {
 	 * @throws Exception
 	 */
 	private Registration registerInternal(Registration registration) throws Exception {
-		
-		if (mIsRefreshNeeded) {
-			String pNSHandle = mSharedPreferences.getString(STORAGE_PREFIX + PNS_HANDLE_KEY, "");
-			
-			if (isNullOrWhiteSpace(pNSHandle)) {
-				pNSHandle = registration.getPNSHandle();
+		refreshRegistrationInformationIfNeeded(registration.getRegistrationType(), registration.getPNSHandle());
+
+		mRegistrationsLock.readLock().lock();
+		try {
+			Connection conn = new Connection(mConnectionString, mHttpTransport);
+
+			Registration result = upsertRegistrationInternal(conn, registration);
+			storeRegistrationId(result.getName(), result.getRegistrationId(), registration.getPNSHandle());
+
+			return result;
+		} finally {
+			mRegistrationsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates or updates template registrations concurrently in the server and stores the registration
+	 * ids of the registered templates in a single commit
+	 * @param registrationType	The platform of the registrations
+	 * @param pnsHandle	PNS specific identifier
+	 * @param registrations	The template registrations to create
+	 * @return	The outcome of each template, keyed by template name
+	 * @throws Exception
+	 */
+	private Map<String, TemplateRegistrationResult> registerTemplatesInternal(RegistrationType registrationType, String pnsHandle, List<TemplateRegistration> registrations) throws Exception {
+		refreshRegistrationInformationIfNeeded(registrationType, pnsHandle);
+
+		mRegistrationsLock.readLock().lock();
+		try {
+			final Connection conn = new Connection(mConnectionString, mHttpTransport);
+			final Map<String, String> registrationIds = new ConcurrentHashMap<String, String>();
+
+			Map<String, Callable<TemplateRegistration>> upserts = new LinkedHashMap<String, Callable<TemplateRegistration>>();
+			for (final TemplateRegistration registration : registrations) {
+				upserts.put(registration.getName(), new Callable<TemplateRegistration>() {
+					@Override
+					public TemplateRegistration call() throws Exception {
+						TemplateRegistration result = (TemplateRegistration) upsertRegistrationInternal(conn, registration);
+						registrationIds.put(result.getName(), result.getRegistrationId());
+						return result;
+					}
+				});
 			}
-			
-			refreshRegistrationInformation(pNSHandle);
+
+			Map<String, TemplateRegistrationResult> results = new LinkedHashMap<String, TemplateRegistrationResult>();
+
+			try {
+				BatchOperationRunner runner = new BatchOperationRunner(mBatchParallelism, "NotificationHub-register-");
+				for (Map.Entry<String, Future<TemplateRegistration>> upsert : runner.runAll(upserts).entrySet()) {
+					try {
+						TemplateRegistration result = upsert.getValue().get();
+						results.put(upsert.getKey(), new TemplateRegistrationResult(upsert.getKey(), result, null));
+					} catch (ExecutionException e) {
+						Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+						results.put(upsert.getKey(), new TemplateRegistrationResult(upsert.getKey(), null, cause));
+					}
+				}
+			} finally {
+				// Ids created before an interruption are stored too, so they are not orphaned
+				storeRegistrationIds(registrationIds, pnsHandle);
+			}
+
+			return results;
+		} finally {
+			mRegistrationsLock.readLock().unlock();
 		}
-		
+	}
+
+	/**
+	 * Refreshes the stored registrations if it is the first registration since the client was created
+	 * @param registrationType	The platform of the registrations
+	 * @param pnsHandle	PNS specific identifier, used if no PNS handle was stored yet
+	 * @throws Exception
+	 */
+	private void refreshRegistrationInformationIfNeeded(RegistrationType registrationType, String pnsHandle) throws Exception {
+		if (!mIsRefreshNeeded) {
+			return;
+		}
+
+		mRegistrationsLock.writeLock().lock();
+		try {
+			if (mIsRefreshNeeded) {
+				String storedPNSHandle = mSharedPreferences.getString(STORAGE_PREFIX + PNS_HANDLE_KEY, "");
+
+				refreshRegistrationInformation(registrationType, isNullOrWhiteSpace(storedPNSHandle) ? pnsHandle : storedPNSHandle);
+			}
+		} finally {
+			mRegistrationsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes a registration and removes it from local storage
+	 * @param registrationName	The registration name
+	 * @throws Exception
+	 */
+	private void unregisterInternal(String registrationName) throws Exception {
+		mRegistrationsLock.readLock().lock();
+		try {
+			String registrationId = retrieveRegistrationId(registrationName);
+
+			if(!isNullOrWhiteSpace(registrationId)) {
+				deleteRegistrationInternal(registrationName, registrationId);
+			}
+		} finally {
+			mRegistrationsLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Creates or updates a registration in the server, using the stored registration id if there is one.
+	 * Nothing is sent if the server already has the same content and the registration is not about to
+	 * expire. New registrations take their id from the registration id pool when it has one. The
+	 * registration id is recreated once if the server reports the registration as gone.
+	 * @param conn	The connection to use
+	 * @param registration	The registration to create
+	 * @return	The created registration
+	 * @throws Exception
+	 */
+	private Registration upsertRegistrationInternal(Connection conn, Registration registration) throws Exception {
 		String registrationId = retrieveRegistrationId(registration.getName());
+		String contentDigest = registration.getContentDigest();
+
+		RegistrationStateCache.Entry state = mRegistrationStateCache.get(registration.getName(), registrationId);
+		if (mRegistrationStateCache.isUnchanged(state, contentDigest, System.currentTimeMillis())) {
+			registration.setRegistrationId(state.getRegistrationId());
+			registration.setETag(state.getETag());
+			registration.setExpirationTimeString(state.getExpirationTime());
+
+			return registration;
+		}
+
+		boolean pooled = false;
 		if(isNullOrWhiteSpace(registrationId)){
-			registrationId = createRegistrationId();
+			registrationId = mRegistrationIdPool.take();
+			pooled = registrationId != null;
+			if (!pooled) {
+				registrationId = createRegistrationId(conn);
+			}
 		}
-		
+
 		registration.setRegistrationId(registrationId);
-		
+
 		try{
-			return upsertRegistrationInternal(registration);
+			return upsertRegistrationState(conn, registration, contentDigest, state == null ? null : state.getETag());
 		}
 		catch(RegistrationGoneException e){
 			// if we get an RegistrationGoneException (410) from service, we will recreate registration id and will try to do upsert one more time.
+			if (pooled) {
+				// the rest of the pool is no fresher than the id the server let go of
+				mRegistrationIdPool.clear();
+			}
+		}
+
+		registrationId = pooled ? null : mRegistrationIdPool.take();
+		if (registrationId == null) {
+			registrationId = createRegistrationId(conn);
 		}
-		
-		registrationId = createRegistrationId();
 		registration.setRegistrationId(registrationId);
-		return upsertRegistrationInternal(registration);
+		return upsertRegistrationState(conn, registration, contentDigest, null);
 	}
 
 	/**
-	 * Deletes a registration and removes it from local storage
-	 * @param registrationName	The registration name
+	 * Updates a registration in the server and remembers the state accepted by the server. If the
+	 * registration changed in the server since it was last sent, the server copy is read again and
+	 * the registration is only sent if it differs, conditioned on the ETag that was read.
+	 * @param conn	The connection to use
+	 * @param registration	The registration to update
+	 * @param contentDigest	The registration content digest
+	 * @param eTag	The ETag of the registration last sent, or null to update it unconditionally
+	 * @return	The updated registration
 	 * @throws Exception
 	 */
-	private void unregisterInternal(String registrationName) throws Exception {
-		String registrationId = retrieveRegistrationId(registrationName);
-		
-		if(!isNullOrWhiteSpace(registrationId)) {
-			deleteRegistrationInternal(registrationName, registrationId);
+	private Registration upsertRegistrationState(Connection conn, Registration registration, String contentDigest, String eTag) throws Exception {
+		Registration result;
+
+		if (isNullOrWhiteSpace(eTag)) {
+			result = upsertRegistrationToServer(conn, registration, null);
+		} else {
+			try {
+				result = upsertRegistrationToServer(conn, registration, eTag);
+			} catch (NotificationHubException e) {
+				if (e.getStatusCode() != PRECONDITION_FAILED_STATUS) {
+					throw e;
+				}
+
+				// the registration changed in the server since it was last sent, so the cached state
+				// is stale: read the server copy and send the registration again based on it
+				mRegistrationStateCache.remove(Collections.singleton(registration.getName()));
+
+				Registration current = readRegistrationFromServer(conn, registration);
+				if (contentDigest.equals(current.getContentDigest())) {
+					result = current;
+				} else {
+					result = upsertRegistrationToServer(conn, registration, current.getETag());
+				}
+			}
 		}
+
+		mRegistrationStateCache.put(registration.getName(),
+				new RegistrationStateCache.Entry(result.getRegistrationId(), contentDigest, result.getETag(), result.getExpirationTimeString()));
+
+		return result;
 	}
-	
+
+	/**
+	 * Reads a registration from the server
+	 * @param conn	The connection to use
+	 * @param registration	The registration to read
+	 * @return	The server copy of the registration
+	 * @throws Exception RegistrationGoneException if the registration doesn't exist anymore
+	 */
+	private Registration readRegistrationFromServer(Connection conn, Registration registration) throws Exception {
+		final RegistrationReader reader = new RegistrationReader(mNotificationHubPath, registration.getRegistrationType());
+
+		try {
+			return conn.executeRequest(registration.getURI(), (Connection.ContentWriter) null, XML_CONTENT_TYPE, "GET", new Connection.ResponseReader<Registration>() {
+				@Override
+				public Registration read(HttpURLConnection connection, InputStream body) throws Exception {
+					return reader.readRegistration(body);
+				}
+			});
+		} catch (NotificationHubResourceNotFoundException e) {
+			// recreated by the caller like a registration the server reports as gone
+			throw new RegistrationGoneException();
+		}
+	}
+
 	/**
-	 * Updates a registration
+	 * Updates a registration in the server
+	 * @param conn	The connection to use
 	 * @param registration	The registration to update
+	 * @param eTag	The ETag the registration must have in the server, or null to update it unconditionally
 	 * @return	The updated registration
 	 * @throws Exception
 	 */
-	private Registration upsertRegistrationInternal(Registration registration) throws Exception {
-		Connection conn = new Connection(mConnectionString);
-
+	private Registration upsertRegistrationToServer(Connection conn, final Registration registration, String eTag) throws Exception {
 		String resource = registration.getURI();
-		String content = registration.toXml();
+		Connection.ContentWriter content = new Connection.ContentWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				registration.writeXml(out);
+			}
+		};
 
-		String response = conn.executeRequest(resource, content, XML_CONTENT_TYPE, "PUT");
-		
-		Registration result;
-		boolean isTemplateRegistration = PnsSpecificRegistrationFactory.getInstance().isTemplateRegistration(response);
+		final RegistrationReader reader = new RegistrationReader(mNotificationHubPath, registration.getRegistrationType());
+		Connection.ResponseReader<Registration> responseReader = new Connection.ResponseReader<Registration>() {
+			@Override
+			public Registration read(HttpURLConnection connection, InputStream body) throws Exception {
+				return reader.readRegistration(body);
+			}
+		};
 
-		if (isTemplateRegistration)
-		{
-			result = PnsSpecificRegistrationFactory.getInstance().createTemplateRegistration(mNotificationHubPath);
+		if (eTag == null) {
+			return conn.executeRequest(resource, content, XML_CONTENT_TYPE, "PUT", responseReader);
+		} else {
+			String quotedETag = eTag.startsWith("\"") ? eTag : "\"" + eTag + "\"";
+			return conn.executeRequest(resource, content, XML_CONTENT_TYPE, "PUT", responseReader, new SimpleEntry<String, String>("If-Match", quotedETag));
 		}
-		else
-		{
-			result = PnsSpecificRegistrationFactory.getInstance().createNativeRegistration(mNotificationHubPath);
-		}
-
-		result.loadXml(response, mNotificationHubPath);
-
-		storeRegistrationId(result.getName(), result.getRegistrationId(), registration.getPNSHandle());
-		
-		return result;
-	}	
-	
-	private String createRegistrationId() throws Exception {
-		Connection conn = new Connection(mConnectionString);
+	}
 
+	/**
+	 * Creates a new registration id in the server
+	 * @param conn	The connection to use
+	 * @return	The new registration id
+	 * @throws Exception
+	 */
+	private String createRegistrationId(Connection conn) throws Exception {
 		String resource = mNotificationHubPath + "/registrationids/";
 		String response = conn.executeRequest(resource, null, XML_CONTENT_TYPE, "POST", NEW_REGISTRATION_LOCATION_HEADER);
 		
@@ -502,11 +1075,74 @@ public class NotificationHub {
 	 * @param registrationId	Registration id
 	 */
 	private void deleteRegistrationInternal(String registrationName, String registrationId) throws Exception {
-		Connection conn = new Connection(mConnectionString);
-		String resource = mNotificationHubPath + "/Registrations/" + registrationId;
+		Connection conn = new Connection(mConnectionString, mHttpTransport);
 
-		conn.executeRequest(resource, null, XML_CONTENT_TYPE, "DELETE", new SimpleEntry<String, String>("If-Match", "*"));
+		deleteRegistrationFromServer(conn, registrationId);
 		removeRegistrationId(registrationName);
+		mRegistrationStateCache.remove(Collections.singleton(registrationName));
+	}
+
+	/**
+	 * Deletes registrations concurrently and removes the deleted ones from local storage in a single commit
+	 * @param registrations	The registration ids to delete, keyed by registration name
+	 * @throws Exception	The first failure among the deletes; the other failures are suppressed into it
+	 */
+	private void deleteRegistrationsInternal(Map<String, String> registrations) throws Exception {
+		final Connection conn = new Connection(mConnectionString, mHttpTransport);
+		final Queue<String> deletedNames = new ConcurrentLinkedQueue<String>();
+
+		Map<String, Callable<Void>> deletes = new HashMap<String, Callable<Void>>();
+		for (final Map.Entry<String, String> registration : registrations.entrySet()) {
+			deletes.put(registration.getKey(), new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						deleteRegistrationFromServer(conn, registration.getValue());
+					} catch (NotificationHubResourceNotFoundException e) {
+						// already deleted in the server
+					}
+
+					deletedNames.add(registration.getKey());
+					return null;
+				}
+			});
+		}
+
+		Exception failure = null;
+		try {
+			BatchOperationRunner runner = new BatchOperationRunner(mBatchParallelism, "NotificationHub-unregister-");
+			for (Future<Void> delete : runner.runAll(deletes).values()) {
+				try {
+					delete.get();
+				} catch (ExecutionException e) {
+					Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					if (failure == null) {
+						failure = cause;
+					} else {
+						failure.addSuppressed(cause);
+					}
+				}
+			}
+		} finally {
+			removeRegistrationIds(deletedNames);
+			mRegistrationStateCache.remove(deletedNames);
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Deletes a registration in the server
+	 * @param conn	The connection to use
+	 * @param registrationId	Registration id
+	 */
+	private void deleteRegistrationFromServer(Connection conn, String registrationId) throws Exception {
+		String resource = mNotificationHubPath + "/Registrations/" + registrationId;
+
+		String content = null;
+		conn.executeRequest(resource, content, XML_CONTENT_TYPE, "DELETE", new SimpleEntry<String, String>("If-Match", "*"));
 	}
 		
 	/**
@@ -538,6 +1174,30 @@ public class NotificationHub {
 		editor.commit();
 	}
 	
+	/**
+	 * Stores the registration name and id associations in local storage in a single commit
+	 * @param registrationIds	The registration ids to store, keyed by registration name
+	 * @param pNSHandle	The PNS handle of the registrations
+	 */
+	private void storeRegistrationIds(Map<String, String> registrationIds, String pNSHandle) {
+		if (registrationIds.isEmpty()) {
+			return;
+		}
+
+		Editor editor = mSharedPreferences.edit();
+
+		for (Map.Entry<String, String> registrationId : registrationIds.entrySet()) {
+			editor.putString(STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY + registrationId.getKey(), registrationId.getValue());
+		}
+
+		editor.putString(STORAGE_PREFIX + PNS_HANDLE_KEY, pNSHandle);
+
+		// Always overwrite the storage version with the latest value
+		editor.putString(STORAGE_PREFIX + STORAGE_VERSION_KEY, STORAGE_VERSION);
+
+		editor.commit();
+	}
+
 	/**
 	 * Removes the registration name and id association from local storage
 	 * @param registrationName	The registration name of the association to remove from local storage
@@ -551,6 +1211,24 @@ public class NotificationHub {
 		editor.commit();
 	}
 	
+	/**
+	 * Removes the registration name and id associations from local storage in a single commit
+	 * @param registrationNames	The registration names of the associations to remove from local storage
+	 */
+	private void removeRegistrationIds(Collection<String> registrationNames) {
+		if (registrationNames.isEmpty()) {
+			return;
+		}
+
+		Editor editor = mSharedPreferences.edit();
+
+		for (String registrationName : registrationNames) {
+			editor.remove(STORAGE_PREFIX + REGISTRATION_NAME_STORAGE_KEY + registrationName);
+		}
+
+		editor.commit();
+	}
+	
 	private void verifyStorageVersion() {
 		String currentStorageVersion = mSharedPreferences.getString(STORAGE_PREFIX + STORAGE_VERSION_KEY, "");
 
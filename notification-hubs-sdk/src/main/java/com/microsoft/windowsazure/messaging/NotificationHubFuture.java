@@ -0,0 +1,337 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous NotificationHub operation. Callbacks can be added to be
+ * notified of the outcome instead of blocking on get().
+ * @param <V>	The operation result type
+ */
+public class NotificationHubFuture<V> implements Future<V> {
+
+	/**
+	 * Receives the outcome of an asynchronous NotificationHub operation
+	 * @param <V>	The operation result type
+	 */
+	public interface Callback<V> {
+		/**
+		 * Called when the operation completed successfully
+		 * @param result	The operation result
+		 */
+		void onSuccess(V result);
+
+		/**
+		 * Called when the operation failed, timed out or was cancelled
+		 * @param exception	The failure cause. A CancellationException if the operation was cancelled,
+		 *                  a TimeoutException if it timed out.
+		 */
+		void onFailure(Exception exception);
+	}
+
+	/**
+	 * The operation has not completed yet
+	 */
+	private static final int PENDING = 0;
+
+	/**
+	 * The operation completed with a result
+	 */
+	private static final int SUCCEEDED = 1;
+
+	/**
+	 * The operation failed or timed out
+	 */
+	private static final int FAILED = 2;
+
+	/**
+	 * The operation was cancelled
+	 */
+	private static final int CANCELLED = 3;
+
+	/**
+	 * Runs callbacks on the thread completing the future
+	 */
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * Guards the state of the future
+	 */
+	private final Object mLock = new Object();
+
+	/**
+	 * The future state
+	 */
+	private int mState = PENDING;
+
+	/**
+	 * The operation result
+	 */
+	private V mResult;
+
+	/**
+	 * The operation failure cause
+	 */
+	private Exception mException;
+
+	/**
+	 * The thread running the operation, if any
+	 */
+	private Thread mRunner;
+
+	/**
+	 * Callbacks waiting for the outcome
+	 */
+	private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+
+	/**
+	 * Creates a new pending future
+	 */
+	NotificationHubFuture() {
+	}
+
+	/**
+	 * Adds a callback run on the thread that completes the operation, or immediately on the
+	 * calling thread if the operation already completed
+	 * @param callback	The callback to add
+	 */
+	public void addCallback(Callback<? super V> callback) {
+		addCallback(callback, DIRECT_EXECUTOR);
+	}
+
+	/**
+	 * Adds a callback run with the given executor once the operation completes
+	 * @param callback	The callback to add
+	 * @param executor	The executor running the callback
+	 */
+	public void addCallback(final Callback<? super V> callback, final Executor executor) {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback");
+		}
+
+		if (executor == null) {
+			throw new IllegalArgumentException("executor");
+		}
+
+		Runnable notification = new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						notifyCallback(callback);
+					}
+				});
+			}
+		};
+
+		synchronized (mLock) {
+			if (mState == PENDING) {
+				mCallbacks.add(notification);
+				return;
+			}
+		}
+
+		notification.run();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(CANCELLED, null, null, mayInterruptIfRunning);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		synchronized (mLock) {
+			return mState == CANCELLED;
+		}
+	}
+
+	@Override
+	public boolean isDone() {
+		synchronized (mLock) {
+			return mState != PENDING;
+		}
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		synchronized (mLock) {
+			while (mState == PENDING) {
+				mLock.wait();
+			}
+
+			return getResult();
+		}
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		synchronized (mLock) {
+			while (mState == PENDING) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+			}
+
+			return getResult();
+		}
+	}
+
+	/**
+	 * Runs the operation on the current thread, unless the future is already done
+	 * @param operation	The operation to run
+	 */
+	void run(Callable<V> operation) {
+		synchronized (mLock) {
+			if (mState != PENDING) {
+				return;
+			}
+
+			mRunner = Thread.currentThread();
+		}
+
+		try {
+			complete(SUCCEEDED, operation.call(), null, false);
+		} catch (Exception e) {
+			complete(FAILED, null, e, false);
+		} finally {
+			synchronized (mLock) {
+				mRunner = null;
+			}
+
+			// A cancellation may have interrupted the operation; don't leak that into the next one
+			Thread.interrupted();
+		}
+	}
+
+	/**
+	 * Fails the future with a TimeoutException and interrupts the operation, unless it already completed
+	 * @param timeoutMillis	The elapsed timeout
+	 * @return true if the future timed out
+	 */
+	boolean timeout(long timeoutMillis) {
+		return complete(FAILED, null, new TimeoutException("The operation did not complete within " + timeoutMillis + " ms"), true);
+	}
+
+	/**
+	 * Fails the future, unless it already completed
+	 * @param exception	The failure cause
+	 * @return true if the future failed
+	 */
+	boolean fail(Exception exception) {
+		return complete(FAILED, null, exception, false);
+	}
+
+	/**
+	 * Moves the future out of the pending state and notifies waiters and callbacks
+	 * @param state	The completed state
+	 * @param result	The operation result
+	 * @param exception	The failure cause
+	 * @param interrupt	Indicates if the thread running the operation should be interrupted
+	 * @return true if this call completed the future
+	 */
+	private boolean complete(int state, V result, Exception exception, boolean interrupt) {
+		List<Runnable> callbacks;
+
+		synchronized (mLock) {
+			if (mState != PENDING) {
+				return false;
+			}
+
+			mState = state;
+			mResult = result;
+			mException = exception;
+
+			if (interrupt && mRunner != null) {
+				mRunner.interrupt();
+			}
+
+			callbacks = mCallbacks;
+			mCallbacks = null;
+			mLock.notifyAll();
+		}
+
+		for (Runnable callback : callbacks) {
+			callback.run();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the outcome of a completed future. Must be called holding the lock.
+	 */
+	private V getResult() throws ExecutionException {
+		if (mState == CANCELLED) {
+			throw new CancellationException();
+		}
+
+		if (mState == FAILED) {
+			throw new ExecutionException(mException);
+		}
+
+		return mResult;
+	}
+
+	/**
+	 * Notifies a callback of the outcome of the completed future
+	 * @param callback	The callback to notify
+	 */
+	private void notifyCallback(Callback<? super V> callback) {
+		int state;
+		V result;
+		Exception exception;
+
+		synchronized (mLock) {
+			state = mState;
+			result = mResult;
+			exception = mException;
+		}
+
+		if (state == SUCCEEDED) {
+			callback.onSuccess(result);
+		} else if (state == CANCELLED) {
+			callback.onFailure(new CancellationException());
+		} else {
+			callback.onFailure(exception);
+		}
+	}
+}
@@ -33,9 +33,12 @@ public final class PnsSpecificRegistrationFactory {
 	private static RegistrationType mRegistrationType = RegistrationType.fcmv1;
 
 	/**
-	 * Keeps the single instance
+	 * Keeps the single instance, created on first use so the static registration builders
+	 * below can run without looking up the device manufacturer
 	 */
-	private static final PnsSpecificRegistrationFactory mInstance = new PnsSpecificRegistrationFactory();
+	private static final class InstanceHolder {
+		private static final PnsSpecificRegistrationFactory mInstance = new PnsSpecificRegistrationFactory();
+	}
 	
 	/**
 	 * Creates a new instance of PnsSpecificRegistrationFactory
@@ -55,7 +58,7 @@ public final class PnsSpecificRegistrationFactory {
 	 * @return Instance of PnsSpecificRegistrationFactory
 	 */
 	public static PnsSpecificRegistrationFactory getInstance(){
-		return mInstance;
+		return InstanceHolder.mInstance;
 	}
 
 	public void setRegistrationType(RegistrationType type){
@@ -82,6 +85,16 @@ public final class PnsSpecificRegistrationFactory {
 	 * @return Native registration
 	 */
 	public Registration createNativeRegistrationForPlatform(String notificationHubPath, RegistrationType registrationType) {
+		return newNativeRegistration(notificationHubPath, registrationType);
+	}
+
+	/**
+	 * Creates native registration for the given PNS type
+	 * @param notificationHubPath The Notification Hub path
+	 * @param registrationType	Platform
+	 * @return Native registration
+	 */
+	static Registration newNativeRegistration(String notificationHubPath, RegistrationType registrationType) {
 		switch(registrationType) {
 			case gcm:{
 				return new GcmNativeRegistration(notificationHubPath);
@@ -122,6 +135,16 @@ public final class PnsSpecificRegistrationFactory {
 	 * @return Template registration
 	 */
 	public TemplateRegistration createTemplateRegistrationForPlatform(String notificationHubPath, RegistrationType registrationType) {
+		return newTemplateRegistration(notificationHubPath, registrationType);
+	}
+
+	/**
+	 * Creates template registration for the given PNS type
+	 * @param notificationHubPath The Notification Hub path
+	 * @param registrationType	Platform
+	 * @return Template registration
+	 */
+	static TemplateRegistration newTemplateRegistration(String notificationHubPath, RegistrationType registrationType) {
 		switch(registrationType) {
 			case gcm:
 				return new GcmTemplateRegistration(notificationHubPath);
@@ -138,6 +161,53 @@ public final class PnsSpecificRegistrationFactory {
 		}
 	}
 	
+	/**
+	 * Creates the registration described by a registration description node. Registrations
+	 * for the current platform are preferred; FCM v1 devices also accept legacy FCM/GCM
+	 * descriptions and vice versa.
+	 * @param notificationHubPath The Notification Hub path
+	 * @param registrationType	The current platform
+	 * @param payloadNodeName	The registration description node name
+	 * @return The registration, or null if the node does not describe a registration for the platform
+	 */
+	static Registration newRegistrationForPayloadNode(String notificationHubPath, RegistrationType registrationType, String payloadNodeName) {
+		Registration registration = newRegistrationForPayloadNodeOnPlatform(notificationHubPath, registrationType, payloadNodeName);
+
+		if (registration == null
+				&& (registrationType == RegistrationType.fcmv1
+				|| registrationType == RegistrationType.fcm
+				|| registrationType == RegistrationType.gcm)) {
+			RegistrationType otherPlatformToCheck = registrationType == RegistrationType.fcmv1
+					? RegistrationType.fcm
+					: RegistrationType.fcmv1;
+
+			registration = newRegistrationForPayloadNodeOnPlatform(notificationHubPath, otherPlatformToCheck, payloadNodeName);
+		}
+
+		return registration;
+	}
+
+	/**
+	 * Creates the template or native registration of the given platform described by a registration description node
+	 * @param notificationHubPath The Notification Hub path
+	 * @param registrationType	Platform
+	 * @param payloadNodeName	The registration description node name
+	 * @return The registration, or null if the node describes neither registration of the platform
+	 */
+	private static Registration newRegistrationForPayloadNodeOnPlatform(String notificationHubPath, RegistrationType registrationType, String payloadNodeName) {
+		Registration registration = newTemplateRegistration(notificationHubPath, registrationType);
+		if (registration.getSpecificPayloadNodeName().equals(payloadNodeName)) {
+			return registration;
+		}
+
+		registration = newNativeRegistration(notificationHubPath, registrationType);
+		if (registration.getSpecificPayloadNodeName().equals(payloadNodeName)) {
+			return registration;
+		}
+
+		return null;
+	}
+
 	/**
 	 * Indicates if a registration xml is a Template Registration
 	 * @param xml	The xml to check
@@ -196,7 +266,16 @@ public final class PnsSpecificRegistrationFactory {
 	 * @return Returns PNS handle field name
 	 */
 	public String getPNSHandleFieldName(){
-		switch(mRegistrationType)
+		return getPNSHandleFieldNameForPlatform(mRegistrationType);
+	}
+
+	/**
+	 * Returns PNS handle field name of the given PNS type
+	 * @param registrationType	Platform
+	 * @return Returns PNS handle field name
+	 */
+	public String getPNSHandleFieldNameForPlatform(RegistrationType registrationType){
+		switch(registrationType)
 		{
 			case gcm:{
 				return GcmNativeRegistration.GCM_HANDLE_NODE;
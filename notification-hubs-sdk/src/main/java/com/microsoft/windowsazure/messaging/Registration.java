@@ -22,27 +22,22 @@ package com.microsoft.windowsazure.messaging;
 
 import static com.microsoft.windowsazure.messaging.Utils.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.Map;
+import java.util.TreeSet;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.EntityResolver;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 public abstract class Registration {
 	
@@ -131,136 +126,160 @@ public abstract class Registration {
 	 * @throws Exception
 	 */
 	String toXml() throws Exception {
-		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		builder.setEntityResolver(new EntityResolver() {
-
-			@Override
-			public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
-				return null;
-			}
-		});
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		writeXml(buffer);
 
-		Document doc = builder.newDocument();
+		return new String(buffer.toByteArray(), "UTF-8");
+	}
 
-		Element entry = doc.createElement("entry");
-		entry.setAttribute("xmlns", "http://www.w3.org/2005/Atom");
-		doc.appendChild(entry);
+	/**
+	 * Writes the XML representation of the Registration as UTF-8
+	 * @param out	The stream to write to
+	 * @throws IOException
+	 */
+	void writeXml(OutputStream out) throws IOException {
+		RegistrationXmlWriter writer = new RegistrationXmlWriter(out);
 
-		appendNodeWithValue(doc, entry, "id", getURI());
-		appendNodeWithValue(doc, entry, "updated", getUpdatedString());
-		appendContentNode(doc, entry);
+		writer.startEntry();
+		writer.writeNodeWithValue("id", getURI());
+		writer.writeNodeWithValue("updated", getUpdatedString());
+		writeContentNode(writer);
+		writer.endEntry();
 
-		return getXmlString(doc.getDocumentElement());
+		writer.flush();
 	}
 
 	/**
-	 * Appends the content node
-	 * @param doc	The document to modify
-	 * @param entry	The parent element
+	 * Writes the content node
+	 * @param writer	The writer to use
+	 * @throws IOException
 	 */
-	private void appendContentNode(Document doc, Element entry) {
-		Element content = doc.createElement("content");
-		content.setAttribute("type", "application/xml");
-		entry.appendChild(content);
+	private void writeContentNode(RegistrationXmlWriter writer) throws IOException {
+		writer.startPayload(getSpecificPayloadNodeName());
 
-		Element registrationDescription = doc.createElement(getSpecificPayloadNodeName());
-		registrationDescription.setAttribute("xmlns:i", "http://www.w3.org/2001/XMLSchema-instance");
-		registrationDescription.setAttribute("xmlns", "http://schemas.microsoft.com/netservices/2010/10/servicebus/connect");
-		content.appendChild(registrationDescription);
+		writer.writeNodeWithValue("ETag", getETag());
+		writer.writeNodeWithValue("ExpirationTime", getExpirationTimeString());
+		writer.writeNodeWithValue("RegistrationId", getRegistrationId());
+		writeTagsNode(writer);
 
-		appendNodeWithValue(doc, registrationDescription, "ETag", getETag());
-		appendNodeWithValue(doc, registrationDescription, "ExpirationTime", getExpirationTimeString());
-		appendNodeWithValue(doc, registrationDescription, "RegistrationId", getRegistrationId());
-		appendTagsNode(doc, registrationDescription);
+		writeCustomPayload(writer);
 
-		appendCustomPayload(doc, registrationDescription);
+		writer.endPayload(getSpecificPayloadNodeName());
 	}
 
 	/**
-	 * Appends a custom payload to the registration xml
-	 * @param doc	The document to modify
-	 * @param content	The parent element
+	 * Writes a custom payload to the registration xml
+	 * @param writer	The writer to use
+	 * @throws IOException
+	 */
+	abstract void writeCustomPayload(RegistrationXmlWriter writer) throws IOException;
+
+	/**
+	 * Writes the tags node to the registration xml
+	 * @param writer	The writer to use
+	 * @throws IOException
 	 */
-	protected abstract void appendCustomPayload(Document doc, Element content);
+	void writeTagsNode(RegistrationXmlWriter writer) throws IOException {
+		writeTagsNode(writer, mTags);
+	}
 
 	/**
-	 * Appends the tags node to the registration xml
-	 * @param doc	The document to modify
-	 * @param registrationDescription	The parent element
+	 * Writes a tags node to the registration xml
+	 * @param writer	The writer to use
+	 * @param tags	The tags to write
+	 * @throws IOException
 	 */
-	protected void appendTagsNode(Document doc, Element registrationDescription) {
-		List<String> tagList = getTags();
-		if (tagList != null && tagList.size() > 0) {
-			String tagsNodeValue = tagList.get(0);
+	private static void writeTagsNode(RegistrationXmlWriter writer, Collection<String> tags) throws IOException {
+		if (tags.size() > 0) {
+			StringBuilder tagsNodeValue = new StringBuilder();
 
-			for (int i = 1; i < tagList.size(); i++) {
-				tagsNodeValue += "," + tagList.get(i);
+			for (String tag : tags) {
+				if (tagsNodeValue.length() > 0) {
+					tagsNodeValue.append(',');
+				}
+
+				tagsNodeValue.append(tag);
 			}
 
-			Element tags = doc.createElement("Tags");
-			tags.appendChild(doc.createTextNode(tagsNodeValue));
-			registrationDescription.appendChild(tags);
+			writer.writeNodeWithValue("Tags", tagsNodeValue.toString());
 		}
 	}
 
 	/**
-	 * Appends a node with a value to a registration xml
-	 * @param doc	The document to modify
-	 * @param targetElement	The parent element
-	 * @param nodeName	The node name
-	 * @param value	The node value
+	 * Computes a digest of the registration content sent to the server. The digest doesn't depend on
+	 * the registration id, the values assigned by the server or the order of the tags.
+	 * @return The hex encoded SHA-256 digest
+	 * @throws IOException
 	 */
-	protected void appendNodeWithValue(Document doc, Element targetElement, String nodeName, String value) {
-		if (!isNullOrWhiteSpace(value)) {
-			Element newElement = doc.createElement(nodeName);
-			newElement.appendChild(doc.createTextNode(value));
-			targetElement.appendChild(newElement);
+	String getContentDigest() throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+
+		OutputStream out = new DigestOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, digest);
+
+		RegistrationXmlWriter writer = new RegistrationXmlWriter(out);
+
+		writer.writeNodeWithValue("NotificationHubPath", getNotificationHubPath());
+		writer.startPayload(getSpecificPayloadNodeName());
+		writeTagsNode(writer, new TreeSet<String>(mTags));
+		writeCustomPayload(writer);
+		writer.endPayload(getSpecificPayloadNodeName());
+
+		writer.flush();
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
 		}
+
+		return hex.toString();
 	}
 
 	/**
-	 * Fill the registration properties with the values found in an xml
-	 * @param xml	The xml to read
+	 * Fill the registration properties with the values read from a registration description
+	 * @param updated	The entry updated value
+	 * @param payloadValues	The registration description child values, keyed by node name
 	 * @param notificationHubPath	The notificationHubPath
-	 * @throws Exception
 	 */
-	void loadXml(String xml, String notificationHubPath) throws Exception {
-		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		Document doc = builder.parse(new InputSource(new StringReader(xml)));
+	void loadXmlValues(String updated, Map<String, String> payloadValues, String notificationHubPath) {
+		mNotificationHubPath = notificationHubPath;
+		mUpdated = updated;
 
-		doc.getDocumentElement().normalize();
-		Element root = doc.getDocumentElement();
+		mETag = payloadValues.get("ETag");
+		mExpirationTime = payloadValues.get("ExpirationTime");
+		mRegistrationId = payloadValues.get("RegistrationId");
+		mURI = notificationHubPath + "/Registrations/" + mRegistrationId;
 
-		mNotificationHubPath = notificationHubPath;
-		mUpdated = getNodeValue(root, "updated");
-
-		NodeList payloadNodes = doc.getElementsByTagName(getSpecificPayloadNodeName());
-		if (payloadNodes.getLength() > 0) {
-			Element payloadNode = (Element) payloadNodes.item(0);
-			mETag = getNodeValue(payloadNode, "ETag");
-			mExpirationTime = getNodeValue(payloadNode, "ExpirationTime");
-			mRegistrationId = getNodeValue(payloadNode, "RegistrationId");
-			mURI = notificationHubPath + "/Registrations/" + mRegistrationId;
-
-			String tags = getNodeValue(payloadNode, "Tags");
-			if (!isNullOrWhiteSpace(tags)) {
-				tags = tags.trim();
-				String[] tagList = tags.split(",");
-
-				for (String tag : tagList) {
-					mTags.add(tag);
-				}
-			}
+		String tags = payloadValues.get("Tags");
+		if (!isNullOrWhiteSpace(tags)) {
+			tags = tags.trim();
+			String[] tagList = tags.split(",");
 
-			loadCustomXmlData(payloadNode);
+			for (String tag : tagList) {
+				mTags.add(tag);
+			}
 		}
+
+		loadCustomXmlData(payloadValues);
 	}
 
 	/**
 	 * Loads custom data for a specific registration type
-	 * @param payloadNode	The xml node to read
+	 * @param payloadValues	The registration description child values, keyed by node name
 	 */
-	protected abstract void loadCustomXmlData(Element payloadNode);
+	protected abstract void loadCustomXmlData(Map<String, String> payloadValues);
 
 	/**
 	 * Gets the custom payload name for a specific registration type
@@ -268,21 +287,6 @@ public abstract class Registration {
 	 */
 	protected abstract String getSpecificPayloadNodeName();
 
-	/**
-	 * Get the node value
-	 * @param element The element to read
-	 * @param node	The node name to retrieve
-	 * @return String object
-	 */
-	protected static String getNodeValue(Element element, String node) {
-		NodeList nodes = element.getElementsByTagName(node);
-		if (nodes.getLength() > 0) {
-			return nodes.item(0).getTextContent();
-		} else {
-			return null;
-		}
-	}
-
 	/**
 	 * Creates a new registration
 	 * @param notificationHubPath The notification hub path
@@ -389,24 +393,7 @@ public abstract class Registration {
 	 * @throws java.text.ParseException
 	 */
 	private static Date UTCDateStringToDate(String dateString) throws ParseException {
-		// Change Z to +00:00 to adapt the string to a format
-		// that can be parsed in Java
-		String s = dateString.replace("Z", "+00:00");
-		try {
-			// Remove the ":" character to adapt the string to a
-			// format that can be parsed in Java
-			s = s.substring(0, 26) + s.substring(27);
-		} catch (IndexOutOfBoundsException e) {
-			throw new ParseException("The 'updated' value has an invalid format", 26);
-		}
-
-		// Parse the well-formatted date string
-		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'.'SSSZ", Locale.getDefault());
-		dateFormat.setTimeZone(TimeZone.getDefault());
-		Date date = dateFormat.parse(s);
-
-		return date;
-
+		return new Date(Iso8601DateFormat.parse(dateString));
 	}
 	
 	/**
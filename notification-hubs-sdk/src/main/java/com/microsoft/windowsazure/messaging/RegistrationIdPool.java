@@ -0,0 +1,258 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+
+package com.microsoft.windowsazure.messaging;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps registration ids created ahead of time, so that a new registration can be sent with a
+ * single create or update request instead of first asking the server for an id. The pool is
+ * refilled in the background whenever it runs low.
+ */
+class RegistrationIdPool {
+
+	/**
+	 * Creates registration ids in the server
+	 */
+	interface Source {
+		/**
+		 * Creates a new registration id in the server
+		 * @return	The new registration id
+		 * @throws Exception
+		 */
+		String createRegistrationId() throws Exception;
+	}
+
+	/**
+	 * Creates the ids put in the pool
+	 */
+	private final Source mSource;
+
+	/**
+	 * Runs the refills
+	 */
+	private final Executor mExecutor;
+
+	/**
+	 * The ids ready to be used, oldest first
+	 */
+	private final ArrayDeque<String> mIds = new ArrayDeque<String>();
+
+	/**
+	 * Number of ids the pool is refilled to, zero when the pool is disabled
+	 */
+	private int mCapacity;
+
+	/**
+	 * Incremented whenever the pooled ids are dropped, so that a refill started before that
+	 * does not put ids that may belong to another hub back in the pool
+	 */
+	private int mGeneration;
+
+	/**
+	 * True while a refill is queued or running
+	 */
+	private boolean mRefilling;
+
+	/**
+	 * Number of ids taken from the pool
+	 */
+	private final AtomicLong mHitCount = new AtomicLong();
+
+	/**
+	 * Number of times the pool was enabled but empty
+	 */
+	private final AtomicLong mMissCount = new AtomicLong();
+
+	/**
+	 * Creates a new, disabled, RegistrationIdPool
+	 * @param source	Creates the ids put in the pool
+	 * @param executor	Runs the refills
+	 */
+	RegistrationIdPool(Source source, Executor executor) {
+		if (source == null) {
+			throw new IllegalArgumentException("source");
+		}
+
+		if (executor == null) {
+			throw new IllegalArgumentException("executor");
+		}
+
+		mSource = source;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Sets the number of ids kept ready, and starts filling the pool up to it
+	 * @param capacity	The number of ids, zero to disable the pool and drop the ids it holds
+	 */
+	void setCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity");
+		}
+
+		synchronized (this) {
+			mCapacity = capacity;
+			while (mIds.size() > capacity) {
+				mIds.removeLast();
+			}
+		}
+
+		refillIfLow();
+	}
+
+	/**
+	 * Gets the number of ids kept ready
+	 * @return	The capacity, zero if the pool is disabled
+	 */
+	synchronized int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Gets the number of ids ready to be used
+	 */
+	synchronized int size() {
+		return mIds.size();
+	}
+
+	/**
+	 * Takes an id out of the pool, refilling it in the background if that leaves it low
+	 * @return	The id, or null if the pool is disabled or empty
+	 */
+	String take() {
+		String id;
+		synchronized (this) {
+			if (mCapacity == 0) {
+				return null;
+			}
+
+			id = mIds.pollFirst();
+		}
+
+		if (id == null) {
+			mMissCount.incrementAndGet();
+		} else {
+			mHitCount.incrementAndGet();
+		}
+
+		refillIfLow();
+		return id;
+	}
+
+	/**
+	 * Drops every pooled id, for instance because the ids were created for another hub, and
+	 * starts filling the pool again
+	 */
+	void clear() {
+		synchronized (this) {
+			mIds.clear();
+			mGeneration++;
+		}
+
+		refillIfLow();
+	}
+
+	/**
+	 * Gets the number of ids taken from the pool
+	 */
+	long getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Gets the number of times an id was asked for while the pool was enabled but empty
+	 */
+	long getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Starts a refill if the pool holds half of its capacity or less and no refill is running
+	 */
+	void refillIfLow() {
+		final int generation;
+		synchronized (this) {
+			if (mRefilling || mCapacity == 0 || mIds.size() > mCapacity / 2) {
+				return;
+			}
+
+			mRefilling = true;
+			generation = mGeneration;
+		}
+
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					refill(generation);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				mRefilling = false;
+			}
+		}
+	}
+
+	/**
+	 * Creates ids until the pool is full. A failure ends the refill, the next id taken starts another.
+	 * @param generation	The generation of the pool when the refill started
+	 */
+	private void refill(int generation) {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (mGeneration != generation || mIds.size() >= mCapacity) {
+						return;
+					}
+				}
+
+				String id = mSource.createRegistrationId();
+
+				synchronized (this) {
+					if (mGeneration != generation || mIds.size() >= mCapacity) {
+						return;
+					}
+
+					mIds.addLast(id);
+				}
+			}
+		} catch (Exception e) {
+			// the pool stays low, and registrations fall back to creating their own id
+		} finally {
+			boolean cleared;
+			synchronized (this) {
+				mRefilling = false;
+				cleared = mGeneration != generation;
+			}
+
+			// a clear while this refill was running could not start its own
+			if (cleared) {
+				refillIfLow();
+			}
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import com.microsoft.windowsazure.messaging.Registration.RegistrationType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Reads registrations from Atom entries and feeds returned by the Notification Hub in a single
+ * forward pass, creating the Registration matching each registration description it finds.
+ */
+class RegistrationReader {
+
+	/**
+	 * Atom entry node name
+	 */
+	private static final String ENTRY_NODE = "entry";
+
+	/**
+	 * Atom updated node name
+	 */
+	private static final String UPDATED_NODE = "updated";
+
+	/**
+	 * Atom content node name
+	 */
+	private static final String CONTENT_NODE = "content";
+
+	/**
+	 * The Notification Hub path assigned to the registrations read
+	 */
+	private final String mNotificationHubPath;
+
+	/**
+	 * The platform the registrations are read for
+	 */
+	private final RegistrationType mRegistrationType;
+
+	/**
+	 * The parser used to read the xml
+	 */
+	private final XmlPullParser mParser;
+
+	/**
+	 * Creates a new RegistrationReader
+	 * @param notificationHubPath	The Notification Hub path
+	 * @param registrationType	The platform the registrations are read for
+	 */
+	RegistrationReader(String notificationHubPath, RegistrationType registrationType) {
+		this(notificationHubPath, registrationType, Xml.newPullParser());
+	}
+
+	/**
+	 * Creates a new RegistrationReader
+	 * @param notificationHubPath	The Notification Hub path
+	 * @param registrationType	The platform the registrations are read for
+	 * @param parser	The parser used to read the xml
+	 */
+	RegistrationReader(String notificationHubPath, RegistrationType registrationType, XmlPullParser parser) {
+		if (parser == null) {
+			throw new IllegalArgumentException("parser");
+		}
+
+		mNotificationHubPath = notificationHubPath;
+		mRegistrationType = registrationType;
+		mParser = parser;
+	}
+
+	/**
+	 * Reads every registration of an Atom feed. Entries whose registration description
+	 * does not belong to the current platform are skipped.
+	 * @param xml	The feed to read
+	 * @return The registrations found, in document order
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	List<Registration> readRegistrations(String xml) throws XmlPullParserException, IOException {
+		return readRegistrations(new StringReader(xml));
+	}
+
+	/**
+	 * Reads every registration of an Atom feed. Entries whose registration description
+	 * does not belong to the current platform are skipped.
+	 * @param input	The feed to read
+	 * @return The registrations found, in document order
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	List<Registration> readRegistrations(Reader input) throws XmlPullParserException, IOException {
+		setInput(input);
+		return readFeed();
+	}
+
+	/**
+	 * Reads every registration of an Atom feed straight from a response stream. Entries whose
+	 * registration description does not belong to the current platform are skipped.
+	 * @param input	The feed to read
+	 * @return The registrations found, in document order
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	List<Registration> readRegistrations(InputStream input) throws XmlPullParserException, IOException {
+		mParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		// Without an encoding the parser detects it from the xml declaration, defaulting to UTF-8
+		mParser.setInput(input, null);
+		return readFeed();
+	}
+
+	/**
+	 * Reads the registration of a single Atom entry
+	 * @param xml	The entry to read
+	 * @return The registration found
+	 * @throws XmlPullParserException	If the xml holds no registration for the current platform
+	 * @throws IOException
+	 */
+	Registration readRegistration(String xml) throws XmlPullParserException, IOException {
+		return firstRegistration(readRegistrations(xml));
+	}
+
+	/**
+	 * Reads the registration of a single Atom entry straight from a response stream
+	 * @param input	The entry to read
+	 * @return The registration found
+	 * @throws XmlPullParserException	If the xml holds no registration for the current platform
+	 * @throws IOException
+	 */
+	Registration readRegistration(InputStream input) throws XmlPullParserException, IOException {
+		return firstRegistration(readRegistrations(input));
+	}
+
+	/**
+	 * Reads the registrations of the feed or entry the parser was set to
+	 * @return The registrations found, in document order
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private List<Registration> readFeed() throws XmlPullParserException, IOException {
+		List<Registration> registrations = new ArrayList<Registration>();
+
+		for (int eventType = mParser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = mParser.next()) {
+			if (eventType == XmlPullParser.START_TAG && ENTRY_NODE.equals(mParser.getName())) {
+				Registration registration = readEntry();
+				if (registration != null) {
+					registrations.add(registration);
+				}
+			}
+		}
+
+		return registrations;
+	}
+
+	/**
+	 * Picks the registration of a single Atom entry
+	 * @param registrations	The registrations read from the entry
+	 * @return The registration found
+	 * @throws XmlPullParserException	If the entry holds no registration for the current platform
+	 */
+	private Registration firstRegistration(List<Registration> registrations) throws XmlPullParserException {
+		if (registrations.isEmpty()) {
+			throw new XmlPullParserException("The xml does not contain a registration for " + mRegistrationType);
+		}
+
+		return registrations.get(0);
+	}
+
+	/**
+	 * Resets the parser to read from the given input
+	 * @param input	The xml to read
+	 * @throws XmlPullParserException
+	 */
+	private void setInput(Reader input) throws XmlPullParserException {
+		mParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		mParser.setInput(input);
+	}
+
+	/**
+	 * Reads the entry the parser is positioned on, leaving the parser on its end tag
+	 * @return The registration read, or null if the entry has no registration for the current platform
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private Registration readEntry() throws XmlPullParserException, IOException {
+		int entryDepth = mParser.getDepth();
+		String updated = null;
+		Registration registration = null;
+		Map<String, String> payloadValues = null;
+
+		while (nextChildElement(entryDepth)) {
+			String name = mParser.getName();
+
+			if (UPDATED_NODE.equals(name)) {
+				updated = readText();
+			} else if (CONTENT_NODE.equals(name)) {
+				int contentDepth = mParser.getDepth();
+				while (nextChildElement(contentDepth)) {
+					if (registration == null) {
+						registration = PnsSpecificRegistrationFactory.newRegistrationForPayloadNode(mNotificationHubPath, mRegistrationType, mParser.getName());
+						if (registration != null) {
+							payloadValues = readPayloadValues();
+							continue;
+						}
+					}
+
+					skipElement();
+				}
+			} else {
+				skipElement();
+			}
+		}
+
+		if (registration != null) {
+			registration.loadXmlValues(updated, payloadValues, mNotificationHubPath);
+		}
+
+		return registration;
+	}
+
+	/**
+	 * Reads the text of every child of the registration description the parser is positioned on
+	 * @return The child values, keyed by node name
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private Map<String, String> readPayloadValues() throws XmlPullParserException, IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		int payloadDepth = mParser.getDepth();
+
+		while (nextChildElement(payloadDepth)) {
+			String name = mParser.getName();
+			String value = readText();
+
+			if (!values.containsKey(name)) {
+				values.put(name, value);
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Moves the parser to the next child element of the element at the given depth
+	 * @param parentDepth	The depth of the parent element
+	 * @return true if the parser is on a child start tag, false if it reached the parent end tag
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private boolean nextChildElement(int parentDepth) throws XmlPullParserException, IOException {
+		while (true) {
+			int eventType = mParser.next();
+
+			if (eventType == XmlPullParser.START_TAG) {
+				return true;
+			}
+
+			if (eventType == XmlPullParser.END_DOCUMENT
+					|| (eventType == XmlPullParser.END_TAG && mParser.getDepth() == parentDepth)) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Reads the text content of the element the parser is positioned on, including the text of
+	 * any nested element, leaving the parser on its end tag
+	 * @return The element text
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private String readText() throws XmlPullParserException, IOException {
+		int depth = mParser.getDepth();
+		String text = null;
+		StringBuilder builder = null;
+
+		for (int eventType = mParser.next(); !(eventType == XmlPullParser.END_TAG && mParser.getDepth() == depth); eventType = mParser.next()) {
+			if (eventType == XmlPullParser.END_DOCUMENT) {
+				throw new XmlPullParserException("Unexpected end of document", mParser, null);
+			}
+
+			if (eventType == XmlPullParser.TEXT) {
+				if (text == null) {
+					text = mParser.getText();
+				} else {
+					if (builder == null) {
+						builder = new StringBuilder(text);
+					}
+					builder.append(mParser.getText());
+				}
+			}
+		}
+
+		if (builder != null) {
+			return builder.toString();
+		}
+
+		return text != null ? text : "";
+	}
+
+	/**
+	 * Skips the element the parser is positioned on, leaving the parser on its end tag
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private void skipElement() throws XmlPullParserException, IOException {
+		int depth = mParser.getDepth();
+
+		while (nextChildElement(depth)) {
+			skipElement();
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import static com.microsoft.windowsazure.messaging.Utils.isNullOrWhiteSpace;
+
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Remembers, for each registration name, the content last accepted by the server along with the
+ * registration ETag and expiration time, so unchanged registrations don't need to be sent again
+ */
+class RegistrationStateCache {
+
+	/**
+	 * Prefix for registration state keys in local storage
+	 */
+	static final String STORAGE_KEY_PREFIX = "__NH_REG_STATE_";
+
+	/**
+	 * Version of the stored state format
+	 */
+	private static final String STATE_VERSION = "1";
+
+	/**
+	 * Separator of the stored state fields
+	 */
+	private static final String FIELD_SEPARATOR = "\n";
+
+	/**
+	 * The registration state accepted by the server
+	 */
+	static final class Entry {
+
+		/**
+		 * The registration id
+		 */
+		private final String mRegistrationId;
+
+		/**
+		 * The registration content digest
+		 */
+		private final String mContentDigest;
+
+		/**
+		 * The registration ETag
+		 */
+		private final String mETag;
+
+		/**
+		 * The registration expiration time string
+		 */
+		private final String mExpirationTime;
+
+		/**
+		 * Creates a new Entry
+		 * @param registrationId	The registration id
+		 * @param contentDigest	The registration content digest
+		 * @param eTag	The registration ETag, or null
+		 * @param expirationTime	The registration expiration time string, or null
+		 */
+		Entry(String registrationId, String contentDigest, String eTag, String expirationTime) {
+			mRegistrationId = registrationId;
+			mContentDigest = contentDigest;
+			mETag = eTag;
+			mExpirationTime = expirationTime;
+		}
+
+		/**
+		 * Gets the registration id
+		 */
+		String getRegistrationId() {
+			return mRegistrationId;
+		}
+
+		/**
+		 * Gets the registration content digest
+		 */
+		String getContentDigest() {
+			return mContentDigest;
+		}
+
+		/**
+		 * Gets the registration ETag
+		 */
+		String getETag() {
+			return mETag;
+		}
+
+		/**
+		 * Gets the registration expiration time string
+		 */
+		String getExpirationTime() {
+			return mExpirationTime;
+		}
+	}
+
+	/**
+	 * SharedPreferences reference used to access local storage
+	 */
+	private final SharedPreferences mSharedPreferences;
+
+	/**
+	 * Time before the expiration of a registration during which it is sent again even if unchanged
+	 */
+	private final long mRefreshWindowMillis;
+
+	/**
+	 * Number of registrations found unchanged
+	 */
+	private final AtomicLong mHitCount = new AtomicLong();
+
+	/**
+	 * Number of registrations that needed to be sent
+	 */
+	private final AtomicLong mMissCount = new AtomicLong();
+
+	/**
+	 * Creates a new RegistrationStateCache
+	 * @param sharedPreferences	SharedPreferences reference used to access local storage
+	 * @param refreshWindowMillis	Time before the expiration of a registration during which it is sent again even if unchanged
+	 */
+	RegistrationStateCache(SharedPreferences sharedPreferences, long refreshWindowMillis) {
+		if (sharedPreferences == null) {
+			throw new IllegalArgumentException("sharedPreferences");
+		}
+
+		if (refreshWindowMillis < 0) {
+			throw new IllegalArgumentException("refreshWindowMillis");
+		}
+
+		mSharedPreferences = sharedPreferences;
+		mRefreshWindowMillis = refreshWindowMillis;
+	}
+
+	/**
+	 * Gets the state of a registration
+	 * @param registrationName	The registration name
+	 * @param registrationId	The registration id stored for the name
+	 * @return The registration state, or null if there is none for this registration id
+	 */
+	Entry get(String registrationName, String registrationId) {
+		Entry entry = parse(mSharedPreferences.getString(STORAGE_KEY_PREFIX + registrationName, null));
+
+		if (entry == null || registrationId == null || !registrationId.equals(entry.getRegistrationId())) {
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Checks if a registration can be skipped, and counts the outcome as a hit or a miss
+	 * @param entry	The registration state, or null
+	 * @param contentDigest	The digest of the content to send
+	 * @param nowMillis	The current time
+	 * @return true if the server already has this content and the registration doesn't expire soon
+	 */
+	boolean isUnchanged(Entry entry, String contentDigest, long nowMillis) {
+		boolean unchanged = entry != null
+				&& entry.getContentDigest().equals(contentDigest)
+				&& parseExpirationTime(entry.getExpirationTime()) > nowMillis + mRefreshWindowMillis;
+
+		if (unchanged) {
+			mHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+
+		return unchanged;
+	}
+
+	/**
+	 * Stores the state of a registration
+	 * @param registrationName	The registration name
+	 * @param entry	The registration state
+	 */
+	void put(String registrationName, Entry entry) {
+		String value = STATE_VERSION + FIELD_SEPARATOR
+				+ entry.getRegistrationId() + FIELD_SEPARATOR
+				+ entry.getContentDigest() + FIELD_SEPARATOR
+				+ nullToEmpty(entry.getETag()) + FIELD_SEPARATOR
+				+ nullToEmpty(entry.getExpirationTime());
+
+		// The cache only saves requests, so it doesn't need to wait for the disk
+		mSharedPreferences.edit().putString(STORAGE_KEY_PREFIX + registrationName, value).apply();
+	}
+
+	/**
+	 * Removes the state of registrations
+	 * @param registrationNames	The registration names
+	 */
+	void remove(Collection<String> registrationNames) {
+		if (registrationNames.isEmpty()) {
+			return;
+		}
+
+		Editor editor = mSharedPreferences.edit();
+
+		for (String registrationName : registrationNames) {
+			editor.remove(STORAGE_KEY_PREFIX + registrationName);
+		}
+
+		editor.apply();
+	}
+
+	/**
+	 * Keeps only the state of registrations the server still has with the same id and ETag
+	 * @param serverRegistrations	The registrations read from the server
+	 */
+	void retainUnchanged(Collection<Registration> serverRegistrations) {
+		Map<String, Registration> registrationsByName = new HashMap<String, Registration>();
+		for (Registration registration : serverRegistrations) {
+			registrationsByName.put(registration.getName(), registration);
+		}
+
+		Editor editor = mSharedPreferences.edit();
+
+		for (Map.Entry<String, ?> stored : mSharedPreferences.getAll().entrySet()) {
+			if (!stored.getKey().startsWith(STORAGE_KEY_PREFIX)) {
+				continue;
+			}
+
+			Registration registration = registrationsByName.get(stored.getKey().substring(STORAGE_KEY_PREFIX.length()));
+			Entry entry = stored.getValue() instanceof String ? parse((String) stored.getValue()) : null;
+
+			if (registration == null || entry == null
+					|| !entry.getRegistrationId().equals(registration.getRegistrationId())
+					|| isNullOrWhiteSpace(entry.getETag())
+					|| !entry.getETag().equals(registration.getETag())) {
+				editor.remove(stored.getKey());
+			}
+		}
+
+		editor.apply();
+	}
+
+	/**
+	 * Gets the number of registrations skipped because the server already had their content
+	 */
+	long getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Gets the number of registrations that needed to be sent to the server
+	 */
+	long getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Parses a stored registration state
+	 * @param value	The stored value
+	 * @return The registration state, or null if the value is missing or has an unknown format
+	 */
+	private static Entry parse(String value) {
+		if (value == null) {
+			return null;
+		}
+
+		String[] fields = value.split(FIELD_SEPARATOR, -1);
+		if (fields.length != 5 || !STATE_VERSION.equals(fields[0])) {
+			return null;
+		}
+
+		return new Entry(fields[1], fields[2], emptyToNull(fields[3]), emptyToNull(fields[4]));
+	}
+
+	/**
+	 * Parses a registration expiration time, ignoring the fraction of seconds
+	 * @param expirationTime	The UTC expiration time, in the yyyy-MM-ddTHH:mm:ss format followed by an optional fraction
+	 * @return The expiration time in milliseconds, or Long.MIN_VALUE if it is missing or invalid
+	 */
+	static long parseExpirationTime(String expirationTime) {
+		try {
+			long millis = Iso8601DateFormat.parse(expirationTime);
+			return millis - ((millis % 1000) + 1000) % 1000;
+		} catch (ParseException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Stores a missing field as an empty string
+	 */
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Reads an empty stored field as a missing one
+	 */
+	private static String emptyToNull(String value) {
+		return value.length() == 0 ? null : value;
+	}
+}
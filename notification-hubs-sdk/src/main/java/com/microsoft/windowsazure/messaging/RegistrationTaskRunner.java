@@ -0,0 +1,297 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs asynchronous NotificationHub operations on a bounded executor. Operations sharing a key run
+ * one after another in submission order, while operations with different keys run in parallel.
+ */
+class RegistrationTaskRunner {
+
+	/**
+	 * Maximum number of threads of the default executor
+	 */
+	static final int DEFAULT_MAX_THREADS = 4;
+
+	/**
+	 * Time an idle thread of the default executor is kept alive
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * The executor shared by every NotificationHub, created on first use
+	 */
+	private static Executor sDefaultExecutor;
+
+	/**
+	 * The scheduler enforcing timeouts, created on first use
+	 */
+	private static ScheduledThreadPoolExecutor sTimeoutScheduler;
+
+	/**
+	 * The executor running the operations
+	 */
+	private final Executor mExecutor;
+
+	/**
+	 * The keys held by an operation, with the operations waiting to take each key
+	 */
+	private final Map<String, ArrayDeque<Runnable>> mQueues = new HashMap<String, ArrayDeque<Runnable>>();
+
+	/**
+	 * Creates a new RegistrationTaskRunner using the shared default executor
+	 */
+	RegistrationTaskRunner() {
+		this(getDefaultExecutor());
+	}
+
+	/**
+	 * Creates a new RegistrationTaskRunner
+	 * @param executor	The executor running the operations
+	 */
+	RegistrationTaskRunner(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor");
+		}
+
+		mExecutor = executor;
+	}
+
+	/**
+	 * Submits an operation
+	 * @param key	Operations with the same key are serialized. Null runs the operation without serialization.
+	 * @param timeoutMillis	Time after which the operation fails with a TimeoutException. Zero or less disables the timeout.
+	 * @param operation	The operation to run
+	 * @return The pending result of the operation
+	 */
+	<V> NotificationHubFuture<V> submit(String key, long timeoutMillis, Callable<V> operation) {
+		return submitForKeys(key == null ? Collections.<String>emptySet() : Collections.singleton(key), timeoutMillis, operation);
+	}
+
+	/**
+	 * Submits an operation serialized with the operations of several keys. The operation runs once
+	 * every operation submitted before it with any of the keys completed, and the operations
+	 * submitted after it with any of the keys wait for it to complete.
+	 * @param keys	The serialization keys. An empty collection runs the operation without serialization.
+	 * @param timeoutMillis	Time after which the operation fails with a TimeoutException. Zero or less disables the timeout.
+	 * @param operation	The operation to run
+	 * @return The pending result of the operation
+	 */
+	<V> NotificationHubFuture<V> submitForKeys(Collection<String> keys, final long timeoutMillis, final Callable<V> operation) {
+		final NotificationHubFuture<V> future = new NotificationHubFuture<V>();
+
+		// Keys are always taken in the same order, so operations holding some keys while waiting
+		// for others never wait on each other
+		final List<String> sortedKeys = new ArrayList<String>(new TreeSet<String>(keys));
+
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.run(operation);
+				} finally {
+					release(sortedKeys);
+				}
+			}
+		};
+
+		acquire(sortedKeys, 0, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mExecutor.execute(task);
+				} catch (RejectedExecutionException e) {
+					release(sortedKeys);
+					future.fail(e);
+				}
+			}
+		});
+
+		if (timeoutMillis > 0 && !future.isDone()) {
+			final ScheduledThreadPoolExecutor scheduler = getTimeoutScheduler();
+			final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.timeout(timeoutMillis);
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+			// Drop the timeout as soon as the operation completes, instead of leaving it queued
+			// until it is due
+			future.addCallback(new NotificationHubFuture.Callback<V>() {
+				@Override
+				public void onSuccess(V result) {
+					cancelTimeout(scheduler, timeout);
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					cancelTimeout(scheduler, timeout);
+				}
+			});
+		}
+
+		return future;
+	}
+
+	/**
+	 * Cancels a timeout and removes it from the scheduler queue. setRemoveOnCancelPolicy would do
+	 * the removal, but it is not available before API level 21.
+	 * @param scheduler	The scheduler the timeout was scheduled on
+	 * @param timeout	The timeout to cancel
+	 */
+	private static void cancelTimeout(ScheduledThreadPoolExecutor scheduler, ScheduledFuture<?> timeout) {
+		if (timeout.cancel(false) && timeout instanceof Runnable) {
+			scheduler.remove((Runnable) timeout);
+		}
+	}
+
+	/**
+	 * Takes the keys one after another, waiting behind their current holders, and then starts the
+	 * operation. Waiting doesn't use a thread: a key is handed to its next waiter when released.
+	 * @param keys	The sorted serialization keys
+	 * @param index	Index of the next key to take
+	 * @param start	Starts the operation once every key is held
+	 */
+	private void acquire(final List<String> keys, final int index, final Runnable start) {
+		if (index == keys.size()) {
+			start.run();
+			return;
+		}
+
+		Runnable next = new Runnable() {
+			@Override
+			public void run() {
+				acquire(keys, index + 1, start);
+			}
+		};
+
+		String key = keys.get(index);
+		synchronized (mQueues) {
+			ArrayDeque<Runnable> queue = mQueues.get(key);
+			if (queue != null) {
+				queue.add(next);
+				return;
+			}
+
+			mQueues.put(key, new ArrayDeque<Runnable>());
+		}
+
+		next.run();
+	}
+
+	/**
+	 * Releases the keys of a completed operation, handing each key to its next waiter
+	 * @param keys	The serialization keys held by the operation
+	 */
+	private void release(List<String> keys) {
+		for (String key : keys) {
+			Runnable next;
+			synchronized (mQueues) {
+				ArrayDeque<Runnable> queue = mQueues.get(key);
+				next = queue.poll();
+				if (next == null) {
+					mQueues.remove(key);
+				}
+			}
+
+			if (next != null) {
+				next.run();
+			}
+		}
+	}
+
+	/**
+	 * Gets the executor shared by every NotificationHub
+	 */
+	static synchronized Executor getDefaultExecutor() {
+		if (sDefaultExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					DEFAULT_MAX_THREADS,
+					DEFAULT_MAX_THREADS,
+					KEEP_ALIVE_SECONDS,
+					TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NamedThreadFactory("NotificationHub-async-"));
+			executor.allowCoreThreadTimeOut(true);
+			sDefaultExecutor = executor;
+		}
+
+		return sDefaultExecutor;
+	}
+
+	/**
+	 * Gets the scheduler enforcing timeouts
+	 */
+	static synchronized ScheduledThreadPoolExecutor getTimeoutScheduler() {
+		if (sTimeoutScheduler == null) {
+			sTimeoutScheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("NotificationHub-timeout-"));
+		}
+
+		return sTimeoutScheduler;
+	}
+
+	/**
+	 * Creates daemon threads with a common name prefix
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+
+		/**
+		 * The thread name prefix
+		 */
+		private final String mPrefix;
+
+		/**
+		 * Number of threads created so far
+		 */
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			mPrefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, mPrefix + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
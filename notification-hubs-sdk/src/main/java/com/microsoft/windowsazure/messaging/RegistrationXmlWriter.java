@@ -0,0 +1,449 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams the Atom entry of a registration as UTF-8 bytes. The fixed markup is encoded once and
+ * text is escaped the same way the platform Transformer serializes a DOM, so the output is
+ * byte-identical to building and transforming a Document.
+ */
+class RegistrationXmlWriter {
+
+	/**
+	 * Size of the buffer flushed to the output stream
+	 */
+	private static final int BUFFER_SIZE = 1024;
+
+	/**
+	 * Atom entry start tag
+	 */
+	private static final byte[] ENTRY_START = encode("<entry xmlns=\"http://www.w3.org/2005/Atom\">");
+
+	/**
+	 * Atom entry end tag
+	 */
+	private static final byte[] ENTRY_END = encode("</entry>");
+
+	/**
+	 * Atom content start tag
+	 */
+	private static final byte[] CONTENT_START = encode("<content type=\"application/xml\">");
+
+	/**
+	 * Atom content end tag
+	 */
+	private static final byte[] CONTENT_END = encode("</content>");
+
+	/**
+	 * Namespace attributes of the registration description node
+	 */
+	private static final String PAYLOAD_ATTRIBUTES = " xmlns=\"http://schemas.microsoft.com/netservices/2010/10/servicebus/connect\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\"";
+
+	/**
+	 * CDATA section start
+	 */
+	private static final byte[] CDATA_START = encode("<![CDATA[");
+
+	/**
+	 * CDATA section end
+	 */
+	private static final byte[] CDATA_END = encode("]]>");
+
+	/**
+	 * Replacement for a CDATA end marker inside a CDATA section
+	 */
+	private static final byte[] CDATA_SPLIT_END = encode("]]]]><![CDATA[>");
+
+	/**
+	 * Encoded start tags of the registration description nodes, keyed by node name
+	 */
+	private static final Map<String, byte[]> sPayloadStartTags = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * The stream to write to
+	 */
+	private final OutputStream mOut;
+
+	/**
+	 * Bytes pending to be written to the stream
+	 */
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Number of bytes in the buffer
+	 */
+	private int mCount;
+
+	/**
+	 * Indicates if the last start tag still misses its closing bracket
+	 */
+	private boolean mStartTagOpen;
+
+	/**
+	 * Creates a new RegistrationXmlWriter
+	 * @param out	The stream to write to
+	 */
+	RegistrationXmlWriter(OutputStream out) {
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+
+		mOut = out;
+	}
+
+	/**
+	 * Writes the Atom entry start tag
+	 * @throws IOException
+	 */
+	void startEntry() throws IOException {
+		writeRaw(ENTRY_START);
+	}
+
+	/**
+	 * Writes the Atom entry end tag
+	 * @throws IOException
+	 */
+	void endEntry() throws IOException {
+		writeRaw(ENTRY_END);
+	}
+
+	/**
+	 * Writes the Atom content start tag and the start tag of the registration description
+	 * @param payloadNodeName	The registration description node name
+	 * @throws IOException
+	 */
+	void startPayload(String payloadNodeName) throws IOException {
+		byte[] startTag = sPayloadStartTags.get(payloadNodeName);
+		if (startTag == null) {
+			startTag = encode("<" + payloadNodeName + PAYLOAD_ATTRIBUTES);
+			sPayloadStartTags.put(payloadNodeName, startTag);
+		}
+
+		writeRaw(CONTENT_START);
+		writeRaw(startTag);
+		mStartTagOpen = true;
+	}
+
+	/**
+	 * Writes the end tag of the registration description and the Atom content end tag
+	 * @param payloadNodeName	The registration description node name
+	 * @throws IOException
+	 */
+	void endPayload(String payloadNodeName) throws IOException {
+		if (mStartTagOpen) {
+			mStartTagOpen = false;
+			writeAscii("/>");
+		} else {
+			writeAscii("</");
+			writeAscii(payloadNodeName);
+			writeAscii(">");
+		}
+
+		writeRaw(CONTENT_END);
+	}
+
+	/**
+	 * Writes a node with an escaped text value, unless the value is null or white space
+	 * @param nodeName	The node name
+	 * @param value	The node value
+	 * @throws IOException
+	 */
+	void writeNodeWithValue(String nodeName, String value) throws IOException {
+		if (Utils.isNullOrWhiteSpace(value)) {
+			return;
+		}
+
+		writeStartTag(nodeName);
+		writeText(value);
+		writeEndTag(nodeName);
+	}
+
+	/**
+	 * Writes a node with a value wrapped in CDATA sections, unless the value is null or white space
+	 * @param nodeName	The node name
+	 * @param value	The node value
+	 * @throws IOException
+	 */
+	void writeCDataNode(String nodeName, String value) throws IOException {
+		if (Utils.isNullOrWhiteSpace(value)) {
+			return;
+		}
+
+		writeStartTag(nodeName);
+		writeCData(value);
+		writeEndTag(nodeName);
+	}
+
+	/**
+	 * Writes the pending bytes to the stream
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		if (mCount > 0) {
+			mOut.write(mBuffer, 0, mCount);
+			mCount = 0;
+		}
+		mOut.flush();
+	}
+
+	/**
+	 * Writes a start tag, closing the start tag of the parent first if needed
+	 * @param nodeName	The node name
+	 * @throws IOException
+	 */
+	private void writeStartTag(String nodeName) throws IOException {
+		if (mStartTagOpen) {
+			mStartTagOpen = false;
+			writeByte('>');
+		}
+
+		writeByte('<');
+		writeAscii(nodeName);
+		writeByte('>');
+	}
+
+	/**
+	 * Writes an end tag
+	 * @param nodeName	The node name
+	 * @throws IOException
+	 */
+	private void writeEndTag(String nodeName) throws IOException {
+		writeByte('<');
+		writeByte('/');
+		writeAscii(nodeName);
+		writeByte('>');
+	}
+
+	/**
+	 * Writes escaped text. Markup characters use entity references; characters which are
+	 * invisible or not representable in XML 1.0 text use character references.
+	 * @param value	The text to write
+	 * @throws IOException
+	 */
+	private void writeText(String value) throws IOException {
+		int length = value.length();
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+
+			if (c == '&') {
+				writeAscii("&amp;");
+			} else if (c == '<') {
+				writeAscii("&lt;");
+			} else if (c == '>') {
+				writeAscii("&gt;");
+			} else if (c == '\n' || c == '\t') {
+				writeByte(c);
+			} else if (c < 0x20 || (c >= 0x7F && c <= 0x9F)) {
+				writeCharacterReference(c);
+			} else if (Character.isHighSurrogate(c)) {
+				writeCharacterReference(readCodePoint(value, i));
+				i++;
+			} else if (Character.isLowSurrogate(c)) {
+				throw invalidSurrogate(c);
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes text wrapped in CDATA sections. CDATA end markers are split across two sections and
+	 * control characters are written as character references between sections.
+	 * @param value	The text to write
+	 * @throws IOException
+	 */
+	private void writeCData(String value) throws IOException {
+		int length = value.length();
+		boolean inSection = false;
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+
+			if (c < 0x20 && c != '\n' && c != '\t' && c != '\r') {
+				if (inSection) {
+					writeRaw(CDATA_END);
+					inSection = false;
+				}
+				writeCharacterReference(c);
+			} else if (Character.isHighSurrogate(c)) {
+				writeCodePoint(readCodePoint(value, i));
+				i++;
+			} else if (Character.isLowSurrogate(c)) {
+				throw invalidSurrogate(c);
+			} else {
+				if (!inSection) {
+					writeRaw(CDATA_START);
+					inSection = true;
+				}
+
+				if (c == ']' && value.startsWith("]]>", i)) {
+					writeRaw(CDATA_SPLIT_END);
+					i += 2;
+				} else {
+					writeChar(c);
+				}
+			}
+		}
+
+		if (inSection) {
+			writeRaw(CDATA_END);
+		}
+	}
+
+	/**
+	 * Reads the code point of the surrogate pair starting at the given index
+	 * @param value	The text to read
+	 * @param index	The index of the high surrogate
+	 * @return The code point
+	 * @throws IOException	If the high surrogate is not followed by a low surrogate
+	 */
+	private static int readCodePoint(String value, int index) throws IOException {
+		char high = value.charAt(index);
+		if (index + 1 >= value.length() || !Character.isLowSurrogate(value.charAt(index + 1))) {
+			throw invalidSurrogate(high);
+		}
+
+		return Character.toCodePoint(high, value.charAt(index + 1));
+	}
+
+	/**
+	 * Creates the exception thrown for an unpaired surrogate
+	 * @param c	The unpaired surrogate
+	 * @return The exception
+	 */
+	private static IOException invalidSurrogate(char c) {
+		return new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+	}
+
+	/**
+	 * Writes a character reference
+	 * @param codePoint	The referenced code point
+	 * @throws IOException
+	 */
+	private void writeCharacterReference(int codePoint) throws IOException {
+		writeByte('&');
+		writeByte('#');
+		writeAscii(Integer.toString(codePoint));
+		writeByte(';');
+	}
+
+	/**
+	 * Writes a BMP character as UTF-8
+	 * @param c	The character to write
+	 * @throws IOException
+	 */
+	private void writeChar(char c) throws IOException {
+		if (c < 0x80) {
+			writeByte(c);
+		} else if (c < 0x800) {
+			writeByte(0xC0 | (c >> 6));
+			writeByte(0x80 | (c & 0x3F));
+		} else {
+			writeByte(0xE0 | (c >> 12));
+			writeByte(0x80 | ((c >> 6) & 0x3F));
+			writeByte(0x80 | (c & 0x3F));
+		}
+	}
+
+	/**
+	 * Writes a supplementary code point as UTF-8
+	 * @param codePoint	The code point to write
+	 * @throws IOException
+	 */
+	private void writeCodePoint(int codePoint) throws IOException {
+		writeByte(0xF0 | (codePoint >> 18));
+		writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+		writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+		writeByte(0x80 | (codePoint & 0x3F));
+	}
+
+	/**
+	 * Writes an ASCII string
+	 * @param value	The string to write
+	 * @throws IOException
+	 */
+	private void writeAscii(String value) throws IOException {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			writeByte(value.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes encoded bytes
+	 * @param bytes	The bytes to write
+	 * @throws IOException
+	 */
+	private void writeRaw(byte[] bytes) throws IOException {
+		if (bytes.length > mBuffer.length - mCount) {
+			flushBuffer();
+		}
+
+		if (bytes.length > mBuffer.length) {
+			mOut.write(bytes);
+		} else {
+			System.arraycopy(bytes, 0, mBuffer, mCount, bytes.length);
+			mCount += bytes.length;
+		}
+	}
+
+	/**
+	 * Writes a single byte
+	 * @param b	The byte to write
+	 * @throws IOException
+	 */
+	private void writeByte(int b) throws IOException {
+		if (mCount == mBuffer.length) {
+			flushBuffer();
+		}
+
+		mBuffer[mCount++] = (byte) b;
+	}
+
+	/**
+	 * Writes the buffered bytes to the stream
+	 * @throws IOException
+	 */
+	private void flushBuffer() throws IOException {
+		mOut.write(mBuffer, 0, mCount);
+		mCount = 0;
+	}
+
+	/**
+	 * Encodes fixed markup as UTF-8
+	 * @param value	The markup to encode
+	 * @return The encoded bytes
+	 */
+	private static byte[] encode(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError("UTF-8 is not supported");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides whether request bodies are sent with Content-Encoding: gzip, and keeps count of how many
+ * bytes request bodies took before and after compression. Compression is off until enabled, and
+ * then only applies to bodies of at least {@link #getThresholdBytes()} bytes, since small bodies
+ * barely shrink and aren't worth the CPU.
+ *
+ * Used by both the legacy {@link NotificationHub} client and the Installation based client.
+ */
+public final class RequestCompression {
+
+	/**
+	 * Smallest body compressed, if no other threshold is set
+	 */
+	public static final int DEFAULT_THRESHOLD_BYTES = 1024;
+
+	/**
+	 * Value of the Content-Encoding and Accept-Encoding headers
+	 */
+	public static final String GZIP_ENCODING = "gzip";
+
+	/**
+	 * Observes the size of every request body sent
+	 */
+	public interface Listener {
+		/**
+		 * Called once for each request body, whether or not it was compressed
+		 * @param rawBytes	The size of the body before compression
+		 * @param sentBytes	The size of the body as sent, which is the same as rawBytes when the
+		 *                  body wasn't compressed
+		 */
+		void onRequestBody(int rawBytes, int sentBytes);
+	}
+
+	private static final RequestCompression sDefault = new RequestCompression();
+
+	private volatile boolean mEnabled;
+	private volatile int mThresholdBytes = DEFAULT_THRESHOLD_BYTES;
+	private final Set<Listener> mListeners = new CopyOnWriteArraySet<Listener>();
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mRawBytes = new AtomicLong();
+	private final AtomicLong mSentBytes = new AtomicLong();
+
+	RequestCompression() {
+	}
+
+	/**
+	 * Gets the settings shared by every request the SDK makes
+	 */
+	public static RequestCompression getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * Turns compression of large request bodies on or off. The backend must accept gzip encoded
+	 * requests for this to be turned on.
+	 * @param enabled	True to compress request bodies at or above the threshold
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Sets the smallest request body that is compressed
+	 * @param thresholdBytes	The size in bytes, which must not be negative
+	 */
+	public void setThresholdBytes(int thresholdBytes) {
+		if (thresholdBytes < 0) {
+			throw new IllegalArgumentException("thresholdBytes");
+		}
+		mThresholdBytes = thresholdBytes;
+	}
+
+	public int getThresholdBytes() {
+		return mThresholdBytes;
+	}
+
+	/**
+	 * Checks whether a body of the given size should be compressed
+	 * @param rawBytes	The size of the body
+	 */
+	public boolean shouldCompress(int rawBytes) {
+		return mEnabled && rawBytes >= mThresholdBytes;
+	}
+
+	/**
+	 * Compresses a request body with gzip
+	 * @param raw	The body to compress
+	 * @param offset	The offset of the body in raw
+	 * @param length	The length of the body
+	 * @return The compressed body
+	 */
+	public static byte[] gzip(byte[] raw, int offset, int length) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 4));
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(raw, offset, length);
+			gzip.close();
+		} catch (IOException e) {
+			// A ByteArrayOutputStream never fails
+			throw new IllegalStateException(e);
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Records the size of a request body that was sent
+	 * @param rawBytes	The size of the body before compression
+	 * @param sentBytes	The size of the body as sent
+	 */
+	public void record(int rawBytes, int sentBytes) {
+		mRequestCount.incrementAndGet();
+		mRawBytes.addAndGet(rawBytes);
+		mSentBytes.addAndGet(sentBytes);
+		for (Listener listener : mListeners) {
+			listener.onRequestBody(rawBytes, sentBytes);
+		}
+	}
+
+	/**
+	 * Gets the number of request bodies recorded
+	 */
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * Gets the total size of every request body recorded, before compression
+	 */
+	public long getRawBytes() {
+		return mRawBytes.get();
+	}
+
+	/**
+	 * Gets the total size of every request body recorded, as sent
+	 */
+	public long getSentBytes() {
+		return mSentBytes.get();
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+}
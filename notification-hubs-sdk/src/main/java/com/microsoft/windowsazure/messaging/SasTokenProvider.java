@@ -0,0 +1,333 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Base64;
+
+/**
+ * Generates Shared Access Signature tokens for Notification Hub requests, and caches them so that
+ * retries and bursts of requests against the same resource reuse a token until shortly before it
+ * expires.
+ *
+ * Used by both the legacy {@link NotificationHub} client and the Installation based client.
+ */
+public class SasTokenProvider {
+
+	/**
+	 * Default token lifetime, in seconds
+	 */
+	public static final long DEFAULT_TOKEN_LIFETIME_SECONDS = 5 * 60;
+
+	/**
+	 * Default number of seconds before expiry at which a cached token is no longer handed out
+	 */
+	public static final long DEFAULT_REFRESH_MARGIN_SECONDS = 60;
+
+	/**
+	 * Maximum number of tokens kept in the cache
+	 */
+	private static final int MAX_CACHED_TOKENS = 64;
+
+	/**
+	 * HMAC algorithm used to sign tokens
+	 */
+	private static final String SIGNING_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * UTF-8 encoding
+	 */
+	private static final String UTF8_ENCODING = "UTF-8";
+
+	/**
+	 * Shared instance
+	 */
+	private static SasTokenProvider sDefault;
+
+	/**
+	 * Per thread signer, so the Mac instance and its key are reused between tokens
+	 */
+	private static final ThreadLocal<Signer> sSigner = new ThreadLocal<Signer>() {
+		@Override
+		protected Signer initialValue() {
+			return new Signer();
+		}
+	};
+
+	/**
+	 * Token lifetime, in seconds
+	 */
+	private final long mTokenLifetimeSeconds;
+
+	/**
+	 * Number of seconds before expiry at which a cached token is refreshed
+	 */
+	private final long mRefreshMarginSeconds;
+
+	/**
+	 * Cached tokens, least recently used first
+	 */
+	private final LinkedHashMap<TokenKey, CachedToken> mTokens = new LinkedHashMap<TokenKey, CachedToken>(16, 0.75f, true);
+
+	/**
+	 * Number of tokens served from the cache
+	 */
+	private long mHits;
+
+	/**
+	 * Number of tokens which had to be signed
+	 */
+	private long mMisses;
+
+	/**
+	 * Creates a new provider with the default token lifetime and refresh margin
+	 */
+	public SasTokenProvider() {
+		this(DEFAULT_TOKEN_LIFETIME_SECONDS, DEFAULT_REFRESH_MARGIN_SECONDS);
+	}
+
+	/**
+	 * Creates a new provider
+	 * @param tokenLifetimeSeconds	The lifetime of generated tokens, in seconds
+	 * @param refreshMarginSeconds	The number of seconds before expiry at which a cached token is replaced
+	 */
+	public SasTokenProvider(long tokenLifetimeSeconds, long refreshMarginSeconds) {
+		if (tokenLifetimeSeconds <= 0) {
+			throw new IllegalArgumentException("tokenLifetimeSeconds");
+		}
+
+		if (refreshMarginSeconds < 0 || refreshMarginSeconds >= tokenLifetimeSeconds) {
+			throw new IllegalArgumentException("refreshMarginSeconds");
+		}
+
+		mTokenLifetimeSeconds = tokenLifetimeSeconds;
+		mRefreshMarginSeconds = refreshMarginSeconds;
+	}
+
+	/**
+	 * Gets the provider shared by every client which is not given one explicitly
+	 * @return The shared provider
+	 */
+	public static synchronized SasTokenProvider getDefault() {
+		if (sDefault == null) {
+			sDefault = new SasTokenProvider();
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * Gets a token granting access to a resource, reusing a cached one when it is not about to expire
+	 * @param resourceUri	The URI of the resource to access
+	 * @param keyName	The shared access key name
+	 * @param key	The shared access key
+	 * @return	The Authorization header value
+	 * @throws InvalidKeyException if the key cannot be used for signing
+	 */
+	public String getToken(String resourceUri, String keyName, String key) throws InvalidKeyException {
+		String encodedUri = encode(resourceUri).toLowerCase(Locale.ENGLISH);
+		TokenKey tokenKey = new TokenKey(encodedUri, keyName, key);
+		long now = currentTimeSeconds();
+
+		synchronized (mTokens) {
+			CachedToken cached = mTokens.get(tokenKey);
+			if (cached != null && now < cached.mExpires - mRefreshMarginSeconds) {
+				mHits++;
+				return cached.mToken;
+			}
+			mMisses++;
+		}
+
+		long expires = now + mTokenLifetimeSeconds;
+		String signature = sign(encodedUri + '\n' + expires, key);
+
+		// construct authorization string
+		String token = "SharedAccessSignature sr=" + encodedUri + "&sig=" + encode(signature) + "&se=" + expires + "&skn=" + keyName;
+
+		synchronized (mTokens) {
+			mTokens.put(tokenKey, new CachedToken(token, expires));
+			evict(now);
+		}
+
+		return token;
+	}
+
+	/**
+	 * Gets the number of tokens served from the cache
+	 * @return Cache hit count
+	 */
+	public long getHitCount() {
+		synchronized (mTokens) {
+			return mHits;
+		}
+	}
+
+	/**
+	 * Gets the number of tokens which had to be signed
+	 * @return Cache miss count
+	 */
+	public long getMissCount() {
+		synchronized (mTokens) {
+			return mMisses;
+		}
+	}
+
+	/**
+	 * Gets the current time in seconds since epoch
+	 */
+	long currentTimeSeconds() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Signs a string with a key
+	 * @param toSign	The string to sign
+	 * @param key	The key to sign with
+	 * @return	The Base64 signature
+	 * @throws InvalidKeyException
+	 */
+	String sign(String toSign, String key) throws InvalidKeyException {
+		byte[] signedHash = sSigner.get().sign(toSign, key);
+		return Base64.encodeToString(signedHash, Base64.NO_WRAP);
+	}
+
+	/**
+	 * Removes the expired tokens, then the least recently used ones above the cache capacity
+	 * @param now	The current time in seconds
+	 */
+	private void evict(long now) {
+		Iterator<Map.Entry<TokenKey, CachedToken>> iterator = mTokens.entrySet().iterator();
+		while (iterator.hasNext()) {
+			CachedToken token = iterator.next().getValue();
+			if (now >= token.mExpires - mRefreshMarginSeconds || mTokens.size() > MAX_CACHED_TOKENS) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * URL-encodes a string
+	 */
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, UTF8_ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			// this shouldn't happen because of the fixed encoding
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Reusable HMAC instance, confined to a single thread
+	 */
+	private static class Signer {
+
+		/**
+		 * The HMAC instance
+		 */
+		private Mac mMac;
+
+		/**
+		 * The key the HMAC instance was initialized with
+		 */
+		private String mKey;
+
+		byte[] sign(String toSign, String key) throws InvalidKeyException {
+			if (mMac == null) {
+				try {
+					mMac = Mac.getInstance(SIGNING_ALGORITHM);
+				} catch (NoSuchAlgorithmException e) {
+					// This shouldn't happen because of the fixed algorithm
+					throw new AssertionError(e);
+				}
+			}
+
+			if (!key.equals(mKey)) {
+				mKey = null;
+				mMac.init(new SecretKeySpec(key.getBytes(), SIGNING_ALGORITHM));
+				mKey = key;
+			}
+
+			try {
+				return mMac.doFinal(toSign.getBytes(UTF8_ENCODING));
+			} catch (UnsupportedEncodingException e) {
+				// this shouldn't happen because of the fixed encoding
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	/**
+	 * Identifies the cached token of a resource and key
+	 */
+	private static class TokenKey {
+		private final String mResourceUri;
+		private final String mKeyName;
+		private final String mKey;
+
+		TokenKey(String resourceUri, String keyName, String key) {
+			mResourceUri = resourceUri;
+			mKeyName = keyName;
+			mKey = key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TokenKey)) {
+				return false;
+			}
+
+			TokenKey other = (TokenKey) o;
+			return mResourceUri.equals(other.mResourceUri) && mKeyName.equals(other.mKeyName) && mKey.equals(other.mKey);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = mResourceUri.hashCode();
+			result = 31 * result + mKeyName.hashCode();
+			return 31 * result + mKey.hashCode();
+		}
+	}
+
+	/**
+	 * A signed token and its expiry
+	 */
+	private static class CachedToken {
+		private final String mToken;
+		private final long mExpires;
+
+		CachedToken(String token, long expires) {
+			mToken = token;
+			mExpires = expires;
+		}
+	}
+}
@@ -20,11 +20,8 @@ See the Apache Version 2.0 License for specific language governing permissions a
 
 package com.microsoft.windowsazure.messaging;
 
-import org.w3c.dom.CDATASection;
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents a template registration
@@ -46,42 +43,15 @@ public abstract class TemplateRegistration extends Registration {
 	}
 
 	@Override
-	protected void appendCustomPayload(Document doc, Element templateRegistrationDescription) {
-		appendBodyTemplateNode(doc, templateRegistrationDescription);
-		appendNodeWithValue(doc, templateRegistrationDescription, "TemplateName", getName());
-	}
-
-	/**
-	 * Appends the template body to a registration xml
-	 * 
-	 * @param doc
-	 * @param templateRegistrationDescription
-	 */
-	private void appendBodyTemplateNode(Document doc, Element templateRegistrationDescription) {
-		if (!Utils.isNullOrWhiteSpace(getBodyTemplate())) {
-			Element bodyTemplate = doc.createElement("BodyTemplate");
-			templateRegistrationDescription.appendChild(bodyTemplate);
-
-			CDATASection bodyTemplateCDATA = doc.createCDATASection(getBodyTemplate());
-			bodyTemplate.appendChild(bodyTemplateCDATA);
-		}
+	void writeCustomPayload(RegistrationXmlWriter writer) throws IOException {
+		writer.writeCDataNode("BodyTemplate", getBodyTemplate());
+		writer.writeNodeWithValue("TemplateName", getName());
 	}
 
 	@Override
-	protected void loadCustomXmlData(Element payloadNode) {
-		NodeList bodyTemplateElements = payloadNode.getElementsByTagName("BodyTemplate");
-		if (bodyTemplateElements.getLength() > 0) {
-			NodeList bodyNodes = bodyTemplateElements.item(0).getChildNodes();
-			for (int i = 0; i < bodyNodes.getLength(); i++) {
-				if (bodyNodes.item(i) instanceof CharacterData) {
-					CharacterData data = (CharacterData) bodyNodes.item(i);
-					mBodyTemplate = data.getData();
-					break;
-				}
-			}
-		}
-
-		setName(getNodeValue(payloadNode, "TemplateName"));
+	protected void loadCustomXmlData(Map<String, String> payloadValues) {
+		mBodyTemplate = payloadValues.get("BodyTemplate");
+		setName(payloadValues.get("TemplateName"));
 	}
 
 	/**
@@ -0,0 +1,86 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Apache 2.0 License
+ 
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+ 
+     http://www.apache.org/licenses/LICENSE-2.0
+ 
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ 
+See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+
+package com.microsoft.windowsazure.messaging;
+
+/**
+ * The outcome of registering a single template in a bulk template registration
+ */
+public class TemplateRegistrationResult {
+
+	/**
+	 * The template name
+	 */
+	private final String mTemplateName;
+
+	/**
+	 * The created registration, if the template was registered
+	 */
+	private final TemplateRegistration mRegistration;
+
+	/**
+	 * The failure cause, if the template was not registered
+	 */
+	private final Exception mException;
+
+	/**
+	 * Creates a new TemplateRegistrationResult
+	 * @param templateName	The template name
+	 * @param registration	The created registration, or null if the template was not registered
+	 * @param exception	The failure cause, or null if the template was registered
+	 */
+	TemplateRegistrationResult(String templateName, TemplateRegistration registration, Exception exception) {
+		mTemplateName = templateName;
+		mRegistration = registration;
+		mException = exception;
+	}
+
+	/**
+	 * Gets the template name
+	 * @return The template name
+	 */
+	public String getTemplateName() {
+		return mTemplateName;
+	}
+
+	/**
+	 * Indicates if the template was registered
+	 * @return true if the template was registered
+	 */
+	public boolean isSuccessful() {
+		return mException == null;
+	}
+
+	/**
+	 * Gets the created registration
+	 * @return The created registration, or null if the template was not registered
+	 */
+	public TemplateRegistration getRegistration() {
+		return mRegistration;
+	}
+
+	/**
+	 * Gets the reason the template was not registered
+	 * @return The failure cause, or null if the template was registered
+	 */
+	public Exception getException() {
+		return mException;
+	}
+}
@@ -0,0 +1,27 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+/**
+ * Decides how long to wait before retrying a request that failed, and when to stop retrying.
+ *
+ * The default implementation is {@link DecorrelatedJitterBackoffPolicy}, which spreads retries out
+ * so that many devices throttled at the same moment don't all retry at the same moment.
+ */
+public interface BackoffPolicy {
+    /**
+     * Returned by {@link #getDelayMillis(int, long, long, long)} to indicate that no further
+     * retries should be made.
+     */
+    long GIVE_UP = -1L;
+
+    /**
+     * Calculates how long to wait before the next retry.
+     * @param retry The number of the retry about to be made, starting with 1.
+     * @param previousDelayMillis How long was waited before the previous retry, or 0 before the
+     *                            first retry.
+     * @param totalDelayMillis How long has been waited across every previous retry.
+     * @param minimumDelayMillis The least time the server asked to wait, for instance with a
+     *                           Retry-After header, or 0 if it didn't ask.
+     * @return The number of milliseconds to wait, or {@link #GIVE_UP}.
+     */
+    long getDelayMillis(int retry, long previousDelayMillis, long totalDelayMillis, long minimumDelayMillis);
+}
@@ -0,0 +1,246 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Stops sending {@link Installation}s to a backend that keeps failing, so that a struggling or
+ * throttling backend gets a chance to recover instead of being retried by every device at once.
+ *
+ * After a number of failures within a window of time, the circuit opens: saves fail immediately
+ * with a {@link CircuitBreakerOpenException}, which an {@link OutboxInstallationAdapter} keeps
+ * pending until the circuit lets them through. Once the circuit has been open for a while, it
+ * becomes half-open and lets a single save through as a probe. If the probe succeeds the circuit
+ * closes, and if it fails the circuit opens again.
+ *
+ * Only failures that retrying might fix count, such as server errors, throttling, and network
+ * problems. A backend that rejects an Installation outright is still reachable.
+ */
+public class CircuitBreakerInstallationAdapter implements InstallationAdapter {
+    /**
+     * The number of failures that opens the circuit, if no value is specified to the constructor.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * How long failures are remembered, if no value is specified to the constructor.
+     */
+    public static final long DEFAULT_FAILURE_WINDOW_MILLIS = 60L * 1000L; // One minute
+
+    /**
+     * How long the circuit stays open before probing, if no value is specified to the constructor.
+     */
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 60L * 1000L; // One minute
+
+    /**
+     * The states a circuit moves between.
+     */
+    public enum State {
+        /**
+         * Saves are sent to the backend.
+         */
+        CLOSED,
+
+        /**
+         * Saves fail without being sent to the backend.
+         */
+        OPEN,
+
+        /**
+         * A single save is being sent to the backend to find out whether it has recovered.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Observes a circuit moving from one state to another.
+     */
+    public interface StateListener {
+        /**
+         * Called whenever the circuit changes state.
+         * @param from The state the circuit was in.
+         * @param to The state the circuit is now in.
+         */
+        void onStateChanged(State from, State to);
+    }
+
+    private final InstallationAdapter mDecoratedAdapter;
+    private final int mFailureThreshold;
+    private final long mFailureWindowMillis;
+    private final long mOpenDurationMillis;
+    private final Clock mClock;
+    private final Set<StateListener> mListeners = new CopyOnWriteArraySet<StateListener>();
+    private final ArrayDeque<Long> mFailureTimes = new ArrayDeque<Long>();
+
+    private State mState = State.CLOSED;
+    private long mOpenedAt;
+    private boolean mProbeInFlight;
+
+    /**
+     * Creates a new instance which decorates a given {@link InstallationAdapter} with all default
+     * settings.
+     * @param decoratedAdapter The adapter that sends Installations to the backend.
+     */
+    public CircuitBreakerInstallationAdapter(InstallationAdapter decoratedAdapter) {
+        this(decoratedAdapter, DEFAULT_FAILURE_THRESHOLD, DEFAULT_FAILURE_WINDOW_MILLIS, DEFAULT_OPEN_DURATION_MILLIS);
+    }
+
+    /**
+     * Creates a new instance which decorates a given {@link InstallationAdapter}.
+     * @param decoratedAdapter The adapter that sends Installations to the backend.
+     * @param failureThreshold The number of failures that opens the circuit.
+     * @param failureWindowMillis How long each failure counts towards the threshold.
+     * @param openDurationMillis How long the circuit stays open before a probe is let through.
+     */
+    public CircuitBreakerInstallationAdapter(InstallationAdapter decoratedAdapter, int failureThreshold, long failureWindowMillis, long openDurationMillis) {
+        this(decoratedAdapter, failureThreshold, failureWindowMillis, openDurationMillis, Clock.SYSTEM);
+    }
+
+    CircuitBreakerInstallationAdapter(InstallationAdapter decoratedAdapter, int failureThreshold, long failureWindowMillis, long openDurationMillis, Clock clock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold");
+        }
+        mDecoratedAdapter = decoratedAdapter;
+        mFailureThreshold = failureThreshold;
+        mFailureWindowMillis = failureWindowMillis;
+        mOpenDurationMillis = openDurationMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Sends the {@link Installation} to the decorated adapter, unless the circuit is open.
+     *
+     * @param installation            The record to update.
+     * @param onInstallationSaved     Installation saved listener.
+     * @param onInstallationSaveError Installation save error listener, which receives a
+     *                                {@link CircuitBreakerOpenException} if the circuit is open.
+     */
+    @Override
+    public void saveInstallation(Installation installation, final Listener onInstallationSaved, final ErrorListener onInstallationSaveError) {
+        State previous;
+        State current;
+        boolean sendProbe = false;
+        long retryAfterMillis = 0;
+        synchronized (this) {
+            previous = mState;
+            long now = mClock.currentTimeMillis();
+            if (mState == State.OPEN && now >= mOpenedAt + mOpenDurationMillis) {
+                mState = State.HALF_OPEN;
+            }
+
+            if (mState == State.OPEN) {
+                retryAfterMillis = mOpenedAt + mOpenDurationMillis - now;
+            } else if (mState == State.HALF_OPEN && mProbeInFlight) {
+                // Wait for the probe to finish before letting anything else through.
+                retryAfterMillis = mOpenDurationMillis;
+            } else if (mState == State.HALF_OPEN) {
+                mProbeInFlight = true;
+                sendProbe = true;
+            }
+            current = mState;
+        }
+        notifyStateChanged(previous, current);
+        final boolean probe = sendProbe;
+
+        if (retryAfterMillis > 0) {
+            onInstallationSaveError.onInstallationSaveError(new CircuitBreakerOpenException(retryAfterMillis));
+            return;
+        }
+
+        try {
+            mDecoratedAdapter.saveInstallation(installation, new Listener() {
+                @Override
+                public void onInstallationSaved(Installation i) {
+                    onResult(probe, true);
+                    onInstallationSaved.onInstallationSaved(i);
+                }
+            }, new ErrorListener() {
+                @Override
+                public void onInstallationSaveError(Exception e) {
+                    onResult(probe, !NotificationHubInstallationAdapter.isRetriable(e));
+                    onInstallationSaveError.onInstallationSaveError(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Nothing was learned about the backend, but the next save may probe it instead.
+            synchronized (this) {
+                if (probe) {
+                    mProbeInFlight = false;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches the state the circuit is in. An open circuit that is due to be probed is reported as
+     * open until the probe is sent.
+     * @return The current state.
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Add a listener that is called whenever the circuit changes state.
+     * @param listener listener to add.
+     */
+    public void addListener(StateListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     * @param listener listener to remove.
+     */
+    public void removeListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Updates the circuit with the outcome of a save that was let through.
+     * @param probe True if the save was the half-open probe.
+     * @param reachable True if the backend responded in a way that retrying wouldn't change.
+     */
+    private void onResult(boolean probe, boolean reachable) {
+        State previous;
+        State current;
+        synchronized (this) {
+            previous = mState;
+            long now = mClock.currentTimeMillis();
+            if (probe) {
+                mProbeInFlight = false;
+            }
+
+            if (reachable) {
+                mFailureTimes.clear();
+                if (probe) {
+                    mState = State.CLOSED;
+                }
+            } else {
+                mFailureTimes.addLast(now);
+                while (!mFailureTimes.isEmpty() && mFailureTimes.peekFirst() <= now - mFailureWindowMillis) {
+                    mFailureTimes.removeFirst();
+                }
+
+                if (probe || (mState == State.CLOSED && mFailureTimes.size() >= mFailureThreshold)) {
+                    mState = State.OPEN;
+                    mOpenedAt = now;
+                    mFailureTimes.clear();
+                }
+            }
+            current = mState;
+        }
+        notifyStateChanged(previous, current);
+    }
+
+    private void notifyStateChanged(State from, State to) {
+        if (from == to) {
+            return;
+        }
+        for (StateListener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.io.IOException;
+
+/**
+ * Indicates that an {@link Installation} was not sent, because recent attempts to reach the backend
+ * failed so consistently that requests are paused for a while. Like other I/O failures, the save
+ * can be retried later.
+ */
+public class CircuitBreakerOpenException extends IOException {
+    private final long mRetryAfterMillis;
+
+    CircuitBreakerOpenException(long retryAfterMillis) {
+        super("Requests to the backend are paused for another " + retryAfterMillis + "ms after repeated failures");
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Fetches how long until requests to the backend will be attempted again.
+     * @return The number of milliseconds to wait before retrying.
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
@@ -0,0 +1,22 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+/**
+ * Tells the time, so that components which make decisions based on elapsed time can be tested
+ * without waiting.
+ */
+interface Clock {
+    /**
+     * Reads the time from the system.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return The current time, in milliseconds since the epoch.
+     */
+    long currentTimeMillis();
+}
@@ -6,7 +6,6 @@ import android.content.SharedPreferences;
 import com.microsoft.windowsazure.messaging.R;
 
 import java.util.Date;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -18,11 +17,12 @@ import java.util.concurrent.TimeUnit;
 public class DebounceInstallationAdapter implements InstallationAdapter {
 
     static final String LAST_ACCEPTED_HASH_KEY = "lastAcceptedHash";
+    static final String LAST_ACCEPTED_DIGEST_KEY = "lastAcceptedDigest";
     static final String LAST_ACCEPTED_TIMESTAMP_KEY= "lastAcceptedTimestamp";
     private static final long DEFAULT_DEBOUNCE_INTERVAL = 2000L; // Two seconds
     private static final long DEFAULT_INSTALLATION_STALE_MILLIS = 1000L * 60L * 60L * 24L; // One day's worth of milliseconds
 
-    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(1);
+    private final ScheduledExecutorService mScheduler;
     private InstallationAdapter mInstallationAdapter;
     private long mInterval;
     private ScheduledFuture<?> mSchedFuture;
@@ -61,7 +61,15 @@ public class DebounceInstallationAdapter implements InstallationAdapter {
     }
 
     DebounceInstallationAdapter(InstallationAdapter installationAdapter, long interval, SharedPreferences sharedPreferences) {
+        this(installationAdapter, interval, sharedPreferences, SharedScheduler.getSharedInstance());
+    }
+
+    /**
+     * @param scheduler Waits out the debounce interval. Shared with the rest of this package by default.
+     */
+    DebounceInstallationAdapter(InstallationAdapter installationAdapter, long interval, SharedPreferences sharedPreferences, ScheduledExecutorService scheduler) {
         super();
+        mScheduler = scheduler;
         mInstallationAdapter = installationAdapter;
         mInterval = interval;
         mInstallationStaleMillis = DEFAULT_INSTALLATION_STALE_MILLIS;
@@ -80,13 +88,12 @@ public class DebounceInstallationAdapter implements InstallationAdapter {
     @Override
     public synchronized void saveInstallation(final Installation installation, final Listener onInstallationSaved, final ErrorListener onInstallationSaveError) {
         if (mSchedFuture != null && !mSchedFuture.isDone()) {
-            mSchedFuture.cancel(true);
+            mSchedFuture.cancel(false);
         }
 
-        final int currentHash = installation.hashCode();
-        int recentHash = getLastAcceptedHash();
+        final String currentDigest = installation.getDigest();
 
-        boolean sameAsLastAccepted = recentHash != 0 && recentHash == currentHash;
+        boolean sameAsLastAccepted = currentDigest.equals(getLastAcceptedDigest());
         final long currentTime = new Date().getTime();
         boolean lastAcceptedIsRecent =  currentTime < getLastAcceptedTimestamp() + mInstallationStaleMillis;
 
@@ -101,8 +108,11 @@ public class DebounceInstallationAdapter implements InstallationAdapter {
                     Listener completed = new Listener() {
                         @Override
                         public void onInstallationSaved(Installation i) {
-                            mPreferences.edit().putInt(LAST_ACCEPTED_HASH_KEY, currentHash).apply();
-                            mPreferences.edit().putLong(LAST_ACCEPTED_TIMESTAMP_KEY, currentTime).apply();
+                            mPreferences.edit()
+                                    .putString(LAST_ACCEPTED_DIGEST_KEY, currentDigest)
+                                    .putLong(LAST_ACCEPTED_TIMESTAMP_KEY, currentTime)
+                                    .remove(LAST_ACCEPTED_HASH_KEY)
+                                    .apply();
                             onInstallationSaved.onInstallationSaved(i);
                         }
                     };
@@ -118,7 +128,7 @@ public class DebounceInstallationAdapter implements InstallationAdapter {
         return mPreferences.getLong(LAST_ACCEPTED_TIMESTAMP_KEY, Long.MIN_VALUE);
     }
 
-    private int getLastAcceptedHash() {
-        return mPreferences.getInt(LAST_ACCEPTED_HASH_KEY, 0);
+    private String getLastAcceptedDigest() {
+        return mPreferences.getString(LAST_ACCEPTED_DIGEST_KEY, null);
     }
 }
\ No newline at end of file
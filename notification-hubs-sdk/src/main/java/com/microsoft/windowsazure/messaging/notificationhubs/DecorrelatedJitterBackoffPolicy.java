@@ -0,0 +1,79 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.Random;
+
+/**
+ * Waits a random amount of time between retries, somewhere between a base delay and three times
+ * the previous delay, up to a cap. Because each delay builds on a random previous delay, devices
+ * that failed at the same moment drift apart instead of retrying in lockstep.
+ *
+ * When the server asks for a minimum delay, it is always respected, and up to half as long again
+ * is added at random so that throttled devices don't all come back at the same instant.
+ *
+ * Retries stop after a maximum number of attempts, or once the next delay would take the total
+ * time spent waiting past a budget.
+ */
+public final class DecorrelatedJitterBackoffPolicy implements BackoffPolicy {
+    private final long mBaseMillis;
+    private final long mCapMillis;
+    private final int mMaxRetries;
+    private final long mBudgetMillis;
+    private final Random mRandom;
+
+    /**
+     * @param baseMillis The shortest delay between retries.
+     * @param capMillis The longest delay this policy chooses on its own. Longer delays requested
+     *                  by the server are still respected.
+     * @param maxRetries The most retries to make.
+     * @param budgetMillis The most time to spend waiting across every retry.
+     */
+    public DecorrelatedJitterBackoffPolicy(long baseMillis, long capMillis, int maxRetries, long budgetMillis) {
+        this(baseMillis, capMillis, maxRetries, budgetMillis, new Random());
+    }
+
+    DecorrelatedJitterBackoffPolicy(long baseMillis, long capMillis, int maxRetries, long budgetMillis, Random random) {
+        if (baseMillis <= 0) {
+            throw new IllegalArgumentException("baseMillis");
+        }
+        if (capMillis < baseMillis) {
+            throw new IllegalArgumentException("capMillis");
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries");
+        }
+        if (budgetMillis < 0) {
+            throw new IllegalArgumentException("budgetMillis");
+        }
+        mBaseMillis = baseMillis;
+        mCapMillis = capMillis;
+        mMaxRetries = maxRetries;
+        mBudgetMillis = budgetMillis;
+        mRandom = random;
+    }
+
+    @Override
+    public long getDelayMillis(int retry, long previousDelayMillis, long totalDelayMillis, long minimumDelayMillis) {
+        if (retry > mMaxRetries) {
+            return GIVE_UP;
+        }
+
+        long upper = Math.min(mCapMillis, Math.max(mBaseMillis, previousDelayMillis * 3));
+        long delay = mBaseMillis + nextLong(upper - mBaseMillis);
+
+        if (delay < minimumDelayMillis) {
+            delay = minimumDelayMillis + nextLong(minimumDelayMillis / 2);
+        }
+
+        if (totalDelayMillis + delay > mBudgetMillis) {
+            return GIVE_UP;
+        }
+        return delay;
+    }
+
+    private long nextLong(long bound) {
+        if (bound <= 0) {
+            return 0;
+        }
+        return (long) (mRandom.nextDouble() * (bound + 1));
+    }
+}
@@ -1,19 +1,20 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import com.microsoft.windowsazure.messaging.R;
 import java.util.UUID;
 
 /**
  * Associates the Installation ID assigned to this device with any Installation that it visits.
  */
 class IdAssignmentVisitor implements InstallationVisitor {
-    private static final String PREFERENCE_KEY = "installationId";
-    private final SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     public IdAssignmentVisitor(Context context) {
-        mPreferences = context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
+        this(InstallationStateStore.getSharedInstance(context));
+    }
+
+    IdAssignmentVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     /**
@@ -43,7 +44,7 @@ class IdAssignmentVisitor implements InstallationVisitor {
      * @return The unique id to associate with this device, null if it has not been set.
      */
     public String getInstallationId() {
-        return mPreferences.getString(PREFERENCE_KEY, null);
+        return mStore.getSnapshot().getInstallationId();
     }
 
     /**
@@ -51,6 +52,6 @@ class IdAssignmentVisitor implements InstallationVisitor {
      * @param installationId The unique identifier to apply.
      */
     public void setInstallationId(String installationId) {
-        mPreferences.edit().putString(PREFERENCE_KEY, installationId).apply();
+        mStore.setInstallationId(installationId);
     }
 }
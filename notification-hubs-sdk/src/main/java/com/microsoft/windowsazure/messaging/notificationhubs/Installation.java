@@ -1,9 +1,16 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -19,6 +26,8 @@ public class Installation implements Taggable {
     private String mInstallationId;
     private String mUserId;
     private Date mExpiration;
+    private final InstallationDigest mDigest = new InstallationDigest();
+    private final Set<String> mTagView = new TagView();
 
     public Installation() {
         mTags = new HashSet<String>();
@@ -98,7 +107,11 @@ public class Installation implements Taggable {
      * @return True if the provided tag was not previously associated with this Installation.
      */
     public boolean addTag(String tag) {
-        return mTags.add(tag);
+        if (mTags.add(tag)) {
+            mDigest.addTag(tag);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -108,15 +121,20 @@ public class Installation implements Taggable {
      *         Installation.
      */
     public boolean addTags(Collection<? extends String> tags) {
-        return mTags.addAll(tags);
+        boolean changed = false;
+        for (String tag : tags) {
+            changed |= addTag(tag);
+        }
+        return changed;
     }
 
     /**
-     * Fetches the tags associated with this collection.
+     * Fetches the tags associated with this collection. Tags removed through the returned
+     * collection are removed from this Installation.
      * @return A set of tags.
      */
     public Iterable<String> getTags() {
-        return mTags;
+        return mTagView;
     }
 
     /**
@@ -125,6 +143,7 @@ public class Installation implements Taggable {
     @Override
     public void clearTags() {
         mTags.clear();
+        mDigest.clearTags();
     }
 
     /**
@@ -133,7 +152,11 @@ public class Installation implements Taggable {
      * @return True if the tag had previously been associated with this collection.
      */
     public boolean removeTag(String tag) {
-        return mTags.remove(tag);
+        if (mTags.remove(tag)) {
+            mDigest.removeTag(tag);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -142,7 +165,11 @@ public class Installation implements Taggable {
      * @return True if any of the tags had previously been associated with this collection.
      */
     public boolean removeTags(Collection<? extends String> tags) {
-        return mTags.removeAll(tags);
+        boolean changed = false;
+        for (String tag : tags) {
+            changed |= removeTag(tag);
+        }
+        return changed;
     }
 
     /**
@@ -169,6 +196,16 @@ public class Installation implements Taggable {
         mExpiration = expiration;
     }
 
+    /**
+     * Fetches a canonical digest of everything that would be sent to the backend for this
+     * {@link Installation}. Two Installations with the same contents have the same digest, no
+     * matter what order their tags and templates were added in.
+     * @return A SHA-256 digest, as 64 lowercase hexadecimal characters.
+     */
+    String getDigest() {
+        return mDigest.compute(this);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -186,4 +223,134 @@ public class Installation implements Taggable {
     public int hashCode() {
         return Objects.hash(mPushChannel, mTags, mTemplates, mInstallationId, mUserId, mExpiration);
     }
+
+    /**
+     * Serializes an {@link Installation}, keeping every field the backend is sent.
+     *
+     * @param installation The record to serialize.
+     * @return The serialized record.
+     * @throws JSONException If the record can't be represented as JSON.
+     */
+    static JSONObject serialize(Installation installation) throws JSONException {
+        JSONObject serialized = new JSONObject();
+        serialized.put("installationId", installation.getInstallationId());
+        serialized.put("platform", installation.getPlatform());
+        serialized.put("pushChannel", installation.getPushChannel());
+        serialized.put("userId", installation.getUserId());
+
+        Date expiration = installation.getExpiration();
+        if (expiration != null) {
+            serialized.put("expiration", expiration.getTime());
+        }
+
+        JSONArray tags = new JSONArray();
+        for (String tag : installation.getTags()) {
+            tags.put(tag);
+        }
+        serialized.put("tags", tags);
+
+        JSONObject templates = new JSONObject();
+        for (Map.Entry<String, InstallationTemplate> template : installation.getTemplates().entrySet()) {
+            templates.put(template.getKey(), InstallationTemplate.serialize(template.getKey(), template.getValue()));
+        }
+        serialized.put("templates", templates);
+
+        return serialized;
+    }
+
+    /**
+     * Restores an {@link Installation} written by {@link #serialize(Installation)}.
+     *
+     * @param serialized The serialized record.
+     * @return The restored record.
+     * @throws JSONException When there's a schema-mismatch of the object to populate, and what
+     * appears in the serialized form of the record.
+     */
+    static Installation deserialize(JSONObject serialized) throws JSONException {
+        Installation installation = new Installation();
+        installation.setInstallationId(serialized.getString("installationId"));
+        installation.setPlatform(optString(serialized, "platform"));
+        installation.setPushChannel(optString(serialized, "pushChannel"));
+        installation.setUserId(optString(serialized, "userId"));
+
+        if (serialized.has("expiration")) {
+            installation.setExpiration(new Date(serialized.getLong("expiration")));
+        }
+
+        JSONArray tags = serialized.getJSONArray("tags");
+        for (int i = 0; i < tags.length(); i++) {
+            installation.addTag(tags.getString(i));
+        }
+
+        Map<String, InstallationTemplate> templates = new LinkedHashMap<String, InstallationTemplate>();
+        JSONObject serializedTemplates = serialized.getJSONObject("templates");
+        Iterator<String> templateNames = serializedTemplates.keys();
+        while (templateNames.hasNext()) {
+            String templateName = templateNames.next();
+            templates.put(templateName, InstallationTemplate.deserialize(serializedTemplates.getJSONObject(templateName)));
+        }
+        installation.setTemplates(templates);
+
+        return installation;
+    }
+
+    private static String optString(JSONObject object, String key) throws JSONException {
+        return object.has(key) && !object.isNull(key) ? object.getString(key) : null;
+    }
+
+    /**
+     * A live view of the tags, which routes every change through this Installation so that the
+     * digest is kept up to date.
+     */
+    private final class TagView extends AbstractSet<String> {
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> tags = mTags.iterator();
+            return new Iterator<String>() {
+                private String mCurrent;
+
+                @Override
+                public boolean hasNext() {
+                    return tags.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    mCurrent = tags.next();
+                    return mCurrent;
+                }
+
+                @Override
+                public void remove() {
+                    tags.remove();
+                    mDigest.removeTag(mCurrent);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mTags.size();
+        }
+
+        @Override
+        public boolean contains(Object tag) {
+            return mTags.contains(tag);
+        }
+
+        @Override
+        public boolean add(String tag) {
+            return addTag(tag);
+        }
+
+        @Override
+        public boolean remove(Object tag) {
+            return tag instanceof String && removeTag((String) tag);
+        }
+
+        @Override
+        public void clear() {
+            clearTags();
+        }
+    }
 }
@@ -0,0 +1,184 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a canonical SHA-256 digest of the contents of an {@link Installation}, which doesn't
+ * depend on the order tags, templates, or headers were added in.
+ *
+ * Tags are folded in as they are added and removed, by summing a 128-bit digest of each tag. That
+ * way, digesting an {@link Installation} costs the same no matter how many tags it has. Templates
+ * can still be changed after they've been added, so they are digested each time instead.
+ */
+final class InstallationDigest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Changes whenever the canonical form changes, so that older digests are never mistaken for
+     * matches.
+     */
+    private static final byte VERSION = 1;
+
+    private MessageDigest mTagDigest;
+    private long mTagSumHigh;
+    private long mTagSumLow;
+    private int mTagCount;
+
+    /**
+     * Accounts for a tag that was just added to the set of tags.
+     * @param tag A tag that was not previously in the set.
+     */
+    void addTag(String tag) {
+        long[] element = digestTag(tag);
+        long low = mTagSumLow + element[1];
+        long carry = isUnsignedLess(low, mTagSumLow) ? 1 : 0;
+        mTagSumHigh += element[0] + carry;
+        mTagSumLow = low;
+        mTagCount++;
+    }
+
+    /**
+     * Accounts for a tag that was just removed from the set of tags.
+     * @param tag A tag that was previously in the set.
+     */
+    void removeTag(String tag) {
+        long[] element = digestTag(tag);
+        long low = mTagSumLow - element[1];
+        long borrow = isUnsignedLess(mTagSumLow, element[1]) ? 1 : 0;
+        mTagSumHigh -= element[0] + borrow;
+        mTagSumLow = low;
+        mTagCount--;
+    }
+
+    /**
+     * Accounts for every tag being removed.
+     */
+    void clearTags() {
+        mTagSumHigh = 0;
+        mTagSumLow = 0;
+        mTagCount = 0;
+    }
+
+    /**
+     * Computes the digest of an {@link Installation} whose tags have been tracked by this instance.
+     * @param installation The record to digest.
+     * @return The digest, as 64 lowercase hexadecimal characters.
+     */
+    String compute(Installation installation) {
+        MessageDigest digest = newDigest();
+        digest.update(VERSION);
+        putString(digest, installation.getInstallationId());
+        putString(digest, installation.getPlatform());
+        putString(digest, installation.getPushChannel());
+        putString(digest, installation.getUserId());
+
+        Date expiration = installation.getExpiration();
+        if (expiration == null) {
+            digest.update((byte) 0);
+        } else {
+            digest.update((byte) 1);
+            putLong(digest, expiration.getTime());
+        }
+
+        putLong(digest, mTagCount);
+        putLong(digest, mTagSumHigh);
+        putLong(digest, mTagSumLow);
+
+        Map<String, InstallationTemplate> templates = installation.getTemplates();
+        putLong(digest, templates.size());
+        for (String name : sorted(templates.keySet())) {
+            InstallationTemplate template = templates.get(name);
+            putString(digest, name);
+            putString(digest, template.getBody());
+
+            List<String> tags = sorted(template.getTags());
+            putLong(digest, tags.size());
+            for (String tag : tags) {
+                putString(digest, tag);
+            }
+
+            Map<String, String> headers = template.getHeaders();
+            putLong(digest, headers.size());
+            for (String header : sorted(headers.keySet())) {
+                putString(digest, header);
+                putString(digest, headers.get(header));
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private long[] digestTag(String tag) {
+        if (mTagDigest == null) {
+            mTagDigest = newDigest();
+        }
+        byte[] bytes = mTagDigest.digest(tag.getBytes(UTF_8));
+        return new long[] { getLong(bytes, 0), getLong(bytes, 8) };
+    }
+
+    private static boolean isUnsignedLess(long a, long b) {
+        // Long.compareUnsigned isn't available until API 26.
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android and Java runtime is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> sorted(Iterable<String> values) {
+        List<String> sorted = new ArrayList<String>();
+        for (String value : values) {
+            sorted.add(value);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static void putString(MessageDigest digest, String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        digest.update((byte) 1);
+        putLong(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void putLong(MessageDigest digest, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (value >>> shift));
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,222 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Writes an {@link Installation} as the UTF-8 JSON body the backend expects, without building an
+ * intermediate tree of JSON objects or strings.
+ *
+ * Each thread keeps one writer, so the buffer grown for one request is reused by the next. Buffers
+ * that grew past {@link #MAX_RETAINED_CAPACITY} are let go after use, so that one unusually large
+ * Installation doesn't pin memory for the life of the process.
+ */
+final class InstallationJsonWriter {
+    static final int INITIAL_CAPACITY = 1024;
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ThreadLocal<InstallationJsonWriter> sWriters = new ThreadLocal<InstallationJsonWriter>() {
+        @Override
+        protected InstallationJsonWriter initialValue() {
+            return new InstallationJsonWriter();
+        }
+    };
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mCount;
+
+    /**
+     * Serializes an Installation using this thread's writer.
+     * @param installation The record to serialize.
+     * @return The UTF-8 encoded JSON body.
+     */
+    static byte[] toJson(Installation installation) {
+        InstallationJsonWriter writer = sWriters.get();
+        try {
+            writer.writeInstallation(installation);
+            return writer.toByteArray();
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Appends an Installation as a JSON object. Fields without a value are left out.
+     * @param installation The record to serialize.
+     */
+    void writeInstallation(Installation installation) {
+        write('{');
+        boolean first = writeField(true, "installationId", installation.getInstallationId());
+        first = writeField(first, "platform", installation.getPlatform());
+        first = writeField(first, "pushChannel", installation.getPushChannel());
+
+        first = writeName(first, "tags");
+        writeArray(installation.getTags());
+
+        first = writeName(first, "templates");
+        write('{');
+        boolean firstTemplate = true;
+        for (Map.Entry<String, InstallationTemplate> template : installation.getTemplates().entrySet()) {
+            firstTemplate = writeName(firstTemplate, template.getKey());
+            writeTemplate(template.getKey(), template.getValue());
+        }
+        write('}');
+
+        first = writeField(first, "userId", installation.getUserId());
+
+        Date expiration = installation.getExpiration();
+        if (expiration != null) {
+            writeField(first, "expirationTime", InstallationPutRequest.formatExpiration(expiration));
+        }
+        write('}');
+    }
+
+    /**
+     * @return A copy of everything written since the last reset.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mCount);
+    }
+
+    /**
+     * Discards everything written, keeping the buffer for the next Installation unless it grew
+     * too large to hold on to.
+     */
+    void reset() {
+        mCount = 0;
+        if (mBuffer.length > MAX_RETAINED_CAPACITY) {
+            mBuffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * @return The number of bytes the buffer can hold without growing.
+     */
+    int getCapacity() {
+        return mBuffer.length;
+    }
+
+    private void writeTemplate(String name, InstallationTemplate template) {
+        write('{');
+        boolean first = writeField(true, "name", name);
+        first = writeField(first, "body", template.getBody());
+
+        first = writeName(first, "headers");
+        write('{');
+        boolean firstHeader = true;
+        for (Map.Entry<String, String> header : template.getHeaders().entrySet()) {
+            firstHeader = writeField(firstHeader, header.getKey(), header.getValue());
+        }
+        write('}');
+
+        writeName(first, "tags");
+        writeArray(template.getTags());
+        write('}');
+    }
+
+    private void writeArray(Iterable<String> values) {
+        write('[');
+        boolean first = true;
+        for (String value : values) {
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            writeString(value);
+        }
+        write(']');
+    }
+
+    /**
+     * Writes a string member, unless its value is null.
+     * @return False once any member has been written to the enclosing object.
+     */
+    private boolean writeField(boolean first, String name, String value) {
+        if (value == null) {
+            return first;
+        }
+        writeName(first, name);
+        writeString(value);
+        return false;
+    }
+
+    private boolean writeName(boolean first, String name) {
+        if (!first) {
+            write(',');
+        }
+        writeString(name);
+        write(':');
+        return false;
+    }
+
+    /**
+     * Writes a quoted, escaped string, encoding it as UTF-8 on the way.
+     */
+    private void writeString(String value) {
+        // Every char takes at most six bytes, as either an escape sequence or part of a UTF-8 one.
+        ensureCapacity(value.length() * 6 + 2);
+        byte[] buffer = mBuffer;
+        int count = mCount;
+        buffer[count++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                buffer[count++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                buffer[count++] = '\\';
+                buffer[count++] = (byte) c;
+            } else if (c == '\n') {
+                buffer[count++] = '\\';
+                buffer[count++] = 'n';
+            } else if (c == '\r') {
+                buffer[count++] = '\\';
+                buffer[count++] = 'r';
+            } else if (c == '\t') {
+                buffer[count++] = '\\';
+                buffer[count++] = 't';
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                // Control characters aren't allowed in JSON strings, and the line separators
+                // aren't allowed in JavaScript ones.
+                buffer[count++] = '\\';
+                buffer[count++] = 'u';
+                buffer[count++] = HEX[(c >> 12) & 0xF];
+                buffer[count++] = HEX[(c >> 8) & 0xF];
+                buffer[count++] = HEX[(c >> 4) & 0xF];
+                buffer[count++] = HEX[c & 0xF];
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate can't be encoded, replace it the way String.getBytes does.
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer[count++] = '"';
+        mCount = count;
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        mBuffer[mCount++] = (byte) c;
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = mCount + additional;
+        if (required > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(required, mBuffer.length * 2));
+        }
+    }
+}
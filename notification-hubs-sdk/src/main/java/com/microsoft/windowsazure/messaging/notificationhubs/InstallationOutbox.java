@@ -0,0 +1,277 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A durable, append-only log of {@link Installation} records waiting to be saved with a backend.
+ *
+ * Each save appends a record, and each acknowledgement from the backend appends another. Only the
+ * most recent pending record per Installation ID is kept, so a backlog never holds more than one
+ * record per Installation. The log is rewritten with just the pending records once it accumulates
+ * enough superseded ones.
+ */
+class InstallationOutbox {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int COMPACTION_SLACK = 16;
+
+    private static final String SEQUENCE_KEY = "seq";
+    private static final String INSTALLATION_KEY = "installation";
+    private static final String ACKNOWLEDGED_KEY = "ack";
+
+    private final File mFile;
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+    private long mNextSequence = 1;
+    private int mRecordCount;
+
+    /**
+     * A pending {@link Installation}, tagged with the position it was appended at.
+     */
+    static final class Entry {
+        private final long mSequence;
+        private final Installation mInstallation;
+
+        Entry(long sequence, Installation installation) {
+            mSequence = sequence;
+            mInstallation = installation;
+        }
+
+        long getSequence() {
+            return mSequence;
+        }
+
+        Installation getInstallation() {
+            return mInstallation;
+        }
+    }
+
+    /**
+     * Opens the outbox stored in a file, replaying the records left by previous processes.
+     * @param file The file holding the log. It is created on the first append if it doesn't exist.
+     * @throws IOException If an existing log can't be read, or a damaged log can't be repaired.
+     */
+    InstallationOutbox(File file) throws IOException {
+        mFile = file;
+        if (replay()) {
+            // A process died in the middle of an append, start over from the records we could read.
+            compact();
+        }
+    }
+
+    /**
+     * Creates an outbox that only keeps its records in memory, for when the log can't be opened.
+     */
+    InstallationOutbox() {
+        mFile = null;
+    }
+
+    /**
+     * Records an {@link Installation} to be saved, replacing any pending record with the same
+     * Installation ID. The record is kept in memory even if it can't be written to the log.
+     * @param installation The record to save.
+     * @return The pending entry.
+     * @throws IOException If the record could not be durably written.
+     */
+    synchronized Entry append(Installation installation) throws IOException {
+        Entry entry = new Entry(mNextSequence++, installation);
+        mPending.remove(installation.getInstallationId());
+        mPending.put(installation.getInstallationId(), entry);
+
+        JSONObject record = new JSONObject();
+        try {
+            record.put(SEQUENCE_KEY, entry.getSequence());
+            record.put(INSTALLATION_KEY, Installation.serialize(installation));
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize installation", e);
+        }
+        persist(record);
+
+        return entry;
+    }
+
+    /**
+     * Records that the backend accepted an entry. A pending record that superseded the entry stays
+     * pending.
+     * @param entry The accepted entry.
+     * @return True if the entry was still pending.
+     * @throws IOException If the acknowledgement could not be durably written.
+     */
+    synchronized boolean acknowledge(Entry entry) throws IOException {
+        String installationId = entry.getInstallation().getInstallationId();
+        Entry pending = mPending.get(installationId);
+        if (pending == null || pending.getSequence() != entry.getSequence()) {
+            return false;
+        }
+
+        mPending.remove(installationId);
+
+        JSONObject record = new JSONObject();
+        try {
+            record.put(SEQUENCE_KEY, entry.getSequence());
+            record.put(ACKNOWLEDGED_KEY, installationId);
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize acknowledgement", e);
+        }
+        persist(record);
+
+        return true;
+    }
+
+    /**
+     * Fetches the oldest pending entry.
+     * @return The entry that has been waiting the longest, or null if nothing is pending.
+     */
+    synchronized Entry peek() {
+        Iterator<Entry> pending = mPending.values().iterator();
+        return pending.hasNext() ? pending.next() : null;
+    }
+
+    /**
+     * Fetches the pending entry for an Installation ID.
+     * @param installationId The Installation ID to look for.
+     * @return The pending entry, or null if nothing is pending for this Installation ID.
+     */
+    synchronized Entry get(String installationId) {
+        return mPending.get(installationId);
+    }
+
+    /**
+     * Fetches every pending entry, oldest first.
+     * @return A copy of the pending entries.
+     */
+    synchronized List<Entry> getPending() {
+        return new ArrayList<Entry>(mPending.values());
+    }
+
+    /**
+     * Counts the records currently in the log, including superseded ones.
+     * @return The number of records in the log file.
+     */
+    synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Reads the log back into memory.
+     * @return True if the log ends with a damaged record.
+     */
+    private boolean replay() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF_8));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    long sequence = record.getLong(SEQUENCE_KEY);
+                    mNextSequence = Math.max(mNextSequence, sequence + 1);
+
+                    if (record.has(INSTALLATION_KEY)) {
+                        Installation installation = Installation.deserialize(record.getJSONObject(INSTALLATION_KEY));
+                        mPending.remove(installation.getInstallationId());
+                        mPending.put(installation.getInstallationId(), new Entry(sequence, installation));
+                    } else {
+                        String installationId = record.getString(ACKNOWLEDGED_KEY);
+                        Entry pending = mPending.get(installationId);
+                        if (pending != null && pending.getSequence() <= sequence) {
+                            mPending.remove(installationId);
+                        }
+                    }
+                    mRecordCount++;
+                } catch (JSONException e) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends a record to the log, unless enough records were superseded that rewriting the log
+     * with only the pending records is preferable.
+     */
+    private void persist(JSONObject record) throws IOException {
+        if (mFile == null) {
+            return;
+        }
+
+        if (mRecordCount + 1 >= COMPACTION_SLACK + 2 * mPending.size()) {
+            compact();
+        } else {
+            write(record);
+        }
+    }
+
+    /**
+     * Appends a record to the log, and waits for it to reach the disk.
+     */
+    private void write(JSONObject record) throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write((record.toString() + "\n").getBytes(UTF_8));
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        mRecordCount++;
+    }
+
+    /**
+     * Replaces the log with one that only holds the pending records.
+     */
+    private void compact() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        File replacement = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(replacement, false);
+        try {
+            for (Entry entry : mPending.values()) {
+                JSONObject record = new JSONObject();
+                record.put(SEQUENCE_KEY, entry.getSequence());
+                record.put(INSTALLATION_KEY, Installation.serialize(entry.getInstallation()));
+                out.write((record.toString() + "\n").getBytes(UTF_8));
+            }
+            out.flush();
+            out.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize installation", e);
+        } finally {
+            out.close();
+        }
+
+        if (!replacement.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mRecordCount = mPending.size();
+    }
+}
@@ -0,0 +1,122 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the changes between two versions of an {@link Installation} as JSON-Patch operations
+ * understood by the Azure Notification Hubs installation PATCH API.
+ */
+class InstallationPatch {
+    static final String OP_ADD = "add";
+    static final String OP_REMOVE = "remove";
+    static final String OP_REPLACE = "replace";
+
+    private InstallationPatch() {
+        // Not intended to be instantiated.
+    }
+
+    /**
+     * Lists the operations that turn an Installation the backend has acknowledged into a newer one.
+     *
+     * @param acknowledged The Installation the backend last accepted.
+     * @param current The Installation that should be saved.
+     * @return The operations to send, which are empty if nothing changed. Null if the two records
+     * don't describe the same installation, in which case the whole Installation must be sent.
+     * @throws JSONException If a value can't be represented as JSON.
+     */
+    static JSONArray diff(Installation acknowledged, Installation current) throws JSONException {
+        if (!equal(acknowledged.getInstallationId(), current.getInstallationId())
+                || !equal(acknowledged.getPlatform(), current.getPlatform())) {
+            return null;
+        }
+
+        JSONArray operations = new JSONArray();
+        diffValue(operations, "/pushChannel", acknowledged.getPushChannel(), current.getPushChannel());
+        diffValue(operations, "/userId", acknowledged.getUserId(), current.getUserId());
+        diffValue(operations, "/expirationTime", formatExpiration(acknowledged.getExpiration()), formatExpiration(current.getExpiration()));
+
+        Set<String> acknowledgedTags = toSet(acknowledged.getTags());
+        Set<String> currentTags = toSet(current.getTags());
+        for (String tag : currentTags) {
+            if (!acknowledgedTags.contains(tag)) {
+                // Adding to "/tags" appends a single tag, rather than replacing the collection.
+                operations.put(operation(OP_ADD, "/tags", tag));
+            }
+        }
+        for (String tag : acknowledgedTags) {
+            if (!currentTags.contains(tag)) {
+                operations.put(operation(OP_REMOVE, "/tags/" + escape(tag), null));
+            }
+        }
+
+        Map<String, InstallationTemplate> acknowledgedTemplates = acknowledged.getTemplates();
+        Map<String, InstallationTemplate> currentTemplates = current.getTemplates();
+        for (Map.Entry<String, InstallationTemplate> template : currentTemplates.entrySet()) {
+            String name = template.getKey();
+            if (!template.getValue().equals(acknowledgedTemplates.get(name))) {
+                operations.put(operation(OP_ADD, "/templates/" + escape(name), InstallationTemplate.serialize(name, template.getValue())));
+            }
+        }
+        for (String name : acknowledgedTemplates.keySet()) {
+            if (!currentTemplates.containsKey(name)) {
+                operations.put(operation(OP_REMOVE, "/templates/" + escape(name), null));
+            }
+        }
+
+        return operations;
+    }
+
+    /**
+     * Escapes a segment of a JSON Pointer, as described in RFC 6901.
+     */
+    static String escape(String segment) {
+        return segment.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static void diffValue(JSONArray operations, String path, String acknowledged, String current) throws JSONException {
+        if (equal(acknowledged, current)) {
+            return;
+        }
+
+        if (current == null) {
+            operations.put(operation(OP_REMOVE, path, null));
+        } else if (acknowledged == null) {
+            operations.put(operation(OP_ADD, path, current));
+        } else {
+            operations.put(operation(OP_REPLACE, path, current));
+        }
+    }
+
+    private static JSONObject operation(String op, String path, Object value) throws JSONException {
+        JSONObject operation = new JSONObject();
+        operation.put("op", op);
+        operation.put("path", path);
+        if (value != null) {
+            operation.put("value", value);
+        }
+        return operation;
+    }
+
+    private static String formatExpiration(Date expiration) {
+        return expiration == null ? null : InstallationPutRequest.formatExpiration(expiration);
+    }
+
+    private static Set<String> toSet(Iterable<String> values) {
+        Set<String> set = new HashSet<String>();
+        for (String value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
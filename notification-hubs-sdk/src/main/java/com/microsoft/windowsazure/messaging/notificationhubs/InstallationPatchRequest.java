@@ -0,0 +1,48 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.JsonRequest;
+
+import org.json.JSONArray;
+
+import java.util.Map;
+
+/**
+ * Custom Android Volley Request to apply JSON-Patch operations to an Installation record that the
+ * Azure Notification Hub backend already holds.
+ *
+ * It was built specifically to work with API Version 2020-06.
+ */
+class InstallationPatchRequest extends JsonRequest<Void> {
+    static final String CONTENT_TYPE = "application/json-patch+json";
+
+    private final ConnectionString mConnectionString;
+
+    public InstallationPatchRequest(ConnectionString connectionString, String hubName, String installationId, JSONArray operations, Response.Listener<Void> onSuccess, Response.ErrorListener onFailure) {
+        super(
+                Method.PATCH,
+                InstallationPutRequest.getInstallationUrl(connectionString.getEndpoint(), hubName, installationId),
+                operations.toString(),
+                onSuccess,
+                onFailure);
+        mConnectionString = connectionString;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return InstallationPutRequest.getHeaders(mConnectionString, super.getUrl(), CONTENT_TYPE);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return CONTENT_TYPE + "; charset=utf-8";
+    }
+
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+        // The backend doesn't describe the patched Installation, only whether the patch applied.
+        return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+    }
+}
@@ -1,68 +1,81 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.os.Build;
-import android.util.Base64;
 
 import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
-import com.android.volley.toolbox.JsonObjectRequest;
 import com.microsoft.windowsazure.messaging.BuildConfig;
+import com.microsoft.windowsazure.messaging.Iso8601DateFormat;
+import com.microsoft.windowsazure.messaging.RequestCompression;
+import com.microsoft.windowsazure.messaging.SasTokenProvider;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URLEncoder;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 /**
  * Custom Android Volley Request to UPSERT an Installation records with the Azure Notification Hub backend.
  *
  * It was built specifically to work with API Version 2020-06.
+ *
+ * The body is written straight to UTF-8 bytes by {@link InstallationJsonWriter} when Volley asks
+ * for it, on a network thread, and the backend's response body is never parsed. Large bodies are
+ * sent with gzip when {@link RequestCompression} is enabled.
  */
-class InstallationPutRequest extends JsonObjectRequest {
+class InstallationPutRequest extends Request<Void> {
     private final static String API_VERSION = "2020-06";
-    private final static long TOKEN_EXPIRE_SECONDS = 5 * 60;
-    private final static DateFormat sIso8601Format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ", Locale.ENGLISH);
 
     private final ConnectionString mConnectionString;
+    private final Installation mInstallation;
+    private final Response.Listener<Void> mListener;
+    private final RequestCompression mCompression;
+    private byte[] mBody;
+    private boolean mCompressed;
 
-    public InstallationPutRequest(ConnectionString connectionString, String hubName, Installation installation, Response.Listener<JSONObject> onSuccess, Response.ErrorListener onFailure){
+    public InstallationPutRequest(ConnectionString connectionString, String hubName, Installation installation, Response.Listener<Void> onSuccess, Response.ErrorListener onFailure){
         super(
                 Method.PUT,
                 getInstallationUrl(connectionString.getEndpoint(), hubName, installation.getInstallationId()),
-                getBody(installation),
-                onSuccess,
                 onFailure);
         mConnectionString = connectionString;
+        mInstallation = installation;
+        mListener = onSuccess;
+        mCompression = RequestCompression.getDefault();
     }
 
     @Override
     public Map<String, String> getHeaders() {
+        Map<String, String> headers = getHeaders(mConnectionString, super.getUrl(), "application/json");
+        // Whether the body is compressed depends on its size, so it is encoded before the headers
+        // are sent.
+        encodeBody();
+        if (headers != null && isCompressed()) {
+            headers.put("Content-Encoding", RequestCompression.GZIP_ENCODING);
+        }
+        return headers;
+    }
+
+    /**
+     * Builds the headers shared by every request made against the installation API.
+     * @param connectionString The credentials used to sign the request.
+     * @param url The URL the request is sent to.
+     * @param contentType The media type of the request body.
+     * @return The headers to send, or null if the request can't be signed.
+     */
+    static Map<String, String> getHeaders(ConnectionString connectionString, String url, String contentType) {
         try {
-            Map<String,String> params = new HashMap<String, String>(){{
-                put("Content-Type", "application/json");
-                put("x-ms-version", API_VERSION);
-                put("Authorization", generateAuthToken(
-                        InstallationPutRequest.super.getUrl(),
-                        mConnectionString.getSharedAccessKeyName(),
-                        mConnectionString.getSharedAccessKey()));
-                put("User-Agent", getUserAgent());
-            }};
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("Content-Type", contentType);
+            params.put("x-ms-version", API_VERSION);
+            params.put("Authorization", SasTokenProvider.getDefault().getToken(
+                    url,
+                    connectionString.getSharedAccessKeyName(),
+                    connectionString.getSharedAccessKey()));
+            params.put("User-Agent", getUserAgent());
             return params;
         } catch (InvalidKeyException e) {
             e.printStackTrace();
@@ -71,47 +84,50 @@ class InstallationPutRequest extends JsonObjectRequest {
     }
 
     @Override
-    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+    public String getBodyContentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public byte[] getBody() {
+        return encodeBody();
+    }
 
-        if(response.statusCode == HttpURLConnection.HTTP_OK) {
-            return Response.success(new JSONObject(), HttpHeaderParser.parseCacheHeaders(response));
+    /**
+     * Serializes the Installation the first time it is needed, and compresses it if it is large
+     * enough.
+     * @return The body as it is sent.
+     */
+    private synchronized byte[] encodeBody() {
+        if (mBody == null) {
+            byte[] raw = InstallationJsonWriter.toJson(mInstallation);
+            mCompressed = mCompression.shouldCompress(raw.length);
+            mBody = mCompressed ? RequestCompression.gzip(raw, 0, raw.length) : raw;
+            mCompression.record(raw.length, mBody.length);
         }
+        return mBody;
+    }
 
-        return super.parseNetworkResponse(response);
+    synchronized boolean isCompressed() {
+        return mCompressed;
     }
 
-    public static JSONObject getBody(final Installation installation) {
-        final JSONArray tagList = new JSONArray();
-        for (String tag: installation.getTags()) {
-            tagList.put(tag);
-        }
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+        // The backend doesn't describe the saved Installation, only whether it was accepted.
+        return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+    }
 
-        try {
-            final JSONObject serializedTemplates = new JSONObject();
-            for (Map.Entry<String, InstallationTemplate> template : installation.getTemplates().entrySet()) {
-                String templateName = template.getKey();
-                serializedTemplates.put(templateName, InstallationTemplate.serialize(templateName, template.getValue()));
-            }
+    @Override
+    protected void deliverResponse(Void response) {
+        mListener.onResponse(response);
+    }
 
-            JSONObject jsonBody = new JSONObject() {{
-                put("installationId", installation.getInstallationId());
-                put("platform", installation.getPlatform());
-                put("pushChannel", installation.getPushChannel());
-                put("tags", tagList);
-                put("templates", serializedTemplates);
-                put("userId", installation.getUserId());
-            }};
-
-            Date expiration = installation.getExpiration();
-            if (expiration != null) {
-                String formattedExpiration = sIso8601Format.format(expiration);
-                jsonBody.put("expirationTime", formattedExpiration);
-            }
-            return jsonBody;
-        } catch (JSONException e) {
-            // Converting to a RuntimeException, avoiding specific checking which would break
-            throw new UnsupportedOperationException("", e);
-        }
+    /**
+     * Formats an expiration the way the backend expects to receive it, in UTC.
+     */
+    static String formatExpiration(Date expiration) {
+        return Iso8601DateFormat.format(expiration.getTime());
     }
 
     public static <T> Response.Listener<T> wrapListener(final InstallationAdapter.Listener subject, final Installation installation) {
@@ -156,40 +172,4 @@ class InstallationPutRequest extends JsonObjectRequest {
                 .append(installationId).append("?api-version=").append(API_VERSION);
         return url.toString();
     }
-
-    private static String generateAuthToken(String url, String sharedAccessKeyName, String sharedAccessKey) throws InvalidKeyException {
-        try {
-            url = URLEncoder.encode(url, "UTF-8").toLowerCase(Locale.ENGLISH);
-        } catch (UnsupportedEncodingException e) {
-            // this shouldn't happen because of the fixed encoding
-        }
-
-        // Set expiration in seconds
-        long expires = (System.currentTimeMillis() / 1000) + TOKEN_EXPIRE_SECONDS;
-
-        String toSign = url + '\n' + expires;
-
-        // sign
-        byte[] bytesToSign = toSign.getBytes();
-        Mac mac = null;
-        try {
-            mac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            // This shouldn't happen because of the fixed algorithm
-        }
-
-        SecretKeySpec secret = new SecretKeySpec(sharedAccessKey.getBytes(), mac.getAlgorithm());
-        mac.init(secret);
-        byte[] signedHash = mac.doFinal(bytesToSign);
-        String base64Signature = Base64.encodeToString(signedHash, Base64.DEFAULT);
-        base64Signature = base64Signature.trim();
-        try {
-            base64Signature = URLEncoder.encode(base64Signature, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // this shouldn't happen because of the fixed encoding
-        }
-
-        // construct authorization string
-        return "SharedAccessSignature sr=" + url + "&sig=" + base64Signature + "&se=" + expires + "&skn=" + sharedAccessKeyName;
-    }
 }
@@ -0,0 +1,294 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the tags and templates of an {@link InstallationStateStore} in a compact binary
+ * format, so that thousands of tags can be loaded without parsing JSON or XML.
+ *
+ * The file starts with a magic number and a schema version, followed by a table of interned
+ * strings, the tags, and the templates. Integers are written as variable-length quantities, and
+ * strings as a length-prefixed run of UTF-8 bytes. Tags are split after their last ':' so that a
+ * prefix shared by many tags, such as "topic:", is stored once in the string table. Template header
+ * names are interned the same way.
+ */
+class InstallationStateFile {
+    static final int MAGIC = 0x414E4853; // "ANHS"
+    static final int SCHEMA_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char TAG_PREFIX_SEPARATOR = ':';
+
+    private final Set<String> mTags;
+    private final Map<String, InstallationTemplate> mTemplates;
+
+    InstallationStateFile(Set<String> tags, Map<String, InstallationTemplate> templates) {
+        mTags = tags;
+        mTemplates = templates;
+    }
+
+    Set<String> getTags() {
+        return mTags;
+    }
+
+    Map<String, InstallationTemplate> getTemplates() {
+        return mTemplates;
+    }
+
+    /**
+     * Reads the tags and templates stored in a file.
+     * @param file The file to read.
+     * @return The stored tags and templates, or null if the file doesn't exist.
+     * @throws IOException If the file can't be read, is damaged, or was written with a newer schema.
+     */
+    static InstallationStateFile read(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        // Every length and count is checked against the file size before anything is allocated,
+        // so a damaged file fails to load instead of running out of memory.
+        long size = file.length();
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an installation state file: " + file);
+            }
+            int version = readVarInt(in);
+            if (version != SCHEMA_VERSION) {
+                throw new IOException("Unsupported installation state schema version " + version);
+            }
+
+            int stringCount = readLength(in, size);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = readString(in, size);
+            }
+
+            int tagCount = readLength(in, size);
+            Set<String> tags = new HashSet<String>(tagCount * 2);
+            for (int i = 0; i < tagCount; i++) {
+                tags.add(readTag(in, strings, size));
+            }
+
+            int templateCount = readLength(in, size);
+            Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+            for (int i = 0; i < templateCount; i++) {
+                String name = readString(in, size);
+                InstallationTemplate template = new InstallationTemplate();
+                if (in.readBoolean()) {
+                    template.setBody(readString(in, size));
+                }
+                int templateTagCount = readLength(in, size);
+                for (int j = 0; j < templateTagCount; j++) {
+                    template.addTag(readTag(in, strings, size));
+                }
+                int headerCount = readLength(in, size);
+                for (int j = 0; j < headerCount; j++) {
+                    String headerName = readInterned(in, strings);
+                    template.setHeader(headerName, readString(in, size));
+                }
+                templates.put(name, template);
+            }
+
+            return new InstallationStateFile(tags, templates);
+        } catch (EOFException e) {
+            throw new IOException("Truncated installation state file: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces the contents of a file with these tags and templates. The file is written in full
+     * to a temporary file first, so a failure part way through leaves the previous contents intact.
+     * @param file The file to write.
+     * @throws IOException If the file could not be durably written.
+     */
+    void write(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        StringTable strings = new StringTable();
+        for (String tag : mTags) {
+            strings.intern(getTagPrefix(tag));
+        }
+        for (InstallationTemplate template : mTemplates.values()) {
+            for (String tag : template.getTags()) {
+                strings.intern(getTagPrefix(tag));
+            }
+            for (String headerName : template.getHeaders().keySet()) {
+                strings.intern(headerName);
+            }
+        }
+
+        File replacement = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(replacement, false);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            writeVarInt(out, SCHEMA_VERSION);
+
+            writeVarInt(out, strings.mValues.size());
+            for (String value : strings.mValues) {
+                writeString(out, value);
+            }
+
+            writeVarInt(out, mTags.size());
+            for (String tag : mTags) {
+                writeTag(out, strings, tag);
+            }
+
+            writeVarInt(out, mTemplates.size());
+            for (Map.Entry<String, InstallationTemplate> entry : mTemplates.entrySet()) {
+                InstallationTemplate template = entry.getValue();
+                writeString(out, entry.getKey());
+                out.writeBoolean(template.getBody() != null);
+                if (template.getBody() != null) {
+                    writeString(out, template.getBody());
+                }
+
+                List<String> templateTags = new ArrayList<String>();
+                for (String tag : template.getTags()) {
+                    templateTags.add(tag);
+                }
+                writeVarInt(out, templateTags.size());
+                for (String tag : templateTags) {
+                    writeTag(out, strings, tag);
+                }
+
+                Map<String, String> headers = template.getHeaders();
+                writeVarInt(out, headers.size());
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    writeVarInt(out, strings.indexOf(header.getKey()));
+                    writeString(out, header.getValue());
+                }
+            }
+
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        if (!replacement.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static String getTagPrefix(String tag) {
+        return tag.substring(0, tag.lastIndexOf(TAG_PREFIX_SEPARATOR) + 1);
+    }
+
+    private static void writeTag(DataOutputStream out, StringTable strings, String tag) throws IOException {
+        String prefix = getTagPrefix(tag);
+        writeVarInt(out, strings.indexOf(prefix));
+        writeString(out, tag.substring(prefix.length()));
+    }
+
+    private static String readTag(DataInputStream in, String[] strings, long size) throws IOException {
+        String prefix = readInterned(in, strings);
+        String suffix = readString(in, size);
+        return prefix.isEmpty() ? suffix : prefix + suffix;
+    }
+
+    private static String readInterned(DataInputStream in, String[] strings) throws IOException {
+        int index = readVarInt(in);
+        if (index >= strings.length) {
+            throw new IOException("Installation state file refers to a missing string");
+        }
+        return strings[index];
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, long size) throws IOException {
+        byte[] bytes = new byte[readLength(in, size)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Reads a string length or an item count. Every byte or item takes at least one byte of the
+     * file, so a valid value is never larger than the file.
+     */
+    private static int readLength(DataInputStream in, long size) throws IOException {
+        int length = readVarInt(in);
+        if (length > size) {
+            throw new IOException("Length " + length + " exceeds the size of the installation state file");
+        }
+        return length;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Negative length in installation state file");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed integer in installation state file");
+    }
+
+    /**
+     * Assigns each distinct string an index, in the order they are first seen. The empty string is
+     * always at index 0.
+     */
+    private static final class StringTable {
+        private final List<String> mValues = new ArrayList<String>();
+        private final Map<String, Integer> mIndices = new HashMap<String, Integer>();
+
+        StringTable() {
+            intern("");
+        }
+
+        void intern(String value) {
+            if (!mIndices.containsKey(value)) {
+                mIndices.put(value, mValues.size());
+                mValues.add(value);
+            }
+        }
+
+        int indexOf(String value) {
+            return mIndices.get(value);
+        }
+    }
+}
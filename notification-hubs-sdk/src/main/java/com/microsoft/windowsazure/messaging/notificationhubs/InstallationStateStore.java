@@ -0,0 +1,542 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.microsoft.windowsazure.messaging.R;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds the details that are applied to every {@link Installation} this device creates: its
+ * Installation ID, Push Channel, platform, User ID, tags, and templates.
+ *
+ * The details are read once, and then served from an immutable {@link Snapshot}. Every change
+ * replaces the snapshot with an updated copy, so building an Installation never touches the disk.
+ * Changes are written back on a background thread, with all the changes made since the previous
+ * write batched together.
+ *
+ * Scalar details are kept in SharedPreferences. Tags and templates are kept in an
+ * {@link InstallationStateFile} when one is provided; they are moved there from the preferences
+ * they used to be kept in the first time the store is loaded. A state file that exists but can't
+ * be read, because it is damaged or was written with a newer schema, is left untouched: tags and
+ * templates are then only kept in memory, and the store reports them as incomplete so that they
+ * are not sent in place of the ones the backend holds.
+ */
+class InstallationStateStore {
+    static final String INSTALLATION_ID_KEY = "installationId";
+    static final String PUSH_CHANNEL_KEY = "pushChannel";
+    static final String PLATFORM_KEY = "platform";
+    static final String USER_ID_KEY = "userId";
+    static final String TAGS_KEY = "tags";
+    static final String TEMPLATES_KEY = "templates";
+    static final String STATE_DIRECTORY = "notificationhubs";
+    static final String STATE_FILE_NAME = "installation-state.bin";
+
+    @SuppressLint("StaticFieldLeak")
+    private static InstallationStateStore sSharedInstance;
+
+    private final SharedPreferences mPreferences;
+    private final SharedPreferences mTemplatePreferences;
+    private final File mStateFile;
+    private final Executor mPersistExecutor;
+    private final Runnable mPersistTask = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    private volatile Snapshot mSnapshot;
+    private Snapshot mPersisted;
+    private boolean mPersistPending;
+    private boolean mStateFileStale;
+    private boolean mStateFileUnreadable;
+    private boolean mMigrating;
+
+    /**
+     * A change to the tags that is applied atomically by {@link #editTags(TagMutation)}.
+     */
+    interface TagMutation {
+        /**
+         * @param tags A private copy of the current tags, to be modified in place.
+         */
+        void apply(Set<String> tags);
+    }
+
+    /**
+     * An immutable view of the details applied to new {@link Installation}s.
+     */
+    static final class Snapshot {
+        private final String mInstallationId;
+        private final String mPushChannel;
+        private final String mPlatform;
+        private final String mUserId;
+        private final SortedSet<String> mTags;
+        private final Map<String, InstallationTemplate> mTemplates;
+
+        /**
+         * The collections are shared with later snapshots rather than copied, so they must already
+         * be unmodifiable.
+         */
+        Snapshot(String installationId, String pushChannel, String platform, String userId, SortedSet<String> tags, Map<String, InstallationTemplate> templates) {
+            mInstallationId = installationId;
+            mPushChannel = pushChannel;
+            mPlatform = platform;
+            mUserId = userId;
+            mTags = tags;
+            mTemplates = templates;
+        }
+
+        String getInstallationId() {
+            return mInstallationId;
+        }
+
+        String getPushChannel() {
+            return mPushChannel;
+        }
+
+        String getPlatform() {
+            return mPlatform;
+        }
+
+        String getUserId() {
+            return mUserId;
+        }
+
+        /**
+         * @return The tags in sorted order, which can't be modified.
+         */
+        SortedSet<String> getTags() {
+            return mTags;
+        }
+
+        /**
+         * Finds the tags that start with a prefix, without copying them.
+         * @param prefix The prefix to look for.
+         * @return A sorted view of the matching tags, which can't be modified.
+         */
+        SortedSet<String> getTagsWithPrefix(String prefix) {
+            return InstallationStateStore.getTagsWithPrefix(mTags, prefix);
+        }
+
+        /**
+         * @return The templates by name. Neither the map nor the templates in it may be modified.
+         */
+        Map<String, InstallationTemplate> getTemplates() {
+            return mTemplates;
+        }
+    }
+
+    /**
+     * Fetches the store shared by every component of this process.
+     * @param context Any Android context.
+     * @return The shared instance, which is loaded the first time it is requested.
+     */
+    static synchronized InstallationStateStore getSharedInstance(Context context) {
+        if (sSharedInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sSharedInstance = new InstallationStateStore(
+                    applicationContext.getSharedPreferences(applicationContext.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE),
+                    // Templates have always been kept in a file named after the resource ID, rather
+                    // than the resource value. Keep reading them from there.
+                    applicationContext.getSharedPreferences(String.valueOf(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE),
+                    new File(new File(applicationContext.getFilesDir(), STATE_DIRECTORY), STATE_FILE_NAME),
+                    SharedScheduler.newSerialExecutor());
+        }
+        return sSharedInstance;
+    }
+
+    /**
+     * Loads the store from a single preferences file, which changes are written to on the thread
+     * that makes them.
+     * @param preferences Where every detail is kept.
+     */
+    InstallationStateStore(SharedPreferences preferences) {
+        this(preferences, preferences, null, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * Loads the store from the preferences that back it.
+     * @param preferences Where every detail but templates is kept.
+     * @param templatePreferences Where templates used to be kept. May be the same as preferences.
+     * @param stateFile Where tags and templates are kept, or null to keep them in preferences.
+     * @param persistExecutor Runs the writes back to storage. Should run tasks in the order they
+     *                        are submitted.
+     */
+    InstallationStateStore(SharedPreferences preferences, SharedPreferences templatePreferences, File stateFile, Executor persistExecutor) {
+        mPreferences = preferences;
+        mTemplatePreferences = templatePreferences;
+        mStateFile = stateFile;
+        mPersistExecutor = persistExecutor;
+        synchronized (this) {
+            mSnapshot = load();
+            mPersisted = mSnapshot;
+            if (mStateFileStale) {
+                // Write the migrated tags and templates out, and forget the old preferences.
+                mPersistPending = true;
+                mPersistExecutor.execute(mPersistTask);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the tags and templates are the ones last stored on this device. They aren't
+     * when the state file exists but can't be read: the snapshot then only holds what was found in
+     * the legacy preferences, which are empty once the tags and templates have been migrated.
+     * @return False if the tags and templates are unknown, and must not be sent to the backend.
+     */
+    synchronized boolean isComplete() {
+        return !mStateFileUnreadable;
+    }
+
+    /**
+     * Fetches the current details, without any disk access.
+     * @return The latest snapshot.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    synchronized boolean setInstallationId(String installationId) {
+        Snapshot current = mSnapshot;
+        if (equal(current.mInstallationId, installationId)) {
+            return false;
+        }
+        update(new Snapshot(installationId, current.mPushChannel, current.mPlatform, current.mUserId, current.mTags, current.mTemplates));
+        return true;
+    }
+
+    synchronized boolean setPushChannel(String pushChannel) {
+        Snapshot current = mSnapshot;
+        if (equal(current.mPushChannel, pushChannel)) {
+            return false;
+        }
+        update(new Snapshot(current.mInstallationId, pushChannel, current.mPlatform, current.mUserId, current.mTags, current.mTemplates));
+        return true;
+    }
+
+    synchronized boolean setPlatform(String platform) {
+        Snapshot current = mSnapshot;
+        if (equal(current.mPlatform, platform)) {
+            return false;
+        }
+        update(new Snapshot(current.mInstallationId, current.mPushChannel, platform, current.mUserId, current.mTags, current.mTemplates));
+        return true;
+    }
+
+    synchronized boolean setUserId(String userId) {
+        Snapshot current = mSnapshot;
+        if (equal(current.mUserId, userId)) {
+            return false;
+        }
+        update(new Snapshot(current.mInstallationId, current.mPushChannel, current.mPlatform, userId, current.mTags, current.mTemplates));
+        return true;
+    }
+
+    /**
+     * @return True if any of the tags was not already present.
+     */
+    synchronized boolean addTags(Collection<? extends String> tags) {
+        Snapshot current = mSnapshot;
+        if (current.mTags.containsAll(tags)) {
+            return false;
+        }
+        TreeSet<String> updated = new TreeSet<String>(current.mTags);
+        updated.addAll(tags);
+        return setTags(current, updated);
+    }
+
+    /**
+     * @return True if any of the tags was present.
+     */
+    synchronized boolean removeTags(Collection<? extends String> tags) {
+        Snapshot current = mSnapshot;
+        TreeSet<String> updated = new TreeSet<String>(current.mTags);
+        return updated.removeAll(tags) && setTags(current, updated);
+    }
+
+    /**
+     * @return True if there were any tags.
+     */
+    synchronized boolean clearTags() {
+        Snapshot current = mSnapshot;
+        return !current.mTags.isEmpty() && setTags(current, new TreeSet<String>());
+    }
+
+    /**
+     * Applies several changes to the tags against one snapshot, and publishes the result once.
+     * @return Exactly which tags were added and removed.
+     */
+    synchronized TagDiff editTags(TagMutation mutation) {
+        Snapshot current = mSnapshot;
+        TreeSet<String> updated = new TreeSet<String>(current.mTags);
+        mutation.apply(updated);
+
+        TagDiff diff = TagDiff.between(current.mTags, updated);
+        if (!diff.isEmpty()) {
+            setTags(current, updated);
+        }
+        return diff;
+    }
+
+    /**
+     * Removes every tag that starts with a prefix.
+     * @return Exactly which tags were removed.
+     */
+    synchronized TagDiff removeTagsWithPrefix(String prefix) {
+        return replaceTagsWithPrefix(prefix, Collections.<String>emptySet());
+    }
+
+    /**
+     * Replaces every tag that starts with a prefix. Only the matching tags and the replacements are
+     * examined to work out what changed.
+     * @param prefix The prefix of the tags to replace.
+     * @param replacements The tags to add in their place, which may be empty.
+     * @return Exactly which tags were added and removed.
+     */
+    synchronized TagDiff replaceTagsWithPrefix(String prefix, Collection<? extends String> replacements) {
+        Snapshot current = mSnapshot;
+
+        Set<String> removed = new HashSet<String>(current.getTagsWithPrefix(prefix));
+        removed.removeAll(replacements);
+        Set<String> added = new HashSet<String>();
+        for (String tag : replacements) {
+            if (!current.mTags.contains(tag)) {
+                added.add(tag);
+            }
+        }
+
+        if (!removed.isEmpty() || !added.isEmpty()) {
+            // Copying from a sorted set builds the tree in linear time, with no comparisons.
+            TreeSet<String> updated = new TreeSet<String>(current.mTags);
+            updated.removeAll(removed);
+            updated.addAll(added);
+            setTags(current, updated);
+        }
+        return new TagDiff(added, removed);
+    }
+
+    private boolean setTags(Snapshot current, SortedSet<String> tags) {
+        update(new Snapshot(current.mInstallationId, current.mPushChannel, current.mPlatform, current.mUserId, Collections.unmodifiableSortedSet(tags), current.mTemplates));
+        return true;
+    }
+
+    /**
+     * Finds the range of a sorted set holding every string that starts with a prefix.
+     */
+    static SortedSet<String> getTagsWithPrefix(SortedSet<String> tags, String prefix) {
+        // The first string after every string with this prefix is the prefix with its last
+        // character incremented, ignoring trailing characters that can't be incremented.
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return tags.tailSet(prefix);
+        }
+        String upperBound = prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+        return tags.subSet(prefix, upperBound);
+    }
+
+    /**
+     * Adds or replaces templates. The store keeps its own copies, so the given templates may be
+     * modified afterwards.
+     */
+    synchronized void setTemplates(Map<String, InstallationTemplate> templates) {
+        Snapshot current = mSnapshot;
+        Map<String, InstallationTemplate> updated = new HashMap<String, InstallationTemplate>(current.mTemplates);
+        for (Map.Entry<String, InstallationTemplate> template : templates.entrySet()) {
+            updated.put(template.getKey(), InstallationTemplate.copy(template.getValue()));
+        }
+        setTemplates(current, updated);
+    }
+
+    /**
+     * @return True if any of the templates was present.
+     */
+    synchronized boolean removeTemplates(Collection<String> templateNames) {
+        Snapshot current = mSnapshot;
+        Map<String, InstallationTemplate> updated = new HashMap<String, InstallationTemplate>(current.mTemplates);
+        return updated.keySet().removeAll(templateNames) && setTemplates(current, updated);
+    }
+
+    /**
+     * @return True if there were any templates.
+     */
+    synchronized boolean clearTemplates() {
+        Snapshot current = mSnapshot;
+        return !current.mTemplates.isEmpty() && setTemplates(current, new HashMap<String, InstallationTemplate>());
+    }
+
+    private boolean setTemplates(Snapshot current, Map<String, InstallationTemplate> templates) {
+        update(new Snapshot(current.mInstallationId, current.mPushChannel, current.mPlatform, current.mUserId, current.mTags, Collections.unmodifiableMap(templates)));
+        return true;
+    }
+
+    /**
+     * Publishes a new snapshot, and makes sure it will be written back. Must be called while
+     * holding the lock on this instance.
+     */
+    private void update(Snapshot updated) {
+        mSnapshot = updated;
+        if (!mPersistPending) {
+            mPersistPending = true;
+            mPersistExecutor.execute(mPersistTask);
+        }
+    }
+
+    /**
+     * Writes every detail that changed since the last write, in a single batch per file.
+     */
+    private void persist() {
+        Snapshot previous;
+        Snapshot current;
+        boolean writeStateFile;
+        boolean migrating;
+        synchronized (this) {
+            previous = mPersisted;
+            current = mSnapshot;
+            mPersisted = current;
+            mPersistPending = false;
+            writeStateFile = !mStateFileUnreadable
+                    && (mStateFileStale || previous.mTags != current.mTags || previous.mTemplates != current.mTemplates);
+            mStateFileStale = false;
+            migrating = mMigrating;
+        }
+
+        SharedPreferences.Editor editor = mPreferences.edit();
+        SharedPreferences.Editor templateEditor = mTemplatePreferences == mPreferences ? editor : mTemplatePreferences.edit();
+        putString(editor, INSTALLATION_ID_KEY, previous.mInstallationId, current.mInstallationId);
+        putString(editor, PUSH_CHANNEL_KEY, previous.mPushChannel, current.mPushChannel);
+        putString(editor, PLATFORM_KEY, previous.mPlatform, current.mPlatform);
+        putString(editor, USER_ID_KEY, previous.mUserId, current.mUserId);
+
+        if (mStateFile != null) {
+            if (writeStateFile) {
+                try {
+                    new InstallationStateFile(current.mTags, current.mTemplates).write(mStateFile);
+                    if (migrating) {
+                        editor.remove(TAGS_KEY);
+                        templateEditor.remove(TEMPLATES_KEY);
+                        synchronized (this) {
+                            mMigrating = false;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e("ANH", "unable to persist installation tags and templates: " + e.toString());
+                    synchronized (this) {
+                        // Try again with the next change.
+                        mStateFileStale = true;
+                    }
+                }
+            }
+        } else {
+            if (previous.mTags != current.mTags) {
+                editor.putStringSet(TAGS_KEY, new HashSet<String>(current.mTags));
+            }
+            if (previous.mTemplates != current.mTemplates) {
+                Set<String> serialized = new HashSet<String>();
+                for (Map.Entry<String, InstallationTemplate> template : current.mTemplates.entrySet()) {
+                    serialized.add(InstallationTemplate.serialize(template.getKey(), template.getValue()).toString());
+                }
+                templateEditor.putStringSet(TEMPLATES_KEY, serialized);
+            }
+        }
+
+        // Already off the main thread, so there's no reason to defer the write any further.
+        if (templateEditor != editor) {
+            templateEditor.commit();
+        }
+        editor.commit();
+    }
+
+    private static void putString(SharedPreferences.Editor editor, String key, String previous, String current) {
+        if (equal(previous, current)) {
+            return;
+        }
+        if (current == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, current);
+        }
+    }
+
+    /**
+     * Reads every detail from storage. Must be called while holding the lock on this instance.
+     */
+    private Snapshot load() {
+        InstallationStateFile stored = null;
+        if (mStateFile != null) {
+            try {
+                stored = InstallationStateFile.read(mStateFile);
+            } catch (IOException e) {
+                // Overwriting the file would lose what it holds, and it may be read fine again by
+                // the newer version of the SDK that wrote it.
+                Log.e("ANH", "unable to read installation tags and templates, keeping them in memory: " + e.toString());
+                mStateFileUnreadable = true;
+            }
+        }
+
+        SortedSet<String> tags;
+        Map<String, InstallationTemplate> templates;
+        if (stored != null) {
+            tags = new TreeSet<String>(stored.getTags());
+            templates = stored.getTemplates();
+        } else {
+            tags = loadLegacyTags();
+            templates = loadLegacyTemplates();
+            mStateFileStale = mStateFile != null && !mStateFileUnreadable;
+            mMigrating = mStateFileStale;
+        }
+
+        return new Snapshot(
+                mPreferences.getString(INSTALLATION_ID_KEY, null),
+                mPreferences.getString(PUSH_CHANNEL_KEY, null),
+                mPreferences.getString(PLATFORM_KEY, null),
+                mPreferences.getString(USER_ID_KEY, null),
+                Collections.unmodifiableSortedSet(tags),
+                Collections.unmodifiableMap(templates));
+    }
+
+    private SortedSet<String> loadLegacyTags() {
+        return new TreeSet<String>(mPreferences.getStringSet(TAGS_KEY, Collections.<String>emptySet()));
+    }
+
+    private Map<String, InstallationTemplate> loadLegacyTemplates() {
+        Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+        for (String serialized : mTemplatePreferences.getStringSet(TEMPLATES_KEY, Collections.<String>emptySet())) {
+            try {
+                JSONObject template = new JSONObject(serialized);
+                templates.put(template.getString("name"), InstallationTemplate.deserialize(template));
+            } catch (JSONException e) {
+                Log.e("ANH", "unable to deserialize installation template: " + e.toString());
+            }
+        }
+        return templates;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,39 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+/**
+ * Decides whether an {@link Installation} update should be sent now, or held until the device is
+ * on a better network. Urgent updates, such as a new push channel, are needed for this device to
+ * keep receiving notifications. Other updates, such as tag changes, can usually wait.
+ *
+ * A deferred update is not lost: it is sent, including every change made in the meantime, as soon
+ * as the network changes to one this policy accepts, or an urgent update is sent.
+ */
+public interface InstallationSyncPolicy {
+    /**
+     * Sends every update as soon as it is requested.
+     */
+    InstallationSyncPolicy IMMEDIATE = new InstallationSyncPolicy() {
+        @Override
+        public boolean shouldSync(NetworkState network, boolean urgent) {
+            return true;
+        }
+    };
+
+    /**
+     * Sends urgent updates right away, and holds other updates until the device is on a network
+     * that is validated, unmetered, and not roaming.
+     */
+    InstallationSyncPolicy DEFER_UNTIL_UNMETERED = new InstallationSyncPolicy() {
+        @Override
+        public boolean shouldSync(NetworkState network, boolean urgent) {
+            return urgent || (network.isConnected() && network.isValidated() && !network.isMetered() && !network.isRoaming());
+        }
+    };
+
+    /**
+     * @param network The network the device is currently on.
+     * @param urgent True if the update is needed for this device to keep receiving notifications.
+     * @return True to send the update now, false to hold it.
+     */
+    boolean shouldSync(NetworkState network, boolean urgent);
+}
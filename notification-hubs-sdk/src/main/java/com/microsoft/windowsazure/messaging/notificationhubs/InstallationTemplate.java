@@ -173,6 +173,20 @@ public class InstallationTemplate {
         return template;
     }
 
+    /**
+     * Creates an independent copy of a template, so that changes to one are not seen by the other.
+     *
+     * @param source The template to copy.
+     * @return A new template with the same body, tags, and headers.
+     */
+    static InstallationTemplate copy(InstallationTemplate source) {
+        InstallationTemplate copy = new InstallationTemplate();
+        copy.mBody = source.mBody;
+        copy.mTags.addAll(source.mTags);
+        copy.mHeaders.putAll(source.mHeaders);
+        return copy;
+    }
+
     /**
      * Get all headers applied to this template.
      *
@@ -0,0 +1,106 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+/**
+ * Describes the network this device is currently using, as far as it matters for deciding whether
+ * now is a good time to talk to the backend.
+ */
+public final class NetworkState {
+    /**
+     * The kind of link the network runs over.
+     */
+    public enum Transport {
+        NONE,
+        WIFI,
+        CELLULAR,
+        ETHERNET,
+        OTHER
+    }
+
+    static final NetworkState DISCONNECTED = new NetworkState(false, false, false, false, Transport.NONE);
+
+    private final boolean mConnected;
+    private final boolean mValidated;
+    private final boolean mMetered;
+    private final boolean mRoaming;
+    private final Transport mTransport;
+
+    NetworkState(boolean connected, boolean validated, boolean metered, boolean roaming, Transport transport) {
+        mConnected = connected;
+        mValidated = validated;
+        mMetered = metered;
+        mRoaming = roaming;
+        mTransport = transport;
+    }
+
+    /**
+     * Indicates whether any network is connected.
+     * @return True if the device is online.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Indicates whether the system has verified that the network actually reaches the internet,
+     * rather than, for instance, a captive portal. Always true on devices too old to tell.
+     * @return True if the network is known to work.
+     */
+    public boolean isValidated() {
+        return mValidated;
+    }
+
+    /**
+     * Indicates whether the user may be charged for data sent over the network.
+     * @return True if the network is metered.
+     */
+    public boolean isMetered() {
+        return mMetered;
+    }
+
+    /**
+     * Indicates whether the device is roaming on this network.
+     * @return True if roaming.
+     */
+    public boolean isRoaming() {
+        return mRoaming;
+    }
+
+    /**
+     * Fetches the kind of link the network runs over.
+     * @return The transport, which is {@link Transport#NONE} when disconnected.
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        NetworkState that = (NetworkState) o;
+        return mConnected == that.mConnected &&
+                mValidated == that.mValidated &&
+                mMetered == that.mMetered &&
+                mRoaming == that.mRoaming &&
+                mTransport == that.mTransport;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mTransport.hashCode();
+        result = 31 * result + (mConnected ? 1 : 0);
+        result = 31 * result + (mValidated ? 1 : 0);
+        result = 31 * result + (mMetered ? 1 : 0);
+        result = 31 * result + (mRoaming ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkState{connected=" + mConnected
+                + ", validated=" + mValidated
+                + ", metered=" + mMetered
+                + ", roaming=" + mRoaming
+                + ", transport=" + mTransport + "}";
+    }
+}
@@ -0,0 +1,72 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the network to stop changing before reporting its state, so that a link which drops
+ * and comes back, or briefly switches transports, doesn't trigger work for every blip. A state is
+ * only reported once it has held for the whole window, and only if it differs from the last state
+ * reported.
+ */
+class NetworkStateDebouncer {
+    private final ScheduledExecutorService mScheduler;
+    private final NetworkStateHelper.StateListener mListener;
+    private volatile long mWindowMillis;
+
+    private NetworkState mLatest;
+    private NetworkState mReported;
+    private ScheduledFuture<?> mPending;
+
+    /**
+     * @param scheduler Waits out the window.
+     * @param windowMillis How long a state must hold before it is reported.
+     * @param reported The state the listener already knows about, or null to report the first
+     *                 state that settles.
+     * @param listener Receives each settled state.
+     */
+    NetworkStateDebouncer(ScheduledExecutorService scheduler, long windowMillis, NetworkState reported, NetworkStateHelper.StateListener listener) {
+        mScheduler = scheduler;
+        mWindowMillis = windowMillis;
+        mReported = reported;
+        mListener = listener;
+    }
+
+    /**
+     * Changes how long a state must hold before it is reported. Applies from the next change.
+     * @param windowMillis The new window.
+     */
+    void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Records the latest state, restarting the window.
+     * @param state The state the network just changed to.
+     */
+    synchronized void observe(NetworkState state) {
+        mLatest = state;
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                settle();
+            }
+        }, mWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void settle() {
+        NetworkState settled;
+        synchronized (this) {
+            if (mLatest.equals(mReported)) {
+                return;
+            }
+            mReported = mLatest;
+            settled = mLatest;
+        }
+        mListener.onNetworkStateChanged(settled);
+    }
+}
@@ -35,6 +35,11 @@ import static android.content.Context.CONNECTIVITY_SERVICE;
  */
 class NetworkStateHelper implements Closeable {
 
+    /**
+     * How long the network must stay the same before state listeners hear about it, by default.
+     */
+    static final long DEFAULT_FLAP_WINDOW_MILLIS = 3000L; // Three seconds
+
     /**
      * Shared instance.
      */
@@ -56,6 +61,16 @@ class NetworkStateHelper implements Closeable {
      */
     private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
 
+    /**
+     * Network capability listeners, which only hear about changes that outlast the flap window.
+     */
+    private final Set<StateListener> mStateListeners = new CopyOnWriteArraySet<>();
+
+    /**
+     * Holds back capability changes until the network settles.
+     */
+    private final NetworkStateDebouncer mDebouncer;
+
     /**
      * Network callback, null on API level < 21.
      */
@@ -80,6 +95,12 @@ class NetworkStateHelper implements Closeable {
     public NetworkStateHelper(Context context) {
         mContext = context.getApplicationContext();
         mConnectivityManager = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
+        mDebouncer = new NetworkStateDebouncer(SharedScheduler.getSharedInstance(), DEFAULT_FLAP_WINDOW_MILLIS, null, new StateListener() {
+            @Override
+            public void onNetworkStateChanged(NetworkState state) {
+                notifyNetworkStateChanged(state);
+            }
+        });
         reopen();
     }
 
@@ -127,6 +148,11 @@ class NetworkStateHelper implements Closeable {
                     public void onLost(Network network) {
                         onNetworkLost(network);
                     }
+
+                    @Override
+                    public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                        mDebouncer.observe(getNetworkState());
+                    }
                 };
                 mConnectivityManager.registerNetworkCallback(request.build(), mNetworkCallback);
             } else {
@@ -162,6 +188,91 @@ class NetworkStateHelper implements Closeable {
         return mConnected.get() || isAnyNetworkConnected();
     }
 
+    /**
+     * Describes the network this device is using right now. Listeners added with
+     * {@link #addStateListener(StateListener)} are told when this changes.
+     *
+     * @return The current network state.
+     */
+    public NetworkState getNetworkState() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                return getNetworkStateFromCapabilities();
+            }
+            return getNetworkStateFromInfo();
+        } catch (RuntimeException e) {
+            Log.e("ANH", "Cannot access network capabilities.", e);
+            return isNetworkConnected()
+                    ? new NetworkState(true, true, false, false, NetworkState.Transport.OTHER)
+                    : NetworkState.DISCONNECTED;
+        }
+    }
+
+    /**
+     * Describe the active network on API level >= 23.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private NetworkState getNetworkStateFromCapabilities() {
+        Network network = mConnectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = network == null ? null : mConnectivityManager.getNetworkCapabilities(network);
+        if (capabilities == null) {
+            return NetworkState.DISCONNECTED;
+        }
+
+        boolean roaming;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            roaming = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+        } else {
+            NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+            roaming = info != null && info.isRoaming();
+        }
+
+        NetworkState.Transport transport;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            transport = NetworkState.Transport.WIFI;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            transport = NetworkState.Transport.CELLULAR;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            transport = NetworkState.Transport.ETHERNET;
+        } else {
+            transport = NetworkState.Transport.OTHER;
+        }
+
+        return new NetworkState(
+                true,
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+                !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED),
+                roaming,
+                transport);
+    }
+
+    /**
+     * Describe the active network on API level < 23, which can't tell whether it is validated.
+     */
+    @SuppressWarnings({"deprecation", "RedundantSuppression"})
+    private NetworkState getNetworkStateFromInfo() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return NetworkState.DISCONNECTED;
+        }
+
+        NetworkState.Transport transport;
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                transport = NetworkState.Transport.WIFI;
+                break;
+            case ConnectivityManager.TYPE_MOBILE:
+                transport = NetworkState.Transport.CELLULAR;
+                break;
+            case ConnectivityManager.TYPE_ETHERNET:
+                transport = NetworkState.Transport.ETHERNET;
+                break;
+            default:
+                transport = NetworkState.Transport.OTHER;
+        }
+        return new NetworkState(true, true, mConnectivityManager.isActiveNetworkMetered(), info.isRoaming(), transport);
+    }
+
     /**
      * Check if any network is connected.
      *
@@ -204,6 +315,7 @@ class NetworkStateHelper implements Closeable {
         if (mConnected.compareAndSet(false, true)) {
             notifyNetworkStateUpdated(true);
         }
+        mDebouncer.observe(getNetworkState());
     }
 
     /**
@@ -218,6 +330,7 @@ class NetworkStateHelper implements Closeable {
         if (noNetwork && mConnected.compareAndSet(true, false)) {
             notifyNetworkStateUpdated(false);
         }
+        mDebouncer.observe(noNetwork ? NetworkState.DISCONNECTED : getNetworkState());
     }
 
     /**
@@ -228,6 +341,7 @@ class NetworkStateHelper implements Closeable {
         if (mConnected.compareAndSet(!connected, connected)) {
             notifyNetworkStateUpdated(connected);
         }
+        mDebouncer.observe(getNetworkState());
     }
 
     /**
@@ -242,6 +356,28 @@ class NetworkStateHelper implements Closeable {
         }
     }
 
+    /**
+     * Notify state listeners that the network settled into a new state.
+     *
+     * @param state the settled state.
+     */
+    private void notifyNetworkStateChanged(NetworkState state) {
+        Log.d("ANH", "Network settled: " + state);
+        for (StateListener listener : mStateListeners) {
+            listener.onNetworkStateChanged(state);
+        }
+    }
+
+    /**
+     * Change how long the network must stay the same before state listeners hear about it. Links
+     * that drop and come back within this window aren't reported at all.
+     *
+     * @param windowMillis the window, in milliseconds.
+     */
+    public void setFlapWindowMillis(long windowMillis) {
+        mDebouncer.setWindowMillis(windowMillis);
+    }
+
     @Override
     public void close() {
         mConnected.set(false);
@@ -270,6 +406,38 @@ class NetworkStateHelper implements Closeable {
         mListeners.remove(listener);
     }
 
+    /**
+     * Add a listener for changes to the network's capabilities, which is only called once the
+     * network settles.
+     *
+     * @param listener listener to add.
+     */
+    public void addStateListener(StateListener listener) {
+        mStateListeners.add(listener);
+    }
+
+    /**
+     * Remove a network capability listener.
+     *
+     * @param listener listener to remove.
+     */
+    public void removeStateListener(StateListener listener) {
+        mStateListeners.remove(listener);
+    }
+
+    /**
+     * Network capability listener specification.
+     */
+    public interface StateListener {
+
+        /**
+         * Called when the network settles into a state different from the last one reported.
+         *
+         * @param state the network's current state.
+         */
+        void onNetworkStateChanged(NetworkState state);
+    }
+
     /**
      * Network state listener specification.
      */
@@ -14,6 +14,7 @@ import com.microsoft.windowsazure.messaging.R;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Singleton controller that wraps all interactions with Firebase Cloud Messaging and Azure
@@ -33,12 +34,18 @@ public final class NotificationHub {
 
     private InstallationAdapter mAdapter;
     private Application mApplication;
+    private NetworkStateHelper mNetworkStateHelper;
+    private volatile InstallationSyncPolicy mSyncPolicy = InstallationSyncPolicy.IMMEDIATE;
+    private final AtomicBoolean mDeferredUpdatePending = new AtomicBoolean();
+    private volatile StartupSyncCoordinator mStartupSyncCoordinator;
 
     private SharedPreferences mPreferences;
+    private volatile InstallationStateStore mStateStore;
     private static final String IS_ENABLED_PREFERENCE_KEY = "isEnabled";
 
     private InstallationAdapter.Listener mOnSavedInstallation;
     private InstallationAdapter.ErrorListener mOnInstallationFailure;
+    private final InstallationAdapter.Listener mOnSavedInstallationRecorder;
 
     NotificationHub() {
         mVisitors = new ArrayList<>();
@@ -55,6 +62,16 @@ public final class NotificationHub {
                 Log.i("ANH", "updated installation");
             }
         };
+        mOnSavedInstallationRecorder = new InstallationAdapter.Listener() {
+            @Override
+            public void onInstallationSaved(Installation i) {
+                StartupSyncCoordinator coordinator = mStartupSyncCoordinator;
+                if (coordinator != null) {
+                    coordinator.onInstallationSaved();
+                }
+                mOnSavedInstallation.onInstallationSaved(i);
+            }
+        };
     }
 
     /**
@@ -78,22 +95,27 @@ public final class NotificationHub {
 
         mPreferences = mApplication.getSharedPreferences(mApplication.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
 
-        mIdAssignmentVisitor = new IdAssignmentVisitor(mApplication);
+        // Every visitor reads from the same in-memory store, so building an Installation doesn't
+        // touch the disk.
+        InstallationStateStore store = InstallationStateStore.getSharedInstance(mApplication);
+        mStateStore = store;
+
+        mIdAssignmentVisitor = new IdAssignmentVisitor(store);
         useInstanceVisitor(mIdAssignmentVisitor);
 
-        mTagVisitor = new TagVisitor(mApplication);
+        mTagVisitor = new TagVisitor(store);
         useInstanceVisitor(mTagVisitor);
 
-        mTemplateVisitor = new TemplateVisitor(mApplication);
+        mTemplateVisitor = new TemplateVisitor(store);
         useInstanceVisitor(mTemplateVisitor);
 
-        mPushChannelVisitor = new PushChannelVisitor(mApplication);
+        mPushChannelVisitor = new PushChannelVisitor(store);
         useInstanceVisitor(mPushChannelVisitor);
 
-        mPlatformVisitor = new PlatformVisitor(mApplication);
+        mPlatformVisitor = new PlatformVisitor(store);
         useInstanceVisitor(mPlatformVisitor);
 
-        mUserIdVisitor = new UserIdVisitor(mApplication);
+        mUserIdVisitor = new UserIdVisitor(store);
         useInstanceVisitor(mUserIdVisitor);
 
         NotificationHubExtension.fetchPushChannel(this);
@@ -109,10 +131,13 @@ public final class NotificationHub {
      * @param connectionString The Listen-only AccessPolicy that grants this device the ability to
      */
     public static void start(Application application, String hubName, String connectionString) {
-        InstallationAdapter client = new NotificationHubInstallationAdapter(
+        NotificationHubInstallationAdapter hubAdapter = new NotificationHubInstallationAdapter(
                 application,
                 hubName,
                 connectionString);
+        hubAdapter.setDeltaUpdatesEnabled(true);
+        // The outbox is read from disk on a background thread, not while the application starts.
+        InstallationAdapter client = new OutboxInstallationAdapter(application, new CircuitBreakerInstallationAdapter(hubAdapter));
         InstallationAdapter debouncer = new DebounceInstallationAdapter(application, client);
         InstallationAdapter pushChannelAdapter = new PushChannelValidationAdapter(debouncer);
 
@@ -133,6 +158,21 @@ public final class NotificationHub {
         final NotificationHub instance = getInstance();
         instance.mAdapter = adapter;
 
+        // Fetching the push channel, refreshing it, and connecting to a network all trigger
+        // updates at cold start. Hold them until the push channel arrives and send them as one.
+        StartupSyncCoordinator coordinator = new StartupSyncCoordinator(
+                SharedScheduler.getSharedInstance(),
+                Clock.SYSTEM,
+                StartupSyncCoordinator.DEFAULT_TIMEOUT_MILLIS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        instance.beginInstanceInstallationUpdate();
+                    }
+                });
+        instance.mStartupSyncCoordinator = coordinator;
+        coordinator.start();
+
         instance.registerApplication(application);
 
         // Why is this done here instead of being in the manifest like everything else?
@@ -141,16 +181,44 @@ public final class NotificationHub {
         // https://developer.android.com/guide/components/broadcasts#android_80
         IntentFilter connectivityFilter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
         connectivityFilter.addAction(Intent.ACTION_AIRPLANE_MODE_CHANGED);
-        NetworkStateHelper.getSharedInstance(application).addListener(new NetworkStateHelper.Listener() {
+        NetworkStateHelper networkStateHelper = NetworkStateHelper.getSharedInstance(application);
+        instance.mNetworkStateHelper = networkStateHelper;
+        networkStateHelper.addStateListener(new NetworkStateHelper.StateListener() {
             @Override
-            public void onNetworkStateUpdated(boolean connected) {
-                if (connected) {
-                    instance.beginInstanceInstallationUpdate();
+            public void onNetworkStateChanged(NetworkState state) {
+                if (state.isConnected()) {
+                    instance.beginDeferrableInstallationUpdate();
                 }
             }
         });
     }
 
+    /**
+     * Changes when Installation updates are sent. Updates needed to keep receiving notifications,
+     * such as a new push channel, can be sent right away while tag and template changes wait for
+     * a cheaper network. By default, every update is sent immediately.
+     * @param policy The policy to consult before each update.
+     */
+    public static void setSyncPolicy(InstallationSyncPolicy policy) {
+        getInstance().setInstanceSyncPolicy(policy);
+    }
+
+    /**
+     * Changes when Installation updates are sent. Updates needed to keep receiving notifications,
+     * such as a new push channel, can be sent right away while tag and template changes wait for
+     * a cheaper network. By default, every update is sent immediately.
+     * @param policy The policy to consult before each update.
+     */
+    public void setInstanceSyncPolicy(InstallationSyncPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy");
+        }
+        mSyncPolicy = policy;
+        if (mDeferredUpdatePending.get()) {
+            beginDeferrableInstallationUpdate();
+        }
+    }
+
     /**
      * Changes the callback that will be invoked when a notification is received.
      * @param listener A callback that will be invoked whenever your application is given access to
@@ -240,16 +308,65 @@ public final class NotificationHub {
             return;
         }
 
+        // This update carries every change that was waiting for a better network.
+        mDeferredUpdatePending.set(false);
+
+        StartupSyncCoordinator coordinator = mStartupSyncCoordinator;
+        if (coordinator != null && coordinator.hold()) {
+            return;
+        }
+
+        // Saving an Installation built without the stored tags and templates would erase them from
+        // the backend, so nothing is saved until they can be read again.
+        InstallationStateStore store = mStateStore;
+        if (store != null && !store.isComplete()) {
+            Log.e("ANH", "installation tags and templates could not be read, not saving the installation");
+            return;
+        }
+
         Installation installation = new Installation();
         for (InstallationVisitor visitor: mVisitors) {
             visitor.visitInstallation(installation);
         }
 
         if (mAdapter != null) {
-            mAdapter.saveInstallation(installation, mOnSavedInstallation, mOnInstallationFailure);
+            mAdapter.saveInstallation(installation, mOnSavedInstallationRecorder, mOnInstallationFailure);
         }
     }
 
+    /**
+     * Sends an update that can wait, such as a tag change, if the sync policy allows it on the
+     * current network. Otherwise the update is held until the network changes or an urgent update
+     * is sent.
+     */
+    private void beginDeferrableInstallationUpdate() {
+        NetworkStateHelper networkStateHelper = mNetworkStateHelper;
+        if (networkStateHelper != null && !mSyncPolicy.shouldSync(networkStateHelper.getNetworkState(), false)) {
+            mDeferredUpdatePending.set(true);
+            return;
+        }
+        beginInstanceInstallationUpdate();
+    }
+
+    /**
+     * Fetches how long it took, after {@link #start(Application, InstallationAdapter)} was called,
+     * for the first {@link Installation} to be acknowledged by the backend.
+     * @return The startup latency in milliseconds, or -1 if no Installation has been saved yet.
+     */
+    public static long getStartupLatencyMillis() {
+        return getInstance().getInstanceStartupLatencyMillis();
+    }
+
+    /**
+     * Fetches how long it took, after {@link #start(Application, InstallationAdapter)} was called,
+     * for the first {@link Installation} to be acknowledged by the backend.
+     * @return The startup latency in milliseconds, or -1 if no Installation has been saved yet.
+     */
+    public long getInstanceStartupLatencyMillis() {
+        StartupSyncCoordinator coordinator = mStartupSyncCoordinator;
+        return coordinator == null ? StartupSyncCoordinator.LATENCY_UNKNOWN : coordinator.getStartupLatencyMillis();
+    }
+
     static void setPushChannel(String token) {
         getInstance().setInstancePushChannel(token);
     }
@@ -264,11 +381,15 @@ public final class NotificationHub {
     }
 
     void setInstancePushChannel(String token) {
-        if (token.equals(mPushChannelVisitor.getPushChannel())) {
-            return;
+        if (!token.equals(mPushChannelVisitor.getPushChannel())) {
+            mPushChannelVisitor.setPushChannel(token);
+            beginInstanceInstallationUpdate();
+        }
+
+        StartupSyncCoordinator coordinator = mStartupSyncCoordinator;
+        if (coordinator != null) {
+            coordinator.onPushChannelReady();
         }
-        mPushChannelVisitor.setPushChannel(token);
-        beginInstanceInstallationUpdate();
     }
 
     /**
@@ -366,7 +487,7 @@ public final class NotificationHub {
      */
     public boolean addInstanceTag(String tag) {
         if(mTagVisitor.addTag(tag)){
-            beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
             return true;
         }
         return false;
@@ -392,7 +513,7 @@ public final class NotificationHub {
      */
     public boolean addInstanceTags(Collection<? extends String> tags) {
         if(mTagVisitor.addTags(tags)) {
-            beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
             return true;
         }
         return false;
@@ -416,7 +537,7 @@ public final class NotificationHub {
      */
     public boolean removeInstanceTag(String tag) {
         if(mTagVisitor.removeTag(tag)) {
-            beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
             return true;
         }
         return false;
@@ -440,7 +561,7 @@ public final class NotificationHub {
      */
     public boolean removeInstanceTags(Collection<? extends String> tags) {
         if(mTagVisitor.removeTags(tags)) {
-            beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
             return true;
         }
         return false;
@@ -464,6 +585,80 @@ public final class NotificationHub {
         return mTagVisitor.getTags();
     }
 
+    /**
+     * Fetches the tags associated with this collection that start with a prefix, such as all of
+     * the tags that start with "Language_".
+     *
+     * @param prefix The prefix to look for.
+     * @return The matching tags, in sorted order.
+     */
+    public static Iterable<String> getTagsWithPrefix(String prefix) {
+        return getInstance().getInstanceTagsWithPrefix(prefix);
+    }
+
+    /**
+     * Fetches the tags associated with this collection that start with a prefix, such as all of
+     * the tags that start with "Language_".
+     *
+     * @param prefix The prefix to look for.
+     * @return The matching tags, in sorted order.
+     */
+    public Iterable<String> getInstanceTagsWithPrefix(String prefix) {
+        return mTagVisitor.getTagsWithPrefix(prefix);
+    }
+
+    /**
+     * Deletes every tag from this collection that starts with a prefix.
+     *
+     * @param prefix The prefix of the tags that should no longer be in the collection.
+     * @return Exactly which tags were removed.
+     */
+    public static TagDiff removeTagsWithPrefix(String prefix) {
+        return getInstance().removeInstanceTagsWithPrefix(prefix);
+    }
+
+    /**
+     * Deletes every tag from this collection that starts with a prefix.
+     *
+     * @param prefix The prefix of the tags that should no longer be in the collection.
+     * @return Exactly which tags were removed.
+     */
+    public TagDiff removeInstanceTagsWithPrefix(String prefix) {
+        TagDiff diff = mTagVisitor.removeTagsWithPrefix(prefix);
+        if (!diff.isEmpty()) {
+            beginDeferrableInstallationUpdate();
+        }
+        return diff;
+    }
+
+    /**
+     * Replaces every tag in this collection that starts with a prefix, for instance to move a
+     * device from "Language_en-US" to "Language_fr-FR" in one step.
+     *
+     * @param prefix The prefix of the tags to replace.
+     * @param tags The tags to include instead.
+     * @return Exactly which tags were added and removed.
+     */
+    public static TagDiff replaceTagsWithPrefix(String prefix, Collection<? extends String> tags) {
+        return getInstance().replaceInstanceTagsWithPrefix(prefix, tags);
+    }
+
+    /**
+     * Replaces every tag in this collection that starts with a prefix, for instance to move a
+     * device from "Language_en-US" to "Language_fr-FR" in one step.
+     *
+     * @param prefix The prefix of the tags to replace.
+     * @param tags The tags to include instead.
+     * @return Exactly which tags were added and removed.
+     */
+    public TagDiff replaceInstanceTagsWithPrefix(String prefix, Collection<? extends String> tags) {
+        TagDiff diff = mTagVisitor.replaceTagsWithPrefix(prefix, tags);
+        if (!diff.isEmpty()) {
+            beginDeferrableInstallationUpdate();
+        }
+        return diff;
+    }
+
     /**
      * Empties the collection of tags.
      */
@@ -477,10 +672,35 @@ public final class NotificationHub {
     public void clearInstanceTags() {
         if (mTagVisitor.getTags().iterator().hasNext()) {
             mTagVisitor.clearTags();
-            this.beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
         }
     }
 
+    /**
+     * Starts a batch of changes to the tags associated with this device. The changes are saved
+     * together when {@link TagEditor#apply()} is called, and cause at most one Installation update.
+     *
+     * @return An editor to record the changes with.
+     */
+    public static TagEditor editTags() {
+        return getInstance().editInstanceTags();
+    }
+
+    /**
+     * Starts a batch of changes to the tags associated with this device. The changes are saved
+     * together when {@link TagEditor#apply()} is called, and cause at most one Installation update.
+     *
+     * @return An editor to record the changes with.
+     */
+    public TagEditor editInstanceTags() {
+        return new TagEditor(mTagVisitor, new Runnable() {
+            @Override
+            public void run() {
+                beginDeferrableInstallationUpdate();
+            }
+        });
+    }
+
     /**
      * Controls whether or not this application should be listening for Notifications.
      * @param enable true if the application should be listening for notifications, false if not.
@@ -520,7 +740,7 @@ public final class NotificationHub {
 
     public void setInstanceTemplate(String templateName, InstallationTemplate template) {
         mTemplateVisitor.setTemplate(templateName, template);
-        beginInstanceInstallationUpdate();
+        beginDeferrableInstallationUpdate();
     }
 
     /**
@@ -535,7 +755,7 @@ public final class NotificationHub {
 
     public boolean removeInstanceTemplate(String templateName) {
         if(mTemplateVisitor.removeTemplate(templateName)){
-            beginInstanceInstallationUpdate();
+            beginDeferrableInstallationUpdate();
             return true;
         }
         return false;
@@ -1,6 +1,8 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.ClientError;
@@ -9,6 +11,7 @@ import com.android.volley.Header;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.RetryPolicy;
@@ -16,14 +19,20 @@ import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.Volley;
+import com.microsoft.windowsazure.messaging.R;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.TimeZone;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -37,12 +46,34 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
     private static final RetryPolicy sDoNotRetry;
     private static final Set<Integer> sRetriableStatusCodes;
     private static final String INSTALLATION_PUT_TAG = "installationPutRequest";
+    private static final long DEFAULT_BACKOFF_BASE_MILLIS = 1000L; // One second
+    private static final long DEFAULT_BACKOFF_CAP_MILLIS = 30L * 1000L; // Thirty seconds
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_RETRY_BUDGET_MILLIS = 2L * 60L * 1000L; // Two minutes
+    private static final long THROTTLED_MINIMUM_DELAY_MILLIS = 10L * 1000L; // Ten seconds
+    private static final String[] HTTP_DATE_PATTERNS = new String[] {
+            "EEE, dd MMM yyyy HH:mm:ss zzz", // IMF-fixdate, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+            "EEEE, dd-MMM-yy HH:mm:ss zzz", // obsolete RFC 850, e.g. Sunday, 06-Nov-94 08:49:37 GMT
+            "EEE MMM d HH:mm:ss yyyy", // asctime(), e.g. Sun Nov  6 08:49:37 1994
+    };
+    private static final long FULL_UPDATE_INTERVAL_MILLIS = 1000L * 60L * 60L * 24L; // One day
+    static final String LAST_ACKNOWLEDGED_INSTALLATION_KEY = "lastAcknowledgedInstallation_";
+    static final String LAST_FULL_UPDATE_TIMESTAMP_KEY = "lastFullInstallationUpdateTimestamp_";
 
     private final String mHubName;
     private final ConnectionString mConnectionString;
     private final RequestQueue mRequestQueue;
     private final long mInstallationExpirationWindow;
-    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final SharedPreferences mPreferences;
+    private volatile boolean mDeltaUpdatesEnabled;
+    private volatile BackoffPolicy mBackoffPolicy = new DecorrelatedJitterBackoffPolicy(
+            DEFAULT_BACKOFF_BASE_MILLIS,
+            DEFAULT_BACKOFF_CAP_MILLIS,
+            DEFAULT_MAX_RETRIES,
+            DEFAULT_RETRY_BUDGET_MILLIS);
+    private static RequestQueue sRequestQueue;
+
+    private final ScheduledExecutorService mScheduler;
     private ScheduledFuture<?> mOutstandingRetry;
 
 
@@ -51,10 +82,19 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
     }
 
     NotificationHubInstallationAdapter(Context context, String hubName, String connectionString, long installationExpirationWindow) {
+        this(context, hubName, connectionString, installationExpirationWindow, SharedScheduler.getSharedInstance());
+    }
+
+    /**
+     * @param scheduler Waits between retries. Shared with the rest of this package by default.
+     */
+    NotificationHubInstallationAdapter(Context context, String hubName, String connectionString, long installationExpirationWindow, ScheduledExecutorService scheduler) {
         mHubName = hubName;
         mConnectionString = ConnectionString.parse(connectionString);
-        mRequestQueue = Volley.newRequestQueue(context.getApplicationContext());
+        mRequestQueue = getSharedRequestQueue(context);
+        mScheduler = scheduler;
         mInstallationExpirationWindow = installationExpirationWindow;
+        mPreferences = context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
     }
 
     static {
@@ -68,6 +108,17 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
         sRetriableStatusCodes.add(429); // Too Many Requests
     }
 
+    /**
+     * Every adapter sends its requests through the same queue, so that the dispatcher threads
+     * Volley starts for each queue are only started once per process.
+     */
+    private static synchronized RequestQueue getSharedRequestQueue(Context context) {
+        if (sRequestQueue == null) {
+            sRequestQueue = Volley.newRequestQueue(context.getApplicationContext());
+        }
+        return sRequestQueue;
+    }
+
     /**
      * Updates a backend with the updated Installation information for this device.
      *
@@ -77,7 +128,94 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
     public void saveInstallation(final Installation installation, final Listener onInstallationSaved, final ErrorListener onInstallationSaveError) {
         addExpiration(installation);
         cancelOutstandingUpdates();
-        new RetrySession(installation, 3, onInstallationSaved, onInstallationSaveError).submit();
+        new RetrySession(installation, mBackoffPolicy, onInstallationSaved, onInstallationSaveError).submit();
+    }
+
+    /**
+     * Controls whether Installations are saved by sending only what changed since the backend last
+     * acknowledged this device's Installation. The whole Installation is still sent the first
+     * time, at least once a day, and whenever the backend can't apply the changes.
+     *
+     * @param enabled True to send JSON-Patch updates when possible, false to always send the whole
+     *                Installation.
+     */
+    public void setDeltaUpdatesEnabled(boolean enabled) {
+        mDeltaUpdatesEnabled = enabled;
+    }
+
+    /**
+     * Controls how long to wait between attempts to save an Installation, and when to give up.
+     * Applies to Installations saved after this call.
+     *
+     * @param backoffPolicy The policy to follow.
+     */
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        if (backoffPolicy == null) {
+            throw new IllegalArgumentException("backoffPolicy");
+        }
+        mBackoffPolicy = backoffPolicy;
+    }
+
+    /**
+     * Indicates whether Installations are saved by sending only what changed.
+     *
+     * @return True if JSON-Patch updates are sent when possible.
+     */
+    public boolean isDeltaUpdatesEnabled() {
+        return mDeltaUpdatesEnabled;
+    }
+
+    /**
+     * Computes the JSON-Patch operations that bring the Installation the backend last acknowledged
+     * up to date.
+     *
+     * @param installation The record to update.
+     * @return The operations to send, or null if the whole Installation should be sent instead.
+     */
+    JSONArray getPatch(Installation installation) {
+        if (!mDeltaUpdatesEnabled) {
+            return null;
+        }
+
+        String acknowledged = mPreferences.getString(LAST_ACKNOWLEDGED_INSTALLATION_KEY + mHubName, null);
+        long lastFullUpdate = mPreferences.getLong(LAST_FULL_UPDATE_TIMESTAMP_KEY + mHubName, 0);
+        if (acknowledged == null || new Date().getTime() - lastFullUpdate > FULL_UPDATE_INTERVAL_MILLIS) {
+            return null;
+        }
+
+        try {
+            return InstallationPatch.diff(Installation.deserialize(new JSONObject(acknowledged)), installation);
+        } catch (JSONException e) {
+            // The snapshot was written by an incompatible version, start over with the whole Installation.
+            return null;
+        }
+    }
+
+    /**
+     * Records the Installation the backend accepted, so that the next update can be sent as a
+     * JSON-Patch.
+     *
+     * @param installation The record the backend accepted.
+     * @param fullUpdate True if the whole Installation was sent.
+     */
+    private void rememberAcknowledgedInstallation(Installation installation, boolean fullUpdate) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        try {
+            editor.putString(LAST_ACKNOWLEDGED_INSTALLATION_KEY + mHubName, Installation.serialize(installation).toString());
+            if (fullUpdate) {
+                editor.putLong(LAST_FULL_UPDATE_TIMESTAMP_KEY + mHubName, new Date().getTime());
+            }
+        } catch (JSONException e) {
+            editor.remove(LAST_ACKNOWLEDGED_INSTALLATION_KEY + mHubName);
+        }
+        editor.apply();
+    }
+
+    private void forgetAcknowledgedInstallation() {
+        mPreferences.edit()
+                .remove(LAST_ACKNOWLEDGED_INSTALLATION_KEY + mHubName)
+                .remove(LAST_FULL_UPDATE_TIMESTAMP_KEY + mHubName)
+                .apply();
     }
 
     /**
@@ -119,37 +257,75 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
     }
 
     /**
-     * Generates InstallationPutRequests, and continually submits them serially to the Volley
-     * RequestQueue until either a successful response is received, or a set number of retries has
-     * elapsed.
+     * Determines whether a failure reported to an {@link InstallationAdapter.ErrorListener} is
+     * likely to go away if the same {@link Installation} is saved again later.
+     * @param exception The failure reported by {@link #convertVolleyException(VolleyError)}.
+     * @return True if the failure was caused by the network, or by a status code worth retrying.
+     */
+    static boolean isRetriable(Exception exception) {
+        if (exception instanceof IOException) {
+            return true;
+        }
+
+        if (exception instanceof NotificationHubException) {
+            return sRetriableStatusCodes.contains(((NotificationHubException) exception).getStatusCode());
+        }
+
+        return false;
+    }
+
+    /**
+     * Generates InstallationPutRequests, or InstallationPatchRequests when only part of the
+     * Installation changed, and continually submits them serially to the Volley RequestQueue until
+     * either a successful response is received, or the {@link BackoffPolicy} gives up.
      */
-    private class RetrySession implements Response.ErrorListener, Response.Listener<JSONObject> {
-        private final int mMaxRetries;
+    private class RetrySession implements Response.ErrorListener, Response.Listener<Void> {
+        private final BackoffPolicy mBackoffPolicy;
         private int mRetry;
+        private long mPreviousDelayMillis;
+        private long mTotalDelayMillis;
         private final Installation mInstallation;
         private final InstallationAdapter.Listener mOnSuccess;
         private final InstallationAdapter.ErrorListener mOnFailure;
-        private final long mDefaultWaitTime;
+        private JSONArray mPatch;
 
-        public RetrySession(Installation installation, int maxRetries, InstallationAdapter.Listener onSuccess, InstallationAdapter.ErrorListener onFailure) {
-            mMaxRetries = maxRetries;
+        public RetrySession(Installation installation, BackoffPolicy backoffPolicy, InstallationAdapter.Listener onSuccess, InstallationAdapter.ErrorListener onFailure) {
+            mBackoffPolicy = backoffPolicy;
             mInstallation = installation;
             mOnSuccess = onSuccess;
             mOnFailure = onFailure;
             mRetry = 0;
-            mDefaultWaitTime = 1000;
+            mPatch = getPatch(installation);
         }
 
         /**
-         * Creates a new InstallationPutRequest, adds it the the RequestQueue.
+         * Creates a new InstallationPutRequest or InstallationPatchRequest, adds it the the
+         * RequestQueue.
          */
         private void submit() {
-            InstallationPutRequest request = new InstallationPutRequest(
-                    NotificationHubInstallationAdapter.this.mConnectionString,
-                    NotificationHubInstallationAdapter.this.mHubName,
-                    mInstallation,
-                    this,
-                    this);
+            if (mPatch != null && mPatch.length() == 0) {
+                // The backend already has this exact Installation.
+                onResponse(null);
+                return;
+            }
+
+            Request<Void> request;
+            if (mPatch != null) {
+                request = new InstallationPatchRequest(
+                        NotificationHubInstallationAdapter.this.mConnectionString,
+                        NotificationHubInstallationAdapter.this.mHubName,
+                        mInstallation.getInstallationId(),
+                        mPatch,
+                        this,
+                        this);
+            } else {
+                request = new InstallationPutRequest(
+                        NotificationHubInstallationAdapter.this.mConnectionString,
+                        NotificationHubInstallationAdapter.this.mHubName,
+                        mInstallation,
+                        this,
+                        this);
+            }
             request.addMarker(INSTALLATION_PUT_TAG);
             request.setRetryPolicy(sDoNotRetry);
             synchronized (NotificationHubInstallationAdapter.this) {
@@ -161,10 +337,11 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
         /**
          * Called when a successful response is received.
          *
-         * @param response The JSON Object returned by the server (if any).
+         * @param response Always null, the backend doesn't describe the saved Installation.
          */
         @Override
-        public void onResponse(JSONObject response) {
+        public void onResponse(Void response) {
+            rememberAcknowledgedInstallation(mInstallation, mPatch == null);
             mOnSuccess.onInstallationSaved(mInstallation);
         }
 
@@ -176,29 +353,31 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
          */
         @Override
         public void onErrorResponse(VolleyError error) {
-            mRetry++;
-            if(!isRetriable(error) || mRetry > mMaxRetries) {
-                mOnFailure.onInstallationSaveError(convertVolleyException(error));
+            if (mPatch != null && error.networkResponse != null
+                    && (error.networkResponse.statusCode == 404 || error.networkResponse.statusCode == 400)) {
+                // The backend no longer has the acknowledged Installation, or can't apply the
+                // patch to the one it has. Fall back to sending the whole Installation, which
+                // doesn't count as a retry.
+                forgetAcknowledgedInstallation();
+                mPatch = null;
+                submit();
                 return;
             }
 
-            long waitTimeMillis;
-            NetworkResponse response = error.networkResponse;
-            String rawRetryAfter = null;
-
-            if (response != null) {
-                rawRetryAfter = getRetryAfter(response);
+            if (!isRetriable(error)) {
+                mOnFailure.onInstallationSaveError(convertVolleyException(error));
+                return;
             }
 
-            if (response == null) {
-                waitTimeMillis = mDefaultWaitTime;
-            } else if(rawRetryAfter != null) {
-                waitTimeMillis = parseRetryAfterValue(rawRetryAfter);
-            } else if (response.statusCode == 429 || response.statusCode == 403) {
-                waitTimeMillis = 10 * 1000;
-            } else {
-                waitTimeMillis = mDefaultWaitTime;
+            mRetry++;
+            long waitTimeMillis = mBackoffPolicy.getDelayMillis(mRetry, mPreviousDelayMillis, mTotalDelayMillis, getMinimumDelay(error.networkResponse));
+            if (waitTimeMillis < 0) {
+                mOnFailure.onInstallationSaveError(convertVolleyException(error));
+                return;
             }
+            mPreviousDelayMillis = waitTimeMillis;
+            mTotalDelayMillis += waitTimeMillis;
+
             synchronized (NotificationHubInstallationAdapter.this) {
                 mOutstandingRetry = mScheduler.schedule(new Runnable() {
                     @Override
@@ -235,6 +414,32 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
         return new Exception(error);
     }
 
+    /**
+     * Fetches the least amount of time the server asked us to wait before trying again.
+     * @param response The response the server sent, if any.
+     * @return The number of milliseconds to wait at least, which is 0 if the server didn't ask us
+     * to wait.
+     */
+    static long getMinimumDelay(NetworkResponse response) {
+        if (response == null) {
+            return 0;
+        }
+
+        String rawRetryAfter = getRetryAfter(response);
+        if (rawRetryAfter != null) {
+            long retryAfter = parseRetryAfterValue(rawRetryAfter, System.currentTimeMillis());
+            if (retryAfter >= 0) {
+                return retryAfter;
+            }
+            Log.e("ANH", "ignoring unrecognized Retry-After value: " + rawRetryAfter);
+        }
+
+        if (response.statusCode == 429 || response.statusCode == 403) {
+            return THROTTLED_MINIMUM_DELAY_MILLIS;
+        }
+        return 0;
+    }
+
     /**
      * Fetches the value sent as the "Retry-After" value.
      * @param response The response the server sent, which may or may not include a Retry-After header.
@@ -252,20 +457,52 @@ public class NotificationHubInstallationAdapter implements InstallationAdapter {
 
     /**
      * Fetches the number of milliseconds, if any, that we were told to wait by the server.
-     * @param retryAfter The value of a Retry-After header.
-     * @return The number of milliseconds to wait. If there is no Retry-After header, a negative
-     * value is returned.
-     * @throws UnsupportedOperationException If Retry-After is provided in an unrecognized format.
+     * @param retryAfter The value of a Retry-After header, either a number of seconds or an
+     *                   HTTP-date as described by RFC 7231.
+     * @param nowMillis The current time, which HTTP-dates are measured from.
+     * @return The number of milliseconds to wait, which is 0 for dates in the past. If the value
+     * isn't recognized, a negative value is returned.
      */
-    static long parseRetryAfterValue(String retryAfter) {
-        // TODO: support parsing DateTime passed in Retry-After header.
+    static long parseRetryAfterValue(String retryAfter, long nowMillis) {
+        String trimmed = retryAfter.trim();
+        if (trimmed.isEmpty()) {
+            return -1;
+        }
 
-        try {
-            return 1000 * Long.parseLong(retryAfter);
-        } catch (NumberFormatException e) {
-            throw new UnsupportedOperationException("Retry-After must be communicated as a number of seconds", e);
+        if (Character.isDigit(trimmed.charAt(0))) {
+            try {
+                return 1000 * Long.parseLong(trimmed);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
         }
-    }
-}
 
+        Date date = parseHttpDate(trimmed);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - nowMillis);
+    }
 
+    /**
+     * Parses any of the three HTTP-date formats RFC 7231 requires recipients to accept.
+     * @param value The date to parse.
+     * @return The date, or null if it isn't in a recognized format.
+     */
+    static Date parseHttpDate(String value) {
+        // asctime() pads single digit days with a space, which SimpleDateFormat can't express.
+        String normalized = value.replaceAll("\\s+", " ");
+        for (String pattern : HTTP_DATE_PATTERNS) {
+            // SimpleDateFormat isn't thread safe, and Retry-After is rare enough not to share one.
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(normalized, position);
+            if (date != null && position.getIndex() == normalized.length()) {
+                return date;
+            }
+        }
+        return null;
+    }
+}
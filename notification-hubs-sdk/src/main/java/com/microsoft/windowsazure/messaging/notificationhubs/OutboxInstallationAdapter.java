@@ -0,0 +1,284 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists every {@link Installation} to a durable outbox before handing it to the decorated
+ * {@link InstallationAdapter}, so that updates interrupted by a network outage, server throttling,
+ * or the death of the process are delivered later without having to rebuild the Installation.
+ *
+ * Only the latest pending Installation per Installation ID is kept. The outbox is drained one
+ * Installation at a time, while the network is connected.
+ *
+ * The outbox is only read and written on the scheduler, so saving never touches the disk on the
+ * calling thread. Installations saved before the scheduler first opened the outbox wait in memory.
+ */
+public class OutboxInstallationAdapter implements InstallationAdapter {
+    static final String OUTBOX_DIRECTORY = "notificationhubs";
+    static final String OUTBOX_FILE_NAME = "installation-outbox.jsonl";
+    static final long MIN_RETRY_DELAY_MILLIS = 30L * 1000L; // Thirty seconds
+    static final long MAX_RETRY_DELAY_MILLIS = 60L * 60L * 1000L; // One hour
+
+    private final InstallationAdapter mInstallationAdapter;
+    private final File mOutboxFile;
+    private final NetworkStateHelper mNetworkStateHelper;
+    private final ScheduledExecutorService mScheduler;
+    private final Map<String, PendingListeners> mListeners = new HashMap<String, PendingListeners>();
+    private final Map<String, Installation> mQueued = new LinkedHashMap<String, Installation>();
+    private final Object mOutboxLock = new Object();
+
+    private InstallationOutbox mOutbox;
+
+    private InstallationOutbox.Entry mInFlight;
+    private ScheduledFuture<?> mScheduledDrain;
+    private long mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    /**
+     * Creates a new instance which decorates a given {@link InstallationAdapter}, keeping its outbox
+     * in the application's files directory. Installations left pending by a previous process are
+     * sent as soon as the network allows. If the outbox can't be read, Installations are only kept
+     * in memory and won't survive a restart.
+     * @param context The Application context used to locate the outbox and observe the network.
+     * @param installationAdapter The adapter that should be invoked to deliver each Installation.
+     */
+    public OutboxInstallationAdapter(Context context, InstallationAdapter installationAdapter) {
+        this(
+            installationAdapter,
+            new File(new File(context.getApplicationContext().getFilesDir(), OUTBOX_DIRECTORY), OUTBOX_FILE_NAME),
+            NetworkStateHelper.getSharedInstance(context),
+            SharedScheduler.getSharedInstance()
+        );
+    }
+
+    /**
+     * @param outboxFile Where the outbox is kept. It is opened on the scheduler the first time it
+     *                   is drained.
+     * @param networkStateHelper Tells when the network is connected, or null to always attempt
+     *                           delivery.
+     */
+    OutboxInstallationAdapter(InstallationAdapter installationAdapter, File outboxFile, NetworkStateHelper networkStateHelper, ScheduledExecutorService scheduler) {
+        mInstallationAdapter = installationAdapter;
+        mOutboxFile = outboxFile;
+        mNetworkStateHelper = networkStateHelper;
+        mScheduler = scheduler;
+
+        if (mNetworkStateHelper != null) {
+            mNetworkStateHelper.addListener(new NetworkStateHelper.Listener() {
+                @Override
+                public void onNetworkStateUpdated(boolean connected) {
+                    if (connected) {
+                        synchronized (OutboxInstallationAdapter.this) {
+                            mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                            scheduleDrain(0);
+                        }
+                    }
+                }
+            });
+        }
+
+        synchronized (this) {
+            scheduleDrain(0);
+        }
+    }
+
+    /**
+     * Records the {@link Installation} in the outbox, and delivers it once every Installation
+     * pending before it has been delivered. A pending Installation with the same ID is replaced,
+     * and the listeners it was saved with are not invoked.
+     *
+     * @param installation The record to update.
+     * @param onInstallationSaved Invoked once the backend accepts the Installation.
+     * @param onInstallationSaveError Invoked if the backend rejects the Installation for a reason
+     *                                that retrying will not fix.
+     */
+    @Override
+    public void saveInstallation(Installation installation, Listener onInstallationSaved, ErrorListener onInstallationSaveError) {
+        if (installation.getInstallationId() == null) {
+            onInstallationSaveError.onInstallationSaveError(new IllegalArgumentException("Installation does not have an InstallationId."));
+            return;
+        }
+
+        synchronized (this) {
+            // Appended to the outbox by the next drain, off the calling thread.
+            mQueued.remove(installation.getInstallationId());
+            mQueued.put(installation.getInstallationId(), installation);
+            mListeners.put(installation.getInstallationId(), new PendingListeners(installation, onInstallationSaved, onInstallationSaveError));
+            mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+            scheduleDrain(0);
+        }
+    }
+
+    /**
+     * Replaces any scheduled drain with one that runs after a given delay. Must be called while
+     * holding the lock on this instance.
+     */
+    private void scheduleDrain(long delayMillis) {
+        if (mScheduledDrain != null) {
+            mScheduledDrain.cancel(false);
+        }
+
+        mScheduledDrain = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the outbox the first time it's needed, and appends the Installations saved since the
+     * previous drain. Runs on the scheduler.
+     * @return The outbox, which only keeps records in memory if its file can't be read.
+     */
+    private InstallationOutbox openOutbox() {
+        synchronized (mOutboxLock) {
+            if (mOutbox == null) {
+                try {
+                    mOutbox = new InstallationOutbox(mOutboxFile);
+                } catch (IOException e) {
+                    Log.e("ANH", "unable to open installation outbox, updates will not survive a restart: " + e.toString());
+                    mOutbox = new InstallationOutbox();
+                }
+            }
+
+            // Appended one at a time in the order they were saved. Holding the outbox lock keeps a
+            // concurrent drain from appending a later save of the same Installation ID first.
+            while (true) {
+                Installation installation;
+                synchronized (this) {
+                    Iterator<Installation> queued = mQueued.values().iterator();
+                    if (!queued.hasNext()) {
+                        break;
+                    }
+                    installation = queued.next();
+                    queued.remove();
+                }
+
+                try {
+                    mOutbox.append(installation);
+                } catch (IOException e) {
+                    // The Installation is still pending in memory, it just won't survive a restart.
+                    Log.e("ANH", "unable to persist installation: " + e.toString());
+                }
+            }
+
+            return mOutbox;
+        }
+    }
+
+    /**
+     * Hands the oldest pending {@link Installation} to the decorated adapter, unless one is already
+     * being delivered or the network is not connected.
+     */
+    private void drain() {
+        final InstallationOutbox outbox = openOutbox();
+        final InstallationOutbox.Entry entry;
+        synchronized (this) {
+            if (mInFlight != null) {
+                return;
+            }
+
+            if (mNetworkStateHelper != null && !mNetworkStateHelper.isNetworkConnected()) {
+                // The network listener drains the outbox once the device is back online.
+                return;
+            }
+
+            entry = outbox.peek();
+            if (entry == null) {
+                return;
+            }
+            mInFlight = entry;
+        }
+
+        try {
+            mInstallationAdapter.saveInstallation(entry.getInstallation(), new Listener() {
+                @Override
+                public void onInstallationSaved(Installation i) {
+                    onDelivered(outbox, entry, null);
+                }
+            }, new ErrorListener() {
+                @Override
+                public void onInstallationSaveError(Exception e) {
+                    onDelivered(outbox, entry, e);
+                }
+            });
+        } catch (Exception e) {
+            onDelivered(outbox, entry, e);
+        }
+    }
+
+    /**
+     * Removes a delivered {@link Installation} from the outbox, or schedules another attempt.
+     * @param outbox The outbox the entry was taken from.
+     * @param entry The entry that was handed to the decorated adapter.
+     * @param error The reason the entry was not saved, or null if it was saved.
+     */
+    private void onDelivered(InstallationOutbox outbox, InstallationOutbox.Entry entry, Exception error) {
+        boolean retry = error != null && NotificationHubInstallationAdapter.isRetriable(error);
+
+        if (!retry) {
+            try {
+                outbox.acknowledge(entry);
+            } catch (IOException e) {
+                Log.e("ANH", "unable to persist installation acknowledgement: " + e.toString());
+            }
+        }
+
+        PendingListeners listeners = null;
+        synchronized (this) {
+            mInFlight = null;
+
+            String installationId = entry.getInstallation().getInstallationId();
+            PendingListeners pending = mListeners.get(installationId);
+            if (!retry && pending != null && pending.mInstallation == entry.getInstallation()) {
+                listeners = mListeners.remove(installationId);
+            }
+
+            if (error instanceof CircuitBreakerOpenException) {
+                // Nothing was sent, so try again as soon as the circuit lets requests through.
+                scheduleDrain(((CircuitBreakerOpenException) error).getRetryAfterMillis());
+            } else if (retry) {
+                scheduleDrain(mRetryDelayMillis);
+                mRetryDelayMillis = Math.min(mRetryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+            } else {
+                mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                scheduleDrain(0);
+            }
+        }
+
+        if (listeners != null) {
+            if (error == null) {
+                listeners.mOnSaved.onInstallationSaved(entry.getInstallation());
+            } else {
+                listeners.mOnError.onInstallationSaveError(error);
+            }
+        }
+    }
+
+    /**
+     * The listeners provided with the most recent save of an Installation ID, along with the
+     * Installation they were saved with. The outbox entry holds that same Installation.
+     */
+    private static final class PendingListeners {
+        private final Installation mInstallation;
+        private final Listener mOnSaved;
+        private final ErrorListener mOnError;
+
+        PendingListeners(Installation installation, Listener onSaved, ErrorListener onError) {
+            mInstallation = installation;
+            mOnSaved = onSaved;
+            mOnError = onError;
+        }
+    }
+}
@@ -1,16 +1,16 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-
-import com.microsoft.windowsazure.messaging.R;
 
 public class PlatformVisitor implements InstallationVisitor {
-    private static final String PREFERENCE_KEY = "platform";
-    private final SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     public PlatformVisitor(Context context) {
-        mPreferences = context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
+        this(InstallationStateStore.getSharedInstance(context));
+    }
+
+    PlatformVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     /**
@@ -32,7 +32,7 @@ public class PlatformVisitor implements InstallationVisitor {
      * @param platform The new platform to apply.
      */
     public void setPlatform(String platform) {
-        mPreferences.edit().putString(PREFERENCE_KEY, platform).apply();
+        mStore.setPlatform(platform);
     }
 
     /**
@@ -41,6 +41,6 @@ public class PlatformVisitor implements InstallationVisitor {
      *         it hasn't been initialized yet.
      */
     public String getPlatform() {
-        return mPreferences.getString(PREFERENCE_KEY, null);
+        return mStore.getSnapshot().getPlatform();
     }
 }
@@ -1,16 +1,16 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-
-import com.microsoft.windowsazure.messaging.R;
 
 public class PushChannelVisitor implements InstallationVisitor {
-    private static final String PREFERENCE_KEY = "pushChannel";
-    private final SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     public PushChannelVisitor(Context context) {
-        mPreferences = context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
+        this(InstallationStateStore.getSharedInstance(context));
+    }
+
+    PushChannelVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     /**
@@ -28,7 +28,7 @@ public class PushChannelVisitor implements InstallationVisitor {
      * @param channel The new unique identifier to apply.
      */
     public void setPushChannel(String channel) {
-        mPreferences.edit().putString(PREFERENCE_KEY, channel).apply();
+        mStore.setPushChannel(channel);
     }
 
     /**
@@ -37,6 +37,6 @@ public class PushChannelVisitor implements InstallationVisitor {
      *         it hasn't been initialized yet.
      */
     public String getPushChannel() {
-        return mPreferences.getString(PREFERENCE_KEY, null);
+        return mStore.getSnapshot().getPushChannel();
     }
 }
@@ -0,0 +1,117 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the background threads used by every component of this package, so that the number of
+ * threads stays the same no matter how many adapters are created. The legacy
+ * com.microsoft.windowsazure.messaging.NotificationHub keeps its own bounded pools, since its
+ * operations block on network calls and wait on each other.
+ *
+ * Threads are only started once work is scheduled, are named so they can be recognized in a thread
+ * dump, are daemons so they never keep the process alive, and exit after they've been idle for a
+ * while. They are started again the next time work is scheduled.
+ */
+final class SharedScheduler {
+    static final String THREAD_NAME_PREFIX = "NotificationHubs-";
+    static final int POOL_SIZE = 2;
+    static final long IDLE_TIMEOUT_MILLIS = 30L * 1000L; // Thirty seconds
+
+    private static final AtomicInteger sThreadsStarted = new AtomicInteger();
+    private static ScheduledExecutorService sSharedInstance;
+
+    private SharedScheduler() {
+    }
+
+    /**
+     * Fetches the scheduler shared by every component of this package. It must not be shut down.
+     * @return The shared scheduler, which is created the first time it is requested.
+     */
+    static synchronized ScheduledExecutorService getSharedInstance() {
+        if (sSharedInstance == null) {
+            sSharedInstance = create(POOL_SIZE, IDLE_TIMEOUT_MILLIS);
+        }
+        return sSharedInstance;
+    }
+
+    /**
+     * Creates a scheduler whose threads are named and exit when they have nothing to do.
+     * @param poolSize The most threads that will run at once.
+     * @param idleTimeoutMillis How long a thread waits for more work before exiting.
+     * @return A new scheduler, which hasn't started any threads yet.
+     */
+    static ScheduledThreadPoolExecutor create(int poolSize, long idleTimeoutMillis) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(poolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + sThreadsStarted.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setKeepAliveTime(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        return scheduler;
+    }
+
+    /**
+     * Creates an executor that runs tasks one at a time, in the order they were submitted, on the
+     * shared threads.
+     * @return A new executor, which holds on to no thread while it has nothing to run.
+     */
+    static Executor newSerialExecutor() {
+        return new SerialExecutor(getSharedInstance());
+    }
+
+    /**
+     * Counts every thread started by schedulers created here, for diagnostics.
+     * @return The number of threads started since the process began.
+     */
+    static int getThreadsStarted() {
+        return sThreadsStarted.get();
+    }
+
+    /**
+     * Hands tasks to another executor one at a time, so that each one starts after the previous
+     * one finished.
+     */
+    static final class SerialExecutor implements Executor {
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            mTasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
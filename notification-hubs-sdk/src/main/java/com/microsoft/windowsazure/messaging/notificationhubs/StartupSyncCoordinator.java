@@ -0,0 +1,136 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds Installation updates at startup until the first push channel arrives, so that the token
+ * fetch, token refreshes, and network callbacks that all fire at cold start produce one save with
+ * the final state instead of a burst of saves, most of them without a push channel.
+ *
+ * If no push channel arrives before a timeout, any held update is sent anyway. Once released,
+ * the coordinator lets every update through.
+ */
+class StartupSyncCoordinator {
+    /**
+     * How long to wait for the first push channel, if no value is specified to the constructor.
+     */
+    static final long DEFAULT_TIMEOUT_MILLIS = 10L * 1000L; // Ten seconds
+
+    /**
+     * Reported as the startup latency until the first Installation has been saved.
+     */
+    static final long LATENCY_UNKNOWN = -1;
+
+    private final ScheduledExecutorService mScheduler;
+    private final Clock mClock;
+    private final long mTimeoutMillis;
+    private final Runnable mSync;
+
+    private long mStartedAt;
+    private boolean mReleased;
+    private boolean mSyncPending;
+    private int mHeldCount;
+    private ScheduledFuture<?> mTimeout;
+    private volatile long mStartupLatencyMillis = LATENCY_UNKNOWN;
+
+    /**
+     * @param scheduler Waits out the timeout.
+     * @param clock Measures the startup latency.
+     * @param timeoutMillis How long to wait for the first push channel.
+     * @param sync Builds and saves an Installation once the held updates are released.
+     */
+    StartupSyncCoordinator(ScheduledExecutorService scheduler, Clock clock, long timeoutMillis, Runnable sync) {
+        mScheduler = scheduler;
+        mClock = clock;
+        mTimeoutMillis = timeoutMillis;
+        mSync = sync;
+    }
+
+    /**
+     * Starts holding updates, and starts the clock on the startup latency.
+     */
+    synchronized void start() {
+        mStartedAt = mClock.currentTimeMillis();
+        mTimeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w("ANH", "no push channel after " + mTimeoutMillis + "ms, sending held installation updates");
+                release();
+            }
+        }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decides whether an update has to wait for the push channel. Every update held is merged into
+     * the single one sent on release.
+     * @return True if the update was held, false if it should be sent now.
+     */
+    synchronized boolean hold() {
+        if (mReleased) {
+            return false;
+        }
+        mSyncPending = true;
+        mHeldCount++;
+        return true;
+    }
+
+    /**
+     * Called whenever a push channel is delivered, whether or not it changed.
+     */
+    void onPushChannelReady() {
+        release();
+    }
+
+    /**
+     * Called whenever an Installation is acknowledged by the backend. The first one sets the
+     * startup latency.
+     */
+    void onInstallationSaved() {
+        long latency;
+        synchronized (this) {
+            if (mStartupLatencyMillis != LATENCY_UNKNOWN) {
+                return;
+            }
+            latency = mClock.currentTimeMillis() - mStartedAt;
+            mStartupLatencyMillis = latency;
+        }
+        Log.i("ANH", "first installation saved " + latency + "ms after start");
+    }
+
+    /**
+     * @return The time from start until the first Installation was acknowledged, or
+     *         {@link #LATENCY_UNKNOWN} if none has been yet.
+     */
+    long getStartupLatencyMillis() {
+        return mStartupLatencyMillis;
+    }
+
+    /**
+     * @return The number of updates merged into the one sent on release.
+     */
+    synchronized int getHeldCount() {
+        return mHeldCount;
+    }
+
+    private void release() {
+        boolean sync;
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+            sync = mSyncPending;
+            mSyncPending = false;
+        }
+        if (sync) {
+            mSync.run();
+        }
+    }
+}
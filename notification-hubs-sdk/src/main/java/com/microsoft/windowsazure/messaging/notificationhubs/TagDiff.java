@@ -0,0 +1,71 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes exactly how a collection of tags changed as the result of a {@link TagEditor}.
+ */
+public final class TagDiff {
+    private final Set<String> mAdded;
+    private final Set<String> mRemoved;
+
+    TagDiff(Set<String> added, Set<String> removed) {
+        mAdded = Collections.unmodifiableSet(added);
+        mRemoved = Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * Compares two versions of a collection of tags.
+     * @param before The tags before the change.
+     * @param after The tags after the change.
+     * @return The tags that were added and removed.
+     */
+    static TagDiff between(Set<String> before, Set<String> after) {
+        Set<String> added = new HashSet<String>();
+        for (String tag : after) {
+            if (!before.contains(tag)) {
+                added.add(tag);
+            }
+        }
+
+        Set<String> removed = new HashSet<String>();
+        for (String tag : before) {
+            if (!after.contains(tag)) {
+                removed.add(tag);
+            }
+        }
+
+        return new TagDiff(added, removed);
+    }
+
+    /**
+     * Fetches the tags that were not present before the change, but are now.
+     * @return An unmodifiable set of tags.
+     */
+    public Set<String> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Fetches the tags that were present before the change, but no longer are.
+     * @return An unmodifiable set of tags.
+     */
+    public Set<String> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * Indicates whether the change left the tags as they were.
+     * @return True if no tag was added or removed.
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TagDiff{added=" + mAdded + ", removed=" + mRemoved + "}";
+    }
+}
@@ -0,0 +1,171 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects several changes to the tags associated with this device, so that they can be applied
+ * all at once. Changes are applied in the order they were made, against a single consistent view
+ * of the tags, and are saved together.
+ *
+ * <pre>
+ * TagDiff diff = NotificationHub.editTags()
+ *         .removeAll(Arrays.asList("Language_en-US", "Region_US"))
+ *         .add("Language_fr-FR")
+ *         .add("Region_FR")
+ *         .apply();
+ * </pre>
+ *
+ * Note that {@link #retainMatching(String)} and {@link #replaceAll(Collection)} remove every tag
+ * they don't keep, including tags set elsewhere in the application; to swap only the tags that
+ * share a prefix, use {@link NotificationHub#replaceTagsWithPrefix(String, Collection)}.
+ *
+ * An editor can be applied more than once; each time, every recorded change is applied again.
+ */
+public final class TagEditor {
+    private final TagVisitor mVisitor;
+    private final Runnable mOnChanged;
+    private final List<Operation> mOperations = new ArrayList<Operation>();
+
+    /**
+     * A single recorded change.
+     */
+    private interface Operation {
+        void apply(Set<String> tags);
+    }
+
+    /**
+     * @param visitor The collection of tags to edit.
+     * @param onChanged Invoked once after a call to {@link #apply()} changes the tags, or null.
+     */
+    TagEditor(TagVisitor visitor, Runnable onChanged) {
+        mVisitor = visitor;
+        mOnChanged = onChanged;
+    }
+
+    /**
+     * Adds a single tag.
+     * @param tag The tag to include.
+     * @return This editor, for chaining.
+     */
+    public TagEditor add(String tag) {
+        return addAll(Collections.singletonList(tag));
+    }
+
+    /**
+     * Adds several tags.
+     * @param tags The tags to include.
+     * @return This editor, for chaining.
+     */
+    public TagEditor addAll(Collection<? extends String> tags) {
+        final List<String> copy = copyOf(tags);
+        mOperations.add(new Operation() {
+            @Override
+            public void apply(Set<String> target) {
+                target.addAll(copy);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes a single tag.
+     * @param tag The tag that should no longer be included.
+     * @return This editor, for chaining.
+     */
+    public TagEditor remove(String tag) {
+        return removeAll(Collections.singletonList(tag));
+    }
+
+    /**
+     * Removes several tags.
+     * @param tags The tags that should no longer be included.
+     * @return This editor, for chaining.
+     */
+    public TagEditor removeAll(Collection<? extends String> tags) {
+        final List<String> copy = copyOf(tags);
+        mOperations.add(new Operation() {
+            @Override
+            public void apply(Set<String> target) {
+                target.removeAll(copy);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes every tag that doesn't start with a given prefix.
+     * @param prefix The prefix that tags must start with to be kept.
+     * @return This editor, for chaining.
+     */
+    public TagEditor retainMatching(final String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix");
+        }
+        mOperations.add(new Operation() {
+            @Override
+            public void apply(Set<String> target) {
+                Iterator<String> tags = target.iterator();
+                while (tags.hasNext()) {
+                    if (!tags.next().startsWith(prefix)) {
+                        tags.remove();
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces every tag with a new collection of tags.
+     * @param tags The only tags that should be included.
+     * @return This editor, for chaining.
+     */
+    public TagEditor replaceAll(Collection<? extends String> tags) {
+        final List<String> copy = copyOf(tags);
+        mOperations.add(new Operation() {
+            @Override
+            public void apply(Set<String> target) {
+                target.clear();
+                target.addAll(copy);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Applies every recorded change at once, saves the result, and requests a single Installation
+     * update if anything changed.
+     * @return Exactly which tags were added and removed, compared to the tags before this call.
+     */
+    public TagDiff apply() {
+        TagDiff diff = mVisitor.editTags(new InstallationStateStore.TagMutation() {
+            @Override
+            public void apply(Set<String> tags) {
+                for (Operation operation : mOperations) {
+                    operation.apply(tags);
+                }
+            }
+        });
+
+        if (!diff.isEmpty() && mOnChanged != null) {
+            mOnChanged.run();
+        }
+        return diff;
+    }
+
+    private static List<String> copyOf(Collection<? extends String> tags) {
+        if (tags == null) {
+            throw new IllegalArgumentException("tags");
+        }
+        List<String> copy = new ArrayList<String>(tags);
+        if (copy.contains(null)) {
+            throw new IllegalArgumentException("tags");
+        }
+        return copy;
+    }
+}
@@ -3,12 +3,9 @@ package com.microsoft.windowsazure.messaging.notificationhubs;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import com.microsoft.windowsazure.messaging.R;
-
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Set;
 
 /**
  * Collects a set of distinct tags, in order to apply them to {@link Installation}s as they are
@@ -16,28 +13,27 @@ import java.util.Set;
  */
 class TagVisitor implements InstallationVisitor, Taggable {
 
-    private static final String PREFERENCE_KEY = "tags";
-    private SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     /**
      * Creates an TagEnricher, with the tags previously associated with this application.
      * @param context Application context
      */
     public TagVisitor(Context context) {
-        this(context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE));
+        this(InstallationStateStore.getSharedInstance(context));
     }
 
     TagVisitor(SharedPreferences sharedPreferences) {
-        mPreferences = sharedPreferences;
+        this(new InstallationStateStore(sharedPreferences));
     }
 
-    private Set<String> getTagsSet() {
-        return new HashSet<String>(mPreferences.getStringSet(PREFERENCE_KEY, new HashSet<String>()));
+    TagVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     @Override
     public void visitInstallation(Installation subject) {
-        subject.addTags(getTagsSet());
+        subject.addTags(mStore.getSnapshot().getTags());
     }
 
     /**
@@ -60,10 +56,7 @@ class TagVisitor implements InstallationVisitor, Taggable {
      */
     @Override
     public boolean addTags(Collection<? extends String> tags) {
-        Set<String> set = getTagsSet();
-        set.addAll(tags);
-        mPreferences.edit().putStringSet(PREFERENCE_KEY, set).apply();
-        return true;
+        return mStore.addTags(tags);
     }
 
     /**
@@ -85,12 +78,7 @@ class TagVisitor implements InstallationVisitor, Taggable {
      */
     @Override
     public boolean removeTags(Collection<? extends String> tags) {
-        Set<String> set = getTagsSet();
-        if(set.removeAll(tags)) {
-            mPreferences.edit().putStringSet(PREFERENCE_KEY, set).apply();
-            return true;
-        }
-        return false;
+        return mStore.removeTags(tags);
     }
 
     /**
@@ -100,7 +88,52 @@ class TagVisitor implements InstallationVisitor, Taggable {
      */
     @Override
     public Iterable<String> getTags() {
-        return getTagsSet();
+        return new HashSet<String>(mStore.getSnapshot().getTags());
+    }
+
+    /**
+     * Fetches the tags in this collection that start with a prefix.
+     *
+     * @param prefix The prefix to look for.
+     * @return The matching tags, in sorted order.
+     */
+    Iterable<String> getTagsWithPrefix(String prefix) {
+        return InstallationStateStore.getTagsWithPrefix(mStore.getSnapshot().getTags(), checkPrefix(prefix));
+    }
+
+    /**
+     * Deletes every tag in this collection that starts with a prefix.
+     *
+     * @param prefix The prefix of the tags that should no longer be in the collection.
+     * @return Exactly which tags were removed.
+     */
+    TagDiff removeTagsWithPrefix(String prefix) {
+        return mStore.removeTagsWithPrefix(checkPrefix(prefix));
+    }
+
+    /**
+     * Replaces every tag in this collection that starts with a prefix.
+     *
+     * @param prefix The prefix of the tags to replace.
+     * @param tags The tags to include instead.
+     * @return Exactly which tags were added and removed.
+     */
+    TagDiff replaceTagsWithPrefix(String prefix, Collection<? extends String> tags) {
+        checkPrefix(prefix);
+        if (tags == null || tags.contains(null)) {
+            throw new IllegalArgumentException("tags");
+        }
+        return mStore.replaceTagsWithPrefix(prefix, tags);
+    }
+
+    /**
+     * Applies several changes to this collection at once.
+     *
+     * @param mutation The changes to apply to a copy of the current tags.
+     * @return Exactly which tags were added and removed.
+     */
+    TagDiff editTags(InstallationStateStore.TagMutation mutation) {
+        return mStore.editTags(mutation);
     }
 
     /**
@@ -108,6 +141,13 @@ class TagVisitor implements InstallationVisitor, Taggable {
      */
     @Override
     public void clearTags() {
-        mPreferences.edit().remove(PREFERENCE_KEY).apply();
+        mStore.clearTags();
+    }
+
+    private static String checkPrefix(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix");
+        }
+        return prefix;
     }
 }
@@ -3,17 +3,10 @@ package com.microsoft.windowsazure.messaging.notificationhubs;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import com.microsoft.windowsazure.messaging.R;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Collects a set of distinct templates, in order to apply them to {@link Installation}s as they are
@@ -21,18 +14,21 @@ import java.util.Set;
  */
 class TemplateVisitor implements InstallationVisitor {
 
-    private static final String PREFERENCE_KEY = "templates";
-    private final SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     /**
      * Creates an empty TemplateVisitor.
      */
     public TemplateVisitor(Context context) {
-        this(context.getSharedPreferences(String.valueOf(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE));
+        this(InstallationStateStore.getSharedInstance(context));
     }
 
     TemplateVisitor(SharedPreferences sharedPreferences) {
-        mPreferences = sharedPreferences;
+        this(new InstallationStateStore(sharedPreferences));
+    }
+
+    TemplateVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     /**
@@ -47,26 +43,20 @@ class TemplateVisitor implements InstallationVisitor {
 
     @Override
     public void visitInstallation(Installation subject) {
-        subject.setTemplates(getSharedPreferenceTemplates());
+        subject.setTemplates(getTemplateCopies());
     }
 
     /**
-     * Get a set of templates.
+     * Copies the stored templates, so that changes made to them don't affect the store.
      *
      * @return A map of templates.
      */
-    private Map<String, InstallationTemplate> getSharedPreferenceTemplates() {
-        Set<String> preferencesSet = mPreferences.getStringSet(PREFERENCE_KEY, new HashSet<String>());
-        if (preferencesSet == null) {
-            return new HashMap<>();
-        }
-
-        try {
-            return deserializeInstallationTemplateFromJson(preferencesSet);
-        }
-        catch (JSONException ex) {
-            throw new RuntimeException("Unable to deserialize installation template", ex);
+    private Map<String, InstallationTemplate> getTemplateCopies() {
+        Map<String, InstallationTemplate> templates = new HashMap<>();
+        for (Map.Entry<String, InstallationTemplate> template : mStore.getSnapshot().getTemplates().entrySet()) {
+            templates.put(template.getKey(), InstallationTemplate.copy(template.getValue()));
         }
+        return templates;
     }
 
     /**
@@ -86,13 +76,7 @@ class TemplateVisitor implements InstallationVisitor {
      * Installation.
      */
     public void setTemplates(Map<String, InstallationTemplate> templates) {
-        Map<String, InstallationTemplate> sharedPreferenceTemplates = getSharedPreferenceTemplates();
-        sharedPreferenceTemplates.putAll(templates);
-        Set<String> serializedTemplatesSet = new HashSet<>();
-        for (Map.Entry<String, InstallationTemplate> template: sharedPreferenceTemplates.entrySet()) {
-            serializedTemplatesSet.add(serializeInstallationTemplateToJson(template.getKey(), template.getValue()));
-        }
-        mPreferences.edit().putStringSet(PREFERENCE_KEY, serializedTemplatesSet).apply();
+        mStore.setTemplates(templates);
     }
 
     /**
@@ -112,14 +96,7 @@ class TemplateVisitor implements InstallationVisitor {
      * @return True if any of the templates had previously been associated with this collection.
      */
     public boolean removeTemplates(List<String> templates) {
-        Map<String, InstallationTemplate> sharedPreferenceTemplates = getSharedPreferenceTemplates();
-        sharedPreferenceTemplates.keySet().removeAll(templates);
-        Set<String> serializedTemplatesSet = new HashSet<>();
-        for (Map.Entry<String, InstallationTemplate> installation: sharedPreferenceTemplates.entrySet()) {
-            serializedTemplatesSet.add(serializeInstallationTemplateToJson(installation.getKey(), installation.getValue()));
-        }
-        mPreferences.edit().putStringSet(PREFERENCE_KEY, serializedTemplatesSet).apply();
-        return true;
+        return mStore.removeTemplates(templates);
     }
 
     /**
@@ -128,8 +105,8 @@ class TemplateVisitor implements InstallationVisitor {
      * @return Return template associated with name
      */
     public InstallationTemplate getTemplate(String templateName) {
-        Map<String, InstallationTemplate> templates = getSharedPreferenceTemplates();
-        return templates.get(templateName);
+        InstallationTemplate template = mStore.getSnapshot().getTemplates().get(templateName);
+        return template == null ? null : InstallationTemplate.copy(template);
     }
 
     /**
@@ -138,45 +115,13 @@ class TemplateVisitor implements InstallationVisitor {
      * @return A set of templates.
      */
     public Iterable<Map.Entry<String, InstallationTemplate>> getTemplates() {
-        return getSharedPreferenceTemplates().entrySet();
+        return getTemplateCopies().entrySet();
     }
 
     /**
      * Empties the collection of templates.
      */
     public void clearTemplates() {
-        mPreferences.edit().remove(PREFERENCE_KEY).apply();
-    }
-
-    /**
-     * Serialize InstallationTemplate to JSONObject.
-     *
-     * @param name Name of template
-     * @param installationTemplate The templates that should no longer be in the collection.
-     * @return serialized templateObject.
-     */
-    private static String serializeInstallationTemplateToJson(String name, InstallationTemplate installationTemplate) {
-        return InstallationTemplate.serialize(name, installationTemplate).toString();
-    }
-
-    /**
-     * Deserialize JSONObject to InstallationTemplate.
-     *
-     * @param installationTemplatesSet The templates that should no longer be in the collection.
-     * @return A set of deserialized templates.
-     * @throws JSONException When there's a schema-mismatch of the object to populate, and what
-     * appears in the serialized form of the template.
-     */
-    private static Map<String, InstallationTemplate> deserializeInstallationTemplateFromJson(Set<String> installationTemplatesSet) throws JSONException {
-        Map<String, InstallationTemplate> templates = new HashMap<>();
-
-        for (String preferenceString : installationTemplatesSet) {
-            JSONObject preference = new JSONObject(preferenceString);
-            String name = preference.getString("name");
-            InstallationTemplate template = InstallationTemplate.deserialize(preference);
-            templates.put(name, template);
-        }
-
-        return templates;
+        mStore.clearTemplates();
     }
 }
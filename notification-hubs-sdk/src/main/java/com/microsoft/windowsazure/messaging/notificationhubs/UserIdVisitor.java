@@ -1,18 +1,19 @@
 package com.microsoft.windowsazure.messaging.notificationhubs;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import com.microsoft.windowsazure.messaging.R;
 
 /**
  * Associates the User ID with any Installation that it visits.
  */
 class UserIdVisitor implements InstallationVisitor {
-    private static final String PREFERENCE_KEY = "userId";
-    private final SharedPreferences mPreferences;
+    private final InstallationStateStore mStore;
 
     public UserIdVisitor(Context context) {
-        mPreferences = context.getSharedPreferences(context.getString(R.string.installation_enrichment_file_key), Context.MODE_PRIVATE);
+        this(InstallationStateStore.getSharedInstance(context));
+    }
+
+    UserIdVisitor(InstallationStateStore store) {
+        mStore = store;
     }
 
     /**
@@ -28,7 +29,7 @@ class UserIdVisitor implements InstallationVisitor {
      * @return The unique id, null if it has not been set.
      */
     public String getUserId() {
-        return mPreferences.getString(PREFERENCE_KEY, null);
+        return mStore.getSnapshot().getUserId();
     }
 
     /**
@@ -38,11 +39,6 @@ class UserIdVisitor implements InstallationVisitor {
      * @return True if user id was updated, False if current value is equal to the new value
      */
     public boolean setUserId(String userId) {
-        if((userId != null && !userId.equals(getUserId()))
-        || (userId == null && getUserId() != null)) {
-            mPreferences.edit().putString(PREFERENCE_KEY, userId).apply();
-            return true;
-        }
-        return false;
+        return mStore.setUserId(userId);
     }
 }
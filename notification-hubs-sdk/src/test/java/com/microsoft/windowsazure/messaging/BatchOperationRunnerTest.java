@@ -0,0 +1,127 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchOperationRunnerTest {
+
+    @Test
+    public void ConcurrencyIsBoundedByParallelism() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        Map<String, Callable<Integer>> operations = new LinkedHashMap<String, Callable<Integer>>();
+        for (int i = 0; i < 12; i++) {
+            final int index = i;
+            operations.put("template" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return index;
+                }
+            });
+        }
+
+        Map<String, Future<Integer>> results = new BatchOperationRunner(3, "test-").runAll(operations);
+
+        assertEquals(new ArrayList<String>(operations.keySet()), new ArrayList<String>(results.keySet()));
+        for (int i = 0; i < 12; i++) {
+            assertEquals(Integer.valueOf(i), results.get("template" + i).get());
+        }
+        assertEquals(3, maxRunning.get());
+    }
+
+    @Test
+    public void FailuresAreReportedPerOperation() throws Exception {
+        Map<String, Callable<String>> operations = new LinkedHashMap<String, Callable<String>>();
+        operations.put("ok", new Callable<String>() {
+            @Override
+            public String call() {
+                return "deleted";
+            }
+        });
+        operations.put("failed", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new NotificationHubUnauthorizedException();
+            }
+        });
+
+        Map<String, Future<String>> results = new BatchOperationRunner(4, "test-").runAll(operations);
+
+        assertEquals("deleted", results.get("ok").get());
+        try {
+            results.get("failed").get();
+            fail("expected a failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NotificationHubUnauthorizedException);
+        }
+    }
+
+    @Test
+    public void InterruptCancelsPendingOperations() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger completed = new AtomicInteger();
+        final Map<String, Callable<Void>> operations = new LinkedHashMap<String, Callable<Void>>();
+        for (int i = 0; i < 4; i++) {
+            operations.put("registration" + i, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    Thread.sleep(10000);
+                    completed.incrementAndGet();
+                    return null;
+                }
+            });
+        }
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new BatchOperationRunner(1, "test-").runAll(operations);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        caller.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        caller.interrupt();
+        caller.join(5000);
+
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertEquals(0, completed.get());
+    }
+
+    @Test
+    public void EmptyBatchCompletesImmediately() throws Exception {
+        assertTrue(new BatchOperationRunner(1, "test-").runAll(new LinkedHashMap<String, Callable<Void>>()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ParallelismMustBePositive() {
+        new BatchOperationRunner(0, "test-");
+    }
+}
@@ -0,0 +1,122 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ConnectionResponseTest {
+    private MockHttpsServer mServer;
+    private final AtomicReference<MockHttpsServer.Response> mResponse = new AtomicReference<MockHttpsServer.Response>();
+
+    @Before
+    public void Before() throws Exception {
+        mServer = new MockHttpsServer(new MockHttpsServer.Responder() {
+            @Override
+            public MockHttpsServer.Response respond(String method, String path, byte[] body) {
+                return mResponse.get();
+            }
+        });
+    }
+
+    @After
+    public void After() {
+        mServer.stop();
+    }
+
+    @Test
+    public void ContentIsDecodedAsUtf8Exactly() throws Exception {
+        String body = "<entry>caf\u00e9 \u6771\u4eac \ud83d\udd14</entry>\r\n<entry/>";
+        mResponse.set(new MockHttpsServer.Response(200, body));
+
+        assertEquals(body, newConnection().executeRequest("myHub/registrations/1", (String) null, null, "GET"));
+    }
+
+    @Test
+    public void ContentLargerThanTheBufferIsReadWhole() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < Connection.MAX_RETAINED_RESPONSE_BUFFER_SIZE * 2) {
+            body.append("<entry>\u00e9</entry>");
+        }
+        mResponse.set(new MockHttpsServer.Response(200, body.toString()));
+        Connection connection = newConnection();
+
+        assertEquals(body.toString(), connection.executeRequest("myHub/registrations", (String) null, null, "GET"));
+
+        mResponse.set(new MockHttpsServer.Response(200, "<entry/>"));
+        assertEquals("<entry/>", connection.executeRequest("myHub/registrations/1", (String) null, null, "GET"));
+    }
+
+    @Test
+    public void EmptyContentIsNull() throws Exception {
+        mResponse.set(new MockHttpsServer.Response(200, null));
+
+        assertNull(newConnection().executeRequest("myHub/registrations/1", (String) null, null, "DELETE"));
+    }
+
+    @Test
+    public void HeaderOnlyRequestsKeepTheConnection() throws Exception {
+        mResponse.set(new MockHttpsServer.Response(201, "<ignored>" + repeat('x', 64 * 1024) + "</ignored>", "https://test/myHub/registrationids/1"));
+        Connection connection = newConnection();
+
+        for (int i = 0; i < 3; i++) {
+            String location = connection.executeRequest("myHub/registrationids/", null, null, "POST", "Location");
+            assertEquals("https://test/myHub/registrationids/1", location);
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void ReadersGetTheStreamAndTheRestIsDiscarded() throws Exception {
+        mResponse.set(new MockHttpsServer.Response(200, "<entry>" + repeat('x', 64 * 1024) + "</entry>"));
+        mServer.setGzipResponses(true);
+        Connection connection = newConnection();
+        Connection.ResponseReader<String> firstBytes = new Connection.ResponseReader<String>() {
+            @Override
+            public String read(HttpURLConnection conn, InputStream body) throws Exception {
+                byte[] start = new byte[7];
+                int count = 0;
+                while (count < start.length) {
+                    count += body.read(start, count, start.length - count);
+                }
+                return new String(start, "UTF-8");
+            }
+        };
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("<entry>", connection.executeRequest("myHub/registrations/1", (Connection.ContentWriter) null, null, "GET", firstBytes));
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void ErrorContentIsKeptForTheException() throws Exception {
+        mResponse.set(new MockHttpsServer.Response(400, "Bad \u00e9"));
+
+        try {
+            newConnection().executeRequest("myHub/registrations/1", (String) null, null, "GET");
+            fail("expected the request to fail");
+        } catch (NotificationHubException e) {
+            assertEquals(400, e.getStatusCode());
+            assertEquals("Bad \u00e9", e.getMessage());
+        }
+    }
+
+    private Connection newConnection() {
+        return new Connection(mServer.getConnectionString(), mServer.trust(new KeepAliveHttpTransport()), new RequestCompression());
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
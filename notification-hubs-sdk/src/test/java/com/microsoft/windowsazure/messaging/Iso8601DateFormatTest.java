@@ -0,0 +1,126 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Iso8601DateFormatTest {
+
+    // 2030-01-01T00:00:00Z
+    private static final long EXPIRATION_MILLIS = 1893456000000L;
+
+    // 9999-12-31T23:59:59.999Z
+    private static final long MAX_MILLIS = 253402300799999L;
+
+    @Test
+    public void FormatMatchesSimpleDateFormatInUtc() {
+        SimpleDateFormat reference = createReferenceFormat();
+        Random random = new Random(7);
+        long[] fixed = { 0, -1, EXPIRATION_MILLIS, 951782400000L /* 2000-02-29 */, -2208988800000L /* 1900-01-01 */, MAX_MILLIS };
+        for (long millis : fixed) {
+            assertEquals(reference.format(new Date(millis)), Iso8601DateFormat.format(millis));
+        }
+        for (int i = 0; i < 100000; i++) {
+            long millis = (long) (random.nextDouble() * MAX_MILLIS);
+            assertEquals(reference.format(new Date(millis)), Iso8601DateFormat.format(millis));
+        }
+    }
+
+    @Test
+    public void ParseAcceptsTheLayoutsTheBackendSends() throws ParseException {
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse("2030-01-01T00:00:00.0000000Z"));
+        assertEquals(EXPIRATION_MILLIS + 123, Iso8601DateFormat.parse("2030-01-01T00:00:00.1239999Z"));
+        assertEquals(EXPIRATION_MILLIS + 500, Iso8601DateFormat.parse("2030-01-01T00:00:00.5Z"));
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse("2030-01-01T00:00:00"));
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse("2030-01-01T00:00+0000"));
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse("2030-01-01T01:30:00+01:30"));
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse("2029-12-31T16:00-0800"));
+        assertEquals(EXPIRATION_MILLIS, Iso8601DateFormat.parse(Iso8601DateFormat.format(EXPIRATION_MILLIS)));
+    }
+
+    @Test
+    public void ParseRejectsInvalidTimestamps() {
+        String[] invalid = {
+                null,
+                "",
+                "2030-01-01",
+                "2030-01-01T00",
+                "2030-02-29T00:00Z",
+                "2030-13-01T00:00Z",
+                "2030-01-01T24:00Z",
+                "2030-01-01T00:60Z",
+                "2030-01-01T00:00:00.Z",
+                "2030-01-01T00:00:00Zjunk",
+                "2030-01-01T00:00+2400",
+                "2030-01-01 00:00:00Z",
+                "203O-01-01T00:00Z",
+        };
+        for (String value : invalid) {
+            try {
+                Iso8601DateFormat.parse(value);
+                fail("expected " + value + " to be rejected");
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void ConcurrentCallsAgreeWithASingleThread() throws Exception {
+        final int threads = 8;
+        final int perThread = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        // Each thread checks against its own reference, which is never shared.
+                        SimpleDateFormat reference = createReferenceFormat();
+                        Random random = new Random(seed);
+                        start.await();
+                        int mismatches = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            long millis = (long) (random.nextDouble() * MAX_MILLIS);
+                            String formatted = Iso8601DateFormat.format(millis);
+                            if (!formatted.equals(reference.format(new Date(millis)))
+                                    || Iso8601DateFormat.parse(formatted) != millis - millis % 60000) {
+                                mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(0), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static SimpleDateFormat createReferenceFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
@@ -0,0 +1,198 @@
+package com.microsoft.windowsazure.messaging;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveHttpTransportTest {
+    private static final String FEED = "<feed xmlns=\"http://www.w3.org/2005/Atom\"></feed>";
+    private static final String ENTRY = "<entry xmlns=\"http://www.w3.org/2005/Atom\"></entry>";
+
+    private MockHttpsServer mServer;
+    private volatile String mRedirectLocation;
+
+    @Before
+    public void Before() throws Exception {
+        mServer = new MockHttpsServer(new MockHttpsServer.Responder() {
+            @Override
+            public MockHttpsServer.Response respond(String method, String path, byte[] body) {
+                if (path.equals("/redirect")) {
+                    return new MockHttpsServer.Response(302, null, mRedirectLocation);
+                } else if (method.equals("POST")) {
+                    return new MockHttpsServer.Response(201, null, "https://127.0.0.1/myHub/registrationids/1234-5678");
+                } else if (method.equals("GET")) {
+                    return new MockHttpsServer.Response(200, FEED);
+                }
+                return new MockHttpsServer.Response(200, ENTRY);
+            }
+        });
+        // The same server under another host name
+        mRedirectLocation = "https://localhost:" + mServer.getUrl("/").getPort() + "/myHub/Registrations/";
+    }
+
+    @After
+    public void After() {
+        mServer.stop();
+    }
+
+    @Test
+    @LargeTest
+    public void KeepAliveTransportReusesConnectionsAcrossRegistrationFlows() throws Exception {
+        final int flows = 20;
+
+        HttpTransport keepAlive = mServer.trust(new KeepAliveHttpTransport());
+        long start = System.nanoTime();
+        for (int i = 0; i < flows; i++) {
+            runRegistrationFlow(keepAlive);
+        }
+        long keepAliveNanos = System.nanoTime() - start;
+        int keepAliveHandshakes = mServer.getConnectionCount();
+
+        System.out.println(String.format(
+                "registration flows: %d, requests per flow: 3, handshakes per flow: %.2f, ms per flow: %.2f",
+                flows,
+                keepAliveHandshakes / (double) flows,
+                keepAliveNanos / 1e6 / flows));
+
+        assertEquals(3 * flows, mServer.getRequestCount());
+        assertTrue("Keep-alive must reuse connections across requests and flows", keepAliveHandshakes < flows);
+    }
+
+    @Test
+    public void UnreusableConnectionsAreNotKeptAlive() throws Exception {
+        HttpTransport transport = mServer.trust(new KeepAliveHttpTransport());
+        URL url = mServer.getUrl("/myHub/Registrations/");
+
+        execute(transport, "GET", url, null);
+        execute(transport, "GET", url, null);
+        assertEquals(1, mServer.getConnectionCount());
+
+        // a response abandoned before it was read cannot go back to the keep-alive cache
+        HttpURLConnection abandoned = transport.openConnection(url);
+        assertEquals(200, abandoned.getResponseCode());
+        transport.releaseConnection(abandoned, false);
+
+        execute(transport, "GET", url, null);
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void ConcurrentConnectionsPerHostAreLimited() throws Exception {
+        final KeepAliveHttpTransport transport = new KeepAliveHttpTransport(1, KeepAliveHttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS);
+        final URL url = mServer.getUrl("/myHub/Registrations/");
+        HttpURLConnection first = transport.openConnection(url);
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.releaseConnection(transport.openConnection(url), false);
+                } catch (IOException e) {
+                    failed.set(true);
+                }
+                opened.countDown();
+            }
+        });
+        second.start();
+
+        assertFalse("The second connection must wait for the first one to be released", opened.await(200, TimeUnit.MILLISECONDS));
+        transport.releaseConnection(first, false);
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+    }
+
+    @Test
+    public void RedirectedConnectionsReleaseTheLimitOfTheirFirstHost() throws Exception {
+        final HttpTransport transport = mServer.trust(new KeepAliveHttpTransport(1, KeepAliveHttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS));
+        final URL url = mServer.getUrl("/redirect");
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread requests = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        assertEquals(FEED, execute(transport, "GET", url, null));
+                    }
+                } catch (IOException e) {
+                    failed.set(true);
+                }
+                done.countDown();
+            }
+        });
+        requests.setDaemon(true);
+        requests.start();
+
+        assertTrue("Every redirected request must give its connection slot back", done.await(5, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+    }
+
+    @Test
+    public void IdleHostLimitsAreForgotten() throws Exception {
+        KeepAliveHttpTransport transport = new KeepAliveHttpTransport(2, 0);
+
+        transport.releaseConnection(transport.openConnection(new URL("https://first.servicebus.windows.net/hub")), false);
+        assertEquals(1, transport.getTrackedHostCount());
+
+        Thread.sleep(5);
+        transport.releaseConnection(transport.openConnection(new URL("https://second.servicebus.windows.net/hub")), false);
+        assertEquals("The limit of the idle first host must have been forgotten", 1, transport.getTrackedHostCount());
+    }
+
+    /**
+     * Performs the three round trips of a cold NotificationHub.register call: refresh, create the
+     * registration id, then upsert.
+     */
+    private void runRegistrationFlow(HttpTransport transport) throws IOException {
+        execute(transport, "GET", mServer.getUrl("/myHub/Registrations/"), null);
+        execute(transport, "POST", mServer.getUrl("/myHub/registrationids/"), null);
+        execute(transport, "PUT", mServer.getUrl("/myHub/Registrations/1234-5678"), ENTRY);
+    }
+
+    private static String execute(HttpTransport transport, String method, URL url, String body) throws IOException {
+        HttpURLConnection conn = transport.openConnection(url);
+        boolean reusable = false;
+        try {
+            conn.setRequestMethod(method);
+            if (body != null) {
+                conn.setDoOutput(true);
+                OutputStream out = conn.getOutputStream();
+                out.write(body.getBytes("UTF-8"));
+                out.close();
+            }
+
+            assertTrue(conn.getResponseCode() < 300);
+            InputStream in = conn.getInputStream();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            in.close();
+            reusable = true;
+            return content.toString("UTF-8");
+        } finally {
+            transport.releaseConnection(conn, reusable);
+        }
+    }
+}
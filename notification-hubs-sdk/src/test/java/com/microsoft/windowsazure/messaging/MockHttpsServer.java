@@ -0,0 +1,240 @@
+package com.microsoft.windowsazure.messaging;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A local HTTPS server standing in for a Notification Hub, which counts how many distinct TCP (and
+ * therefore TLS) connections its clients opened.
+ */
+public class MockHttpsServer implements HttpHandler {
+    private static final String KEY_STORE_RESOURCE = "/mock-https-server.p12";
+    private static final char[] KEY_STORE_PASSWORD = "changeit".toCharArray();
+
+    /**
+     * Produces the response of a single request.
+     */
+    public interface Responder {
+        Response respond(String method, String path, byte[] body);
+    }
+
+    /**
+     * A canned response.
+     */
+    public static class Response {
+        final int mStatus;
+        final String mBody;
+        final String mLocation;
+
+        public Response(int status, String body) {
+            this(status, body, null);
+        }
+
+        public Response(int status, String body, String location) {
+            mStatus = status;
+            mBody = body;
+            mLocation = location;
+        }
+    }
+
+    private final HttpsServer mServer;
+    private final SSLSocketFactory mClientSocketFactory;
+    private final Set<String> mClientConnections = new HashSet<String>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final List<Headers> mRequestHeaders = new ArrayList<Headers>();
+    private volatile Responder mResponder;
+    private volatile boolean mGzipResponses;
+
+    public MockHttpsServer(Responder responder) throws Exception {
+        mResponder = responder;
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream keyStream = MockHttpsServer.class.getResourceAsStream(KEY_STORE_RESOURCE);
+        try {
+            keyStore.load(keyStream, KEY_STORE_PASSWORD);
+        } finally {
+            keyStream.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEY_STORE_PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{new TrustEverything()}, null);
+        mClientSocketFactory = clientContext.getSocketFactory();
+
+        mServer = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/", this);
+        mServer.start();
+    }
+
+    public void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    /**
+     * @param gzipResponses True to compress response bodies for clients that accept gzip.
+     */
+    public void setGzipResponses(boolean gzipResponses) {
+        mGzipResponses = gzipResponses;
+    }
+
+    /**
+     * @return The connection string pointing at this server.
+     */
+    public String getConnectionString() {
+        return "Endpoint=sb://127.0.0.1:" + mServer.getAddress().getPort() + "/;SharedAccessKeyName=DefaultListenSharedAccessSignature;SharedAccessKey=secret123";
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("https://127.0.0.1:" + mServer.getAddress().getPort() + path);
+    }
+
+    /**
+     * @return The number of distinct connections clients opened, each of which cost a TLS handshake.
+     */
+    public int getConnectionCount() {
+        synchronized (mClientConnections) {
+            return mClientConnections.size();
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Gets the values of a header, in the order of the requests sending it.
+     */
+    public List<String> getRequestHeaderValues(String name) {
+        List<String> values = new ArrayList<String>();
+        synchronized (mRequestHeaders) {
+            for (Headers headers : mRequestHeaders) {
+                if (headers.containsKey(name)) {
+                    values.add(headers.getFirst(name));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Wraps a transport so that the connections it opens trust this server's self-signed certificate.
+     */
+    public HttpTransport trust(final HttpTransport transport) {
+        return new HttpTransport() {
+            @Override
+            public HttpURLConnection openConnection(URL url) throws IOException {
+                HttpURLConnection conn = transport.openConnection(url);
+                if (conn instanceof HttpsURLConnection) {
+                    ((HttpsURLConnection) conn).setSSLSocketFactory(mClientSocketFactory);
+                    ((HttpsURLConnection) conn).setHostnameVerifier(new HostnameVerifier() {
+                        @Override
+                        public boolean verify(String hostname, SSLSession session) {
+                            return true;
+                        }
+                    });
+                }
+                return conn;
+            }
+
+            @Override
+            public void releaseConnection(HttpURLConnection conn, boolean reusable) {
+                transport.releaseConnection(conn, reusable);
+            }
+        };
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        synchronized (mClientConnections) {
+            mClientConnections.add(exchange.getRemoteAddress().toString());
+        }
+        mRequestCount.incrementAndGet();
+        Headers requestHeaders = new Headers();
+        requestHeaders.putAll(exchange.getRequestHeaders());
+        synchronized (mRequestHeaders) {
+            mRequestHeaders.add(requestHeaders);
+        }
+
+        ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            requestBody.write(buffer, 0, read);
+        }
+        in.close();
+
+        Response response = mResponder.respond(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), requestBody.toByteArray());
+        byte[] body = response.mBody == null ? new byte[0] : response.mBody.getBytes("UTF-8");
+        if (response.mLocation != null) {
+            exchange.getResponseHeaders().add("Location", response.mLocation);
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (mGzipResponses && body.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        // A zero length selects chunked encoding, which keeps the connection reusable for empty bodies
+        exchange.sendResponseHeaders(response.mStatus, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static class TrustEverything implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.microsoft.windowsazure.messaging;
+
+import android.content.SharedPreferences;
+
+import com.microsoft.windowsazure.messaging.Registration.RegistrationType;
+import com.microsoft.windowsazure.messaging.notificationhubs.MockSharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs NotificationHub operations against a mock hub, which hands out registration ids, keeps
+ * the registrations it is sent and stamps each of them with a new ETag.
+ */
+public class NotificationHubServerTest {
+
+    /**
+     * A change made by another client right before the next update of a stored registration.
+     */
+    private enum Conflict {
+        NONE,
+        /** The registration is updated with its current content */
+        TOUCHED,
+        /** The registration is updated with the content of the next update */
+        SAME_CONTENT
+    }
+
+    private static final String HUB_PATH = "myHub";
+    private static final String FEED = "<feed xmlns=\"http://www.w3.org/2005/Atom\"></feed>";
+    private static final String REGISTRATION_NAME_KEY_PREFIX = "__NH_REG_NAME_";
+
+    private MockHttpsServer mServer;
+    private final AtomicInteger mRegistrationIds = new AtomicInteger();
+    private final AtomicInteger mETags = new AtomicInteger();
+    private final AtomicInteger mPuts = new AtomicInteger();
+    private final Map<String, String> mStoredRegistrations = new ConcurrentHashMap<String, String>();
+    private volatile Conflict mConflict = Conflict.NONE;
+    private final CommitCountingPreferences mPreferences = new CommitCountingPreferences();
+    private volatile String mRejectedTemplate;
+    private NotificationHub mHub;
+
+    @Before
+    public void Before() throws Exception {
+        mServer = new MockHttpsServer(new MockHttpsServer.Responder() {
+            @Override
+            public MockHttpsServer.Response respond(String method, String path, byte[] body) {
+                return respondAsHub(method, path, body);
+            }
+        });
+        mHub = new NotificationHub(HUB_PATH, mServer.getConnectionString(), mPreferences);
+        mHub.setHttpTransport(mServer.trust(new KeepAliveHttpTransport()));
+    }
+
+    @After
+    public void After() {
+        mServer.stop();
+    }
+
+    @Test
+    public void BaiduRegistrationsLeaveTheSharedRegistrationTypeAlone() throws Exception {
+        RegistrationType shared = PnsSpecificRegistrationFactory.getInstance().getRegistrationType();
+
+        Registration registration = mHub.registerBaiduAsync("user", "channel", "tag").get(10, TimeUnit.SECONDS);
+        TemplateRegistration template = mHub.registerBaiduTemplateAsync("user", "channel", "template", "{}").get(10, TimeUnit.SECONDS);
+
+        assertTrue(registration instanceof BaiduNativeRegistration);
+        assertEquals("id-1", registration.getRegistrationId());
+        assertTrue(template instanceof BaiduTemplateRegistration);
+        assertEquals(shared, PnsSpecificRegistrationFactory.getInstance().getRegistrationType());
+    }
+
+    @Test
+    public void SynchronousBaiduRegistrationsSwitchTheSharedRegistrationType() throws Exception {
+        PnsSpecificRegistrationFactory factory = PnsSpecificRegistrationFactory.getInstance();
+        RegistrationType shared = factory.getRegistrationType();
+
+        try {
+            Registration registration = mHub.registerBaidu("user", "channel", "tag");
+
+            assertTrue(registration instanceof BaiduNativeRegistration);
+            assertEquals(RegistrationType.baidu, factory.getRegistrationType());
+        } finally {
+            factory.setRegistrationType(shared);
+        }
+    }
+
+    @Test
+    public void EveryTemplateGetsItsOwnResult() throws Exception {
+        Map<String, TemplateRegistrationResult> results = mHub.registerTemplates("handle", templates("first", "second", "third"), "tag");
+
+        assertEquals(Arrays.asList("first", "second", "third"), new ArrayList<String>(results.keySet()));
+        for (Map.Entry<String, TemplateRegistrationResult> result : results.entrySet()) {
+            assertEquals(result.getKey(), result.getValue().getTemplateName());
+            assertTrue(result.getValue().isSuccessful());
+            assertNull(result.getValue().getException());
+            assertEquals(result.getKey(), result.getValue().getRegistration().getTemplateName());
+        }
+    }
+
+    @Test
+    public void FailedTemplatesDoNotFailTheOthers() throws Exception {
+        mRejectedTemplate = "second";
+
+        Map<String, TemplateRegistrationResult> results = mHub.registerTemplates("handle", templates("first", "second", "third"));
+
+        assertTrue(results.get("first").isSuccessful());
+        assertTrue(results.get("third").isSuccessful());
+
+        TemplateRegistrationResult failed = results.get("second");
+        assertFalse(failed.isSuccessful());
+        assertNull(failed.getRegistration());
+        assertTrue(failed.getException() instanceof NotificationHubException);
+        assertEquals(400, ((NotificationHubException) failed.getException()).getStatusCode());
+
+        assertEquals(results.get("first").getRegistration().getRegistrationId(), mPreferences.getString(REGISTRATION_NAME_KEY_PREFIX + "first", null));
+        assertEquals(results.get("third").getRegistration().getRegistrationId(), mPreferences.getString(REGISTRATION_NAME_KEY_PREFIX + "third", null));
+        assertNull(mPreferences.getString(REGISTRATION_NAME_KEY_PREFIX + "second", null));
+    }
+
+    @Test
+    public void RegistrationIdsOfABatchAreStoredInOneCommit() throws Exception {
+        mHub.setBatchParallelism(2);
+
+        mHub.registerTemplates("handle", templates("first", "second", "third", "fourth"));
+
+        assertEquals(1, mPreferences.mRegistrationIdCommits.get());
+        for (String template : Arrays.asList("first", "second", "third", "fourth")) {
+            assertTrue(mPreferences.getString(REGISTRATION_NAME_KEY_PREFIX + template, null).startsWith("id-"));
+        }
+    }
+
+    @Test
+    public void RegistrationsChangedElsewhereAreReadBeforeBeingUpdated() throws Exception {
+        mHub.registerTemplate("handle", "template", "{\"first\":1}");
+        String path = "/" + HUB_PATH + "/Registrations/id-1";
+
+        mConflict = Conflict.TOUCHED;
+        TemplateRegistration registration = mHub.registerTemplate("handle", "template", "{\"second\":2}");
+
+        // the first update was conditioned on the cached ETag, the second one on the ETag read back
+        assertEquals(Arrays.asList("\"1\"", "\"2\""), mServer.getRequestHeaderValues("If-Match"));
+        assertEquals("3", registration.getETag());
+        assertTrue(mStoredRegistrations.get(path).contains("{\"second\":2}"));
+    }
+
+    @Test
+    public void RegistrationsAlreadyChangedElsewhereToTheSameContentAreNotSentAgain() throws Exception {
+        mHub.registerTemplate("handle", "template", "{\"first\":1}");
+
+        mConflict = Conflict.SAME_CONTENT;
+        TemplateRegistration registration = mHub.registerTemplate("handle", "template", "{\"second\":2}");
+
+        assertEquals(Arrays.asList("\"1\""), mServer.getRequestHeaderValues("If-Match"));
+        // the creation and the update rejected by the precondition
+        assertEquals(2, mPuts.get());
+        assertEquals("2", registration.getETag());
+        assertEquals("{\"second\":2}", registration.getBodyTemplate());
+    }
+
+    private static Map<String, String> templates(String... names) {
+        Map<String, String> templates = new LinkedHashMap<String, String>();
+        for (String name : names) {
+            templates.put(name, "{\"data\":{\"message\":\"$(" + name + ")\"}}");
+        }
+        return templates;
+    }
+
+    /**
+     * Answers like a hub: registration feeds are empty, new registration ids are handed out in
+     * the Location header, and registrations are stored and echoed back with a new ETag once
+     * accepted. The ETag preconditions of updates are not checked, conflicts are simulated instead.
+     */
+    MockHttpsServer.Response respondAsHub(String method, String path, byte[] body) {
+        if (method.equals("GET")) {
+            if (path.endsWith("/")) {
+                return new MockHttpsServer.Response(200, FEED);
+            }
+            String stored = mStoredRegistrations.get(path);
+            return stored == null ? new MockHttpsServer.Response(404, null) : new MockHttpsServer.Response(200, stored);
+        } else if (method.equals("POST")) {
+            return new MockHttpsServer.Response(201, null, "https://127.0.0.1/" + HUB_PATH + "/registrationids/id-" + mRegistrationIds.incrementAndGet());
+        } else if (method.equals("PUT")) {
+            mPuts.incrementAndGet();
+            String registration = toString(body);
+            if (mRejectedTemplate != null && registration.contains("<TemplateName>" + mRejectedTemplate + "</TemplateName>")) {
+                return new MockHttpsServer.Response(400, "Bad template");
+            }
+
+            String stored = mStoredRegistrations.get(path);
+            Conflict conflict = mConflict;
+            mConflict = Conflict.NONE;
+            if (stored != null && conflict != Conflict.NONE) {
+                mStoredRegistrations.put(path, withNewETag(conflict == Conflict.TOUCHED ? stored : registration));
+                return new MockHttpsServer.Response(412, "Precondition failed");
+            }
+
+            registration = withNewETag(registration);
+            mStoredRegistrations.put(path, registration);
+            return new MockHttpsServer.Response(200, registration);
+        }
+        return new MockHttpsServer.Response(200, null);
+    }
+
+    private String withNewETag(String registration) {
+        return registration
+                .replaceAll("<ETag>[^<]*</ETag>", "")
+                .replace("<RegistrationId>", "<ETag>" + mETags.incrementAndGet() + "</ETag><RegistrationId>");
+    }
+
+    /**
+     * Counts the commits writing registration ids
+     */
+    private static class CommitCountingPreferences extends MockSharedPreferences {
+        final AtomicInteger mRegistrationIdCommits = new AtomicInteger();
+
+        @Override
+        public SharedPreferences.Editor edit() {
+            final SharedPreferences.Editor editor = super.edit();
+            return new SharedPreferences.Editor() {
+                private boolean mWritesRegistrationIds;
+
+                @Override
+                public SharedPreferences.Editor putString(String key, String value) {
+                    mWritesRegistrationIds |= key.startsWith(REGISTRATION_NAME_KEY_PREFIX);
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor putStringSet(String key, Set<String> values) {
+                    editor.putStringSet(key, values);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor putInt(String key, int value) {
+                    editor.putInt(key, value);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor putLong(String key, long value) {
+                    editor.putLong(key, value);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor putFloat(String key, float value) {
+                    editor.putFloat(key, value);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor putBoolean(String key, boolean value) {
+                    editor.putBoolean(key, value);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor remove(String key) {
+                    editor.remove(key);
+                    return this;
+                }
+
+                @Override
+                public SharedPreferences.Editor clear() {
+                    editor.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    if (mWritesRegistrationIds) {
+                        mRegistrationIdCommits.incrementAndGet();
+                    }
+                    return editor.commit();
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+    }
+
+    private static String toString(byte[] body) {
+        try {
+            return new String(body, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RegistrationIdPoolTest {
+
+    /**
+     * Runs refills only when told to.
+     */
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.poll().run();
+            }
+        }
+    }
+
+    private static class CountingSource implements RegistrationIdPool.Source {
+        final AtomicInteger mCreated = new AtomicInteger();
+        volatile boolean mFailing;
+
+        @Override
+        public String createRegistrationId() throws Exception {
+            if (mFailing) {
+                throw new NotificationHubException("unavailable", 503);
+            }
+            return "id-" + mCreated.incrementAndGet();
+        }
+    }
+
+    private final ManualExecutor mExecutor = new ManualExecutor();
+    private final CountingSource mSource = new CountingSource();
+    private final RegistrationIdPool mPool = new RegistrationIdPool(mSource, mExecutor);
+
+    @Test
+    public void DisabledPoolCreatesNothing() {
+        assertNull(mPool.take());
+        mExecutor.runAll();
+
+        assertEquals(0, mSource.mCreated.get());
+        assertEquals(0, mPool.getMissCount());
+    }
+
+    @Test
+    public void EnablingFillsThePoolInTheBackground() {
+        mPool.setCapacity(3);
+        assertEquals(0, mPool.size());
+
+        mExecutor.runAll();
+
+        assertEquals(3, mPool.size());
+        assertEquals(3, mSource.mCreated.get());
+    }
+
+    @Test
+    public void IdsAreTakenOldestFirstAndRefilledWhenLow() {
+        mPool.setCapacity(4);
+        mExecutor.runAll();
+
+        assertEquals("id-1", mPool.take());
+        assertEquals(0, mExecutor.mTasks.size());
+        assertEquals("id-2", mPool.take());
+        assertEquals(1, mExecutor.mTasks.size());
+
+        mExecutor.runAll();
+        assertEquals(4, mPool.size());
+        assertEquals("id-3", mPool.take());
+        assertEquals(3, mPool.getHitCount());
+    }
+
+    @Test
+    public void EmptyPoolCountsAMissAndRefills() {
+        mPool.setCapacity(1);
+
+        assertNull(mPool.take());
+        assertEquals(1, mPool.getMissCount());
+
+        mExecutor.runAll();
+        assertEquals("id-1", mPool.take());
+    }
+
+    @Test
+    public void ClearingDiscardsIdsFromARunningRefill() {
+        final RegistrationIdPool[] pool = new RegistrationIdPool[1];
+        final AtomicInteger created = new AtomicInteger();
+        pool[0] = new RegistrationIdPool(new RegistrationIdPool.Source() {
+            @Override
+            public String createRegistrationId() {
+                int id = created.incrementAndGet();
+                if (id == 1) {
+                    // the hub changes while the first id is being created
+                    pool[0].clear();
+                }
+                return "id-" + id;
+            }
+        }, mExecutor);
+
+        pool[0].setCapacity(2);
+        mExecutor.runAll();
+
+        assertEquals(2, pool[0].size());
+        assertEquals("id-2", pool[0].take());
+        assertEquals("id-3", pool[0].take());
+    }
+
+    @Test
+    public void FailedRefillsAreRetriedOnTheNextTake() {
+        mSource.mFailing = true;
+        mPool.setCapacity(2);
+        mExecutor.runAll();
+        assertEquals(0, mPool.size());
+
+        mSource.mFailing = false;
+        assertNull(mPool.take());
+        mExecutor.runAll();
+
+        assertEquals(2, mPool.size());
+    }
+
+    @Test
+    public void DisablingDropsThePooledIds() {
+        mPool.setCapacity(2);
+        mExecutor.runAll();
+
+        mPool.setCapacity(0);
+
+        assertEquals(0, mPool.size());
+        assertNull(mPool.take());
+    }
+}
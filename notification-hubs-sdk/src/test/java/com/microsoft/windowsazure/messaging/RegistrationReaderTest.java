@@ -0,0 +1,345 @@
+package com.microsoft.windowsazure.messaging;
+
+import androidx.test.filters.LargeTest;
+
+import com.microsoft.windowsazure.messaging.Registration.RegistrationType;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrationReaderTest {
+    private static final String HUB_PATH = "myHub";
+
+    private static RegistrationReader newReader(RegistrationType registrationType) {
+        return new RegistrationReader(HUB_PATH, registrationType, new KXmlParser());
+    }
+
+    @Test
+    public void ReadsNativeRegistrationEntry() throws Exception {
+        Registration registration = newReader(RegistrationType.fcmv1).readRegistration(
+                entry(nativeDescription("FcmV1RegistrationDescription", "FcmV1RegistrationId", "1", "token-1", "a,b")));
+
+        assertTrue(registration instanceof FcmV1NativeRegistration);
+        assertEquals("1", registration.getRegistrationId());
+        assertEquals("token-1", registration.getPNSHandle());
+        assertEquals(Registration.DEFAULT_REGISTRATION_NAME, registration.getName());
+        assertEquals(Arrays.asList("a", "b"), registration.getTags());
+        assertEquals("W/\"3\"", registration.getETag());
+        assertEquals("2022-01-01T00:00:00Z", registration.getUpdatedString());
+        assertEquals(HUB_PATH + "/Registrations/1", registration.getURI());
+    }
+
+    @Test
+    public void ReadsTemplateRegistrationEntry() throws Exception {
+        Registration registration = newReader(RegistrationType.fcmv1).readRegistration(
+                entry(templateDescription("FcmV1TemplateRegistrationDescription", "FcmV1RegistrationId", "2", "token-2", "myTemplate")));
+
+        assertTrue(registration instanceof FcmV1TemplateRegistration);
+        TemplateRegistration template = (TemplateRegistration) registration;
+        assertEquals("2", template.getRegistrationId());
+        assertEquals("token-2", template.getPNSHandle());
+        assertEquals("myTemplate", template.getName());
+        assertEquals("{\"message\":{\"data\":{\"msg\":\"$(m) & <more>\"}}}", template.getBodyTemplate());
+    }
+
+    @Test
+    public void ReadsFeedInDocumentOrderAndSkipsOtherPlatforms() throws Exception {
+        String feed = feed(
+                entry(nativeDescription("FcmV1RegistrationDescription", "FcmV1RegistrationId", "1", "token", null)),
+                entry(nativeDescription("AdmRegistrationDescription", "AdmRegistrationId", "2", "token", null)),
+                entry(templateDescription("GcmTemplateRegistrationDescription", "GcmRegistrationId", "3", "token", "legacy")),
+                entry(nativeDescription("GcmRegistrationDescription", "GcmRegistrationId", "4", "token", null)));
+
+        List<Registration> registrations = newReader(RegistrationType.fcmv1).readRegistrations(feed);
+
+        assertEquals(3, registrations.size());
+        assertTrue(registrations.get(0) instanceof FcmV1NativeRegistration);
+        assertEquals("1", registrations.get(0).getRegistrationId());
+        assertTrue(registrations.get(1) instanceof FcmTemplateRegistration);
+        assertEquals("3", registrations.get(1).getRegistrationId());
+        assertEquals("legacy", registrations.get(1).getName());
+        assertTrue(registrations.get(2) instanceof FcmNativeRegistration);
+        assertEquals("4", registrations.get(2).getRegistrationId());
+    }
+
+    @Test
+    public void PrefersCurrentPlatformForSharedDescriptions() throws Exception {
+        Registration registration = newReader(RegistrationType.gcm).readRegistration(
+                entry(nativeDescription("GcmRegistrationDescription", "GcmRegistrationId", "1", "token", null)));
+
+        assertTrue(registration instanceof GcmNativeRegistration);
+    }
+
+    @Test
+    public void EmptyFeedHasNoRegistrations() throws Exception {
+        assertTrue(newReader(RegistrationType.fcmv1).readRegistrations(feed()).isEmpty());
+    }
+
+    @Test(expected = XmlPullParserException.class)
+    public void EntryWithoutRegistrationIsRejected() throws Exception {
+        newReader(RegistrationType.fcmv1).readRegistration("<entry xmlns=\"http://www.w3.org/2005/Atom\"></entry>");
+    }
+
+    @Test
+    public void MissingValuesStayNull() throws Exception {
+        Registration registration = newReader(RegistrationType.adm).readRegistration(
+                entry("<AdmTemplateRegistrationDescription><RegistrationId>5</RegistrationId></AdmTemplateRegistrationDescription>"));
+
+        assertEquals("5", registration.getRegistrationId());
+        assertNull(registration.getPNSHandle());
+        assertNull(registration.getName());
+        assertNull(((TemplateRegistration) registration).getBodyTemplate());
+        assertTrue(registration.getTags().isEmpty());
+    }
+
+    @Test
+    public void ReadsFeedFromStream() throws Exception {
+        String feed = feed(
+                entry(nativeDescription("FcmV1RegistrationDescription", "FcmV1RegistrationId", "1", "token-1", "caf\u00e9,\u6771\u4eac")),
+                entry(templateDescription("FcmV1TemplateRegistrationDescription", "FcmV1RegistrationId", "2", "token-2", "template")));
+
+        List<Registration> registrations = newReader(RegistrationType.fcmv1).readRegistrations(new ByteArrayInputStream(feed.getBytes("UTF-8")));
+
+        assertEquivalent(newReader(RegistrationType.fcmv1).readRegistrations(feed), registrations);
+        assertEquals(Arrays.asList("caf\u00e9", "\u6771\u4eac"), registrations.get(0).getTags());
+    }
+
+    @Test
+    @LargeTest
+    public void StreamedFeedAllocatesLessThanLineBufferedString() throws Exception {
+        final int iterations = 20;
+
+        for (int count : new int[] { 1, 50, 500 }) {
+            byte[] feed = generateFeed(count).getBytes("UTF-8");
+
+            // warm up both paths so the JIT doesn't skew the first measurement
+            assertEquivalent(
+                    newReader(RegistrationType.fcmv1).readRegistrations(readLines(feed)),
+                    newReader(RegistrationType.fcmv1).readRegistrations(new ByteArrayInputStream(feed)));
+
+            long linesBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                newReader(RegistrationType.fcmv1).readRegistrations(readLines(feed));
+            }
+            long linesNanos = System.nanoTime() - start;
+            linesBytes = allocatedBytes() - linesBytes;
+
+            long streamBytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                newReader(RegistrationType.fcmv1).readRegistrations(new ByteArrayInputStream(feed));
+            }
+            long streamNanos = System.nanoTime() - start;
+            streamBytes = allocatedBytes() - streamBytes;
+
+            System.out.println(String.format(
+                    "registrations: %d, ms per response: lines=%.3f stream=%.3f, KB per response: lines=%.1f stream=%.1f",
+                    count,
+                    linesNanos / 1e6 / iterations,
+                    streamNanos / 1e6 / iterations,
+                    linesBytes / 1024.0 / iterations,
+                    streamBytes / 1024.0 / iterations));
+
+            if (count >= 50 && linesBytes > 0) {
+                assertTrue("Streaming the response must allocate less than buffering it into a string", streamBytes < linesBytes);
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void PullReaderAllocatesLessThanDomRoundTrip() throws Exception {
+        final int iterations = 20;
+
+        for (int count : new int[] { 1, 50, 500 }) {
+            String feed = generateFeed(count);
+
+            // warm up both paths so the JIT doesn't skew the first measurement
+            assertEquivalent(readWithDom(feed), newReader(RegistrationType.fcmv1).readRegistrations(feed));
+
+            long domBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                readWithDom(feed);
+            }
+            long domNanos = System.nanoTime() - start;
+            domBytes = allocatedBytes() - domBytes;
+
+            long pullBytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                newReader(RegistrationType.fcmv1).readRegistrations(feed);
+            }
+            long pullNanos = System.nanoTime() - start;
+            pullBytes = allocatedBytes() - pullBytes;
+
+            System.out.println(String.format(
+                    "registrations: %d, ms per feed: dom=%.3f pull=%.3f, KB per feed: dom=%.1f pull=%.1f",
+                    count,
+                    domNanos / 1e6 / iterations,
+                    pullNanos / 1e6 / iterations,
+                    domBytes / 1024.0 / iterations,
+                    pullBytes / 1024.0 / iterations));
+
+            if (count >= 50 && domBytes > 0) {
+                assertTrue("The pull reader must allocate less than the DOM round trip", pullBytes < domBytes);
+            }
+        }
+    }
+
+    private static void assertEquivalent(List<Registration> expected, List<Registration> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Registration e = expected.get(i);
+            Registration a = actual.get(i);
+            assertEquals(e.getClass(), a.getClass());
+            assertEquals(e.getRegistrationId(), a.getRegistrationId());
+            assertEquals(e.getPNSHandle(), a.getPNSHandle());
+            assertEquals(e.getName(), a.getName());
+            assertEquals(e.getTags(), a.getTags());
+            assertEquals(e.getETag(), a.getETag());
+            if (e instanceof TemplateRegistration) {
+                assertEquals(((TemplateRegistration) e).getBodyTemplate(), ((TemplateRegistration) a).getBodyTemplate());
+            }
+        }
+    }
+
+    /**
+     * Mirrors the previous refresh path: parse the feed, re-serialize every entry and parse it again.
+     */
+    private static List<Registration> readWithDom(String feed) throws Exception {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document doc = builder.parse(new InputSource(new StringReader(feed)));
+        doc.getDocumentElement().normalize();
+
+        List<Registration> registrations = new ArrayList<Registration>();
+        NodeList entries = doc.getDocumentElement().getElementsByTagName("entry");
+        for (int i = 0; i < entries.getLength(); i++) {
+            String xml = getXmlString((Element) entries.item(i));
+
+            Document entryDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+            entryDoc.getDocumentElement().normalize();
+            Element root = entryDoc.getDocumentElement();
+
+            Registration registration = xml.contains("<FcmV1TemplateRegistrationDescription")
+                    ? new FcmV1TemplateRegistration(HUB_PATH)
+                    : new FcmV1NativeRegistration(HUB_PATH);
+            Map<String, String> values = new HashMap<String, String>();
+            Element payload = (Element) entryDoc.getElementsByTagName(registration.getSpecificPayloadNodeName()).item(0);
+            NodeList children = payload.getChildNodes();
+            for (int j = 0; j < children.getLength(); j++) {
+                if (children.item(j) instanceof Element) {
+                    values.put(((Element) children.item(j)).getTagName(), children.item(j).getTextContent());
+                }
+            }
+            registration.loadXmlValues(root.getElementsByTagName("updated").item(0).getTextContent(), values, HUB_PATH);
+            registrations.add(registration);
+        }
+
+        return registrations;
+    }
+
+    private static String getXmlString(Element element) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.transform(new DOMSource(element), new StreamResult(buffer));
+        return new String(buffer.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Mirrors the previous response path: read the body line by line into a string.
+     */
+    private static String readLines(byte[] body) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body)));
+        StringBuilder sb = new StringBuilder();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            sb.append(line);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static String generateFeed(int count) {
+        String[] entries = new String[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = i % 2 == 0
+                    ? entry(nativeDescription("FcmV1RegistrationDescription", "FcmV1RegistrationId", "reg-" + i, "token-" + i, "tag" + i + ",shared"))
+                    : entry(templateDescription("FcmV1TemplateRegistrationDescription", "FcmV1RegistrationId", "reg-" + i, "token-" + i, "template" + i));
+        }
+        return feed(entries);
+    }
+
+    private static String feed(String... entries) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<feed xmlns=\"http://www.w3.org/2005/Atom\"><title type=\"text\">Registrations</title>"
+                + "<id>https://test.servicebus.windows.net/myHub/Registrations</id><updated>2022-01-01T00:00:00Z</updated>");
+        for (String entry : entries) {
+            builder.append(entry);
+        }
+        return builder.append("</feed>").toString();
+    }
+
+    private static String entry(String description) {
+        return "<entry xmlns=\"http://www.w3.org/2005/Atom\"><id>https://test.servicebus.windows.net/myHub/Registrations/1</id>"
+                + "<title type=\"text\">1</title><updated>2022-01-01T00:00:00Z</updated>"
+                + "<link rel=\"self\" href=\"https://test.servicebus.windows.net/myHub/Registrations/1\"/>"
+                + "<content type=\"application/xml\">" + description + "</content></entry>";
+    }
+
+    private static String nativeDescription(String node, String handleNode, String registrationId, String handle, String tags) {
+        return "<" + node + " xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://schemas.microsoft.com/netservices/2010/10/servicebus/connect\">"
+                + "<ETag>W/\"3\"</ETag><ExpirationTime>9999-12-31T23:59:59.9999999Z</ExpirationTime>"
+                + "<RegistrationId>" + registrationId + "</RegistrationId>"
+                + (tags != null ? "<Tags>" + tags + "</Tags>" : "")
+                + "<" + handleNode + ">" + handle + "</" + handleNode + "></" + node + ">";
+    }
+
+    private static String templateDescription(String node, String handleNode, String registrationId, String handle, String templateName) {
+        return "<" + node + " xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://schemas.microsoft.com/netservices/2010/10/servicebus/connect\">"
+                + "<ETag>W/\"3\"</ETag><ExpirationTime>9999-12-31T23:59:59.9999999Z</ExpirationTime>"
+                + "<RegistrationId>" + registrationId + "</RegistrationId>"
+                + "<" + handleNode + ">" + handle + "</" + handleNode + ">"
+                + "<BodyTemplate><![CDATA[{\"message\":{\"data\":{\"msg\":\"$(m) & <more>\"}}}]]></BodyTemplate>"
+                + "<TemplateName>" + templateName + "</TemplateName></" + node + ">";
+    }
+}
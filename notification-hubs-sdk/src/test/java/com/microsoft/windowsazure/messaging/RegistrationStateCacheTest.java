@@ -0,0 +1,168 @@
+package com.microsoft.windowsazure.messaging;
+
+import com.microsoft.windowsazure.messaging.notificationhubs.MockSharedPreferences;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrationStateCacheTest {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    // 2030-01-01T00:00:00Z
+    private static final long EXPIRATION_MILLIS = 1893456000000L;
+
+    @Test
+    public void StoredStateIsReadBackForTheSameRegistrationId() {
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        new RegistrationStateCache(preferences, HOUR_MILLIS).put("$Default", new RegistrationStateCache.Entry("id-1", "digest", "3", "2030-01-01T00:00:00.0000000Z"));
+
+        RegistrationStateCache cache = new RegistrationStateCache(preferences, HOUR_MILLIS);
+        RegistrationStateCache.Entry entry = cache.get("$Default", "id-1");
+
+        assertNotNull(entry);
+        assertEquals("digest", entry.getContentDigest());
+        assertEquals("3", entry.getETag());
+        assertEquals("2030-01-01T00:00:00.0000000Z", entry.getExpirationTime());
+        assertNull(cache.get("$Default", "id-2"));
+        assertNull(cache.get("$Default", null));
+        assertNull(cache.get("other", "id-1"));
+    }
+
+    @Test
+    public void MissingETagAndExpirationAreStoredAsNull() {
+        RegistrationStateCache cache = new RegistrationStateCache(new MockSharedPreferences(), HOUR_MILLIS);
+        cache.put("$Default", new RegistrationStateCache.Entry("id-1", "digest", null, null));
+
+        RegistrationStateCache.Entry entry = cache.get("$Default", "id-1");
+
+        assertNull(entry.getETag());
+        assertNull(entry.getExpirationTime());
+    }
+
+    @Test
+    public void UnchangedContentFarFromExpirationIsAHit() {
+        RegistrationStateCache cache = new RegistrationStateCache(new MockSharedPreferences(), HOUR_MILLIS);
+        RegistrationStateCache.Entry entry = new RegistrationStateCache.Entry("id-1", "digest", "3", "2030-01-01T00:00:00.0000000Z");
+
+        assertTrue(cache.isUnchanged(entry, "digest", EXPIRATION_MILLIS - 2 * HOUR_MILLIS));
+        assertFalse(cache.isUnchanged(entry, "other digest", EXPIRATION_MILLIS - 2 * HOUR_MILLIS));
+        assertFalse(cache.isUnchanged(null, "digest", EXPIRATION_MILLIS - 2 * HOUR_MILLIS));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void RegistrationsCloseToExpirationAreSentAgain() {
+        RegistrationStateCache cache = new RegistrationStateCache(new MockSharedPreferences(), HOUR_MILLIS);
+        RegistrationStateCache.Entry entry = new RegistrationStateCache.Entry("id-1", "digest", "3", "2030-01-01T00:00:00Z");
+
+        assertFalse(cache.isUnchanged(entry, "digest", EXPIRATION_MILLIS - HOUR_MILLIS / 2));
+        assertFalse(cache.isUnchanged(entry, "digest", EXPIRATION_MILLIS + 1));
+    }
+
+    @Test
+    public void UnknownExpirationIsAMiss() {
+        RegistrationStateCache cache = new RegistrationStateCache(new MockSharedPreferences(), 0);
+
+        assertFalse(cache.isUnchanged(new RegistrationStateCache.Entry("id-1", "digest", "3", null), "digest", 0));
+        assertFalse(cache.isUnchanged(new RegistrationStateCache.Entry("id-1", "digest", "3", "never"), "digest", 0));
+    }
+
+    @Test
+    public void ExpirationTimeIgnoresTheFractionOfSeconds() {
+        assertEquals(EXPIRATION_MILLIS, RegistrationStateCache.parseExpirationTime("2030-01-01T00:00:00.9999999Z"));
+        assertEquals(EXPIRATION_MILLIS, RegistrationStateCache.parseExpirationTime("2030-01-01T00:00:00"));
+        assertTrue(RegistrationStateCache.parseExpirationTime("9999-12-31T23:59:59.9999999Z") > EXPIRATION_MILLIS);
+        assertEquals(Long.MIN_VALUE, RegistrationStateCache.parseExpirationTime("2030-13-01T00:00:00Z"));
+    }
+
+    @Test
+    public void RemovedStateIsForgotten() {
+        RegistrationStateCache cache = new RegistrationStateCache(new MockSharedPreferences(), HOUR_MILLIS);
+        cache.put("a", new RegistrationStateCache.Entry("id-a", "digest", "1", null));
+        cache.put("b", new RegistrationStateCache.Entry("id-b", "digest", "1", null));
+
+        cache.remove(Collections.singleton("a"));
+
+        assertNull(cache.get("a", "id-a"));
+        assertNotNull(cache.get("b", "id-b"));
+    }
+
+    @Test
+    public void RefreshKeepsOnlyRegistrationsWithTheSameIdAndETag() {
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        preferences.edit().putString("__NH_REG_NAME_unchanged", "id-1").commit();
+
+        RegistrationStateCache cache = new RegistrationStateCache(preferences, HOUR_MILLIS);
+        cache.put("unchanged", new RegistrationStateCache.Entry("id-1", "digest", "1", null));
+        cache.put("updated", new RegistrationStateCache.Entry("id-2", "digest", "1", null));
+        cache.put("recreated", new RegistrationStateCache.Entry("id-3", "digest", "1", null));
+        cache.put("deleted", new RegistrationStateCache.Entry("id-4", "digest", "1", null));
+
+        cache.retainUnchanged(Arrays.<Registration>asList(
+                serverRegistration("unchanged", "id-1", "1"),
+                serverRegistration("updated", "id-2", "2"),
+                serverRegistration("recreated", "id-5", "1")));
+
+        assertNotNull(cache.get("unchanged", "id-1"));
+        assertNull(cache.get("updated", "id-2"));
+        assertNull(cache.get("recreated", "id-3"));
+        assertNull(cache.get("deleted", "id-4"));
+        assertEquals("id-1", preferences.getString("__NH_REG_NAME_unchanged", null));
+    }
+
+    @Test
+    public void ContentDigestDoesNotDependOnTagOrderOrServerValues() throws Exception {
+        Registration registration = templateRegistration("handle", "{\"data\":{\"message\":\"$(msg)\"}}", "b", "a");
+        Registration reordered = templateRegistration("handle", "{\"data\":{\"message\":\"$(msg)\"}}", "a", "b", "a");
+        reordered.setRegistrationId("id-1");
+        reordered.setETag("4");
+        reordered.setExpirationTimeString("2030-01-01T00:00:00Z");
+
+        assertEquals(registration.getContentDigest(), reordered.getContentDigest());
+        assertEquals(64, registration.getContentDigest().length());
+    }
+
+    @Test
+    public void ContentDigestChangesWithTheContent() throws Exception {
+        String digest = templateRegistration("handle", "body", "a").getContentDigest();
+
+        assertNotEquals(digest, templateRegistration("other handle", "body", "a").getContentDigest());
+        assertNotEquals(digest, templateRegistration("handle", "other body", "a").getContentDigest());
+        assertNotEquals(digest, templateRegistration("handle", "body", "a", "b").getContentDigest());
+        assertNotEquals(digest, templateRegistration("handle", "body").getContentDigest());
+
+        FcmV1NativeRegistration nativeRegistration = new FcmV1NativeRegistration("myHub");
+        nativeRegistration.setPNSHandle("handle");
+        nativeRegistration.addTags(new String[] { "a" });
+        assertNotEquals(digest, nativeRegistration.getContentDigest());
+    }
+
+    private static Registration templateRegistration(String pnsHandle, String body, String... tags) {
+        FcmV1TemplateRegistration registration = new FcmV1TemplateRegistration("myHub");
+        registration.setPNSHandle(pnsHandle);
+        registration.setName("template");
+        registration.setBodyTemplate(body);
+        registration.addTags(tags);
+        return registration;
+    }
+
+    private static Registration serverRegistration(String name, String registrationId, String eTag) {
+        Registration registration = new FcmV1NativeRegistration("myHub");
+        registration.setName(name);
+        registration.setRegistrationId(registrationId);
+        registration.setETag(eTag);
+        return registration;
+    }
+}
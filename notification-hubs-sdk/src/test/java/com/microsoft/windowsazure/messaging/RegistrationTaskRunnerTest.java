@@ -0,0 +1,301 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RegistrationTaskRunnerTest {
+    private ExecutorService mExecutor;
+    private RegistrationTaskRunner mRunner;
+
+    @Before
+    public void Before() {
+        mExecutor = Executors.newFixedThreadPool(RegistrationTaskRunner.DEFAULT_MAX_THREADS);
+        mRunner = new RegistrationTaskRunner(mExecutor);
+    }
+
+    @After
+    public void After() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void SameKeyOperationsRunSeriallyInOrder() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        List<NotificationHubFuture<Integer>> futures = new ArrayList<NotificationHubFuture<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            final int index = i;
+            futures.add(mRunner.submit("myTemplate", 0, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    Thread.sleep(20);
+                    order.add(index);
+                    running.decrementAndGet();
+                    return index;
+                }
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Integer.valueOf(i), futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, maxRunning.get());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    public void DifferentKeysRunInParallel() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        Callable<Boolean> waitForOther = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                bothStarted.countDown();
+                return bothStarted.await(5, TimeUnit.SECONDS);
+            }
+        };
+
+        NotificationHubFuture<Boolean> first = mRunner.submit(Registration.DEFAULT_REGISTRATION_NAME, 0, waitForOther);
+        NotificationHubFuture<Boolean> second = mRunner.submit("myTemplate", 0, waitForOther);
+
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertTrue(second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void MultiKeyOperationsAreSerializedWithEachKey() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        NotificationHubFuture<Void> before = mRunner.submit("second", 0, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+                order.add("before");
+                return null;
+            }
+        });
+        NotificationHubFuture<Void> batch = mRunner.submitForKeys(Arrays.asList("second", "first"), 0, new Callable<Void>() {
+            @Override
+            public Void call() {
+                order.add("batch");
+                return null;
+            }
+        });
+        NotificationHubFuture<Void> after = mRunner.submit("first", 0, new Callable<Void>() {
+            @Override
+            public Void call() {
+                order.add("after");
+                return null;
+            }
+        });
+        NotificationHubFuture<Void> unrelated = mRunner.submit("third", 0, new Callable<Void>() {
+            @Override
+            public Void call() {
+                order.add("unrelated");
+                return null;
+            }
+        });
+
+        unrelated.get(5, TimeUnit.SECONDS);
+        assertFalse(batch.isDone());
+        assertFalse(after.isDone());
+
+        release.countDown();
+        before.get(5, TimeUnit.SECONDS);
+        batch.get(5, TimeUnit.SECONDS);
+        after.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("unrelated", "before", "batch", "after"), order);
+    }
+
+    @Test
+    public void TimedOutOperationFailsAndIsInterrupted() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        NotificationHubFuture<Void> future = mRunner.submit("myTemplate", 50, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return null;
+            }
+        });
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // the key is released, so the next operation for the same name runs
+        assertEquals("next", mRunner.submit("myTemplate", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "next";
+            }
+        }).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void CompletedOperationsLeaveNoPendingTimeout() throws Exception {
+        int pendingBefore = RegistrationTaskRunner.getTimeoutScheduler().getQueue().size();
+
+        List<NotificationHubFuture<Integer>> futures = new ArrayList<NotificationHubFuture<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            futures.add(mRunner.submit("key" + (i % 4), TimeUnit.MINUTES.toMillis(10), new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return index;
+                }
+            }));
+        }
+        for (NotificationHubFuture<Integer> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertTrue(RegistrationTaskRunner.getTimeoutScheduler().getQueue().size() <= pendingBefore);
+    }
+
+    @Test
+    public void CancelledQueuedOperationNeverRuns() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean cancelledRan = new AtomicBoolean();
+
+        NotificationHubFuture<Void> blocking = mRunner.submit("myTemplate", 0, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        NotificationHubFuture<Void> queued = mRunner.submit("myTemplate", 0, new Callable<Void>() {
+            @Override
+            public Void call() {
+                cancelledRan.set(true);
+                return null;
+            }
+        });
+        NotificationHubFuture<String> last = mRunner.submit("myTemplate", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "last";
+            }
+        });
+
+        assertTrue(queued.cancel(false));
+        release.countDown();
+
+        assertEquals("last", last.get(5, TimeUnit.SECONDS));
+        blocking.get(5, TimeUnit.SECONDS);
+        assertTrue(queued.isCancelled());
+        assertFalse(cancelledRan.get());
+        try {
+            queued.get();
+            fail("expected a cancellation");
+        } catch (CancellationException e) {
+        }
+    }
+
+    @Test
+    public void CallbacksReceiveOutcome() throws Exception {
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        mRunner.submit("a", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "registered";
+            }
+        }).addCallback(new NotificationHubFuture.Callback<String>() {
+            @Override
+            public void onSuccess(String value) {
+                result.set(value);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                done.countDown();
+            }
+        });
+
+        mRunner.submit("b", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalArgumentException("pnsHandle");
+            }
+        }).addCallback(new NotificationHubFuture.Callback<String>() {
+            @Override
+            public void onSuccess(String value) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                failure.set(exception);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("registered", result.get());
+        assertTrue(failure.get() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void CallbackAddedAfterCompletionRunsImmediately() throws Exception {
+        NotificationHubFuture<String> future = mRunner.submit(null, 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        future.get(5, TimeUnit.SECONDS);
+
+        final AtomicReference<String> result = new AtomicReference<String>();
+        future.addCallback(new NotificationHubFuture.Callback<String>() {
+            @Override
+            public void onSuccess(String value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+            }
+        });
+
+        assertEquals("done", result.get());
+    }
+}
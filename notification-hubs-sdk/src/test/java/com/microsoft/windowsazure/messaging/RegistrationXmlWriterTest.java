@@ -0,0 +1,127 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the streamed registration xml to golden files captured from the previous DOM and
+ * Transformer based serialization.
+ */
+public class RegistrationXmlWriterTest {
+    private static final String HUB_PATH = "myHub";
+    private static final String BODY = "{\"message\":{\"notification\":{\"body\":\"$(msg)\"}}}";
+
+    static Map<String, Registration> fixtures() {
+        Map<String, Registration> fixtures = new LinkedHashMap<String, Registration>();
+
+        fixtures.put("fcmv1-native", populate(new FcmV1NativeRegistration(HUB_PATH), "fcm-token:APA91b", null));
+        fixtures.put("fcmv1-template", populate(new FcmV1TemplateRegistration(HUB_PATH), "fcm-token:APA91b", "myTemplate"));
+        fixtures.put("fcm-native", populate(new FcmNativeRegistration(HUB_PATH), "fcm-token", null));
+        fixtures.put("fcm-template", populate(new FcmTemplateRegistration(HUB_PATH), "fcm-token", "myTemplate"));
+        fixtures.put("gcm-native", populate(new GcmNativeRegistration(HUB_PATH), "gcm-token", null));
+        fixtures.put("gcm-template", populate(new GcmTemplateRegistration(HUB_PATH), "gcm-token", "myTemplate"));
+        fixtures.put("adm-native", populate(new AdmNativeRegistration(HUB_PATH), "amzn1.adm-registration.v3.Y29t", null));
+        fixtures.put("adm-template", populate(new AdmTemplateRegistration(HUB_PATH), "amzn1.adm-registration.v3.Y29t", "myTemplate"));
+        fixtures.put("baidu-native", populate(new BaiduNativeRegistration(HUB_PATH), "user1-channel1", null));
+        fixtures.put("baidu-template", populate(new BaiduTemplateRegistration(HUB_PATH), "user1-channel1", "myTemplate"));
+
+        FcmV1NativeRegistration unsaved = new FcmV1NativeRegistration(HUB_PATH);
+        unsaved.setPNSHandle("fcm-token");
+        fixtures.put("fcmv1-native-unsaved", unsaved);
+
+        FcmV1TemplateRegistration escaped = new FcmV1TemplateRegistration(HUB_PATH);
+        escaped.setRegistrationId("id&<1>");
+        escaped.setUpdatedString("2022-02-08T12:34:56Z");
+        escaped.setETag("W/\"7\"");
+        escaped.setPNSHandle("token'with\"quotes");
+        escaped.addTags(new String[] { "a&b", "<c>", "d>e", "caf\u00e9", "\u65e5\u672c", "\ud83d\ude00", "  ", "tab\there" });
+        escaped.setName("my & <template> \u00fc");
+        escaped.setBodyTemplate("{\"body\":\"]]> & <b>\u00fc\ud83d\ude00\",\r\n\"x\":\"]]]]>\"}");
+        fixtures.put("fcmv1-template-escaping", escaped);
+
+        FcmV1TemplateRegistration controlCharacters = new FcmV1TemplateRegistration(HUB_PATH);
+        controlCharacters.setRegistrationId("1");
+        controlCharacters.addTags(new String[] { "x\ny", "\u007f\u0080\u009f\u00a0\u2028" });
+        controlCharacters.setName("line\rbreak\u0007");
+        controlCharacters.setBodyTemplate("\ud83d\ude00\u0001a]]>\u0002\u0003\r\nb\u0085");
+        fixtures.put("fcmv1-template-control-characters", controlCharacters);
+
+        fixtures.put("baidu-native-empty", new BaiduNativeRegistration(HUB_PATH));
+
+        return fixtures;
+    }
+
+    private static Registration populate(Registration registration, String pnsHandle, String templateName) {
+        registration.setRegistrationId("2150223495546467112-2");
+        registration.setUpdatedString("2022-02-08T12:34:56Z");
+        registration.setETag("3");
+        registration.setExpirationTimeString("9999-12-31T23:59:59.9999999Z");
+        registration.setPNSHandle(pnsHandle);
+        registration.addTags(new String[] { "tag1", "tag2" });
+        if (templateName != null) {
+            registration.setName(templateName);
+            ((TemplateRegistration) registration).setBodyTemplate(BODY);
+        } else {
+            registration.setName(Registration.DEFAULT_REGISTRATION_NAME);
+        }
+        return registration;
+    }
+
+    @Test
+    public void WritesGoldenXmlForEveryRegistrationType() throws Exception {
+        for (Map.Entry<String, Registration> fixture : fixtures().entrySet()) {
+            byte[] expected = readGolden(fixture.getKey());
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            fixture.getValue().writeXml(actual);
+
+            assertArrayEquals(fixture.getKey(), expected, actual.toByteArray());
+            assertEquals(fixture.getKey(), new String(expected, "UTF-8"), fixture.getValue().toXml());
+        }
+    }
+
+    @Test
+    public void WrittenXmlRoundTripsThroughReader() throws Exception {
+        FcmV1TemplateRegistration original = new FcmV1TemplateRegistration(HUB_PATH);
+        original.setRegistrationId("id&<1>");
+        original.setPNSHandle("token'with\"quotes");
+        original.addTags(new String[] { "a&b", "<c>", "d>e", "caf\u00e9" });
+        original.setName("my & <template>");
+        original.setBodyTemplate("{\"body\":\"]]> & <b>\u00fc\"}");
+
+        TemplateRegistration read = (TemplateRegistration) new RegistrationReader(HUB_PATH, Registration.RegistrationType.fcmv1, new KXmlParser())
+                .readRegistration(original.toXml());
+
+        assertEquals(original.getRegistrationId(), read.getRegistrationId());
+        assertEquals(original.getPNSHandle(), read.getPNSHandle());
+        assertEquals(original.getName(), read.getName());
+        assertEquals(original.getTags(), read.getTags());
+        assertEquals(original.getBodyTemplate(), read.getBodyTemplate());
+    }
+
+    private static byte[] readGolden(String name) throws IOException {
+        InputStream in = RegistrationXmlWriterTest.class.getResourceAsStream("/registration-xml/" + name + ".xml");
+        assertNotNull(name, in);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
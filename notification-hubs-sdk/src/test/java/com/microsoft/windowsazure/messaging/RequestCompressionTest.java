@@ -0,0 +1,135 @@
+package com.microsoft.windowsazure.messaging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCompressionTest {
+    private static final String ENTRY = "<entry xmlns=\"http://www.w3.org/2005/Atom\"></entry>";
+
+    private MockHttpsServer mServer;
+    private final AtomicReference<byte[]> mReceived = new AtomicReference<byte[]>();
+
+    @Before
+    public void Before() throws Exception {
+        mServer = new MockHttpsServer(new MockHttpsServer.Responder() {
+            @Override
+            public MockHttpsServer.Response respond(String method, String path, byte[] body) {
+                mReceived.set(body);
+                return new MockHttpsServer.Response(200, ENTRY);
+            }
+        });
+    }
+
+    @After
+    public void After() {
+        mServer.stop();
+    }
+
+    @Test
+    public void OnlyLargeBodiesAreCompressedOnceEnabled() {
+        RequestCompression compression = new RequestCompression();
+        compression.setThresholdBytes(100);
+
+        assertFalse(compression.shouldCompress(1000));
+        compression.setEnabled(true);
+        assertFalse(compression.shouldCompress(99));
+        assertTrue(compression.shouldCompress(100));
+    }
+
+    @Test
+    public void LargeBodiesAreSentWithGzip() throws Exception {
+        RequestCompression compression = new RequestCompression();
+        compression.setEnabled(true);
+        final List<int[]> recorded = new ArrayList<int[]>();
+        compression.addListener(new RequestCompression.Listener() {
+            @Override
+            public void onRequestBody(int rawBytes, int sentBytes) {
+                recorded.add(new int[] { rawBytes, sentBytes });
+            }
+        });
+        Connection connection = new Connection(mServer.getConnectionString(), mServer.trust(new KeepAliveHttpTransport()), compression);
+        String content = createTemplateRegistration(200);
+
+        connection.executeRequest("myHub/registrations/1", content, "application/atom+xml", "PUT");
+
+        byte[] raw = content.getBytes("UTF-8");
+        assertTrue(isGzip(mReceived.get()));
+        assertArrayEquals(raw, gunzip(mReceived.get()));
+        assertEquals(1, recorded.size());
+        assertEquals(raw.length, recorded.get(0)[0]);
+        assertEquals(mReceived.get().length, recorded.get(0)[1]);
+        assertTrue(compression.getSentBytes() < compression.getRawBytes() / 4);
+
+        System.out.println(String.format(
+                "template registration bytes: raw=%d gzip=%d",
+                compression.getRawBytes(),
+                compression.getSentBytes()));
+    }
+
+    @Test
+    public void SmallOrDisabledBodiesAreSentAsIs() throws Exception {
+        RequestCompression compression = new RequestCompression();
+        Connection connection = new Connection(mServer.getConnectionString(), mServer.trust(new KeepAliveHttpTransport()), compression);
+        String large = createTemplateRegistration(200);
+
+        connection.executeRequest("myHub/registrations/1", large, "application/atom+xml", "PUT");
+        assertArrayEquals(large.getBytes("UTF-8"), mReceived.get());
+
+        compression.setEnabled(true);
+        String small = createTemplateRegistration(1);
+        connection.executeRequest("myHub/registrations/1", small, "application/atom+xml", "PUT");
+        assertArrayEquals(small.getBytes("UTF-8"), mReceived.get());
+
+        assertEquals(2, compression.getRequestCount());
+        assertEquals(compression.getRawBytes(), compression.getSentBytes());
+    }
+
+    @Test
+    public void GzipResponsesAreDecompressed() throws Exception {
+        mServer.setGzipResponses(true);
+        Connection connection = new Connection(mServer.getConnectionString(), mServer.trust(new KeepAliveHttpTransport()), new RequestCompression());
+
+        String response = connection.executeRequest("myHub/registrations/1", (String) null, null, "GET");
+
+        assertEquals(ENTRY, response);
+    }
+
+    private static String createTemplateRegistration(int tags) {
+        StringBuilder content = new StringBuilder("<entry xmlns=\"http://www.w3.org/2005/Atom\"><content type=\"application/xml\"><FcmV1TemplateRegistrationDescription xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://schemas.microsoft.com/netservices/2010/10/servicebus/connect\"><Tags>");
+        for (int i = 0; i < tags; i++) {
+            content.append(i == 0 ? "" : ",").append("topic:subscription_").append(i);
+        }
+        content.append("</Tags><FcmV1RegistrationId>token</FcmV1RegistrationId><BodyTemplate><![CDATA[{\"message\":{\"notification\":{\"title\":\"$(title)\",\"body\":\"$(body)\"}}}]]></BodyTemplate><TemplateName>template</TemplateName></FcmV1TemplateRegistrationDescription></content></entry>");
+        return content.toString();
+    }
+
+    private static boolean isGzip(byte[] body) {
+        return body.length > 2 && (body[0] & 0xFF) == 0x1F && (body[1] & 0xFF) == 0x8B;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,89 @@
+package com.microsoft.windowsazure.messaging;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+@SmallTest
+public class SasTokenProviderTest {
+    private static final String RESOURCE = "https://myNamespace.servicebus.windows.net/myHub/Registrations/?api-version=2014-09";
+
+    private FakeClockProvider mProvider;
+
+    @Before
+    public void Before() {
+        mProvider = new FakeClockProvider(300, 60);
+    }
+
+    @Test
+    public void TokenHasExpectedShape() throws InvalidKeyException {
+        mProvider.mNow = 1000;
+        String token = mProvider.getToken(RESOURCE, "DefaultListenSharedAccessSignature", "secret123");
+
+        assertEquals(
+                "SharedAccessSignature sr=https%3a%2f%2fmynamespace.servicebus.windows.net%2fmyhub%2fregistrations%2f%3fapi-version%3d2014-09"
+                        + "&sig=signature%2B1&se=1300&skn=DefaultListenSharedAccessSignature",
+                token);
+    }
+
+    @Test
+    public void TokenIsReusedUntilRefreshMargin() throws InvalidKeyException {
+        mProvider.mNow = 1000;
+        String first = mProvider.getToken(RESOURCE, "keyName", "key");
+
+        mProvider.mNow = 1239;
+        assertEquals(first, mProvider.getToken(RESOURCE, "keyName", "key"));
+        assertEquals(1, mProvider.mSignatures);
+        assertEquals(1, mProvider.getHitCount());
+
+        mProvider.mNow = 1240;
+        String refreshed = mProvider.getToken(RESOURCE, "keyName", "key");
+        assertNotEquals(first, refreshed);
+        assertEquals(2, mProvider.mSignatures);
+        assertEquals(2, mProvider.getMissCount());
+    }
+
+    @Test
+    public void TokensAreCachedPerResourceAndKeyName() throws InvalidKeyException {
+        mProvider.mNow = 1000;
+        mProvider.getToken(RESOURCE, "keyName", "key");
+        mProvider.getToken(RESOURCE + "&other", "keyName", "key");
+        mProvider.getToken(RESOURCE, "otherKeyName", "key");
+        mProvider.getToken(RESOURCE, "keyName", "otherKey");
+        assertEquals(4, mProvider.mSignatures);
+
+        mProvider.getToken(RESOURCE, "keyName", "key");
+        assertEquals(4, mProvider.mSignatures);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void RefreshMarginMustBeShorterThanLifetime() {
+        new SasTokenProvider(60, 60);
+    }
+
+    private static class FakeClockProvider extends SasTokenProvider {
+        long mNow;
+        int mSignatures;
+
+        FakeClockProvider(long lifetime, long margin) {
+            super(lifetime, margin);
+        }
+
+        @Override
+        long currentTimeSeconds() {
+            return mNow;
+        }
+
+        @Override
+        String sign(String toSign, String key) {
+            mSignatures++;
+            return "signature+" + mSignatures;
+        }
+    }
+}
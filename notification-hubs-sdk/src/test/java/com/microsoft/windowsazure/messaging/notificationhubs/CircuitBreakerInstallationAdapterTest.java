@@ -0,0 +1,173 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerInstallationAdapterTest {
+    private static final int THRESHOLD = 3;
+    private static final long WINDOW = 10000;
+    private static final long OPEN_DURATION = 30000;
+
+    private ManualClock mClock;
+    private ScriptedAdapter mBackend;
+    private CircuitBreakerInstallationAdapter mBreaker;
+    private List<String> mTransitions;
+
+    @Before
+    public void Before() {
+        mClock = new ManualClock();
+        mBackend = new ScriptedAdapter();
+        mBreaker = new CircuitBreakerInstallationAdapter(mBackend, THRESHOLD, WINDOW, OPEN_DURATION, mClock);
+        mTransitions = new ArrayList<String>();
+        mBreaker.addListener(new CircuitBreakerInstallationAdapter.StateListener() {
+            @Override
+            public void onStateChanged(CircuitBreakerInstallationAdapter.State from, CircuitBreakerInstallationAdapter.State to) {
+                mTransitions.add(from + "->" + to);
+            }
+        });
+    }
+
+    @Test
+    public void RepeatedFailuresOpenTheCircuit() {
+        mBackend.mError = new IOException("unreachable");
+        for (int i = 0; i < THRESHOLD; i++) {
+            assertTrue(save() instanceof IOException);
+        }
+
+        assertEquals(CircuitBreakerInstallationAdapter.State.OPEN, mBreaker.getState());
+        assertEquals(THRESHOLD, mBackend.mCalls);
+
+        mClock.mNow += 1000;
+        Exception shortCircuited = save();
+        assertTrue(shortCircuited instanceof CircuitBreakerOpenException);
+        assertEquals(OPEN_DURATION - 1000, ((CircuitBreakerOpenException) shortCircuited).getRetryAfterMillis());
+        assertTrue(NotificationHubInstallationAdapter.isRetriable(shortCircuited));
+        assertEquals(THRESHOLD, mBackend.mCalls);
+        assertEquals(1, mTransitions.size());
+        assertEquals("CLOSED->OPEN", mTransitions.get(0));
+    }
+
+    @Test
+    public void FailuresOutsideTheWindowAreForgotten() {
+        mBackend.mError = new IOException("unreachable");
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            save();
+        }
+        mClock.mNow += WINDOW;
+        save();
+
+        assertEquals(CircuitBreakerInstallationAdapter.State.CLOSED, mBreaker.getState());
+    }
+
+    @Test
+    public void RejectionsDoNotCount() {
+        mBackend.mError = new IllegalArgumentException("invalid");
+        for (int i = 0; i < THRESHOLD * 2; i++) {
+            save();
+        }
+
+        assertEquals(CircuitBreakerInstallationAdapter.State.CLOSED, mBreaker.getState());
+        assertEquals(THRESHOLD * 2, mBackend.mCalls);
+    }
+
+    @Test
+    public void SuccessfulProbeClosesTheCircuit() {
+        openCircuit();
+        mClock.mNow += OPEN_DURATION;
+        mBackend.mError = null;
+        mBackend.mDeferred = true;
+
+        assertEquals(null, save());
+        assertEquals(CircuitBreakerInstallationAdapter.State.HALF_OPEN, mBreaker.getState());
+
+        // Only the probe gets through while it is outstanding.
+        assertTrue(save() instanceof CircuitBreakerOpenException);
+        assertEquals(THRESHOLD + 1, mBackend.mCalls);
+
+        mBackend.complete();
+        assertEquals(CircuitBreakerInstallationAdapter.State.CLOSED, mBreaker.getState());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", mTransitions.toString());
+    }
+
+    @Test
+    public void FailedProbeReopensTheCircuit() {
+        openCircuit();
+        mClock.mNow += OPEN_DURATION;
+
+        assertTrue(save() instanceof IOException);
+
+        assertEquals(CircuitBreakerInstallationAdapter.State.OPEN, mBreaker.getState());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN]", mTransitions.toString());
+        Exception shortCircuited = save();
+        assertEquals(OPEN_DURATION, ((CircuitBreakerOpenException) shortCircuited).getRetryAfterMillis());
+    }
+
+    private void openCircuit() {
+        mBackend.mError = new IOException("unreachable");
+        for (int i = 0; i < THRESHOLD; i++) {
+            save();
+        }
+    }
+
+    /**
+     * @return The error the save failed with, or null if it succeeded or is still pending.
+     */
+    private Exception save() {
+        final Exception[] result = new Exception[1];
+        mBreaker.saveInstallation(new Installation(), new InstallationAdapter.Listener() {
+            @Override
+            public void onInstallationSaved(Installation i) {
+            }
+        }, new InstallationAdapter.ErrorListener() {
+            @Override
+            public void onInstallationSaveError(Exception e) {
+                result[0] = e;
+            }
+        });
+        return result[0];
+    }
+
+    private static class ManualClock implements Clock {
+        long mNow = 1000000;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+
+    /**
+     * Fails or succeeds every save in the same way, either right away or once the test says so.
+     */
+    private static class ScriptedAdapter implements InstallationAdapter {
+        Exception mError;
+        boolean mDeferred;
+        int mCalls;
+        private Installation mPending;
+        private Listener mPendingListener;
+
+        @Override
+        public void saveInstallation(Installation installation, Listener onInstallationSaved, ErrorListener onInstallationSaveError) {
+            mCalls++;
+            if (mError != null) {
+                onInstallationSaveError.onInstallationSaveError(mError);
+            } else if (mDeferred) {
+                mPending = installation;
+                mPendingListener = onInstallationSaved;
+            } else {
+                onInstallationSaved.onInstallationSaved(installation);
+            }
+        }
+
+        void complete() {
+            mPendingListener.onInstallationSaved(mPending);
+        }
+    }
+}
@@ -178,9 +178,9 @@ public class DebouncerTest {
         debouncer.saveInstallation(installation, success, logFailureListener);
         safeToProceed.acquire();
 
-        int recentHash = storage.getInt(DebounceInstallationAdapter.LAST_ACCEPTED_HASH_KEY,0);
+        String recentDigest = storage.getString(DebounceInstallationAdapter.LAST_ACCEPTED_DIGEST_KEY, null);
 
-        Assert.assertEquals(recentHash, installation.hashCode());
+        Assert.assertEquals(recentDigest, installation.getDigest());
     }
 
     @Test
@@ -191,7 +191,7 @@ public class DebouncerTest {
         final Installation modifiableInstallation = new Installation();
         modifiableInstallation.setPushChannel("faux_push_channel");
         modifiableInstallation.setInstallationId("id_" + r.nextLong());
-        int hashBeforeAdapter = modifiableInstallation.hashCode();
+        String digestBeforeAdapter = modifiableInstallation.getDigest();
         final Semaphore adapterStatus = new Semaphore(0);
 
         InstallationAdapter.Listener success = new InstallationAdapter.Listener() {
@@ -214,10 +214,10 @@ public class DebouncerTest {
         debouncer.saveInstallation(modifiableInstallation, success, logFailureListener);
         adapterStatus.acquire();
 
-        int hashAfterAdapter = modifiableInstallation.hashCode();
-        int savedHash = storage.getInt(DebounceInstallationAdapter.LAST_ACCEPTED_HASH_KEY, 0);
+        String digestAfterAdapter = modifiableInstallation.getDigest();
+        String savedDigest = storage.getString(DebounceInstallationAdapter.LAST_ACCEPTED_DIGEST_KEY, null);
 
-        Assert.assertNotEquals("Test is built to assume hash is modified", hashBeforeAdapter, hashAfterAdapter);
-        Assert.assertEquals("The hash which is saved by the DebouncerAdapter should not be influenced by Adapters that come after it.", hashBeforeAdapter, savedHash);
+        Assert.assertNotEquals("Test is built to assume digest is modified", digestBeforeAdapter, digestAfterAdapter);
+        Assert.assertEquals("The digest which is saved by the DebouncerAdapter should not be influenced by Adapters that come after it.", digestBeforeAdapter, savedDigest);
     }
 }
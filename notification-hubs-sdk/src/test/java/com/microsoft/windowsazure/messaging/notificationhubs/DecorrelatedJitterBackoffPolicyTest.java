@@ -0,0 +1,165 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecorrelatedJitterBackoffPolicyTest {
+    private static final long BASE = 1000;
+    private static final long CAP = 30000;
+
+    @Test
+    public void DelaysStayBetweenBaseAndCap() {
+        BackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP, 1000, Long.MAX_VALUE, new Random(1));
+        long previous = 0;
+        long total = 0;
+        for (int retry = 1; retry <= 1000; retry++) {
+            long delay = policy.getDelayMillis(retry, previous, total, 0);
+            assertTrue("delay " + delay + " below base", delay >= BASE);
+            assertTrue("delay " + delay + " above cap", delay <= CAP);
+            assertTrue("delay " + delay + " grew faster than three times " + previous, delay <= Math.max(BASE, previous * 3));
+            previous = delay;
+            total += delay;
+        }
+    }
+
+    @Test
+    public void RetriesStopAfterTheLimit() {
+        BackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP, 3, Long.MAX_VALUE, new Random(1));
+
+        assertTrue(policy.getDelayMillis(3, BASE, 3 * BASE, 0) > 0);
+        assertEquals(BackoffPolicy.GIVE_UP, policy.getDelayMillis(4, BASE, 4 * BASE, 0));
+    }
+
+    @Test
+    public void RetriesStopWhenTheBudgetIsSpent() {
+        BackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP, 100, 10000, new Random(1));
+        long previous = 0;
+        long total = 0;
+        int retry = 1;
+        for (long delay; (delay = policy.getDelayMillis(retry, previous, total, 0)) != BackoffPolicy.GIVE_UP; retry++) {
+            previous = delay;
+            total += delay;
+        }
+
+        assertTrue(total <= 10000);
+        assertTrue(retry > 1);
+    }
+
+    @Test
+    public void ServerDelaysAreRespectedWithJitterAbove() {
+        BackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP, 100, Long.MAX_VALUE, new Random(1));
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelayMillis(1, 0, 0, 120000);
+            assertTrue(delay >= 120000);
+            assertTrue(delay <= 180000);
+        }
+    }
+
+    @Test
+    public void ServerDelaysBeyondTheBudgetGiveUp() {
+        BackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP, 3, 60000, new Random(1));
+
+        assertEquals(BackoffPolicy.GIVE_UP, policy.getDelayMillis(1, 0, 0, 120000));
+    }
+
+    @Test
+    public void InvalidSettingsAreRejected() {
+        try {
+            new DecorrelatedJitterBackoffPolicy(BASE, BASE - 1, 3, 60000);
+            fail("expected a cap below the base to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("capMillis", e.getMessage());
+        }
+    }
+
+    /**
+     * Simulates a fleet of devices that all hit a throttled hub at the same instant. The hub
+     * throttles any second with more than a handful of requests, asking for a ten second wait.
+     * Every device has its own random source, as it would in the field, and time only moves when
+     * the simulation says so.
+     */
+    @Test
+    public void ThrottledFleetSpreadsOut() {
+        final int devices = 1000;
+        final int capacityPerSecond = 50;
+        final long retryAfter = 10000;
+        BackoffPolicy lockstep = new BackoffPolicy() {
+            @Override
+            public long getDelayMillis(int retry, long previousDelayMillis, long totalDelayMillis, long minimumDelayMillis) {
+                return retry > 10 ? GIVE_UP : Math.max(1000, minimumDelayMillis);
+            }
+        };
+
+        int[] jittered = simulateStorm(devices, capacityPerSecond, retryAfter, null);
+        int[] fixed = simulateStorm(devices, capacityPerSecond, retryAfter, lockstep);
+
+        System.out.println(String.format(
+                "devices: %d, saved: jitter=%d lockstep=%d, peak requests per second: jitter=%d lockstep=%d",
+                devices, jittered[0], fixed[0], jittered[1], fixed[1]));
+
+        assertTrue(jittered[0] > fixed[0]);
+        assertTrue(jittered[1] < fixed[1]);
+    }
+
+    /**
+     * @return The number of devices that saved before giving up, and the most requests the hub
+     *         received in a single second after the first.
+     */
+    private static int[] simulateStorm(int devices, int capacityPerSecond, long retryAfter, BackoffPolicy sharedPolicy) {
+        PriorityQueue<long[]> pending = new PriorityQueue<long[]>(devices, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        // { time, device, retry, previous delay, total delay }
+        for (int device = 0; device < devices; device++) {
+            pending.add(new long[] { 0, device, 0, 0, 0 });
+        }
+
+        // Seeds next to each other produce nearly the same first values, so draw them at random too.
+        Random seeds = new Random(42);
+        BackoffPolicy[] policies = new BackoffPolicy[devices];
+        for (int device = 0; device < devices; device++) {
+            policies[device] = sharedPolicy != null
+                    ? sharedPolicy
+                    : new DecorrelatedJitterBackoffPolicy(BASE, CAP, 10, 5L * 60L * 1000L, new Random(seeds.nextLong()));
+        }
+
+        Map<Long, Integer> requestsPerSecond = new HashMap<Long, Integer>();
+        int saved = 0;
+        int peak = 0;
+        while (!pending.isEmpty()) {
+            long[] attempt = pending.poll();
+            long second = attempt[0] / 1000;
+            Integer previous = requestsPerSecond.get(second);
+            int requests = previous == null ? 1 : previous + 1;
+            requestsPerSecond.put(second, requests);
+            if (second > 0) {
+                peak = Math.max(peak, requests);
+            }
+
+            if (requests <= capacityPerSecond) {
+                saved++;
+                continue;
+            }
+
+            BackoffPolicy policy = policies[(int) attempt[1]];
+            int retry = (int) attempt[2] + 1;
+            long delay = policy.getDelayMillis(retry, attempt[3], attempt[4], retryAfter);
+            if (delay != BackoffPolicy.GIVE_UP) {
+                pending.add(new long[] { attempt[0] + delay, attempt[1], retry, delay, attempt[4] + delay });
+            }
+        }
+        return new int[] { saved, peak };
+    }
+}
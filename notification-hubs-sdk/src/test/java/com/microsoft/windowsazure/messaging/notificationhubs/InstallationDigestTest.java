@@ -0,0 +1,188 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class InstallationDigestTest {
+    @Test
+    public void DigestDoesNotDependOnOrder() {
+        Installation first = createInstallation();
+        first.addTags(Arrays.asList("a", "b", "c"));
+        first.setTemplates(Collections.singletonMap("one", createTemplate("x", "y")));
+        first.setTemplates(Collections.singletonMap("two", createTemplate("y", "x")));
+
+        Installation second = createInstallation();
+        second.addTag("c");
+        second.addTag("b");
+        second.addTag("a");
+        second.setTemplates(Collections.singletonMap("two", createTemplate("y", "x")));
+        second.setTemplates(Collections.singletonMap("one", createTemplate("x", "y")));
+
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(64, first.getDigest().length());
+    }
+
+    @Test
+    public void RemovingTagsRestoresTheDigest() {
+        Installation installation = createInstallation();
+        installation.addTags(Arrays.asList("a", "b"));
+        String before = installation.getDigest();
+
+        installation.addTag("c");
+        assertNotEquals(before, installation.getDigest());
+        installation.addTag("c");
+        installation.removeTags(Arrays.asList("c", "missing"));
+        assertEquals(before, installation.getDigest());
+
+        installation.clearTags();
+        assertEquals(createInstallation().getDigest(), installation.getDigest());
+    }
+
+    @Test
+    public void RemovingTagsThroughGetTagsUpdatesTheDigest() {
+        Installation installation = createInstallation();
+        installation.addTags(Arrays.asList("a", "b"));
+        String before = installation.getDigest();
+
+        installation.addTags(Arrays.asList("c", "d"));
+        Iterator<String> tags = installation.getTags().iterator();
+        while (tags.hasNext()) {
+            String tag = tags.next();
+            if (tag.equals("c") || tag.equals("d")) {
+                tags.remove();
+            }
+        }
+
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), installation.getTags());
+        assertEquals(before, installation.getDigest());
+    }
+
+    @Test
+    public void EveryFieldChangesTheDigest() {
+        List<String> digests = new ArrayList<String>();
+        digests.add(createInstallation().getDigest());
+
+        Installation installation = createInstallation();
+        installation.setPushChannel("other");
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.setUserId("user");
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.setPlatform("apns");
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.setExpiration(new Date(0));
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.addTag("");
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.setTemplates(Collections.singletonMap("one", createTemplate("x", "y")));
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        installation.setTemplates(Collections.singletonMap("one", createTemplate("x", "z")));
+        digests.add(installation.getDigest());
+
+        installation = createInstallation();
+        InstallationTemplate template = createTemplate("x", "z");
+        template.setHeader("X-Priority", "high");
+        installation.setTemplates(Collections.singletonMap("one", template));
+        digests.add(installation.getDigest());
+
+        assertEquals(digests.size(), new HashSet<String>(digests).size());
+    }
+
+    @Test
+    public void FieldBoundariesAreUnambiguous() {
+        Installation first = createInstallation();
+        first.setUserId("ab");
+        first.setPushChannel("c");
+
+        Installation second = createInstallation();
+        second.setUserId("a");
+        second.setPushChannel("bc");
+
+        Installation third = createInstallation();
+        third.setUserId("");
+
+        assertNotEquals(first.getDigest(), second.getDigest());
+        assertNotEquals(createInstallation().getDigest(), third.getDigest());
+    }
+
+    @Test
+    public void ChangesToTemplatesAfterTheyAreAddedAreIncluded() {
+        Installation installation = createInstallation();
+        InstallationTemplate template = createTemplate("x", "y");
+        installation.setTemplates(Collections.singletonMap("one", template));
+        String before = installation.getDigest();
+
+        template.setBody("changed");
+
+        assertNotEquals(before, installation.getDigest());
+    }
+
+    @Test
+    @LargeTest
+    public void DigestCostDoesNotGrowWithTags() {
+        final int iterations = 200;
+        for (int count : new int[] { 10, 1000, 10000 }) {
+            Installation installation = createInstallation();
+            for (int i = 0; i < count; i++) {
+                installation.addTag("topic:subscription_" + i);
+            }
+            installation.getDigest();
+            installation.hashCode();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                installation.hashCode();
+            }
+            long hashNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                installation.getDigest();
+            }
+            long digestNanos = System.nanoTime() - start;
+
+            System.out.println(String.format(
+                    "tags: %d, us per save check: hashCode=%.2f digest=%.2f",
+                    count,
+                    hashNanos / 1e3 / iterations,
+                    digestNanos / 1e3 / iterations));
+        }
+    }
+
+    private static Installation createInstallation() {
+        Installation installation = new Installation();
+        installation.setInstallationId("id");
+        installation.setPushChannel("channel");
+        return installation;
+    }
+
+    private static InstallationTemplate createTemplate(String body, String tag) {
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody(body);
+        template.addTag(tag);
+        return template;
+    }
+}
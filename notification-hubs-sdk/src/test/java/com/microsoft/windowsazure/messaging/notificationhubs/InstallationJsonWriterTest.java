@@ -0,0 +1,256 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import androidx.test.filters.LargeTest;
+
+import com.microsoft.windowsazure.messaging.Iso8601DateFormat;
+import com.microsoft.windowsazure.messaging.RequestCompression;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstallationJsonWriterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void BodyMatchesTheJsonTree() throws JSONException {
+        Installation installation = createInstallation(20);
+        installation.setUserId("user");
+        installation.setExpiration(new Date(1700000000000L));
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody("{\"data\":{\"message\":\"$(message)\"}}");
+        template.addTag("template-tag");
+        template.setHeader("X-Header", "value");
+        installation.setTemplates(Collections.singletonMap("template", template));
+
+        JSONObject streamed = new JSONObject(new String(InstallationJsonWriter.toJson(installation), UTF_8));
+
+        assertTrue(streamed.similar(getTreeBody(installation)));
+        assertEquals(InstallationPutRequest.formatExpiration(installation.getExpiration()), streamed.getString("expirationTime"));
+    }
+
+    @Test
+    public void MissingValuesAreLeftOut() throws JSONException {
+        Installation installation = new Installation();
+        installation.setInstallationId("id");
+        installation.setPlatform(null);
+
+        String body = new String(InstallationJsonWriter.toJson(installation), UTF_8);
+
+        assertEquals("{\"installationId\":\"id\",\"tags\":[],\"templates\":{}}", body);
+    }
+
+    @Test
+    public void StringsAreEscapedAndEncoded() throws JSONException {
+        String tricky = "quote\" backslash\\ slash/ newline\n tab\t bell\u0007 accent\u00e9 euro\u20ac clef\ud834\udd1e separator\u2028";
+        Installation installation = new Installation();
+        installation.setInstallationId(tricky);
+
+        byte[] body = InstallationJsonWriter.toJson(installation);
+
+        assertEquals(tricky, new JSONObject(new String(body, UTF_8)).getString("installationId"));
+        String raw = new String(body, UTF_8);
+        assertTrue(raw.contains("\\u0007"));
+        assertTrue(raw.contains("\\u2028"));
+        assertFalse(raw.contains("\n"));
+    }
+
+    @Test
+    public void BufferIsReusedUntilItGrowsTooLarge() {
+        InstallationJsonWriter writer = new InstallationJsonWriter();
+        writer.writeInstallation(createInstallation(10));
+        byte[] first = writer.toByteArray();
+        writer.reset();
+        writer.writeInstallation(createInstallation(10));
+
+        assertArrayEquals(first, writer.toByteArray());
+        assertEquals(InstallationJsonWriter.INITIAL_CAPACITY, writer.getCapacity());
+
+        writer.reset();
+        writer.writeInstallation(createInstallation(5000));
+        assertTrue(writer.getCapacity() > InstallationJsonWriter.MAX_RETAINED_CAPACITY);
+        writer.reset();
+        assertEquals(InstallationJsonWriter.INITIAL_CAPACITY, writer.getCapacity());
+    }
+
+    @Test
+    public void PutRequestSendsTheStreamedBody() throws JSONException {
+        ConnectionString connectionString = ConnectionString.parse("Endpoint=sb://example.servicebus.windows.net/;SharedAccessKeyName=DefaultListenSharedAccessSignature;SharedAccessKey=c2VjcmV0");
+        Installation installation = createInstallation(3);
+
+        InstallationPutRequest request = new InstallationPutRequest(connectionString, "hub", installation, null, null);
+
+        assertArrayEquals(InstallationJsonWriter.toJson(installation), request.getBody());
+        assertEquals("application/json; charset=utf-8", request.getBodyContentType());
+    }
+
+    @Test
+    public void PutRequestCompressesLargeBodiesWhenEnabled() throws IOException {
+        ConnectionString connectionString = ConnectionString.parse("Endpoint=sb://example.servicebus.windows.net/;SharedAccessKeyName=DefaultListenSharedAccessSignature;SharedAccessKey=c2VjcmV0");
+        RequestCompression compression = RequestCompression.getDefault();
+        compression.setEnabled(true);
+        try {
+            Installation small = createInstallation(3);
+            InstallationPutRequest smallRequest = new InstallationPutRequest(connectionString, "hub", small, null, null);
+            assertNull(smallRequest.getHeaders().get("Content-Encoding"));
+            assertArrayEquals(InstallationJsonWriter.toJson(small), smallRequest.getBody());
+
+            Installation large = createInstallation(500);
+            InstallationPutRequest largeRequest = new InstallationPutRequest(connectionString, "hub", large, null, null);
+            long sentBefore = compression.getSentBytes();
+            assertEquals(RequestCompression.GZIP_ENCODING, largeRequest.getHeaders().get("Content-Encoding"));
+            byte[] body = largeRequest.getBody();
+            assertArrayEquals(InstallationJsonWriter.toJson(large), gunzip(body));
+            assertEquals(body.length, compression.getSentBytes() - sentBefore);
+        } finally {
+            compression.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void ParallelSavesEachCarryTheirOwnExpiration() throws Exception {
+        final int threads = 8;
+        final int perThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int mismatches = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            // Every save expires on a different minute, so a shared, corrupted
+                            // formatter would show up as the wrong value in some body.
+                            long expiration = 1699999980000L + (thread * perThread + i) * 60000L;
+                            Installation installation = createInstallation(i % 20);
+                            installation.setExpiration(new Date(expiration));
+                            JSONObject body = new JSONObject(new String(InstallationJsonWriter.toJson(installation), UTF_8));
+                            if (Iso8601DateFormat.parse(body.getString("expirationTime")) != expiration
+                                    || body.getJSONArray("tags").length() != i % 20) {
+                                mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(0), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void StreamingBeatsTheJsonTree() throws JSONException {
+        final int iterations = 200;
+        for (int count : new int[] { 10, 500, 5000 }) {
+            Installation installation = createInstallation(count);
+            getTreeBody(installation).toString().getBytes(UTF_8);
+            InstallationJsonWriter.toJson(installation);
+
+            long start = System.nanoTime();
+            int treeBytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                treeBytes = getTreeBody(installation).toString().getBytes(UTF_8).length;
+            }
+            long treeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int streamedBytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                streamedBytes = InstallationJsonWriter.toJson(installation).length;
+            }
+            long streamedNanos = System.nanoTime() - start;
+
+            System.out.println(String.format(
+                    "tags: %d, us per body: tree=%.2f streamed=%.2f, KB: tree=%.1f streamed=%.1f",
+                    count,
+                    treeNanos / 1e3 / iterations,
+                    streamedNanos / 1e3 / iterations,
+                    treeBytes / 1024.0,
+                    streamedBytes / 1024.0));
+        }
+    }
+
+    /**
+     * Builds the body the way it was built before it was streamed, through a tree of org.json
+     * objects.
+     */
+    private static JSONObject getTreeBody(Installation installation) throws JSONException {
+        JSONArray tagList = new JSONArray();
+        for (String tag : installation.getTags()) {
+            tagList.put(tag);
+        }
+
+        JSONObject serializedTemplates = new JSONObject();
+        for (Map.Entry<String, InstallationTemplate> template : installation.getTemplates().entrySet()) {
+            serializedTemplates.put(template.getKey(), InstallationTemplate.serialize(template.getKey(), template.getValue()));
+        }
+
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("installationId", installation.getInstallationId());
+        jsonBody.put("platform", installation.getPlatform());
+        jsonBody.put("pushChannel", installation.getPushChannel());
+        jsonBody.put("tags", tagList);
+        jsonBody.put("templates", serializedTemplates);
+        jsonBody.put("userId", installation.getUserId());
+        if (installation.getExpiration() != null) {
+            jsonBody.put("expirationTime", InstallationPutRequest.formatExpiration(installation.getExpiration()));
+        }
+        return jsonBody;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Installation createInstallation(int tags) {
+        Installation installation = new Installation();
+        installation.setInstallationId("4c7e2a6f-3b1d-4d0e-9f8a-2b5c6d7e8f90");
+        installation.setPlatform("gcm");
+        installation.setPushChannel("dGVzdC1wdXNoLWNoYW5uZWwtdG9rZW4tZm9yLWJlbmNobWFya2luZw");
+        for (int i = 0; i < tags; i++) {
+            installation.addTag("topic:subscription_" + i);
+        }
+        return installation;
+    }
+}
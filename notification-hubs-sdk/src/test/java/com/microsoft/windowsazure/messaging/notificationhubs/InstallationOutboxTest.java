@@ -0,0 +1,156 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstallationOutboxTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void PendingInstallationsSurviveReopening() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox/installations.jsonl");
+        Installation installation = createInstallation("id", "channel");
+        installation.setUserId("user");
+        installation.setExpiration(new Date(1600000000000L));
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody("{\"data\":{\"message\":\"$(message)\"}}");
+        template.addTag("templateTag");
+        template.setHeader("header", "value");
+        Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+        templates.put("template", template);
+        installation.setTemplates(templates);
+
+        new InstallationOutbox(file).append(installation);
+        List<InstallationOutbox.Entry> pending = new InstallationOutbox(file).getPending();
+
+        assertEquals(1, pending.size());
+        Installation restored = pending.get(0).getInstallation();
+        assertEquals("id", restored.getInstallationId());
+        assertEquals("channel", restored.getPushChannel());
+        assertEquals("fcmv1", restored.getPlatform());
+        assertEquals("user", restored.getUserId());
+        assertEquals(new Date(1600000000000L), restored.getExpiration());
+        assertEquals(tags(installation), tags(restored));
+        assertEquals(installation.getTemplates(), restored.getTemplates());
+    }
+
+    @Test
+    public void OnlyTheLatestInstallationPerIdIsPending() throws Exception {
+        File file = mFolder.newFile();
+        InstallationOutbox outbox = new InstallationOutbox(file);
+
+        outbox.append(createInstallation("a", "first"));
+        outbox.append(createInstallation("b", "first"));
+        outbox.append(createInstallation("a", "second"));
+
+        for (InstallationOutbox reopened : new InstallationOutbox[]{outbox, new InstallationOutbox(file)}) {
+            List<InstallationOutbox.Entry> pending = reopened.getPending();
+            assertEquals(2, pending.size());
+            assertEquals("b", pending.get(0).getInstallation().getInstallationId());
+            assertEquals("a", pending.get(1).getInstallation().getInstallationId());
+            assertEquals("second", pending.get(1).getInstallation().getPushChannel());
+            assertEquals("b", reopened.peek().getInstallation().getInstallationId());
+        }
+    }
+
+    @Test
+    public void AcknowledgingASupersededEntryKeepsTheNewerOne() throws Exception {
+        File file = mFolder.newFile();
+        InstallationOutbox outbox = new InstallationOutbox(file);
+
+        InstallationOutbox.Entry first = outbox.append(createInstallation("a", "first"));
+        InstallationOutbox.Entry second = outbox.append(createInstallation("a", "second"));
+
+        assertFalse(outbox.acknowledge(first));
+        assertEquals(second.getSequence(), outbox.peek().getSequence());
+        assertEquals("second", new InstallationOutbox(file).peek().getInstallation().getPushChannel());
+
+        assertTrue(outbox.acknowledge(second));
+        assertNull(outbox.peek());
+        assertNull(new InstallationOutbox(file).peek());
+    }
+
+    @Test
+    public void SequenceNumbersKeepIncreasingAcrossReopening() throws Exception {
+        File file = mFolder.newFile();
+        InstallationOutbox outbox = new InstallationOutbox(file);
+        InstallationOutbox.Entry first = outbox.append(createInstallation("a", "first"));
+        outbox.acknowledge(first);
+
+        InstallationOutbox.Entry second = new InstallationOutbox(file).append(createInstallation("a", "second"));
+
+        assertTrue(second.getSequence() > first.getSequence());
+        assertEquals("second", new InstallationOutbox(file).peek().getInstallation().getPushChannel());
+    }
+
+    @Test
+    public void DamagedTailIsDiscardedAndRepaired() throws Exception {
+        File file = mFolder.newFile();
+        new InstallationOutbox(file).append(createInstallation("a", "first"));
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("{\"seq\":2,\"installation\":{\"installationId\":\"b\",\"pushCh".getBytes("UTF-8"));
+        out.close();
+
+        InstallationOutbox repaired = new InstallationOutbox(file);
+        assertEquals(1, repaired.getPending().size());
+        assertEquals(1, repaired.getRecordCount());
+
+        repaired.append(createInstallation("c", "first"));
+        List<InstallationOutbox.Entry> pending = new InstallationOutbox(file).getPending();
+        assertEquals(2, pending.size());
+        assertEquals("a", pending.get(0).getInstallation().getInstallationId());
+        assertEquals("c", pending.get(1).getInstallation().getInstallationId());
+    }
+
+    @Test
+    public void SupersededRecordsAreCompacted() throws Exception {
+        File file = mFolder.newFile();
+        InstallationOutbox outbox = new InstallationOutbox(file);
+
+        for (int i = 0; i < 1000; i++) {
+            InstallationOutbox.Entry entry = outbox.append(createInstallation("a", "channel" + i));
+            if (i % 2 == 0) {
+                outbox.acknowledge(entry);
+            }
+        }
+
+        assertTrue("log should be compacted, found " + outbox.getRecordCount() + " records", outbox.getRecordCount() <= 20);
+        InstallationOutbox reopened = new InstallationOutbox(file);
+        assertEquals(1, reopened.getPending().size());
+        assertEquals("channel999", reopened.peek().getInstallation().getPushChannel());
+    }
+
+    private static Installation createInstallation(String id, String pushChannel) {
+        Installation installation = new Installation();
+        installation.setInstallationId(id);
+        installation.setPushChannel(pushChannel);
+        installation.addTag("tag1");
+        installation.addTag("tag2");
+        return installation;
+    }
+
+    private static Set<String> tags(Installation installation) {
+        Set<String> tags = new HashSet<String>();
+        for (String tag : installation.getTags()) {
+            tags.add(tag);
+        }
+        return tags;
+    }
+}
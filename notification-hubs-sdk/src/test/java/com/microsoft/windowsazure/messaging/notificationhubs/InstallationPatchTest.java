@@ -0,0 +1,130 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstallationPatchTest {
+    @Test
+    public void IdenticalInstallationsProduceNoOperations() throws JSONException {
+        assertEquals(0, InstallationPatch.diff(createInstallation(), createInstallation()).length());
+    }
+
+    @Test
+    public void DifferentInstallationsCanNotBePatched() throws JSONException {
+        Installation otherId = createInstallation();
+        otherId.setInstallationId("other");
+        Installation otherPlatform = createInstallation();
+        otherPlatform.setPlatform("apns");
+
+        assertNull(InstallationPatch.diff(createInstallation(), otherId));
+        assertNull(InstallationPatch.diff(createInstallation(), otherPlatform));
+    }
+
+    @Test
+    public void ChangedScalarsAreAddedReplacedOrRemoved() throws JSONException {
+        Installation acknowledged = createInstallation();
+        Installation current = createInstallation();
+        current.setPushChannel("new-channel");
+        current.setUserId(null);
+        current.setExpiration(new Date(1700000000000L));
+
+        Set<String> operations = describe(InstallationPatch.diff(acknowledged, current));
+
+        assertEquals(3, operations.size());
+        assertTrue(operations.contains("replace /pushChannel new-channel"));
+        assertTrue(operations.contains("remove /userId"));
+        assertTrue(operations.contains("replace /expirationTime " + InstallationPutRequest.formatExpiration(new Date(1700000000000L))));
+
+        Set<String> reverse = describe(InstallationPatch.diff(current, acknowledged));
+        assertTrue(reverse.contains("add /userId user"));
+    }
+
+    @Test
+    public void OnlyChangedTagsAreSent() throws JSONException {
+        Installation acknowledged = createInstallation();
+        Installation current = createInstallation();
+        current.removeTag("tag1");
+        current.addTag("tag3");
+        current.addTag("a/b~c");
+
+        Set<String> operations = describe(InstallationPatch.diff(acknowledged, current));
+
+        assertEquals(3, operations.size());
+        assertTrue(operations.contains("remove /tags/tag1"));
+        assertTrue(operations.contains("add /tags tag3"));
+        assertTrue(operations.contains("add /tags a/b~c"));
+
+        Set<String> reverse = describe(InstallationPatch.diff(current, acknowledged));
+        assertTrue(reverse.contains("remove /tags/a~1b~0c"));
+    }
+
+    @Test
+    public void OnlyChangedTemplatesAreSent() throws JSONException {
+        Installation acknowledged = createInstallation();
+        acknowledged.setTemplates(templates("kept", "{\"kept\":1}", "changed", "{\"before\":1}", "removed", "{}"));
+        Installation current = createInstallation();
+        current.setTemplates(templates("kept", "{\"kept\":1}", "changed", "{\"after\":1}", "added", "{}"));
+
+        JSONArray operations = InstallationPatch.diff(acknowledged, current);
+        Set<String> described = describe(operations);
+
+        assertEquals(3, operations.length());
+        assertTrue(described.contains("remove /templates/removed"));
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            if (operation.getString("path").equals("/templates/changed")) {
+                assertEquals("add", operation.getString("op"));
+                assertEquals("{\"after\":1}", operation.getJSONObject("value").getString("body"));
+            } else {
+                assertFalse(operation.getString("path").equals("/templates/kept"));
+            }
+        }
+    }
+
+    private static Installation createInstallation() {
+        Installation installation = new Installation();
+        installation.setInstallationId("id");
+        installation.setPushChannel("channel");
+        installation.setUserId("user");
+        installation.setExpiration(new Date(1600000000000L));
+        installation.addTag("tag1");
+        installation.addTag("tag2");
+        return installation;
+    }
+
+    private static Map<String, InstallationTemplate> templates(String... namesAndBodies) {
+        Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+        for (int i = 0; i < namesAndBodies.length; i += 2) {
+            InstallationTemplate template = new InstallationTemplate();
+            template.setBody(namesAndBodies[i + 1]);
+            templates.put(namesAndBodies[i], template);
+        }
+        return templates;
+    }
+
+    private static Set<String> describe(JSONArray operations) throws JSONException {
+        Set<String> described = new HashSet<String>();
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            String description = operation.getString("op") + " " + operation.getString("path");
+            if (operation.has("value") && !(operation.get("value") instanceof JSONObject)) {
+                description += " " + operation.getString("value");
+            }
+            described.add(description);
+        }
+        return described;
+    }
+}
@@ -0,0 +1,331 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import androidx.test.filters.LargeTest;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kxml2.io.KXmlParser;
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstallationStateFileTest {
+    private static final String[] TAG_PREFIXES = new String[] { "topic:", "city:", "lang:", "" };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void TagsAndTemplatesRoundTrip() throws Exception {
+        File file = new File(mFolder.getRoot(), "state/installation-state.bin");
+        Set<String> tags = new HashSet<String>(Arrays.asList("topic:sports", "topic:news", "plain", "a:b:c", ":", "\u00fcn\u00efc\u00f8d\u00e9:\u2713"));
+        Map<String, InstallationTemplate> templates = createTemplates(3);
+        InstallationTemplate withoutHeaders = new InstallationTemplate();
+        withoutHeaders.setBody("");
+        templates.put("empty", withoutHeaders);
+
+        new InstallationStateFile(tags, templates).write(file);
+        InstallationStateFile read = InstallationStateFile.read(file);
+
+        assertEquals(tags, read.getTags());
+        assertEquals(templates, read.getTemplates());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void MissingFileIsNotAnError() throws Exception {
+        assertNull(InstallationStateFile.read(new File(mFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void SharedTagPrefixesAreStoredOnce() throws Exception {
+        File prefixed = mFolder.newFile();
+        File unprefixed = mFolder.newFile();
+        Set<String> prefixedTags = new HashSet<String>();
+        Set<String> unprefixedTags = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            prefixedTags.add("subscription-topic:" + i);
+            unprefixedTags.add("subscription-topic" + i);
+        }
+
+        new InstallationStateFile(prefixedTags, Collections.<String, InstallationTemplate>emptyMap()).write(prefixed);
+        new InstallationStateFile(unprefixedTags, Collections.<String, InstallationTemplate>emptyMap()).write(unprefixed);
+
+        assertTrue(prefixed.length() < unprefixed.length() / 2);
+    }
+
+    @Test
+    public void NewerSchemaVersionsAreRejected() throws Exception {
+        File file = mFolder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(InstallationStateFile.MAGIC);
+        InstallationStateFile.writeVarInt(out, InstallationStateFile.SCHEMA_VERSION + 1);
+        out.close();
+
+        try {
+            InstallationStateFile.read(file);
+            fail("expected the schema version to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("schema version"));
+        }
+    }
+
+    @Test
+    public void TruncatedFilesAreRejected() throws Exception {
+        File file = mFolder.newFile();
+        new InstallationStateFile(createTags(100), createTemplates(2)).write(file);
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() / 2);
+        truncated.close();
+
+        try {
+            InstallationStateFile.read(file);
+            fail("expected a truncated file to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void LengthsLargerThanTheFileAreRejected() throws Exception {
+        File file = mFolder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(InstallationStateFile.MAGIC);
+        InstallationStateFile.writeVarInt(out, InstallationStateFile.SCHEMA_VERSION);
+        InstallationStateFile.writeVarInt(out, 1);
+        InstallationStateFile.writeVarInt(out, Integer.MAX_VALUE);
+        out.close();
+
+        try {
+            InstallationStateFile.read(file);
+            fail("expected the string length to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds"));
+        }
+    }
+
+    @Test
+    public void UnreadableFilesAreLeftUntouched() throws Exception {
+        File file = new File(mFolder.getRoot(), "installation-state.bin");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(InstallationStateFile.MAGIC);
+        InstallationStateFile.writeVarInt(out, InstallationStateFile.SCHEMA_VERSION + 1);
+        out.writeUTF("written by a newer version");
+        out.close();
+        byte[] contents = Files.readAllBytes(file.toPath());
+
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        preferences.edit()
+                .putStringSet(InstallationStateStore.TAGS_KEY, Collections.singleton("legacy"))
+                .commit();
+
+        InstallationStateStore store = new InstallationStateStore(preferences, preferences, file, new DirectExecutor());
+        store.addTags(Collections.singletonList("topic:a"));
+
+        assertEquals(new HashSet<String>(Arrays.asList("legacy", "topic:a")), store.getSnapshot().getTags());
+        assertTrue(Arrays.equals(contents, Files.readAllBytes(file.toPath())));
+        assertEquals(Collections.singleton("legacy"), preferences.getStringSet(InstallationStateStore.TAGS_KEY, null));
+        assertFalse(store.isComplete());
+    }
+
+    @Test
+    public void CorruptedFilesAfterMigrationLeaveTheStoreIncomplete() throws Exception {
+        File file = new File(mFolder.getRoot(), "installation-state.bin");
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        preferences.edit()
+                .putStringSet(InstallationStateStore.TAGS_KEY, new HashSet<String>(Arrays.asList("topic:a", "b")))
+                .commit();
+        InstallationStateStore migrated = new InstallationStateStore(preferences, preferences, file, new DirectExecutor());
+        assertTrue(migrated.isComplete());
+        assertFalse(preferences.contains(InstallationStateStore.TAGS_KEY));
+
+        RandomAccessFile corrupted = new RandomAccessFile(file, "rw");
+        corrupted.setLength(file.length() - 1);
+        corrupted.close();
+        byte[] contents = Files.readAllBytes(file.toPath());
+
+        InstallationStateStore reloaded = new InstallationStateStore(preferences, preferences, file, new DirectExecutor());
+        reloaded.addTags(Collections.singletonList("topic:c"));
+
+        assertFalse(reloaded.isComplete());
+        assertEquals(Collections.singleton("topic:c"), reloaded.getSnapshot().getTags());
+        assertTrue(Arrays.equals(contents, Files.readAllBytes(file.toPath())));
+    }
+
+    @Test
+    public void PreferencesAreMigratedOnce() throws Exception {
+        File file = new File(mFolder.getRoot(), "installation-state.bin");
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        MockSharedPreferences templatePreferences = new MockSharedPreferences();
+        InstallationTemplate template = createTemplates(1).get("template0");
+        preferences.edit()
+                .putString(InstallationStateStore.INSTALLATION_ID_KEY, "id")
+                .putStringSet(InstallationStateStore.TAGS_KEY, new HashSet<String>(Arrays.asList("topic:a", "b")))
+                .commit();
+        templatePreferences.edit()
+                .putStringSet(InstallationStateStore.TEMPLATES_KEY, Collections.singleton(InstallationTemplate.serialize("template0", template).toString()))
+                .commit();
+
+        InstallationStateStore store = new InstallationStateStore(preferences, templatePreferences, file, new DirectExecutor());
+
+        assertEquals(new HashSet<String>(Arrays.asList("topic:a", "b")), store.getSnapshot().getTags());
+        assertTrue(file.exists());
+        assertFalse(preferences.contains(InstallationStateStore.TAGS_KEY));
+        assertFalse(templatePreferences.contains(InstallationStateStore.TEMPLATES_KEY));
+        assertEquals("id", preferences.getString(InstallationStateStore.INSTALLATION_ID_KEY, null));
+
+        store.addTags(Collections.singletonList("topic:c"));
+        InstallationStateStore.Snapshot reloaded = new InstallationStateStore(preferences, templatePreferences, file, new DirectExecutor()).getSnapshot();
+        assertEquals(new HashSet<String>(Arrays.asList("topic:a", "b", "topic:c")), reloaded.getTags());
+        assertEquals(template, reloaded.getTemplates().get("template0"));
+        assertEquals("id", reloaded.getInstallationId());
+    }
+
+    @Test
+    @LargeTest
+    public void BinaryFileLoadsFasterThanPreferences() throws Exception {
+        final int iterations = 20;
+        Map<String, InstallationTemplate> templates = createTemplates(5);
+
+        for (int count : new int[] { 10, 1000, 10000 }) {
+            Set<String> tags = createTags(count);
+            File binary = mFolder.newFile();
+            File xml = mFolder.newFile();
+            new InstallationStateFile(tags, templates).write(binary);
+            writePreferencesXml(xml, tags, templates);
+
+            // warm up both paths so the JIT doesn't skew the first measurement
+            assertEquals(tags, InstallationStateFile.read(binary).getTags());
+            assertEquals(tags, readPreferencesXml(xml));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                readPreferencesXml(xml);
+            }
+            long xmlNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                InstallationStateFile.read(binary);
+            }
+            long binaryNanos = System.nanoTime() - start;
+
+            System.out.println(String.format(
+                    "tags: %d, ms per load: preferences=%.3f binary=%.3f, KB on disk: preferences=%.1f binary=%.1f",
+                    count,
+                    xmlNanos / 1e6 / iterations,
+                    binaryNanos / 1e6 / iterations,
+                    xml.length() / 1024.0,
+                    binary.length() / 1024.0));
+
+            assertTrue(binary.length() < xml.length());
+        }
+    }
+
+    private static Set<String> createTags(int count) {
+        Set<String> tags = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            tags.add(TAG_PREFIXES[i % TAG_PREFIXES.length] + "subscription_" + i);
+        }
+        return tags;
+    }
+
+    private static Map<String, InstallationTemplate> createTemplates(int count) {
+        Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+        for (int i = 0; i < count; i++) {
+            InstallationTemplate template = new InstallationTemplate();
+            template.setBody("{\"data\":{\"message\":\"$(message)\",\"id\":" + i + "}}");
+            template.addTag("topic:template" + i);
+            template.setHeader("X-Priority", "high");
+            template.setHeader("X-Template", String.valueOf(i));
+            templates.put("template" + i, template);
+        }
+        return templates;
+    }
+
+    /**
+     * Writes tags and templates the way SharedPreferences stores string sets.
+     */
+    private static void writePreferencesXml(File file, Set<String> tags, Map<String, InstallationTemplate> templates) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(out, "utf-8");
+        serializer.startDocument("utf-8", true);
+        serializer.startTag(null, "map");
+        serializer.startTag(null, "set").attribute(null, "name", InstallationStateStore.TAGS_KEY);
+        for (String tag : tags) {
+            serializer.startTag(null, "string").text(tag).endTag(null, "string");
+        }
+        serializer.endTag(null, "set");
+        serializer.startTag(null, "set").attribute(null, "name", InstallationStateStore.TEMPLATES_KEY);
+        for (Map.Entry<String, InstallationTemplate> template : templates.entrySet()) {
+            String serialized = InstallationTemplate.serialize(template.getKey(), template.getValue()).toString();
+            serializer.startTag(null, "string").text(serialized).endTag(null, "string");
+        }
+        serializer.endTag(null, "set");
+        serializer.endTag(null, "map");
+        serializer.endDocument();
+        out.close();
+    }
+
+    /**
+     * Reads the file back the way tags and templates used to be loaded: parsing the preferences
+     * XML, then parsing each template from JSON.
+     */
+    private static Set<String> readPreferencesXml(File file) throws Exception {
+        Map<String, Set<String>> sets = new HashMap<String, Set<String>>();
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            XmlPullParser parser = new KXmlParser();
+            parser.setInput(reader);
+            Set<String> current = null;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG && parser.getName().equals("set")) {
+                    current = new HashSet<String>();
+                    sets.put(parser.getAttributeValue(null, "name"), current);
+                } else if (event == XmlPullParser.START_TAG && parser.getName().equals("string")) {
+                    current.add(parser.nextText());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        Map<String, InstallationTemplate> templates = new HashMap<String, InstallationTemplate>();
+        for (String serialized : sets.get(InstallationStateStore.TEMPLATES_KEY)) {
+            JSONObject template = new JSONObject(serialized);
+            templates.put(template.getString("name"), InstallationTemplate.deserialize(template));
+        }
+        return new HashSet<String>(sets.get(InstallationStateStore.TAGS_KEY));
+    }
+
+    private static class DirectExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+}
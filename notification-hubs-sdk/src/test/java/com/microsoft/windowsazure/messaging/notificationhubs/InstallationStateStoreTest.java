@@ -0,0 +1,183 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InstallationStateStoreTest {
+    @Test
+    public void ExistingPreferencesAreLoaded() {
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        preferences.edit()
+                .putString(InstallationStateStore.INSTALLATION_ID_KEY, "id")
+                .putString(InstallationStateStore.PUSH_CHANNEL_KEY, "channel")
+                .putStringSet(InstallationStateStore.TAGS_KEY, new HashSet<String>(Arrays.asList("a", "b")))
+                .commit();
+        MockSharedPreferences templatePreferences = new MockSharedPreferences();
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody("body");
+        templatePreferences.edit()
+                .putStringSet(InstallationStateStore.TEMPLATES_KEY, Collections.singleton(InstallationTemplate.serialize("template", template).toString()))
+                .commit();
+
+        InstallationStateStore.Snapshot snapshot = new InstallationStateStore(preferences, templatePreferences, null, new QueueExecutor()).getSnapshot();
+
+        assertEquals("id", snapshot.getInstallationId());
+        assertEquals("channel", snapshot.getPushChannel());
+        assertNull(snapshot.getUserId());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), snapshot.getTags());
+        assertEquals(template, snapshot.getTemplates().get("template"));
+    }
+
+    @Test
+    public void SnapshotsAreNotAffectedByLaterChanges() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        store.addTags(Collections.singletonList("a"));
+        InstallationStateStore.Snapshot before = store.getSnapshot();
+
+        store.addTags(Collections.singletonList("b"));
+        store.setUserId("user");
+
+        assertEquals(Collections.singleton("a"), before.getTags());
+        assertNull(before.getUserId());
+        assertEquals(2, store.getSnapshot().getTags().size());
+    }
+
+    @Test
+    public void UnchangedValuesDoNotReplaceTheSnapshot() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        store.setPushChannel("channel");
+        store.addTags(Arrays.asList("a", "b"));
+        InstallationStateStore.Snapshot snapshot = store.getSnapshot();
+
+        assertFalse(store.setPushChannel("channel"));
+        assertFalse(store.addTags(Collections.singletonList("a")));
+        assertFalse(store.removeTags(Collections.singletonList("c")));
+        assertFalse(store.removeTemplates(Collections.singletonList("missing")));
+        assertSame(snapshot, store.getSnapshot());
+    }
+
+    @Test
+    public void ChangesAreWrittenInOneBatch() {
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        MockSharedPreferences templatePreferences = new MockSharedPreferences();
+        QueueExecutor executor = new QueueExecutor();
+        InstallationStateStore store = new InstallationStateStore(preferences, templatePreferences, null, executor);
+
+        store.setInstallationId("id");
+        store.setPushChannel("channel");
+        store.addTags(Arrays.asList("a", "b"));
+        store.removeTags(Collections.singletonList("a"));
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody("body");
+        store.setTemplates(Collections.singletonMap("template", template));
+
+        assertEquals(1, executor.mTasks.size());
+        assertNull(preferences.getString(InstallationStateStore.INSTALLATION_ID_KEY, null));
+
+        executor.runAll();
+
+        assertEquals("id", preferences.getString(InstallationStateStore.INSTALLATION_ID_KEY, null));
+        assertEquals("channel", preferences.getString(InstallationStateStore.PUSH_CHANNEL_KEY, null));
+        assertEquals(Collections.singleton("b"), preferences.getStringSet(InstallationStateStore.TAGS_KEY, null));
+        assertEquals(1, templatePreferences.getStringSet(InstallationStateStore.TEMPLATES_KEY, null).size());
+
+        store.setUserId("user");
+        store.setUserId(null);
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+        assertNull(preferences.getString(InstallationStateStore.USER_ID_KEY, null));
+
+        InstallationStateStore.Snapshot reloaded = new InstallationStateStore(preferences, templatePreferences, null, executor).getSnapshot();
+        assertEquals("id", reloaded.getInstallationId());
+        assertEquals(Collections.singleton("b"), reloaded.getTags());
+        assertEquals(template, reloaded.getTemplates().get("template"));
+    }
+
+    @Test
+    public void StoredTemplatesAreIsolatedFromCallers() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        InstallationTemplate template = new InstallationTemplate();
+        template.setBody("body");
+        store.setTemplates(Collections.singletonMap("template", template));
+
+        template.setBody("changed");
+
+        assertEquals("body", store.getSnapshot().getTemplates().get("template").getBody());
+    }
+
+    @Test
+    public void TagsWithPrefixAreFoundWithoutScanning() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        store.addTags(Arrays.asList("Language_en-US", "Language_fr-FR", "Languages", "Country_US", "Language"));
+
+        assertEquals(Arrays.asList("Language_en-US", "Language_fr-FR"), new ArrayList<String>(store.getSnapshot().getTagsWithPrefix("Language_")));
+        assertEquals(5, store.getSnapshot().getTagsWithPrefix("").size());
+        assertTrue(store.getSnapshot().getTagsWithPrefix("Team_").isEmpty());
+    }
+
+    @Test
+    public void PrefixesEndingInTheLargestCharacterAreBounded() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        String max = String.valueOf(Character.MAX_VALUE);
+        store.addTags(Arrays.asList("a" + max, "a" + max + max + "b", "b", max, max + "z"));
+
+        assertEquals(Arrays.asList("a" + max, "a" + max + max + "b"), new ArrayList<String>(store.getSnapshot().getTagsWithPrefix("a" + max)));
+        assertEquals(Arrays.asList(max, max + "z"), new ArrayList<String>(store.getSnapshot().getTagsWithPrefix(max)));
+    }
+
+    @Test
+    public void TagsWithPrefixAreReplacedInOneSnapshot() {
+        InstallationStateStore store = new InstallationStateStore(new MockSharedPreferences());
+        store.addTags(Arrays.asList("Language_en-US", "Language_de-DE", "Country_US"));
+        InstallationStateStore.Snapshot before = store.getSnapshot();
+
+        TagDiff diff = store.replaceTagsWithPrefix("Language_", Arrays.asList("Language_fr-FR", "Language_de-DE"));
+
+        assertEquals(Collections.singleton("Language_fr-FR"), diff.getAdded());
+        assertEquals(Collections.singleton("Language_en-US"), diff.getRemoved());
+        assertEquals(new HashSet<String>(Arrays.asList("Language_fr-FR", "Language_de-DE", "Country_US")), store.getSnapshot().getTags());
+        assertEquals(3, before.getTags().size());
+        assertTrue(before.getTags().contains("Language_en-US"));
+
+        InstallationStateStore.Snapshot replaced = store.getSnapshot();
+        assertTrue(store.replaceTagsWithPrefix("Language_", Arrays.asList("Language_fr-FR", "Language_de-DE")).isEmpty());
+        assertSame(replaced, store.getSnapshot());
+
+        diff = store.removeTagsWithPrefix("Language_");
+        assertTrue(diff.getAdded().isEmpty());
+        assertEquals(new HashSet<String>(Arrays.asList("Language_fr-FR", "Language_de-DE")), diff.getRemoved());
+        assertEquals(Collections.singleton("Country_US"), store.getSnapshot().getTags());
+    }
+
+    /**
+     * Holds on to submitted tasks until the test runs them.
+     */
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> tasks = new ArrayList<Runnable>(mTasks);
+            mTasks.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
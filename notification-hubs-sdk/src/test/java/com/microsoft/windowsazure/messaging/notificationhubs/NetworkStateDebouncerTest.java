@@ -0,0 +1,100 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkStateDebouncerTest {
+    private static final long WINDOW = 100;
+    private static final NetworkState WIFI = new NetworkState(true, true, false, false, NetworkState.Transport.WIFI);
+    private static final NetworkState CELLULAR = new NetworkState(true, true, true, false, NetworkState.Transport.CELLULAR);
+
+    private ScheduledThreadPoolExecutor mScheduler;
+    private final List<NetworkState> mReported = new CopyOnWriteArrayList<NetworkState>();
+    private final NetworkStateHelper.StateListener mListener = new NetworkStateHelper.StateListener() {
+        @Override
+        public void onNetworkStateChanged(NetworkState state) {
+            mReported.add(state);
+        }
+    };
+
+    @Before
+    public void Setup() {
+        mScheduler = SharedScheduler.create(1, SharedScheduler.IDLE_TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void TearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void OnlyTheSettledStateIsReported() throws InterruptedException {
+        NetworkStateDebouncer debouncer = new NetworkStateDebouncer(mScheduler, WINDOW, null, mListener);
+
+        debouncer.observe(CELLULAR);
+        debouncer.observe(NetworkState.DISCONNECTED);
+        debouncer.observe(WIFI);
+        waitForReports(1);
+
+        assertEquals(1, mReported.size());
+        assertEquals(WIFI, mReported.get(0));
+    }
+
+    @Test
+    public void FlapsBackToTheReportedStateAreSuppressed() throws InterruptedException {
+        NetworkStateDebouncer debouncer = new NetworkStateDebouncer(mScheduler, WINDOW, WIFI, mListener);
+
+        debouncer.observe(NetworkState.DISCONNECTED);
+        debouncer.observe(WIFI);
+        debouncer.observe(new NetworkState(true, true, false, false, NetworkState.Transport.WIFI));
+        Thread.sleep(WINDOW * 3);
+
+        assertTrue(mReported.isEmpty());
+    }
+
+    @Test
+    public void EachLastingChangeIsReported() throws InterruptedException {
+        NetworkStateDebouncer debouncer = new NetworkStateDebouncer(mScheduler, WINDOW, WIFI, mListener);
+
+        debouncer.observe(CELLULAR);
+        waitForReports(1);
+        debouncer.observe(WIFI);
+        waitForReports(2);
+
+        assertEquals(2, mReported.size());
+        assertEquals(CELLULAR, mReported.get(0));
+        assertEquals(WIFI, mReported.get(1));
+    }
+
+    @Test
+    public void DeferUntilUnmeteredHoldsOnlyUpdatesThatCanWait() {
+        InstallationSyncPolicy policy = InstallationSyncPolicy.DEFER_UNTIL_UNMETERED;
+        NetworkState roaming = new NetworkState(true, true, false, true, NetworkState.Transport.CELLULAR);
+        NetworkState portal = new NetworkState(true, false, false, false, NetworkState.Transport.WIFI);
+
+        assertTrue(policy.shouldSync(WIFI, false));
+        assertEquals(false, policy.shouldSync(CELLULAR, false));
+        assertEquals(false, policy.shouldSync(roaming, false));
+        assertEquals(false, policy.shouldSync(portal, false));
+        assertEquals(false, policy.shouldSync(NetworkState.DISCONNECTED, false));
+        assertTrue(policy.shouldSync(CELLULAR, true));
+        assertTrue(InstallationSyncPolicy.IMMEDIATE.shouldSync(CELLULAR, false));
+    }
+
+    private void waitForReports(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mReported.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Leave time for anything that shouldn't have been reported to show up.
+        Thread.sleep(WINDOW * 2);
+    }
+}
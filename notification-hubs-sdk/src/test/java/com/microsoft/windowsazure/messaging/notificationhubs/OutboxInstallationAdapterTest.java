@@ -0,0 +1,270 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxInstallationAdapterTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private ScheduledThreadPoolExecutor mScheduler;
+
+    @Before
+    public void Before() throws IOException {
+        mFile = mFolder.newFile();
+
+        // Retries run right away, but keep going through the scheduler.
+        mScheduler = new ScheduledThreadPoolExecutor(1) {
+            @Override
+            public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+                return super.schedule(command, 0, unit);
+            }
+        };
+    }
+
+    @After
+    public void After() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void InstallationsLeftByAPreviousProcessAreDelivered() throws Exception {
+        new InstallationOutbox(mFile).append(createInstallation("id", "channel"));
+
+        RecordingAdapter backend = new RecordingAdapter();
+        new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+
+        Installation delivered = backend.mReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals("channel", delivered.getPushChannel());
+
+        awaitEmptyOutbox();
+    }
+
+    @Test
+    public void OutboxIsOnlyReadAndWrittenOnTheScheduler() throws Exception {
+        new InstallationOutbox(mFile).append(createInstallation("previous", "previous-channel"));
+        long length = mFile.length();
+
+        final CountDownLatch paused = new CountDownLatch(1);
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    paused.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        RecordingAdapter backend = new RecordingAdapter();
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+        RecordingListener listener = new RecordingListener();
+        adapter.saveInstallation(createInstallation("id", "channel"), listener, listener);
+
+        assertEquals("saving must not write the outbox on the calling thread", length, mFile.length());
+
+        paused.countDown();
+        Set<String> delivered = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            delivered.add(backend.mReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getPushChannel());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("previous-channel", "channel")), delivered);
+        assertEquals("channel", listener.mSaved.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getPushChannel());
+        awaitEmptyOutbox();
+    }
+
+    @Test
+    public void UnreadableOutboxesStillDeliverInstallations() throws Exception {
+        // A damaged log that can't be repaired, since its replacement can't be created
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write("{\"seq\":".getBytes("UTF-8"));
+        out.close();
+        assertTrue(new File(mFile.getPath() + ".tmp").mkdir());
+
+        RecordingAdapter backend = new RecordingAdapter();
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+        RecordingListener listener = new RecordingListener();
+
+        adapter.saveInstallation(createInstallation("id", "channel"), listener, listener);
+
+        assertEquals("channel", listener.mSaved.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getPushChannel());
+    }
+
+    @Test
+    public void RetriableFailuresStayInTheOutbox() throws Exception {
+        RecordingAdapter backend = new RecordingAdapter(new IOException("offline"), new IOException("still offline"));
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+        RecordingListener listener = new RecordingListener();
+
+        adapter.saveInstallation(createInstallation("id", "channel"), listener, listener);
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(backend.mReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertNotNull(listener.mSaved.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(listener.mErrors.isEmpty());
+        awaitEmptyOutbox();
+    }
+
+    @Test
+    public void PermanentFailuresAreReportedAndDropped() throws Exception {
+        RecordingAdapter backend = new RecordingAdapter(new IllegalStateException("rejected"));
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+        RecordingListener listener = new RecordingListener();
+
+        adapter.saveInstallation(createInstallation("id", "channel"), listener, listener);
+
+        Exception error = listener.mErrors.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(error instanceof IllegalStateException);
+        awaitEmptyOutbox();
+        assertEquals(1, backend.mCalls.size());
+    }
+
+    @Test
+    public void OnlyTheLatestPendingInstallationIsDelivered() throws Exception {
+        final BlockingAdapter backend = new BlockingAdapter();
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(backend, mFile, null, mScheduler);
+        RecordingListener first = new RecordingListener();
+        RecordingListener latest = new RecordingListener();
+
+        adapter.saveInstallation(createInstallation("id", "in-flight"), first, first);
+        Installation inFlight = backend.mReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("in-flight", inFlight.getPushChannel());
+
+        adapter.saveInstallation(createInstallation("id", "superseded"), latest, latest);
+        adapter.saveInstallation(createInstallation("id", "latest"), latest, latest);
+        backend.complete();
+
+        assertEquals("latest", backend.mReceived.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getPushChannel());
+        backend.complete();
+
+        assertEquals("latest", latest.mSaved.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getPushChannel());
+        assertTrue(first.mSaved.isEmpty());
+        awaitEmptyOutbox();
+        assertNull(backend.mReceived.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void InstallationsWithoutAnIdAreRejected() {
+        OutboxInstallationAdapter adapter = new OutboxInstallationAdapter(new RecordingAdapter(), mFile, null, mScheduler);
+        RecordingListener listener = new RecordingListener();
+
+        adapter.saveInstallation(new Installation(), listener, listener);
+
+        assertTrue(listener.mErrors.poll() instanceof IllegalArgumentException);
+    }
+
+    private void awaitEmptyOutbox() throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (new InstallationOutbox(mFile).peek() != null) {
+            assertTrue("outbox was not drained", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Installation createInstallation(String id, String pushChannel) {
+        Installation installation = new Installation();
+        installation.setInstallationId(id);
+        installation.setPushChannel(pushChannel);
+        return installation;
+    }
+
+    /**
+     * Fails with the given errors, in order, then accepts every Installation.
+     */
+    private static class RecordingAdapter implements InstallationAdapter {
+        final LinkedBlockingQueue<Installation> mReceived = new LinkedBlockingQueue<Installation>();
+        final List<Installation> mCalls = Collections.synchronizedList(new ArrayList<Installation>());
+        private final List<Exception> mErrors;
+
+        RecordingAdapter(Exception... errors) {
+            mErrors = new ArrayList<Exception>(Arrays.asList(errors));
+        }
+
+        @Override
+        public void saveInstallation(Installation installation, Listener onInstallationSaved, ErrorListener onInstallationSaveError) {
+            mCalls.add(installation);
+            mReceived.add(installation);
+            Exception error;
+            synchronized (mErrors) {
+                error = mErrors.isEmpty() ? null : mErrors.remove(0);
+            }
+            if (error == null) {
+                onInstallationSaved.onInstallationSaved(installation);
+            } else {
+                onInstallationSaveError.onInstallationSaveError(error);
+            }
+        }
+    }
+
+    /**
+     * Holds on to each Installation until the test completes it.
+     */
+    private static class BlockingAdapter implements InstallationAdapter {
+        final LinkedBlockingQueue<Installation> mReceived = new LinkedBlockingQueue<Installation>();
+        private Installation mPending;
+        private Listener mPendingListener;
+
+        @Override
+        public synchronized void saveInstallation(Installation installation, Listener onInstallationSaved, ErrorListener onInstallationSaveError) {
+            mPending = installation;
+            mPendingListener = onInstallationSaved;
+            mReceived.add(installation);
+        }
+
+        void complete() {
+            Installation installation;
+            Listener listener;
+            synchronized (this) {
+                installation = mPending;
+                listener = mPendingListener;
+                mPending = null;
+                mPendingListener = null;
+            }
+            listener.onInstallationSaved(installation);
+        }
+    }
+
+    private static class RecordingListener implements InstallationAdapter.Listener, InstallationAdapter.ErrorListener {
+        final LinkedBlockingQueue<Installation> mSaved = new LinkedBlockingQueue<Installation>();
+        final LinkedBlockingQueue<Exception> mErrors = new LinkedBlockingQueue<Exception>();
+
+        @Override
+        public void onInstallationSaved(Installation i) {
+            mSaved.add(i);
+        }
+
+        @Override
+        public void onInstallationSaveError(Exception e) {
+            mErrors.add(e);
+        }
+    }
+}
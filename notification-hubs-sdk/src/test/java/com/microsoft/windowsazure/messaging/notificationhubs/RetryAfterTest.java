@@ -0,0 +1,60 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryAfterTest {
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long EXAMPLE_DATE_MILLIS = 784111777000L;
+
+    @Test
+    public void DelaySecondsAreParsed() {
+        assertEquals(120000, NotificationHubInstallationAdapter.parseRetryAfterValue("120", 0));
+        assertEquals(0, NotificationHubInstallationAdapter.parseRetryAfterValue(" 0 ", 0));
+    }
+
+    @Test
+    public void EveryHttpDateFormatIsParsed() {
+        long now = EXAMPLE_DATE_MILLIS - 30000;
+
+        assertEquals(30000, NotificationHubInstallationAdapter.parseRetryAfterValue("Sun, 06 Nov 1994 08:49:37 GMT", now));
+        assertEquals(30000, NotificationHubInstallationAdapter.parseRetryAfterValue("Sunday, 06-Nov-94 08:49:37 GMT", now));
+        assertEquals(30000, NotificationHubInstallationAdapter.parseRetryAfterValue("Sun Nov  6 08:49:37 1994", now));
+    }
+
+    @Test
+    public void DatesInThePastMeanNoWait() {
+        assertEquals(0, NotificationHubInstallationAdapter.parseRetryAfterValue("Sun, 06 Nov 1994 08:49:37 GMT", EXAMPLE_DATE_MILLIS + 1000));
+    }
+
+    @Test
+    public void UnrecognizedValuesAreNegative() {
+        assertTrue(NotificationHubInstallationAdapter.parseRetryAfterValue("", 0) < 0);
+        assertTrue(NotificationHubInstallationAdapter.parseRetryAfterValue("-5", 0) < 0);
+        assertTrue(NotificationHubInstallationAdapter.parseRetryAfterValue("12abc", 0) < 0);
+        assertTrue(NotificationHubInstallationAdapter.parseRetryAfterValue("tomorrow", 0) < 0);
+        assertTrue(NotificationHubInstallationAdapter.parseRetryAfterValue("Sun, 06 Nov 1994 08:49:37 GMT trailing", 0) < 0);
+        assertNull(NotificationHubInstallationAdapter.parseHttpDate("Sun, 32 Nov 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void ThrottlingWithoutRetryAfterWaitsTenSeconds() {
+        NetworkResponse throttled = new NetworkResponse(429, new byte[0], false, 0, Collections.<Header>emptyList());
+        NetworkResponse unavailable = new NetworkResponse(503, new byte[0], false, 0, Arrays.asList(new Header("Retry-After", "3")));
+        NetworkResponse unrecognized = new NetworkResponse(503, new byte[0], false, 0, Arrays.asList(new Header("retry-after", "soon")));
+
+        assertEquals(10000, NotificationHubInstallationAdapter.getMinimumDelay(throttled));
+        assertEquals(3000, NotificationHubInstallationAdapter.getMinimumDelay(unavailable));
+        assertEquals(0, NotificationHubInstallationAdapter.getMinimumDelay(unrecognized));
+        assertEquals(0, NotificationHubInstallationAdapter.getMinimumDelay(null));
+    }
+}
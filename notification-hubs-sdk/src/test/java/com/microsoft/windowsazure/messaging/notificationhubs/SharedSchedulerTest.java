@@ -0,0 +1,120 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSchedulerTest {
+    @Test
+    public void ThreadsAreNamedDaemonsStartedOnDemand() throws InterruptedException {
+        ScheduledThreadPoolExecutor scheduler = SharedScheduler.create(SharedScheduler.POOL_SIZE, SharedScheduler.IDLE_TIMEOUT_MILLIS);
+        assertEquals(0, scheduler.getPoolSize());
+
+        final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                worker.set(Thread.currentThread());
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.get().isDaemon());
+        assertTrue(worker.get().getName().startsWith(SharedScheduler.THREAD_NAME_PREFIX));
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void IdleThreadsExit() throws InterruptedException {
+        ScheduledThreadPoolExecutor scheduler = SharedScheduler.create(SharedScheduler.POOL_SIZE, 50);
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, scheduler.getPoolSize());
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void AdaptersShareTheSameThreads() throws InterruptedException {
+        final int adapters = 50;
+        final CountDownLatch saved = new CountDownLatch(adapters);
+        InstallationAdapter downstream = new InstallationAdapter() {
+            @Override
+            public void saveInstallation(Installation installation, Listener onInstallationSaved, ErrorListener onInstallationSaveError) {
+                onInstallationSaved.onInstallationSaved(installation);
+            }
+        };
+        InstallationAdapter.Listener success = new InstallationAdapter.Listener() {
+            @Override
+            public void onInstallationSaved(Installation i) {
+                saved.countDown();
+            }
+        };
+
+        for (int i = 0; i < adapters; i++) {
+            Installation installation = new Installation();
+            installation.setInstallationId("id_" + i);
+            new DebounceInstallationAdapter(downstream, 10, new MockSharedPreferences()).saveInstallation(installation, success, null);
+        }
+
+        assertTrue(saved.await(5, TimeUnit.SECONDS));
+        assertTrue(((ScheduledThreadPoolExecutor) SharedScheduler.getSharedInstance()).getLargestPoolSize() <= SharedScheduler.POOL_SIZE);
+        assertSame(SharedScheduler.getSharedInstance(), SharedScheduler.getSharedInstance());
+    }
+
+    @Test
+    public void SerialExecutorRunsTasksInOrderOneAtATime() throws InterruptedException {
+        Executor serial = SharedScheduler.newSerialExecutor();
+        final int tasks = 100;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicBoolean running = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(tasks);
+
+        for (int i = 0; i < tasks; i++) {
+            final int index = i;
+            serial.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!running.compareAndSet(false, true)) {
+                        overlapped.set(true);
+                    }
+                    order.add(index);
+                    running.set(false);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        for (int i = 0; i < tasks; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupSyncCoordinatorTest {
+    private ScheduledThreadPoolExecutor mScheduler;
+    private ManualClock mClock;
+    private AtomicInteger mSyncs;
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mSyncs.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void Before() {
+        mScheduler = SharedScheduler.create(1, SharedScheduler.IDLE_TIMEOUT_MILLIS);
+        mClock = new ManualClock();
+        mSyncs = new AtomicInteger();
+    }
+
+    @After
+    public void After() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void UpdatesBeforeThePushChannelAreMergedIntoOne() {
+        StartupSyncCoordinator coordinator = new StartupSyncCoordinator(mScheduler, mClock, 60000, mSync);
+        coordinator.start();
+
+        assertTrue(coordinator.hold());
+        assertTrue(coordinator.hold());
+        assertTrue(coordinator.hold());
+        assertEquals(0, mSyncs.get());
+
+        coordinator.onPushChannelReady();
+        coordinator.onPushChannelReady();
+
+        assertEquals(1, mSyncs.get());
+        assertEquals(3, coordinator.getHeldCount());
+        assertFalse(coordinator.hold());
+    }
+
+    @Test
+    public void NothingIsSentIfNothingWasHeld() {
+        StartupSyncCoordinator coordinator = new StartupSyncCoordinator(mScheduler, mClock, 60000, mSync);
+        coordinator.start();
+
+        coordinator.onPushChannelReady();
+
+        assertEquals(0, mSyncs.get());
+        assertFalse(coordinator.hold());
+    }
+
+    @Test
+    public void HeldUpdatesAreSentWhenThePushChannelNeverArrives() throws InterruptedException {
+        StartupSyncCoordinator coordinator = new StartupSyncCoordinator(mScheduler, mClock, 50, mSync);
+        coordinator.start();
+        assertTrue(coordinator.hold());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mSyncs.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, mSyncs.get());
+        assertFalse(coordinator.hold());
+        coordinator.onPushChannelReady();
+        assertEquals(1, mSyncs.get());
+    }
+
+    @Test
+    public void LatencyIsMeasuredToTheFirstSavedInstallation() {
+        StartupSyncCoordinator coordinator = new StartupSyncCoordinator(mScheduler, mClock, 60000, mSync);
+        coordinator.start();
+        assertEquals(StartupSyncCoordinator.LATENCY_UNKNOWN, coordinator.getStartupLatencyMillis());
+
+        mClock.mNow += 1500;
+        coordinator.onInstallationSaved();
+        mClock.mNow += 1500;
+        coordinator.onInstallationSaved();
+
+        assertEquals(1500, coordinator.getStartupLatencyMillis());
+    }
+
+    private static class ManualClock implements Clock {
+        long mNow = 1000000;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.microsoft.windowsazure.messaging.notificationhubs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TagEditorTest {
+    @Test
+    public void ChangesAreAppliedInOrderAndReportedOnce() {
+        MockSharedPreferences preferences = new MockSharedPreferences();
+        TagVisitor visitor = new TagVisitor(preferences);
+        visitor.addTags(Arrays.asList("Language_en-US", "Country_US", "team_anaheimDucks"));
+        final int[] updates = new int[]{0};
+
+        TagDiff diff = new TagEditor(visitor, new Runnable() {
+            @Override
+            public void run() {
+                updates[0]++;
+            }
+        })
+                .retainMatching("team_")
+                .remove("team_anaheimDucks")
+                .add("team_seattleKraken")
+                .addAll(Arrays.asList("team_a", "team_b"))
+                .remove("team_b")
+                .apply();
+
+        assertEquals(new HashSet<String>(Arrays.asList("team_seattleKraken", "team_a")), diff.getAdded());
+        assertEquals(new HashSet<String>(Arrays.asList("Language_en-US", "Country_US", "team_anaheimDucks")), diff.getRemoved());
+        assertEquals(new HashSet<String>(Arrays.asList("team_seattleKraken", "team_a")), visitor.getTags());
+        assertEquals(1, updates[0]);
+    }
+
+    @Test
+    public void ChangesThatCancelOutAreNotReported() {
+        TagVisitor visitor = new TagVisitor(new MockSharedPreferences());
+        visitor.addTag("kept");
+        final int[] updates = new int[]{0};
+
+        TagDiff diff = new TagEditor(visitor, new Runnable() {
+            @Override
+            public void run() {
+                updates[0]++;
+            }
+        })
+                .add("transient")
+                .remove("transient")
+                .replaceAll(Collections.singletonList("kept"))
+                .apply();
+
+        assertTrue(diff.isEmpty());
+        assertEquals(0, updates[0]);
+        assertEquals(Collections.singleton("kept"), visitor.getTags());
+    }
+
+    @Test
+    public void ReplaceAllReportsTheExactDifference() {
+        TagVisitor visitor = new TagVisitor(new MockSharedPreferences());
+        visitor.addTags(Arrays.asList("a", "b"));
+
+        TagDiff diff = new TagEditor(visitor, null).replaceAll(Arrays.asList("b", "c")).apply();
+
+        assertEquals(Collections.singleton("c"), diff.getAdded());
+        assertEquals(Collections.singleton("a"), diff.getRemoved());
+    }
+
+    @Test
+    public void NullTagsAreRejected() {
+        TagEditor editor = new TagEditor(new TagVisitor(new MockSharedPreferences()), null);
+
+        try {
+            editor.add(null);
+            fail("expected a null tag to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("tags", e.getMessage());
+        }
+    }
+}